@@ -0,0 +1,214 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.linq4j.benchmark;
+
+import net.hydromatic.linq4j.*;
+import net.hydromatic.linq4j.function.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the operators in {@link EnumerableDefaults}.
+ *
+ * <p>Each operator is run over a table of {@link #size} rows whose keys
+ * have {@link #keyCount} distinct values. If {@link #skew} is greater than
+ * zero, small keys are more frequent than large keys. Data is generated
+ * with a fixed seed, so every run sees the same input.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EnumerableBenchmark {
+  /** Number of rows in the input. */
+  @Param({"1000", "100000"})
+  public int size;
+
+  /** Number of distinct key values. */
+  @Param({"10", "1000", "100000"})
+  public int keyCount;
+
+  /** Skew of the key distribution. 0 is uniform; with larger values, small
+   * keys are more frequent. */
+  @Param({"0", "2"})
+  public double skew;
+
+  private Enumerable<Row> rows;
+  private Enumerable<Row> dimension;
+  private Enumerable<Integer> keys;
+  private Enumerable<Integer> keys2;
+
+  private static final Function1<Row, Integer> KEY =
+      new Function1<Row, Integer>() {
+        public Integer apply(Row row) {
+          return row.key;
+        }
+      };
+
+  private static final Function1<Row, Integer> VALUE =
+      new Function1<Row, Integer>() {
+        public Integer apply(Row row) {
+          return row.value;
+        }
+      };
+
+  private static final Predicate1<Row> EVEN_VALUE =
+      new Predicate1<Row>() {
+        public boolean apply(Row row) {
+          return row.value % 2 == 0;
+        }
+      };
+
+  private static final Function2<Row, Row, Integer> SUM_VALUES =
+      new Function2<Row, Row, Integer>() {
+        public Integer apply(Row row0, Row row1) {
+          return row0.value + row1.value;
+        }
+      };
+
+  private static final Function0<Long> ZERO =
+      new Function0<Long>() {
+        public Long apply() {
+          return 0L;
+        }
+      };
+
+  private static final Function2<Long, Row, Long> ADD_VALUE =
+      new Function2<Long, Row, Long>() {
+        public Long apply(Long sum, Row row) {
+          return sum + row.value;
+        }
+      };
+
+  private static final Function2<Integer, Long, Long> SUM =
+      new Function2<Integer, Long, Long>() {
+        public Long apply(Integer key, Long sum) {
+          return sum;
+        }
+      };
+
+  @Setup
+  public void setup() {
+    final Random random = new Random(1234);
+    rows = Linq4j.asEnumerable(rows(random, size));
+    final List<Row> dimensionList = new ArrayList<Row>();
+    for (int i = 0; i < keyCount; i++) {
+      dimensionList.add(new Row(i, i));
+    }
+    dimension = Linq4j.asEnumerable(dimensionList);
+    keys = Linq4j.asEnumerable(keys(random, size));
+    keys2 = Linq4j.asEnumerable(keys(random, size));
+  }
+
+  private List<Row> rows(Random random, int n) {
+    final List<Row> list = new ArrayList<Row>(n);
+    for (int i = 0; i < n; i++) {
+      list.add(new Row(key(random), random.nextInt()));
+    }
+    return list;
+  }
+
+  private List<Integer> keys(Random random, int n) {
+    final List<Integer> list = new ArrayList<Integer>(n);
+    for (int i = 0; i < n; i++) {
+      list.add(key(random));
+    }
+    return list;
+  }
+
+  /** Generates a key between 0 and {@code keyCount - 1}. */
+  private int key(Random random) {
+    return (int) (keyCount * Math.pow(random.nextDouble(), 1d + skew));
+  }
+
+  /** Reads every element of an enumerable. */
+  private static void consume(Enumerable<?> enumerable, Blackhole blackhole) {
+    final Enumerator<?> enumerator = enumerable.enumerator();
+    try {
+      while (enumerator.moveNext()) {
+        blackhole.consume(enumerator.current());
+      }
+    } finally {
+      enumerator.close();
+    }
+  }
+
+  @Benchmark
+  public void where(Blackhole blackhole) {
+    consume(rows.where(EVEN_VALUE), blackhole);
+  }
+
+  @Benchmark
+  public void select(Blackhole blackhole) {
+    consume(rows.select(VALUE), blackhole);
+  }
+
+  @Benchmark
+  public void join(Blackhole blackhole) {
+    consume(rows.join(dimension, KEY, KEY, SUM_VALUES), blackhole);
+  }
+
+  @Benchmark
+  public void groupBy(Blackhole blackhole) {
+    consume(rows.groupBy(KEY), blackhole);
+  }
+
+  @Benchmark
+  public void groupByAggregate(Blackhole blackhole) {
+    consume(rows.groupBy(KEY, ZERO, ADD_VALUE, SUM), blackhole);
+  }
+
+  @Benchmark
+  public void orderBy(Blackhole blackhole) {
+    consume(rows.orderBy(KEY), blackhole);
+  }
+
+  @Benchmark
+  public void distinct(Blackhole blackhole) {
+    consume(keys.distinct(), blackhole);
+  }
+
+  @Benchmark
+  public void union(Blackhole blackhole) {
+    consume(keys.union(keys2), blackhole);
+  }
+
+  @Benchmark
+  public Lookup<Integer, Row> toLookup() {
+    return rows.toLookup(KEY);
+  }
+
+  /** Row of the input table. */
+  static class Row {
+    final int key;
+    final int value;
+
+    Row(int key, int value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+}
+
+// End EnumerableBenchmark.java
@@ -0,0 +1,119 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.linq4j.benchmark;
+
+import net.hydromatic.linq4j.expressions.*;
+import net.hydromatic.linq4j.function.Function1;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Modifier;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for building, writing, compiling and calling expressions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExpressionBenchmark {
+  /** Number of statements in the generated block. */
+  @Param({"10", "1000"})
+  public int statementCount;
+
+  private final ParameterExpression x =
+      Expressions.parameter(int.class, "x");
+  private BlockStatement block;
+  private FunctionExpression<Function1<Integer, Integer>> lambda;
+  private Function1<Integer, Integer> function;
+  private FunctionExpression.Invokable invokable;
+  private int i;
+
+  @Setup
+  public void setup() {
+    block = buildBlock();
+    lambda = lambda();
+    function = lambda.getFunction();
+    invokable = lambda.compile();
+  }
+
+  /** Builds a block of {@link #statementCount} declarations, each of which
+   * uses the previous variable twice, so that none is inlined. One
+   * expression in four is appended a second time, and is found by common
+   * sub-expression elimination. */
+  private BlockStatement buildBlock() {
+    final BlockBuilder builder = new BlockBuilder();
+    Expression v = x;
+    for (int j = 0; j < statementCount; j++) {
+      final Expression e =
+          Expressions.add(Expressions.multiply(v, v), Expressions.constant(j));
+      v = builder.append("v", e);
+      if (j % 4 == 3) {
+        builder.append("v", e);
+      }
+    }
+    builder.add(Expressions.return_(null, v));
+    return builder.toBlock();
+  }
+
+  /** Creates the expression "x -> x &gt; 10 ? x * 2 + 1 : x - 3". */
+  private FunctionExpression<Function1<Integer, Integer>> lambda() {
+    final ParameterExpression p = Expressions.parameter(int.class, "p");
+    //noinspection unchecked
+    return Expressions.lambda(Function1.class,
+        Expressions.condition(
+            Expressions.greaterThan(p, Expressions.constant(10)),
+            Expressions.add(
+                Expressions.multiply(p, Expressions.constant(2)),
+                Expressions.constant(1)),
+            Expressions.subtract(p, Expressions.constant(3))),
+        p);
+  }
+
+  @Benchmark
+  public BlockStatement blockBuilder() {
+    return buildBlock();
+  }
+
+  @Benchmark
+  public String toString_() {
+    return Expressions.toString(block);
+  }
+
+  /** Creates a new expression and gets its function; after the first call,
+   * the compiled class comes from the cache. */
+  @Benchmark
+  public Function1<Integer, Integer> getFunction() {
+    return lambda().getFunction();
+  }
+
+  @Benchmark
+  public Integer invokeCompiled() {
+    return function.apply(i++);
+  }
+
+  @Benchmark
+  public Object invokeInterpreted() {
+    return invokable.dynamicInvoke(i++);
+  }
+}
+
+// End ExpressionBenchmark.java
@@ -0,0 +1,40 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.linq4j;
+
+/**
+ * Which input of a hash join is read into a hash table ("built"); the other
+ * input is streamed through it ("probed").
+ *
+ * <p>Building the smaller input uses less memory. Results are returned in
+ * the order of the probe input.</p>
+ */
+public enum BuildSide {
+  /** Build the outer (left) input, and probe with the inner. */
+  OUTER,
+
+  /** Build the inner (right) input, and probe with the outer. */
+  INNER,
+
+  /** Build the outer input if both sizes are known (see
+   * {@link Linq4j#knownSize}) and the outer input is smaller; otherwise
+   * build the inner input. This is the default. */
+  AUTO,
+}
+
+// End BuildSide.java
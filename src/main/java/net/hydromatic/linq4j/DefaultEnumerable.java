@@ -21,6 +21,7 @@ import net.hydromatic.linq4j.function.*;
 
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Implementation of the {@link net.hydromatic.linq4j.Enumerable} interface that
@@ -94,6 +95,21 @@ public abstract class DefaultEnumerable<T> implements OrderedEnumerable<T> {
     return EnumerableDefaults.all(getThis(), predicate);
   }
 
+  public <TInner, TKey> Enumerable<T> antiJoin(Enumerable<TInner> inner,
+      Function1<T, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector) {
+    return EnumerableDefaults.antiJoin(getThis(), inner, outerKeySelector,
+        innerKeySelector);
+  }
+
+  public <TInner, TKey> Enumerable<T> antiJoin(Enumerable<TInner> inner,
+      Function1<T, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      EqualityComparer<TKey> comparer, BuildSide buildSide) {
+    return EnumerableDefaults.antiJoin(getThis(), inner, outerKeySelector,
+        innerKeySelector, comparer, buildSide);
+  }
+
   public boolean any() {
     return EnumerableDefaults.any(getThis());
   }
@@ -106,6 +122,15 @@ public abstract class DefaultEnumerable<T> implements OrderedEnumerable<T> {
     return EnumerableDefaults.asEnumerable(getThis());
   }
 
+  public ParallelEnumerable<T> asParallel() {
+    return EnumerableDefaults.asParallel(getThis());
+  }
+
+  public ParallelEnumerable<T> asParallel(ExecutorService executor,
+      int parallelism) {
+    return EnumerableDefaults.asParallel(getThis(), executor, parallelism);
+  }
+
   public BigDecimal average(BigDecimalFunction1<T> selector) {
     return EnumerableDefaults.average(getThis(), selector);
   }
@@ -342,6 +367,28 @@ public abstract class DefaultEnumerable<T> implements OrderedEnumerable<T> {
         innerKeySelector, resultSelector, comparer);
   }
 
+  public <TInner, TKey, TResult> Enumerable<TResult> join(
+      Enumerable<TInner> inner, Function1<T, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      Function2<T, TInner, TResult> resultSelector,
+      EqualityComparer<TKey> comparer, boolean generateNullsOnLeft,
+      boolean generateNullsOnRight) {
+    return EnumerableDefaults.join(getThis(), inner, outerKeySelector,
+        innerKeySelector, resultSelector, comparer, generateNullsOnLeft,
+        generateNullsOnRight);
+  }
+
+  public <TInner, TKey, TResult> Enumerable<TResult> join(
+      Enumerable<TInner> inner, Function1<T, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      Function2<T, TInner, TResult> resultSelector,
+      EqualityComparer<TKey> comparer, boolean generateNullsOnLeft,
+      boolean generateNullsOnRight, BuildSide buildSide) {
+    return EnumerableDefaults.join(getThis(), inner, outerKeySelector,
+        innerKeySelector, resultSelector, comparer, generateNullsOnLeft,
+        generateNullsOnRight, buildSide);
+  }
+
   public T last() {
     return EnumerableDefaults.last(getThis());
   }
@@ -468,23 +515,23 @@ public abstract class DefaultEnumerable<T> implements OrderedEnumerable<T> {
     return EnumerableDefaults.ofType(getThis(), clazz);
   }
 
-  public <TKey extends Comparable> Enumerable<T> orderBy(
+  public <TKey extends Comparable> OrderedEnumerable<T> orderBy(
       Function1<T, TKey> keySelector) {
     return EnumerableDefaults.orderBy(getThis(), keySelector);
   }
 
-  public <TKey> Enumerable<T> orderBy(Function1<T, TKey> keySelector,
+  public <TKey> OrderedEnumerable<T> orderBy(Function1<T, TKey> keySelector,
       Comparator<TKey> comparator) {
     return EnumerableDefaults.orderBy(getThis(), keySelector, comparator);
   }
 
-  public <TKey extends Comparable> Enumerable<T> orderByDescending(
+  public <TKey extends Comparable> OrderedEnumerable<T> orderByDescending(
       Function1<T, TKey> keySelector) {
     return EnumerableDefaults.orderByDescending(getThis(), keySelector);
   }
 
-  public <TKey> Enumerable<T> orderByDescending(Function1<T, TKey> keySelector,
-      Comparator<TKey> comparator) {
+  public <TKey> OrderedEnumerable<T> orderByDescending(
+      Function1<T, TKey> keySelector, Comparator<TKey> comparator) {
     return EnumerableDefaults.orderByDescending(getThis(), keySelector,
         comparator);
   }
@@ -526,6 +573,21 @@ public abstract class DefaultEnumerable<T> implements OrderedEnumerable<T> {
         resultSelector);
   }
 
+  public <TInner, TKey> Enumerable<T> semiJoin(Enumerable<TInner> inner,
+      Function1<T, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector) {
+    return EnumerableDefaults.semiJoin(getThis(), inner, outerKeySelector,
+        innerKeySelector);
+  }
+
+  public <TInner, TKey> Enumerable<T> semiJoin(Enumerable<TInner> inner,
+      Function1<T, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      EqualityComparer<TKey> comparer, BuildSide buildSide) {
+    return EnumerableDefaults.semiJoin(getThis(), inner, outerKeySelector,
+        innerKeySelector, comparer, buildSide);
+  }
+
   public boolean sequenceEqual(Enumerable<T> enumerable1) {
     return EnumerableDefaults.sequenceEqual(getThis(), enumerable1);
   }
@@ -622,7 +684,7 @@ public abstract class DefaultEnumerable<T> implements OrderedEnumerable<T> {
 
   public <TKey> OrderedEnumerable<T> thenBy(Function1<T, TKey> keySelector,
       Comparator<TKey> comparator) {
-    return EnumerableDefaults.thenByDescending(getThisOrdered(), keySelector,
+    return EnumerableDefaults.thenBy(getThisOrdered(), keySelector,
         comparator);
   }
 
@@ -633,7 +695,8 @@ public abstract class DefaultEnumerable<T> implements OrderedEnumerable<T> {
 
   public <TKey> OrderedEnumerable<T> thenByDescending(
       Function1<T, TKey> keySelector, Comparator<TKey> comparator) {
-    return EnumerableDefaults.thenBy(getThisOrdered(), keySelector, comparator);
+    return EnumerableDefaults.thenByDescending(getThisOrdered(), keySelector,
+        comparator);
   }
 
   public <TKey> Map<TKey, T> toMap(Function1<T, TKey> keySelector) {
@@ -21,6 +21,7 @@ import net.hydromatic.linq4j.function.*;
 
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 import static net.hydromatic.linq4j.function.Functions.adapt;
 
@@ -100,6 +101,58 @@ public abstract class EnumerableDefaults {
     throw Extensions.todo();
   }
 
+  /**
+   * Returns elements of {@code outer} that have no matching element in
+   * {@code inner}; equivalent to SQL {@code NOT EXISTS}. The default
+   * equality comparer is used to compare keys.
+   */
+  public static <TSource, TInner, TKey> Enumerable<TSource> antiJoin(
+      Enumerable<TSource> outer, Enumerable<TInner> inner,
+      Function1<TSource, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector) {
+    return semiJoin_(outer, inner, outerKeySelector, innerKeySelector, null,
+        BuildSide.AUTO, true);
+  }
+
+  /**
+   * Returns elements of {@code outer} that have no matching element in
+   * {@code inner}, building the specified side into a hash table.
+   *
+   * <p>If {@code buildSide} is {@link BuildSide#INNER}, elements are
+   * returned in the order of {@code outer}; otherwise the order is not
+   * specified.</p>
+   */
+  public static <TSource, TInner, TKey> Enumerable<TSource> antiJoin(
+      Enumerable<TSource> outer, Enumerable<TInner> inner,
+      Function1<TSource, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      EqualityComparer<TKey> comparer, BuildSide buildSide) {
+    return semiJoin_(outer, inner, outerKeySelector, innerKeySelector,
+        comparer, buildSide, true);
+  }
+
+  /**
+   * Declares that a sequence is already sorted by a key, for example
+   * because it comes from an index. The result does not sort, but
+   * operators such as
+   * {@link #join(Enumerable, Enumerable, Function1, Function1, Function2)}
+   * use the ordering to choose an algorithm.
+   *
+   * <p>The declaration also states that keys that compare equal are
+   * equal, so those operators may match keys using the comparator rather
+   * than {@link Object#equals}. The result of {@code orderBy} makes no such
+   * declaration, because, for example, {@link BigDecimal} 1.0 and 1.00
+   * compare equal but are not equal.</p>
+   *
+   * @param comparator Comparator, or null if keys are in their natural
+   *   order
+   */
+  public static <TSource, TKey> OrderedEnumerable<TSource> asOrdered(
+      Enumerable<TSource> source, Function1<TSource, TKey> keySelector,
+      Comparator<TKey> comparator) {
+    return OrderedEnumerableImpl.presorted(source, keySelector, comparator);
+  }
+
   /**
    * Determines whether a sequence contains any
    * elements.
@@ -142,6 +195,46 @@ public abstract class EnumerableDefaults {
     return enumerable;
   }
 
+  /**
+   * Returns a {@link ParallelEnumerable} with the same elements, whose
+   * operators run on a shared executor that has a thread for each
+   * processor.
+   */
+  public static <TSource> ParallelEnumerable<TSource> asParallel(
+      Enumerable<TSource> enumerable) {
+    if (enumerable instanceof ParallelEnumerable) {
+      return (ParallelEnumerable<TSource>) enumerable;
+    }
+    return ParallelEnumerableImpl.create(enumerable, null, 0);
+  }
+
+  /**
+   * Returns a {@link ParallelEnumerable} with the same elements, whose
+   * operators run on a given executor.
+   *
+   * <p>The elements are divided into several chunks per thread. If the
+   * enumerable is backed by a random-access list, such as an array or the
+   * result of {@link net.hydromatic.linq4j.expressions.Primitive#asList},
+   * chunks are views of the list; otherwise the elements are first read
+   * into a list.</p>
+   *
+   * @param executor Executor
+   * @param parallelism Number of threads between which to divide work;
+   *   must be positive
+   */
+  public static <TSource> ParallelEnumerable<TSource> asParallel(
+      Enumerable<TSource> enumerable, ExecutorService executor,
+      int parallelism) {
+    if (executor == null) {
+      throw new NullPointerException("executor");
+    }
+    if (enumerable instanceof ParallelEnumerable) {
+      return ((ParallelEnumerable<TSource>) enumerable).asParallel(executor,
+          parallelism);
+    }
+    return ParallelEnumerableImpl.create(enumerable, executor, parallelism);
+  }
+
   /**
    * Converts an Enumerable to an IQueryable.
    *
@@ -358,29 +451,33 @@ public abstract class EnumerableDefaults {
    */
   public static <TSource> Enumerable<TSource> distinct(
       Enumerable<TSource> enumerable) {
-    final Enumerator<TSource> os = enumerable.enumerator();
-    final Set<TSource> set = new HashSet<TSource>();
-    while (os.moveNext()) {
-      set.add(os.current());
-    }
-    os.close();
-    return Linq4j.asEnumerable(set);
+    return distinct(enumerable, null);
   }
 
   /**
    * Returns distinct elements from a sequence by using
    * a specified {@link EqualityComparer} to compare values.
+   *
+   * <p>The sequence is read as the result is enumerated, and each element
+   * is returned the first time it is seen, so elements are in the order
+   * that they first occur.</p>
    */
   public static <TSource> Enumerable<TSource> distinct(
-      Enumerable<TSource> enumerable, EqualityComparer<TSource> comparer) {
-    if (comparer == Functions.identityComparer()) {
-      return distinct(enumerable);
-    }
-    final Set<Wrapped<TSource>> set = new HashSet<Wrapped<TSource>>();
-    Function1<TSource, Wrapped<TSource>> wrapper = wrapperFor(comparer);
-    Function1<Wrapped<TSource>, TSource> unwrapper = unwrapper();
-    enumerable.select(wrapper).into(set);
-    return Linq4j.asEnumerable(set).select(unwrapper);
+      final Enumerable<TSource> enumerable,
+      final EqualityComparer<TSource> comparer) {
+    return new AbstractEnumerable<TSource>() {
+      public Enumerator<TSource> enumerator() {
+        return new SetFilterEnumerator<TSource>(enumerable.enumerator()) {
+          Set<TSource> createSet() {
+            return new OpenHashSet<TSource>(comparer);
+          }
+
+          boolean accept(TSource element) {
+            return set.add(element);
+          }
+        };
+      }
+    };
   }
 
   /**
@@ -409,43 +506,36 @@ public abstract class EnumerableDefaults {
    */
   public static <TSource> Enumerable<TSource> except(
       Enumerable<TSource> source0, Enumerable<TSource> source1) {
-    Set<TSource> set = new HashSet<TSource>();
-    source0.into(set);
-    final Enumerator<TSource> os = source1.enumerator();
-    try {
-      while (os.moveNext()) {
-        TSource o = os.current();
-        set.remove(o);
-      }
-      return Linq4j.asEnumerable(set);
-    } finally {
-      os.close();
-    }
+    return except(source0, source1, null);
   }
 
   /**
    * Produces the set difference of two sequences by
    * using the specified EqualityComparer<TSource> to compare
    * values.
+   *
+   * <p>When the result is enumerated, reads {@code source1} into a set,
+   * then streams {@code source0}, returning each element that is not in
+   * {@code source1} the first time it is seen.</p>
    */
   public static <TSource> Enumerable<TSource> except(
-      Enumerable<TSource> source0, Enumerable<TSource> source1,
-      EqualityComparer<TSource> comparer) {
-    Set<Wrapped<TSource>> set = new HashSet<Wrapped<TSource>>();
-    Function1<TSource, Wrapped<TSource>> wrapper = wrapperFor(comparer);
-    source0.select(wrapper).into(set);
-    final Enumerator<Wrapped<TSource>> os =
-        source1.select(wrapper).enumerator();
-    try {
-      while (os.moveNext()) {
-        Wrapped<TSource> o = os.current();
-        set.remove(o);
+      final Enumerable<TSource> source0, final Enumerable<TSource> source1,
+      final EqualityComparer<TSource> comparer) {
+    return new AbstractEnumerable<TSource>() {
+      public Enumerator<TSource> enumerator() {
+        return new SetFilterEnumerator<TSource>(source0.enumerator()) {
+          Set<TSource> createSet() {
+            return source1.into(new OpenHashSet<TSource>(comparer));
+          }
+
+          boolean accept(TSource element) {
+            // Adding the element to the set ensures that it is returned
+            // only once.
+            return set.add(element);
+          }
+        };
       }
-    } finally {
-      os.close();
-    }
-    Function1<Wrapped<TSource>, TSource> unwrapper = unwrapper();
-    return Linq4j.asEnumerable(set).select(unwrapper);
+    };
   }
 
   /**
@@ -487,10 +577,19 @@ public abstract class EnumerableDefaults {
   /**
    * Groups the elements of a sequence according to a
    * specified key selector function.
+   *
+   * <p>If the sequence is declared sorted on the key by
+   * {@link #asOrdered(Enumerable, Function1, Comparator) asOrdered}, uses
+   * {@link #sortedGroupBy(Enumerable, Function1, Comparator)}.</p>
    */
   public static <TSource, TKey> Enumerable<Grouping<TKey, TSource>> groupBy(
       final Enumerable<TSource> enumerable,
       final Function1<TSource, TKey> keySelector) {
+    final Comparator<TKey> ordering =
+        OrderedEnumerableImpl.declaredOrdering(enumerable, keySelector);
+    if (ordering != null) {
+      return sortedGroupBy(enumerable, keySelector, ordering);
+    }
     return enumerable.toLookup(keySelector);
   }
 
@@ -593,8 +692,14 @@ public abstract class EnumerableDefaults {
       Function0<TAccumulate> accumulatorInitializer,
       Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder,
       final Function2<TKey, TAccumulate, TResult> resultSelector) {
-    return groupBy_(new HashMap<TKey, TAccumulate>(), enumerable, keySelector,
-        accumulatorInitializer, accumulatorAdder, resultSelector);
+    final Comparator<TKey> ordering =
+        OrderedEnumerableImpl.declaredOrdering(enumerable, keySelector);
+    if (ordering != null) {
+      return sortedGroupBy(enumerable, keySelector, accumulatorInitializer,
+          accumulatorAdder, resultSelector, ordering);
+    }
+    return groupBy_(null, enumerable, keySelector, accumulatorInitializer,
+        accumulatorAdder, resultSelector);
   }
 
   /**
@@ -611,49 +716,89 @@ public abstract class EnumerableDefaults {
       Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder,
       Function2<TKey, TAccumulate, TResult> resultSelector,
       EqualityComparer<TKey> comparer) {
-    return groupBy_(new WrapMap<TKey, TAccumulate>(comparer), enumerable,
-        keySelector, accumulatorInitializer, accumulatorAdder, resultSelector);
+    return groupBy_(comparer, enumerable, keySelector, accumulatorInitializer,
+        accumulatorAdder, resultSelector);
+  }
+
+  /**
+   * Groups the elements of a sequence according to a
+   * specified key selector function, initializing an accumulator for each
+   * group and adding to it each time an element with the same key is seen,
+   * and holding at most a given number of groups in memory.
+   *
+   * <p>If the sequence has no more than {@link Spiller#maxRows} distinct
+   * keys, behaves like
+   * {@link #groupBy(Enumerable, Function1, Function0, Function2, Function2, EqualityComparer)}.
+   * Otherwise, whenever the number of groups in memory exceeds the budget,
+   * their keys and accumulators are written to temporary files, divided into
+   * partitions by key. Each partition is then read back and accumulators
+   * that have the same key are merged using {@code accumulatorCombiner}.
+   * The files are deleted when the enumerator is closed. The order of the
+   * results is not specified.</p>
+   *
+   * @param accumulatorCombiner Merges two accumulators of the same key into
+   *   one; for example, if {@code accumulatorAdder} counts rows, this
+   *   function adds the counts
+   * @param comparer Comparer, or null to compare keys using
+   *   {@link Object#equals} and {@link Object#hashCode}
+   * @param spiller Writes keys and accumulators to temporary files, and
+   *   limits the number of groups held in memory
+   */
+  public static <TSource, TKey, TAccumulate, TResult> Enumerable<TResult>
+  groupBy(Enumerable<TSource> enumerable, Function1<TSource, TKey> keySelector,
+      Function0<TAccumulate> accumulatorInitializer,
+      Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder,
+      Function2<TAccumulate, TAccumulate, TAccumulate> accumulatorCombiner,
+      Function2<TKey, TAccumulate, TResult> resultSelector,
+      EqualityComparer<TKey> comparer,
+      Spiller<Map.Entry<TKey, TAccumulate>> spiller) {
+    return new HashAggregate<TSource, TKey, TAccumulate, TResult>(enumerable,
+        keySelector, accumulatorInitializer, accumulatorAdder,
+        accumulatorCombiner, resultSelector, comparer, spiller);
   }
 
   private static <TSource, TKey, TAccumulate, TResult> Enumerable<TResult>
-  groupBy_(final Map<TKey, TAccumulate> map, Enumerable<TSource> enumerable,
+  groupBy_(EqualityComparer<TKey> comparer, Enumerable<TSource> enumerable,
       Function1<TSource, TKey> keySelector,
       Function0<TAccumulate> accumulatorInitializer,
       Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder,
       final Function2<TKey, TAccumulate, TResult> resultSelector) {
+    final OpenHashMap<TKey, TAccumulate> map =
+        new OpenHashMap<TKey, TAccumulate>(comparer);
     final Enumerator<TSource> os = enumerable.enumerator();
     try {
       while (os.moveNext()) {
         TSource o = os.current();
         TKey key = keySelector.apply(o);
-        TAccumulate accumulator = map.get(key);
-        if (accumulator == null) {
+        int ordinal = map.add(key);
+        TAccumulate accumulator;
+        if (ordinal >= 0) {
           accumulator = accumulatorInitializer.apply();
-          accumulator = accumulatorAdder.apply(accumulator, o);
-          map.put(key, accumulator);
         } else {
-          TAccumulate accumulator0 = accumulator;
-          accumulator = accumulatorAdder.apply(accumulator, o);
-          if (accumulator != accumulator0) {
-            map.put(key, accumulator);
-          }
+          ordinal = ~ordinal;
+          accumulator = map.valueAt(ordinal);
         }
+        map.setValueAt(ordinal, accumulatorAdder.apply(accumulator, o));
       }
     } finally {
       os.close();
     }
     return new AbstractEnumerable2<TResult>() {
       public Iterator<TResult> iterator() {
-        final Iterator<Map.Entry<TKey, TAccumulate>> iterator =
-            map.entrySet().iterator();
         return new Iterator<TResult>() {
+          int ordinal = -1;
+
           public boolean hasNext() {
-            return iterator.hasNext();
+            return ordinal + 1 < map.size();
           }
 
           public TResult next() {
-            final Map.Entry<TKey, TAccumulate> entry = iterator.next();
-            return resultSelector.apply(entry.getKey(), entry.getValue());
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            ++ordinal;
+            return resultSelector.apply(map.keyAt(ordinal),
+                map.valueAt(ordinal));
           }
 
           public void remove() {
@@ -681,6 +826,88 @@ public abstract class EnumerableDefaults {
     return Linq4j.asEnumerable(map).select(resultSelector);
   }
 
+  /**
+   * Groups the elements of a sequence that is sorted by its grouping key.
+   *
+   * <p>The sequence must be sorted by key in the order given by
+   * {@code comparator}; if an element's key is less than the key of the
+   * previous element, throws {@link IllegalStateException}. Keys are equal
+   * if the comparator returns 0.</p>
+   *
+   * <p>Unlike {@link #groupBy(Enumerable, Function1)}, does not read the
+   * whole sequence before returning the first group. Each group is returned
+   * as soon as the key changes, and only the elements of the current group
+   * are held in memory. Groups are returned in key order.</p>
+   *
+   * <p>{@link #groupBy(Enumerable, Function1)} calls this method if the
+   * sequence is declared sorted by
+   * {@link #asOrdered(Enumerable, Function1, Comparator)} on the same key
+   * selector, but not if it is the result of {@code orderBy}, because
+   * {@code groupBy} groups keys that are equal, not keys that compare
+   * equal.</p>
+   *
+   * @param comparator Comparator, or null to compare keys in their natural
+   *   order, with nulls first
+   */
+  public static <TSource, TKey> Enumerable<Grouping<TKey, TSource>>
+  sortedGroupBy(Enumerable<TSource> enumerable,
+      Function1<TSource, TKey> keySelector, Comparator<TKey> comparator) {
+    return sortedGroupBy(enumerable, keySelector,
+        new Function0<List<TSource>>() {
+          public List<TSource> apply() {
+            return new ArrayList<TSource>();
+          }
+        },
+        new Function2<List<TSource>, TSource, List<TSource>>() {
+          public List<TSource> apply(List<TSource> list, TSource o) {
+            list.add(o);
+            return list;
+          }
+        },
+        new Function2<TKey, List<TSource>, Grouping<TKey, TSource>>() {
+          public Grouping<TKey, TSource> apply(TKey key, List<TSource> list) {
+            return new GroupingImpl<TKey, TSource>(key, list);
+          }
+        },
+        comparator);
+  }
+
+  /**
+   * Groups the elements of a sequence that is sorted by its grouping key,
+   * initializing an accumulator for each group and adding to it each
+   * element of the group. Creates a result value from each accumulator and
+   * its key using a specified function.
+   *
+   * <p>The sequence must be sorted as described in
+   * {@link #sortedGroupBy(Enumerable, Function1, Comparator)}. Each result
+   * is returned as soon as the key changes, and only one accumulator is
+   * held in memory.</p>
+   *
+   * @param comparator Comparator, or null to compare keys in their natural
+   *   order, with nulls first
+   */
+  public static <TSource, TKey, TAccumulate, TResult> Enumerable<TResult>
+  sortedGroupBy(final Enumerable<TSource> enumerable,
+      final Function1<TSource, TKey> keySelector,
+      final Function0<TAccumulate> accumulatorInitializer,
+      final Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder,
+      final Function2<TKey, TAccumulate, TResult> resultSelector,
+      Comparator<TKey> comparator) {
+    //noinspection unchecked
+    final Comparator<TKey> comparator1 = comparator != null
+        ? comparator
+        : (Comparator<TKey>) (Comparator) Functions.nullsComparator(true,
+            false);
+    return new AbstractEnumerable<TResult>() {
+      public Enumerator<TResult> enumerator() {
+        return new SortedGroupByEnumerator<TSource, TKey, TAccumulate,
+            TResult>(enumerable.enumerator(), keySelector,
+            accumulatorInitializer, accumulatorAdder, resultSelector,
+            comparator1);
+      }
+    };
+  }
+
   /**
    * Correlates the elements of two sequences based on
    * equality of keys and groups the results. The default equality
@@ -742,55 +969,53 @@ public abstract class EnumerableDefaults {
    */
   public static <TSource> Enumerable<TSource> intersect(
       Enumerable<TSource> source0, Enumerable<TSource> source1) {
-    Set<TSource> set0 = new HashSet<TSource>();
-    source0.into(set0);
-    Set<TSource> set1 = new HashSet<TSource>();
-    final Enumerator<TSource> os = source1.enumerator();
-    try {
-      while (os.moveNext()) {
-        TSource o = os.current();
-        if (set0.contains(o)) {
-          set1.add(o);
-        }
-      }
-    } finally {
-      os.close();
-    }
-    return Linq4j.asEnumerable(set1);
+    return intersect(source0, source1, null);
   }
 
   /**
    * Produces the set intersection of two sequences by
    * using the specified EqualityComparer<TSource> to compare
    * values.
+   *
+   * <p>When the result is enumerated, reads {@code source1} into a set,
+   * then streams {@code source0}, returning each element that is in
+   * {@code source1} the first time it is seen.</p>
    */
   public static <TSource> Enumerable<TSource> intersect(
-      Enumerable<TSource> source0, Enumerable<TSource> source1,
-      EqualityComparer<TSource> comparer) {
-    Set<Wrapped<TSource>> set0 = new HashSet<Wrapped<TSource>>();
-    Function1<TSource, Wrapped<TSource>> wrapper = wrapperFor(comparer);
-    source0.select(wrapper).into(set0);
-    Set<Wrapped<TSource>> set1 = new HashSet<Wrapped<TSource>>();
-    final Enumerator<Wrapped<TSource>> os =
-        source1.select(wrapper).enumerator();
-    try {
-      while (os.moveNext()) {
-        Wrapped<TSource> o = os.current();
-        if (set0.contains(o)) {
-          set1.add(o);
-        }
+      final Enumerable<TSource> source0, final Enumerable<TSource> source1,
+      final EqualityComparer<TSource> comparer) {
+    return new AbstractEnumerable<TSource>() {
+      public Enumerator<TSource> enumerator() {
+        return new SetFilterEnumerator<TSource>(source0.enumerator()) {
+          Set<TSource> createSet() {
+            return source1.into(new OpenHashSet<TSource>(comparer));
+          }
+
+          boolean accept(TSource element) {
+            // Removing the element from the set ensures that it is
+            // returned only once.
+            return set.remove(element);
+          }
+        };
       }
-    } finally {
-      os.close();
-    }
-    Function1<Wrapped<TSource>, TSource> unwrapper = unwrapper();
-    return Linq4j.asEnumerable(set1).select(unwrapper);
+    };
   }
 
   /**
    * Correlates the elements of two sequences based on
    * matching keys. The default equality comparer is used to compare
    * keys.
+   *
+   * <p>Usually reads the inner sequence into a hash table, and returns
+   * results in the order of the outer sequence. But if both sequences are
+   * declared to be sorted on their keys by
+   * {@link #asOrdered(Enumerable, Function1, Comparator) asOrdered}, uses
+   * {@link #mergeJoin merge join}; and if the outer sequence is known to be
+   * smaller (see {@link Linq4j#knownSize}), reads the outer sequence into a
+   * hash table, and returns results in the order of the inner sequence. To
+   * choose explicitly, use
+   * {@link #join(Enumerable, Enumerable, Function1, Function1, Function2, EqualityComparer, boolean, boolean, BuildSide)}.
+   * </p>
    */
   public static <TSource, TInner, TKey, TResult> Enumerable<TResult> join(
       final Enumerable<TSource> outer, final Enumerable<TInner> inner,
@@ -816,6 +1041,131 @@ public abstract class EnumerableDefaults {
         resultSelector, comparer);
   }
 
+  /**
+   * Correlates the elements of two sequences based on matching keys,
+   * holding at most a given number of inner elements in memory.
+   *
+   * <p>If the inner sequence has no more than {@link Spiller#maxRows}
+   * elements of {@code innerSpiller}, behaves like
+   * {@link #join(Enumerable, Enumerable, Function1, Function1, Function2, EqualityComparer)}.
+   * Otherwise both sequences are divided into partitions by key, and
+   * partitions that do not fit in memory are written to temporary files
+   * and joined one at a time. The files are deleted when the enumerator is
+   * closed. The order of the results is not specified.</p>
+   *
+   * @param comparer Comparer, or null to compare keys using
+   *   {@link Object#equals} and {@link Object#hashCode}
+   * @param outerSpiller Writes outer elements to temporary files
+   * @param innerSpiller Writes inner elements to temporary files, and
+   *   limits the number of inner elements held in memory
+   */
+  public static <TSource, TInner, TKey, TResult> Enumerable<TResult> join(
+      Enumerable<TSource> outer, Enumerable<TInner> inner,
+      Function1<TSource, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      Function2<TSource, TInner, TResult> resultSelector,
+      EqualityComparer<TKey> comparer, Spiller<TSource> outerSpiller,
+      Spiller<TInner> innerSpiller) {
+    return new HashJoin<TSource, TInner, TKey, TResult>(outer, inner,
+        outerKeySelector, innerKeySelector, resultSelector, comparer,
+        outerSpiller, innerSpiller, 0);
+  }
+
+  /**
+   * Correlates the elements of two sequences based on matching keys,
+   * optionally generating results for elements that have no match.
+   *
+   * <p>If {@code generateNullsOnRight}, an outer element with no matching
+   * inner element generates one result, with null as the inner element
+   * (left outer join). If {@code generateNullsOnLeft}, an inner element with
+   * no matching outer element generates one result, with null as the outer
+   * element (right outer join). If both, the join is a full outer join.</p>
+   */
+  public static <TSource, TInner, TKey, TResult> Enumerable<TResult> join(
+      Enumerable<TSource> outer, Enumerable<TInner> inner,
+      Function1<TSource, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      Function2<TSource, TInner, TResult> resultSelector,
+      EqualityComparer<TKey> comparer, boolean generateNullsOnLeft,
+      boolean generateNullsOnRight) {
+    return join(outer, inner, outerKeySelector, innerKeySelector,
+        resultSelector, comparer, generateNullsOnLeft, generateNullsOnRight,
+        BuildSide.AUTO);
+  }
+
+  /**
+   * Correlates the elements of two sequences based on matching keys,
+   * optionally generating results for elements that have no match, and
+   * building the specified side into a hash table.
+   *
+   * <p>Results are returned in the order of the probe side, followed by
+   * results generated for unmatched elements of the build side.</p>
+   */
+  public static <TSource, TInner, TKey, TResult> Enumerable<TResult> join(
+      Enumerable<TSource> outer, Enumerable<TInner> inner,
+      Function1<TSource, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      final Function2<TSource, TInner, TResult> resultSelector,
+      EqualityComparer<TKey> comparer, boolean generateNullsOnLeft,
+      boolean generateNullsOnRight, BuildSide buildSide) {
+    switch (resolve(buildSide, outer, inner)) {
+    case INNER:
+      return hashJoin_(outer, inner, outerKeySelector, innerKeySelector,
+          resultSelector, comparer, generateNullsOnRight,
+          generateNullsOnLeft);
+    case OUTER:
+      return hashJoin_(inner, outer, innerKeySelector, outerKeySelector,
+          new Function2<TInner, TSource, TResult>() {
+            public TResult apply(TInner v0, TSource v1) {
+              return resultSelector.apply(v1, v0);
+            }
+          },
+          comparer, generateNullsOnLeft, generateNullsOnRight);
+    default:
+      throw new AssertionError(buildSide);
+    }
+  }
+
+  /**
+   * Correlates the elements of two sequences that are sorted on their join
+   * keys.
+   *
+   * <p>Both sequences must be sorted by key in the order given by
+   * {@code comparator}; if an element's key is less than the key of the
+   * previous element of its sequence, throws {@link IllegalStateException}.
+   * Keys are equal if the comparator returns 0.</p>
+   *
+   * <p>Unlike a hash join, a merge join does not read either input into
+   * memory. It reads both inputs in step, and holds in memory only the
+   * inner elements that have the current key. Results are in the same order
+   * as
+   * {@link #join(Enumerable, Enumerable, Function1, Function1, Function2)}.
+   * </p>
+   *
+   * @param comparator Comparator, or null to compare keys in their natural
+   *   order, with nulls first
+   */
+  public static <TSource, TInner, TKey, TResult> Enumerable<TResult>
+  mergeJoin(
+      final Enumerable<TSource> outer, final Enumerable<TInner> inner,
+      final Function1<TSource, TKey> outerKeySelector,
+      final Function1<TInner, TKey> innerKeySelector,
+      final Function2<TSource, TInner, TResult> resultSelector,
+      Comparator<TKey> comparator) {
+    //noinspection unchecked
+    final Comparator<TKey> comparator1 = comparator != null
+        ? comparator
+        : (Comparator<TKey>) (Comparator) Functions.nullsComparator(true,
+            false);
+    return new AbstractEnumerable<TResult>() {
+      public Enumerator<TResult> enumerator() {
+        return new MergeJoinEnumerator<TSource, TInner, TKey, TResult>(
+            outer.enumerator(), inner.enumerator(), outerKeySelector,
+            innerKeySelector, resultSelector, comparator1);
+      }
+    };
+  }
+
   /** Symmetric join algorithm that builds both sides into a look. Powerful
    * enough to evaluate full outer join but less efficient than {@link #join_}.
    * Not currently used. */
@@ -891,13 +1241,31 @@ public abstract class EnumerableDefaults {
   }
 
   /** Implementation of join that builds the right input and probes with the
-   * left. */
+   * left.
+   *
+   * <p>If both inputs are declared to be sorted on their keys in the same
+   * natural order, uses a merge join instead. If the left input is known
+   * to be smaller, builds the left input. */
   private static <TSource, TInner, TKey, TResult> Enumerable<TResult> join_(
       final Enumerable<TSource> outer, final Enumerable<TInner> inner,
       final Function1<TSource, TKey> outerKeySelector,
       final Function1<TInner, TKey> innerKeySelector,
       final Function2<TSource, TInner, TResult> resultSelector,
       final EqualityComparer<TKey> comparer) {
+    if (comparer == null) {
+      final Comparator<TKey> ordering =
+          OrderedEnumerableImpl.declaredOrdering(outer, outerKeySelector);
+      if (ordering != null
+          && ordering
+          == OrderedEnumerableImpl.declaredOrdering(inner, innerKeySelector)) {
+        return mergeJoin(outer, inner, outerKeySelector, innerKeySelector,
+            resultSelector, ordering);
+      }
+    }
+    if (resolve(BuildSide.AUTO, outer, inner) == BuildSide.OUTER) {
+      return join(outer, inner, outerKeySelector, innerKeySelector,
+          resultSelector, comparer, false, false, BuildSide.OUTER);
+    }
     return new AbstractEnumerable<TResult>() {
       public Enumerator<TResult> enumerator() {
         final Lookup<TKey, TInner> innerLookup =
@@ -946,6 +1314,121 @@ public abstract class EnumerableDefaults {
     };
   }
 
+  /** Converts {@link BuildSide#AUTO} into the side to build, based on the
+   * known sizes of the inputs. */
+  private static BuildSide resolve(BuildSide buildSide, Enumerable<?> outer,
+      Enumerable<?> inner) {
+    if (buildSide != BuildSide.AUTO) {
+      return buildSide;
+    }
+    final long outerSize = Linq4j.knownSize(outer);
+    final long innerSize = Linq4j.knownSize(inner);
+    return outerSize >= 0 && innerSize >= 0 && outerSize < innerSize
+        ? BuildSide.OUTER
+        : BuildSide.INNER;
+  }
+
+  /** Implementation of join that builds one input into a hash table and
+   * probes it with the other, and can generate results for elements of
+   * either input that have no match.
+   *
+   * @param generateNullsOnBuild Whether a probe element with no match
+   *   generates a result with a null build element
+   * @param generateNullsOnProbe Whether a build element with no match
+   *   generates a result with a null probe element
+   */
+  private static <TProbe, TBuild, TKey, TResult> Enumerable<TResult>
+  hashJoin_(
+      final Enumerable<TProbe> probe, final Enumerable<TBuild> build,
+      final Function1<TProbe, TKey> probeKeySelector,
+      final Function1<TBuild, TKey> buildKeySelector,
+      final Function2<TProbe, TBuild, TResult> resultSelector,
+      final EqualityComparer<TKey> comparer,
+      final boolean generateNullsOnBuild,
+      final boolean generateNullsOnProbe) {
+    return new AbstractEnumerable<TResult>() {
+      public Enumerator<TResult> enumerator() {
+        final Map<TKey, List<TBuild>> map =
+            toLookupMap_(comparer, build, buildKeySelector,
+                Functions.<TBuild>identitySelector());
+        // Lists of build elements whose key has matched, by identity.
+        final Map<List<TBuild>, Object> matched = generateNullsOnProbe
+            ? new IdentityHashMap<List<TBuild>, Object>()
+            : null;
+        final Enumerator<TProbe> probes = probe.enumerator();
+
+        return new Enumerator<TResult>() {
+          TProbe probeElement;
+          List<TBuild> builds;
+          int i;
+          /** Lists of build elements, once probe elements are exhausted;
+           * null until then. */
+          Iterator<List<TBuild>> buildLists;
+          TResult current;
+
+          public TResult current() {
+            return current;
+          }
+
+          public boolean moveNext() {
+            while (buildLists == null) {
+              if (builds != null && ++i < builds.size()) {
+                current = resultSelector.apply(probeElement, builds.get(i));
+                return true;
+              }
+              if (!probes.moveNext()) {
+                builds = null;
+                buildLists = matched == null
+                    ? Collections.<List<TBuild>>emptyList().iterator()
+                    : map.values().iterator();
+                break;
+              }
+              probeElement = probes.current();
+              builds = map.get(probeKeySelector.apply(probeElement));
+              i = -1;
+              if (builds == null) {
+                if (generateNullsOnBuild) {
+                  current = resultSelector.apply(probeElement, null);
+                  return true;
+                }
+              } else if (matched != null) {
+                matched.put(builds, builds);
+              }
+            }
+            // Generate results for build elements that had no match.
+            for (;;) {
+              if (builds != null && ++i < builds.size()) {
+                current = resultSelector.apply(null, builds.get(i));
+                return true;
+              }
+              if (!buildLists.hasNext()) {
+                return false;
+              }
+              builds = buildLists.next();
+              i = -1;
+              if (matched.containsKey(builds)) {
+                builds = null;
+              }
+            }
+          }
+
+          public void reset() {
+            probes.reset();
+            builds = null;
+            buildLists = null;
+            if (matched != null) {
+              matched.clear();
+            }
+          }
+
+          public void close() {
+            probes.close();
+          }
+        };
+      }
+    };
+  }
+
   /**
    * Returns the last element of a sequence. (Defined
    * by Enumerable.)
@@ -1291,7 +1774,8 @@ public abstract class EnumerableDefaults {
    * Sorts the elements of a sequence in ascending
    * order according to a key.
    */
-  public static <TSource, TKey extends Comparable> Enumerable<TSource> orderBy(
+  public static <TSource, TKey extends Comparable> OrderedEnumerable<TSource>
+  orderBy(
       Enumerable<TSource> source, Function1<TSource, TKey> keySelector) {
     return orderBy(source, keySelector, null);
   }
@@ -1299,38 +1783,105 @@ public abstract class EnumerableDefaults {
   /**
    * Sorts the elements of a sequence in ascending
    * order by using a specified comparer.
+   *
+   * <p>The sort is stable, and happens when the result is enumerated. The
+   * result can be sorted further using
+   * {@link #thenBy(OrderedEnumerable, Function1, Comparator) thenBy}.
+   * If the comparator is null, keys must implement {@link Comparable}.</p>
    */
-  public static <TSource, TKey> Enumerable<TSource> orderBy(
+  public static <TSource, TKey> OrderedEnumerable<TSource> orderBy(
       Enumerable<TSource> source, Function1<TSource, TKey> keySelector,
       Comparator<TKey> comparator) {
-    // NOTE: TreeMap allows null comparator. But the caller of this method
-    // must supply a comparator if the key does not extend Comparable.
-    // Otherwise there will be a ClassCastException while retrieving.
-    final Map<TKey, List<TSource>> map = new TreeMap<TKey, List<TSource>>(
-        comparator);
-    LookupImpl<TKey, TSource> lookup = toLookup_(map, source, keySelector,
-        Functions.<TSource>identitySelector());
-    return lookup.valuesEnumerable();
+    return OrderedEnumerableImpl.create(source, keySelector, comparator,
+        false, null);
+  }
+
+  /**
+   * Sorts the elements of a sequence in ascending
+   * order by using a specified comparer, holding at most a given number of
+   * elements in memory.
+   *
+   * <p>If the sequence has more than {@link Spiller#maxRows} elements, the
+   * sort writes sorted runs to temporary files, and merges them as the
+   * result is read. The files are deleted when the enumerator is closed.
+   * Orderings added by {@code thenBy} use the same spiller.</p>
+   */
+  public static <TSource, TKey> OrderedEnumerable<TSource> orderBy(
+      Enumerable<TSource> source, Function1<TSource, TKey> keySelector,
+      Comparator<TKey> comparator, Spiller<TSource> spiller) {
+    return OrderedEnumerableImpl.create(source, keySelector, comparator,
+        false, spiller);
+  }
+
+  /**
+   * Sorts the elements of a sequence in ascending
+   * order by using a specified comparer, on several threads.
+   *
+   * <p>A sequence of at least {@code 8192} elements is divided into a run
+   * for each thread. The runs are sorted concurrently, then merged
+   * concurrently. The sort is stable, and orderings added by
+   * {@code thenBy} sort on the same executor. Key selectors and comparators
+   * may be called on several threads at once.</p>
+   *
+   * @param executor Executor that runs the tasks of a sort
+   * @param parallelism Number of threads to divide a sort between
+   */
+  public static <TSource, TKey> OrderedEnumerable<TSource> orderBy(
+      Enumerable<TSource> source, Function1<TSource, TKey> keySelector,
+      Comparator<TKey> comparator, ExecutorService executor,
+      int parallelism) {
+    return OrderedEnumerableImpl.create(source, keySelector, comparator,
+        false, executor, parallelism);
   }
 
   /**
    * Sorts the elements of a sequence in descending
    * order according to a key.
    */
-  public static <TSource, TKey extends Comparable> Enumerable<TSource>
+  public static <TSource, TKey extends Comparable> OrderedEnumerable<TSource>
   orderByDescending(
       Enumerable<TSource> source, Function1<TSource, TKey> keySelector) {
-    return orderBy(source, keySelector, Collections.<TKey>reverseOrder());
+    return OrderedEnumerableImpl.create(source, keySelector, null, true,
+        null);
   }
 
   /**
    * Sorts the elements of a sequence in descending
    * order by using a specified comparer.
    */
-  public static <TSource, TKey> Enumerable<TSource> orderByDescending(
+  public static <TSource, TKey> OrderedEnumerable<TSource> orderByDescending(
       Enumerable<TSource> source, Function1<TSource, TKey> keySelector,
       Comparator<TKey> comparator) {
-    return orderBy(source, keySelector, Collections.reverseOrder(comparator));
+    return OrderedEnumerableImpl.create(source, keySelector, comparator,
+        true, null);
+  }
+
+  /**
+   * Sorts the elements of a sequence in descending
+   * order by using a specified comparer, holding at most a given number of
+   * elements in memory.
+   *
+   * @see #orderBy(Enumerable, Function1, Comparator, Spiller)
+   */
+  public static <TSource, TKey> OrderedEnumerable<TSource> orderByDescending(
+      Enumerable<TSource> source, Function1<TSource, TKey> keySelector,
+      Comparator<TKey> comparator, Spiller<TSource> spiller) {
+    return OrderedEnumerableImpl.create(source, keySelector, comparator,
+        true, spiller);
+  }
+
+  /**
+   * Sorts the elements of a sequence in descending
+   * order by using a specified comparer, on several threads.
+   *
+   * @see #orderBy(Enumerable, Function1, Comparator, ExecutorService, int)
+   */
+  public static <TSource, TKey> OrderedEnumerable<TSource> orderByDescending(
+      Enumerable<TSource> source, Function1<TSource, TKey> keySelector,
+      Comparator<TKey> comparator, ExecutorService executor,
+      int parallelism) {
+    return OrderedEnumerableImpl.create(source, keySelector, comparator,
+        true, executor, parallelism);
   }
 
   /**
@@ -1509,6 +2060,101 @@ public abstract class EnumerableDefaults {
     throw Extensions.todo();
   }
 
+  /**
+   * Returns elements of {@code outer} that have at least one matching
+   * element in {@code inner}; equivalent to SQL {@code EXISTS}. Each
+   * element is returned at most once. The default equality comparer is
+   * used to compare keys.
+   */
+  public static <TSource, TInner, TKey> Enumerable<TSource> semiJoin(
+      Enumerable<TSource> outer, Enumerable<TInner> inner,
+      Function1<TSource, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector) {
+    return semiJoin_(outer, inner, outerKeySelector, innerKeySelector, null,
+        BuildSide.AUTO, false);
+  }
+
+  /**
+   * Returns elements of {@code outer} that have at least one matching
+   * element in {@code inner}, building the specified side into a hash
+   * table.
+   *
+   * <p>If {@code buildSide} is {@link BuildSide#INNER}, elements are
+   * returned in the order of {@code outer}; otherwise the order is not
+   * specified.</p>
+   */
+  public static <TSource, TInner, TKey> Enumerable<TSource> semiJoin(
+      Enumerable<TSource> outer, Enumerable<TInner> inner,
+      Function1<TSource, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      EqualityComparer<TKey> comparer, BuildSide buildSide) {
+    return semiJoin_(outer, inner, outerKeySelector, innerKeySelector,
+        comparer, buildSide, false);
+  }
+
+  /** Implementation of semi-join and anti-join. */
+  private static <TSource, TInner, TKey> Enumerable<TSource> semiJoin_(
+      final Enumerable<TSource> outer, final Enumerable<TInner> inner,
+      final Function1<TSource, TKey> outerKeySelector,
+      final Function1<TInner, TKey> innerKeySelector,
+      final EqualityComparer<TKey> comparer, BuildSide buildSide,
+      final boolean anti) {
+    switch (resolve(buildSide, outer, inner)) {
+    case INNER:
+      // Build a set of inner keys, and stream outer elements through it.
+      return new AbstractEnumerable<TSource>() {
+        public Enumerator<TSource> enumerator() {
+          final Set<TKey> keys = new OpenHashSet<TKey>(comparer);
+          final Enumerator<TInner> inners = inner.enumerator();
+          try {
+            while (inners.moveNext()) {
+              keys.add(innerKeySelector.apply(inners.current()));
+            }
+          } finally {
+            inners.close();
+          }
+          return EnumerableDefaults.where(outer,
+              new Predicate1<TSource>() {
+                public boolean apply(TSource v) {
+                  return keys.contains(outerKeySelector.apply(v)) != anti;
+                }
+              }).enumerator();
+        }
+      };
+    case OUTER:
+      // Build outer elements into a map by key. Stream inner elements, and
+      // remove each key that matches.
+      return new AbstractEnumerable<TSource>() {
+        public Enumerator<TSource> enumerator() {
+          final Map<TKey, List<TSource>> map =
+              toLookupMap_(comparer, outer, outerKeySelector,
+                  Functions.<TSource>identitySelector());
+          final List<TSource> list = new ArrayList<TSource>();
+          final Enumerator<TInner> inners = inner.enumerator();
+          try {
+            while (inners.moveNext() && !map.isEmpty()) {
+              final List<TSource> outers =
+                  map.remove(innerKeySelector.apply(inners.current()));
+              if (outers != null && !anti) {
+                list.addAll(outers);
+              }
+            }
+          } finally {
+            inners.close();
+          }
+          if (anti) {
+            for (List<TSource> outers : map.values()) {
+              list.addAll(outers);
+            }
+          }
+          return Linq4j.enumerator(list);
+        }
+      };
+    default:
+      throw new AssertionError(buildSide);
+    }
+  }
+
   /**
    * Determines whether two sequences are equal by
    * comparing the elements by using the default equality comparer
@@ -1575,6 +2221,10 @@ public abstract class EnumerableDefaults {
    */
   public static <TSource> Enumerable<TSource> skip(Enumerable<TSource> source,
       final int count) {
+    if (source instanceof OrderedEnumerableImpl) {
+      // Skip within the sort, so that a following take can use a top-N sort.
+      return ((OrderedEnumerableImpl<TSource>) source).skip(count);
+    }
     return skipWhile(source, new Predicate2<TSource, Integer>() {
       public boolean apply(TSource v1, Integer v2) {
         // Count is 1-based
@@ -1716,14 +2366,42 @@ public abstract class EnumerableDefaults {
    * Returns a specified number of contiguous elements
    * from the start of a sequence.
    */
-  public static <TSource> Enumerable<TSource> take(Enumerable<TSource> source,
-      final int count) {
-    return takeWhile(source, new Predicate2<TSource, Integer>() {
-      public boolean apply(TSource v1, Integer v2) {
-        // Count is 1-based
-        return v2 < count;
+  public static <TSource> Enumerable<TSource> take(
+      final Enumerable<TSource> source, final int count) {
+    if (source instanceof OrderedEnumerableImpl) {
+      // Sort keeping only the first "count" elements.
+      return ((OrderedEnumerableImpl<TSource>) source).take(count);
+    }
+    // Unlike takeWhile, stops without reading the element after the last.
+    return new AbstractEnumerable<TSource>() {
+      public Enumerator<TSource> enumerator() {
+        final Enumerator<TSource> enumerator = source.enumerator();
+        return new Enumerator<TSource>() {
+          int n = 0;
+
+          public TSource current() {
+            return enumerator.current();
+          }
+
+          public boolean moveNext() {
+            if (n >= count || !enumerator.moveNext()) {
+              return false;
+            }
+            ++n;
+            return true;
+          }
+
+          public void reset() {
+            enumerator.reset();
+            n = 0;
+          }
+
+          public void close() {
+            enumerator.close();
+          }
+        };
       }
-    });
+    };
   }
 
   /**
@@ -1754,12 +2432,22 @@ public abstract class EnumerableDefaults {
   /**
    * Performs a subsequent ordering of the elements in a sequence according
    * to a key.
+   *
+   * <p>If {@code source} was created by {@code orderBy} or {@code thenBy},
+   * the key is added to its sort keys, and the elements are sorted once,
+   * on all keys. Otherwise, the elements are sorted by this key, and
+   * elements with equal keys stay in their current order.</p>
    */
   public static <TSource, TKey> OrderedEnumerable<TSource>
   createOrderedEnumerable(
       OrderedEnumerable<TSource> source, Function1<TSource, TKey> keySelector,
       Comparator<TKey> comparator, boolean descending) {
-    throw Extensions.todo();
+    if (source instanceof OrderedEnumerableImpl) {
+      return ((OrderedEnumerableImpl<TSource>) source).thenBy(keySelector,
+          comparator, descending);
+    }
+    return OrderedEnumerableImpl.create(source, keySelector, comparator,
+        descending, null);
   }
 
   /**
@@ -1907,38 +2595,86 @@ public abstract class EnumerableDefaults {
   public static <TSource, TKey, TElement> Lookup<TKey, TElement> toLookup(
       Enumerable<TSource> source, Function1<TSource, TKey> keySelector,
       Function1<TSource, TElement> elementSelector) {
-    final Map<TKey, List<TElement>> map = new HashMap<TKey, List<TElement>>();
-    return toLookup_(map, source, keySelector, elementSelector);
+    return toLookup_(null, source, keySelector, elementSelector);
   }
 
   static <TSource, TKey, TElement> LookupImpl<TKey, TElement> toLookup_(
-      Map<TKey, List<TElement>> map, Enumerable<TSource> source,
+      EqualityComparer<TKey> comparer, Enumerable<TSource> source,
+      Function1<TSource, TKey> keySelector,
+      Function1<TSource, TElement> elementSelector) {
+    return new LookupImpl<TKey, TElement>(
+        toLookupMap_(comparer, source, keySelector, elementSelector));
+  }
+
+  /** Builds the map underlying a lookup.
+   *
+   * <p>The elements of all groups are stored in a single array, each group
+   * in a contiguous range, and each key's list is a view of its range. To
+   * do this, first reads the elements and the ordinal of each element's
+   * key, then copies each element into its group's range.</p>
+   *
+   * @param comparer Comparer, or null to compare keys using
+   *   {@link Object#equals} and {@link Object#hashCode}
+   */
+  private static <TSource, TKey, TElement> Map<TKey, List<TElement>>
+  toLookupMap_(EqualityComparer<TKey> comparer, Enumerable<TSource> source,
       Function1<TSource, TKey> keySelector,
       Function1<TSource, TElement> elementSelector) {
+    final OpenHashMap<TKey, List<TElement>> map =
+        new OpenHashMap<TKey, List<TElement>>(comparer);
+    Object[] elements = new Object[16];
+    int[] ordinals = new int[16];
+    int[] counts = new int[16];
+    int n = 0;
     final Enumerator<TSource> os = source.enumerator();
     try {
       while (os.moveNext()) {
         TSource o = os.current();
-        final TKey key = keySelector.apply(o);
-        List<TElement> list = map.get(key);
-        if (list == null) {
-          // for first entry, use a singleton list to save space
-          list = Collections.singletonList(elementSelector.apply(o));
-        } else {
-          if (list.size() == 1) {
-            // when we go from 1 to 2 elements, switch to array list
-            TElement element = list.get(0);
-            list = new ArrayList<TElement>();
-            list.add(element);
-          }
-          list.add(elementSelector.apply(o));
+        int ordinal = map.add(keySelector.apply(o));
+        if (ordinal < 0) {
+          ordinal = ~ordinal;
+        } else if (ordinal == counts.length) {
+          counts = grow(counts, ordinal * 2);
+        }
+        if (n == elements.length) {
+          final Object[] elements0 = elements;
+          elements = new Object[n * 2];
+          System.arraycopy(elements0, 0, elements, 0, n);
+          ordinals = grow(ordinals, n * 2);
         }
-        map.put(key, list);
+        elements[n] = elementSelector.apply(o);
+        ordinals[n++] = ordinal;
+        ++counts[ordinal];
       }
     } finally {
       os.close();
     }
-    return new LookupImpl<TKey, TElement>(map);
+
+    // Convert counts into the start of each group's range; then copy each
+    // element to the next position in its group.
+    final int groupCount = map.size();
+    final int[] starts = new int[groupCount];
+    for (int g = 0, start = 0; g < groupCount; g++) {
+      starts[g] = start;
+      start += counts[g];
+      counts[g] = starts[g];
+    }
+    final Object[] grouped = new Object[n];
+    for (int i = 0; i < n; i++) {
+      grouped[counts[ordinals[i]]++] = elements[i];
+    }
+    //noinspection unchecked
+    final List<TElement> all = (List<TElement>) Arrays.asList(grouped);
+    for (int g = 0; g < groupCount; g++) {
+      map.setValueAt(g, all.subList(starts[g], counts[g]));
+    }
+    return map;
+  }
+
+  private static int[] grow(int[] ints, int capacity) {
+    final int[] ints2 = new int[capacity];
+    System.arraycopy(ints, 0, ints2, 0, ints.length);
+    return ints2;
   }
 
   /**
@@ -1950,8 +2686,7 @@ public abstract class EnumerableDefaults {
       Enumerable<TSource> source, Function1<TSource, TKey> keySelector,
       Function1<TSource, TElement> elementSelector,
       EqualityComparer<TKey> comparer) {
-    return toLookup_(new WrapMap<TKey, List<TElement>>(comparer), source,
-        keySelector, elementSelector);
+    return toLookup_(comparer, source, keySelector, elementSelector);
   }
 
   /**
@@ -1960,44 +2695,26 @@ public abstract class EnumerableDefaults {
    */
   public static <TSource> Enumerable<TSource> union(Enumerable<TSource> source0,
       Enumerable<TSource> source1) {
-    Set<TSource> set = new HashSet<TSource>();
-    source0.into(set);
-    source1.into(set);
-    return Linq4j.asEnumerable(set);
+    return union(source0, source1, null);
   }
 
   /**
    * Produces the set union of two sequences by using a
    * specified EqualityComparer&lt;TSource&gt;.
+   *
+   * <p>Streams {@code source0} then {@code source1}, returning each element
+   * the first time it is seen.</p>
    */
   public static <TSource> Enumerable<TSource> union(Enumerable<TSource> source0,
       Enumerable<TSource> source1, final EqualityComparer<TSource> comparer) {
-    if (comparer == Functions.identityComparer()) {
-      return union(source0, source1);
-    }
-    Set<Wrapped<TSource>> set = new HashSet<Wrapped<TSource>>();
-    Function1<TSource, Wrapped<TSource>> wrapper = wrapperFor(comparer);
-    Function1<Wrapped<TSource>, TSource> unwrapper = unwrapper();
-    source0.select(wrapper).into(set);
-    source1.select(wrapper).into(set);
-    return Linq4j.asEnumerable(set).select(unwrapper);
-  }
-
-  private static <TSource> Function1<Wrapped<TSource>, TSource> unwrapper() {
-    return new Function1<Wrapped<TSource>, TSource>() {
-      public TSource apply(Wrapped<TSource> a0) {
-        return a0.element;
-      }
-    };
+    //noinspection unchecked
+    return distinct(Linq4j.concat(Arrays.asList(source0, source1)), comparer);
   }
 
-  private static <TSource> Function1<TSource, Wrapped<TSource>> wrapperFor(
-      final EqualityComparer<TSource> comparer) {
-    return new Function1<TSource, Wrapped<TSource>>() {
-      public Wrapped<TSource> apply(TSource a0) {
-        return Wrapped.upAs(comparer, a0);
-      }
-    };
+  /** Creates a map whose keys are compared using {@code comparer}, or
+   * using {@link Object#equals} if {@code comparer} is null. */
+  static <K, V> Map<K, V> newMap(EqualityComparer<K> comparer) {
+    return new OpenHashMap<K, V>(comparer);
   }
 
   /**
@@ -2111,6 +2828,56 @@ public abstract class EnumerableDefaults {
     return sink;
   }
 
+  /** Enumerator that returns the elements of a source that are accepted
+   * by a filter that uses a set. Creates the set on the first call to
+   * {@link #moveNext()}, so that no input is read until the result is
+   * enumerated.
+   *
+   * @param <TSource> Element type */
+  private abstract static class SetFilterEnumerator<TSource>
+      implements Enumerator<TSource> {
+    private final Enumerator<TSource> enumerator;
+    /** Set used by the filter; null until the first call to
+     * {@link #moveNext()}. */
+    Set<TSource> set;
+
+    SetFilterEnumerator(Enumerator<TSource> enumerator) {
+      this.enumerator = enumerator;
+    }
+
+    /** Creates the set. */
+    abstract Set<TSource> createSet();
+
+    /** Returns whether to return an element, and updates the set. */
+    abstract boolean accept(TSource element);
+
+    public TSource current() {
+      return enumerator.current();
+    }
+
+    public boolean moveNext() {
+      if (set == null) {
+        set = createSet();
+      }
+      while (enumerator.moveNext()) {
+        if (accept(enumerator.current())) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    public void reset() {
+      enumerator.reset();
+      set = null;
+    }
+
+    public void close() {
+      enumerator.close();
+      set = null;
+    }
+  }
+
   static class TakeWhileEnumerator<TSource> implements Enumerator<TSource> {
     private final Enumerator<TSource> enumerator;
     private final Predicate2<TSource, Integer> predicate;
@@ -2220,108 +2987,224 @@ public abstract class EnumerableDefaults {
     }
   }
 
-  private static class Wrapped<T> {
-    private final EqualityComparer<T> comparer;
-    private final T element;
-
-    private Wrapped(EqualityComparer<T> comparer, T element) {
-      this.comparer = comparer;
-      this.element = element;
-    }
-
-    static <T> Wrapped<T> upAs(EqualityComparer<T> comparer, T element) {
-      return new Wrapped<T>(comparer, element);
+  /** Enumerator that joins two inputs sorted on their keys.
+   *
+   * <p>Holds the current run of inner elements: consecutive inner elements
+   * with the same key. Each outer element is joined to the run if their
+   * keys are equal. If the outer key is greater, reads inner elements until
+   * it finds the next run whose key is not less than the outer key.</p> */
+  private static class MergeJoinEnumerator<TSource, TInner, TKey, TResult>
+      implements Enumerator<TResult> {
+    private final Enumerator<TSource> outers;
+    private final Enumerator<TInner> inners;
+    private final Function1<TSource, TKey> outerKeySelector;
+    private final Function1<TInner, TKey> innerKeySelector;
+    private final Function2<TSource, TInner, TResult> resultSelector;
+    private final Comparator<TKey> comparator;
+
+    /** Inner elements with key {@link #runKey}. */
+    private final List<TInner> run = new ArrayList<TInner>();
+    private TKey runKey;
+    /** Whether {@link #inners} is positioned on an element that has been
+     * read but is not yet in the run. */
+    private boolean innerPending;
+    private boolean innersDone;
+    private boolean innerStarted;
+    private TKey innerKey;
+
+    private TSource outer;
+    private TKey outerKey;
+    private boolean started;
+    /** Index of the inner element in the run that is joined to the current
+     * outer element, or -1 if the outer element does not match the run. */
+    private int i = -1;
+    private boolean matched;
+
+    MergeJoinEnumerator(Enumerator<TSource> outers, Enumerator<TInner> inners,
+        Function1<TSource, TKey> outerKeySelector,
+        Function1<TInner, TKey> innerKeySelector,
+        Function2<TSource, TInner, TResult> resultSelector,
+        Comparator<TKey> comparator) {
+      this.outers = outers;
+      this.inners = inners;
+      this.outerKeySelector = outerKeySelector;
+      this.innerKeySelector = innerKeySelector;
+      this.resultSelector = resultSelector;
+      this.comparator = comparator;
     }
 
-    @Override
-    public int hashCode() {
-      return comparer.hashCode(element);
+    public TResult current() {
+      return resultSelector.apply(outer, run.get(i));
     }
 
-    @Override
-    public boolean equals(Object obj) {
-      //noinspection unchecked
-      return obj == this || obj instanceof Wrapped && comparer.equal(element,
-          ((Wrapped<T>) obj).element);
+    public boolean moveNext() {
+      for (;;) {
+        if (matched && ++i < run.size()) {
+          return true;
+        }
+        if (!outers.moveNext()) {
+          matched = false;
+          return false;
+        }
+        final TKey previousKey = outerKey;
+        outer = outers.current();
+        outerKey = outerKeySelector.apply(outer);
+        if (started && comparator.compare(previousKey, outerKey) > 0) {
+          throw new IllegalStateException("outer input is not sorted: key "
+              + previousKey + " precedes " + outerKey);
+        }
+        started = true;
+        i = -1;
+        if (run.isEmpty() || comparator.compare(runKey, outerKey) < 0) {
+          readRun();
+        }
+        matched = !run.isEmpty()
+            && comparator.compare(runKey, outerKey) == 0;
+      }
     }
 
-    public T unwrap() {
-      return element;
+    /** Reads the next run of inner elements whose key is not less than
+     * the current outer key. */
+    private void readRun() {
+      run.clear();
+      while (nextInner()) {
+        if (comparator.compare(innerKey, outerKey) >= 0) {
+          break;
+        }
+        innerPending = false;
+      }
+      if (!innerPending) {
+        return;
+      }
+      runKey = innerKey;
+      do {
+        run.add(inners.current());
+        innerPending = false;
+      } while (nextInner() && comparator.compare(innerKey, runKey) == 0);
     }
-  }
-
-  private static class WrapMap<K, V> extends AbstractMap<K, V> {
-    private final Map<Wrapped<K>, V> map = new HashMap<Wrapped<K>, V>();
-    private final EqualityComparer<K> comparer;
 
-    protected WrapMap(EqualityComparer<K> comparer) {
-      this.comparer = comparer;
+    /** Positions the inner enumerator on an element that is not in the
+     * run, if there is one. */
+    private boolean nextInner() {
+      if (innerPending) {
+        return true;
+      }
+      if (innersDone || !inners.moveNext()) {
+        innersDone = true;
+        return false;
+      }
+      final TKey previousKey = innerKey;
+      innerKey = innerKeySelector.apply(inners.current());
+      if (innerStarted && comparator.compare(previousKey, innerKey) > 0) {
+        throw new IllegalStateException("inner input is not sorted: key "
+            + previousKey + " precedes " + innerKey);
+      }
+      innerStarted = true;
+      innerPending = true;
+      return true;
     }
 
-    @Override
-    public Set<Entry<K, V>> entrySet() {
-      return new AbstractSet<Entry<K, V>>() {
-        @Override
-        public Iterator<Entry<K, V>> iterator() {
-          final Iterator<Entry<Wrapped<K>, V>> iterator =
-              map.entrySet().iterator();
-
-          return new Iterator<Entry<K, V>>() {
-            public boolean hasNext() {
-              return iterator.hasNext();
-            }
-
-            public Entry<K, V> next() {
-              Entry<Wrapped<K>, V> next = iterator.next();
-              return new SimpleEntry<K, V>(next.getKey().element,
-                  next.getValue());
-            }
-
-            public void remove() {
-              iterator.remove();
-            }
-          };
-        }
-
-        @Override
-        public int size() {
-          return map.size();
-        }
-      };
+    public void reset() {
+      outers.reset();
+      inners.reset();
+      run.clear();
+      innerPending = false;
+      innersDone = false;
+      innerStarted = false;
+      started = false;
+      matched = false;
+      i = -1;
     }
 
-    @Override
-    public boolean containsKey(Object key) {
-      return map.containsKey(wrap((K) key));
+    public void close() {
+      outers.close();
+      inners.close();
     }
+  }
 
-    private Wrapped<K> wrap(K key) {
-      return Wrapped.upAs(comparer, key);
+  /** Enumerator that aggregates runs of consecutive elements that have the
+   * same key.
+   *
+   * @see EnumerableDefaults#sortedGroupBy */
+  private static class SortedGroupByEnumerator<TSource, TKey, TAccumulate,
+      TResult> implements Enumerator<TResult> {
+    private final Enumerator<TSource> enumerator;
+    private final Function1<TSource, TKey> keySelector;
+    private final Function0<TAccumulate> accumulatorInitializer;
+    private final Function2<TAccumulate, TSource, TAccumulate>
+    accumulatorAdder;
+    private final Function2<TKey, TAccumulate, TResult> resultSelector;
+    private final Comparator<TKey> comparator;
+
+    /** Whether {@link #enumerator} is positioned on an element that has
+     * been read but not yet added to an accumulator. */
+    private boolean pending;
+    private boolean done;
+    private boolean started;
+    private TSource element;
+    private TKey key;
+    private TResult current;
+
+    SortedGroupByEnumerator(Enumerator<TSource> enumerator,
+        Function1<TSource, TKey> keySelector,
+        Function0<TAccumulate> accumulatorInitializer,
+        Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder,
+        Function2<TKey, TAccumulate, TResult> resultSelector,
+        Comparator<TKey> comparator) {
+      this.enumerator = enumerator;
+      this.keySelector = keySelector;
+      this.accumulatorInitializer = accumulatorInitializer;
+      this.accumulatorAdder = accumulatorAdder;
+      this.resultSelector = resultSelector;
+      this.comparator = comparator;
     }
 
-    @Override
-    public V get(Object key) {
-      return map.get(wrap((K) key));
+    public TResult current() {
+      return current;
     }
 
-    @Override
-    public V put(K key, V value) {
-      return map.put(wrap(key), value);
+    public boolean moveNext() {
+      if (!pending && !next()) {
+        return false;
+      }
+      final TKey groupKey = key;
+      TAccumulate accumulator = accumulatorInitializer.apply();
+      do {
+        accumulator = accumulatorAdder.apply(accumulator, element);
+        pending = false;
+      } while (next() && comparator.compare(groupKey, key) == 0);
+      current = resultSelector.apply(groupKey, accumulator);
+      return true;
     }
 
-    @Override
-    public V remove(Object key) {
-      return map.remove(wrap((K) key));
+    /** Reads the next element, if there is one. */
+    private boolean next() {
+      if (done || !enumerator.moveNext()) {
+        done = true;
+        return false;
+      }
+      final TKey previousKey = key;
+      element = enumerator.current();
+      key = keySelector.apply(element);
+      if (started && comparator.compare(previousKey, key) > 0) {
+        throw new IllegalStateException("input is not sorted: key "
+            + previousKey + " precedes " + key);
+      }
+      started = true;
+      pending = true;
+      return true;
     }
 
-    @Override
-    public void clear() {
-      map.clear();
+    public void reset() {
+      enumerator.reset();
+      pending = false;
+      done = false;
+      started = false;
+      current = null;
     }
 
-    @Override
-    public Collection<V> values() {
-      return map.values();
+    public void close() {
+      enumerator.close();
     }
   }
 }
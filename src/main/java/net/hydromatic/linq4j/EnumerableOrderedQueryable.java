@@ -36,29 +36,44 @@ class EnumerableOrderedQueryable<T> extends EnumerableQueryable<T>
     super(provider, rowType, expression, enumerable);
   }
 
+  /** Returns the wrapped enumerable, so that {@code thenBy} adds a key to
+   * the sort that created it. */
+  @Override
+  protected OrderedEnumerable<T> getThisOrdered() {
+    final Enumerable<T> enumerable = getThis();
+    return enumerable instanceof OrderedEnumerable
+        ? (OrderedEnumerable<T>) enumerable
+        : this;
+  }
+
   public <TKey extends Comparable<TKey>> OrderedQueryable<T> thenBy(
       FunctionExpression<Function1<T, TKey>> keySelector) {
-    return QueryableDefaults.thenBy(asOrderedQueryable(), keySelector);
+    return EnumerableDefaults.asOrderedQueryable(
+        EnumerableDefaults.thenBy(getThisOrdered(),
+            keySelector.getFunction()));
   }
 
   public <TKey> OrderedQueryable<T> thenBy(
       FunctionExpression<Function1<T, TKey>> keySelector,
       Comparator<TKey> comparator) {
-    return QueryableDefaults.thenBy(asOrderedQueryable(), keySelector,
-        comparator);
+    return EnumerableDefaults.asOrderedQueryable(
+        EnumerableDefaults.thenBy(getThisOrdered(),
+            keySelector.getFunction(), comparator));
   }
 
   public <TKey extends Comparable<TKey>> OrderedQueryable<T> thenByDescending(
       FunctionExpression<Function1<T, TKey>> keySelector) {
-    return QueryableDefaults.thenByDescending(asOrderedQueryable(),
-        keySelector);
+    return EnumerableDefaults.asOrderedQueryable(
+        EnumerableDefaults.thenByDescending(getThisOrdered(),
+            keySelector.getFunction()));
   }
 
   public <TKey> OrderedQueryable<T> thenByDescending(
       FunctionExpression<Function1<T, TKey>> keySelector,
       Comparator<TKey> comparator) {
-    return QueryableDefaults.thenByDescending(asOrderedQueryable(), keySelector,
-        comparator);
+    return EnumerableDefaults.asOrderedQueryable(
+        EnumerableDefaults.thenByDescending(getThisOrdered(),
+            keySelector.getFunction(), comparator));
   }
 }
 
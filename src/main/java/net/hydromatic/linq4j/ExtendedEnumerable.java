@@ -21,6 +21,7 @@ import net.hydromatic.linq4j.function.*;
 
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Extension methods in {@link Enumerable}.
@@ -70,6 +71,27 @@ public interface ExtendedEnumerable<TSource> {
    */
   boolean all(Predicate1<TSource> predicate);
 
+  /**
+   * Returns elements of this sequence that have no matching element in
+   * another sequence; equivalent to SQL {@code NOT EXISTS}. The default
+   * equality comparer is used to compare keys.
+   */
+  <TInner, TKey> Enumerable<TSource> antiJoin(Enumerable<TInner> inner,
+      Function1<TSource, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector);
+
+  /**
+   * Returns elements of this sequence that have no matching element in
+   * another sequence, building the specified side into a hash table.
+   *
+   * @param comparer Comparer, or null to use the default equality comparer
+   * @param buildSide Which input to build
+   */
+  <TInner, TKey> Enumerable<TSource> antiJoin(Enumerable<TInner> inner,
+      Function1<TSource, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      EqualityComparer<TKey> comparer, BuildSide buildSide);
+
   /**
    * Determines whether a sequence contains any
    * elements. (Defined by Enumerable.)
@@ -104,6 +126,24 @@ public interface ExtendedEnumerable<TSource> {
    */
   Enumerable<TSource> asEnumerable();
 
+  /**
+   * Returns a {@link ParallelEnumerable} with the same elements, whose
+   * operators run on a shared executor that has a thread for each
+   * processor.
+   */
+  ParallelEnumerable<TSource> asParallel();
+
+  /**
+   * Returns a {@link ParallelEnumerable} with the same elements, whose
+   * operators run on a given executor.
+   *
+   * @param executor Executor
+   * @param parallelism Number of threads between which to divide work;
+   *   must be positive
+   */
+  ParallelEnumerable<TSource> asParallel(ExecutorService executor,
+      int parallelism);
+
   /**
    * Converts an Enumerable to a {@link Queryable}.
    *
@@ -485,6 +525,40 @@ public interface ExtendedEnumerable<TSource> {
       Function2<TSource, TInner, TResult> resultSelector,
       EqualityComparer<TKey> comparer);
 
+  /**
+   * Correlates the elements of two sequences based on matching keys,
+   * optionally generating results for elements that have no match.
+   *
+   * <p>If {@code generateNullsOnRight}, an outer element with no matching
+   * inner element generates one result, with null as the inner element
+   * (left outer join). If {@code generateNullsOnLeft}, an inner element with
+   * no matching outer element generates one result, with null as the outer
+   * element (right outer join). If both, the join is a full outer join.</p>
+   *
+   * @param comparer Comparer, or null to use the default equality comparer
+   */
+  <TInner, TKey, TResult> Enumerable<TResult> join(Enumerable<TInner> inner,
+      Function1<TSource, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      Function2<TSource, TInner, TResult> resultSelector,
+      EqualityComparer<TKey> comparer, boolean generateNullsOnLeft,
+      boolean generateNullsOnRight);
+
+  /**
+   * Correlates the elements of two sequences based on matching keys,
+   * optionally generating results for elements that have no match, and
+   * building the specified side into a hash table.
+   *
+   * @param comparer Comparer, or null to use the default equality comparer
+   * @param buildSide Which input to build
+   */
+  <TInner, TKey, TResult> Enumerable<TResult> join(Enumerable<TInner> inner,
+      Function1<TSource, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      Function2<TSource, TInner, TResult> resultSelector,
+      EqualityComparer<TKey> comparer, boolean generateNullsOnLeft,
+      boolean generateNullsOnRight, BuildSide buildSide);
+
   /**
    * Returns the last element of a sequence. (Defined
    * by Enumerable.)
@@ -697,28 +771,29 @@ public interface ExtendedEnumerable<TSource> {
    * Sorts the elements of a sequence in ascending
    * order according to a key.
    */
-  <TKey extends Comparable> Enumerable<TSource> orderBy(
+  <TKey extends Comparable> OrderedEnumerable<TSource> orderBy(
       Function1<TSource, TKey> keySelector);
 
   /**
    * Sorts the elements of a sequence in ascending
    * order by using a specified comparer.
    */
-  <TKey> Enumerable<TSource> orderBy(Function1<TSource, TKey> keySelector,
+  <TKey> OrderedEnumerable<TSource> orderBy(
+      Function1<TSource, TKey> keySelector,
       Comparator<TKey> comparator);
 
   /**
    * Sorts the elements of a sequence in descending
    * order according to a key.
    */
-  <TKey extends Comparable> Enumerable<TSource> orderByDescending(
+  <TKey extends Comparable> OrderedEnumerable<TSource> orderByDescending(
       Function1<TSource, TKey> keySelector);
 
   /**
    * Sorts the elements of a sequence in descending
    * order by using a specified comparer.
    */
-  <TKey> Enumerable<TSource> orderByDescending(
+  <TKey> OrderedEnumerable<TSource> orderByDescending(
       Function1<TSource, TKey> keySelector, Comparator<TKey> comparator);
 
   /**
@@ -778,6 +853,29 @@ public interface ExtendedEnumerable<TSource> {
       Function1<TSource, Enumerable<TCollection>> collectionSelector,
       Function2<TSource, TCollection, TResult> resultSelector);
 
+  /**
+   * Returns elements of this sequence that have at least one matching
+   * element in another sequence; equivalent to SQL {@code EXISTS}. Each
+   * element is returned at most once. The default equality comparer is
+   * used to compare keys.
+   */
+  <TInner, TKey> Enumerable<TSource> semiJoin(Enumerable<TInner> inner,
+      Function1<TSource, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector);
+
+  /**
+   * Returns elements of this sequence that have at least one matching
+   * element in another sequence, building the specified side into a hash
+   * table.
+   *
+   * @param comparer Comparer, or null to use the default equality comparer
+   * @param buildSide Which input to build
+   */
+  <TInner, TKey> Enumerable<TSource> semiJoin(Enumerable<TInner> inner,
+      Function1<TSource, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      EqualityComparer<TKey> comparer, BuildSide buildSide);
+
   /**
    * Determines whether two sequences are equal by
    * comparing the elements by using the default equality comparer
@@ -0,0 +1,240 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.linq4j;
+
+import net.hydromatic.linq4j.function.*;
+
+import java.util.*;
+
+/**
+ * Hash aggregation that holds a bounded number of groups in memory.
+ *
+ * <p>Reads the input into a map from key to accumulator. If the number of
+ * keys stays within the budget ({@link Spiller#maxRows}), returns a result
+ * for each entry, just like {@link EnumerableDefaults#groupBy}.</p>
+ *
+ * <p>Otherwise, each time the map exceeds the budget, writes its entries to
+ * temporary files, one for each partition of the hash of the key, and
+ * clears it. An entry holds the partial aggregate of the rows read since
+ * the previous spill, so a key may occur in several entries, but always in
+ * the same partition. Then reads each partition in turn, merging entries
+ * that have the same key using the combiner; a partition that still has
+ * too many keys is divided again, using a different hash function.</p>
+ *
+ * <p>Results are not returned in the same order as by
+ * {@link EnumerableDefaults#groupBy}.</p>
+ *
+ * @param <TSource> Row type
+ * @param <TKey> Key type
+ * @param <TAccumulate> Accumulator type
+ * @param <TResult> Result type
+ */
+class HashAggregate<TSource, TKey, TAccumulate, TResult>
+    extends AbstractEnumerable<TResult> {
+  private final Enumerable<TSource> source;
+  private final Function1<TSource, TKey> keySelector;
+  private final Function0<TAccumulate> accumulatorInitializer;
+  private final Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder;
+  private final Function2<TAccumulate, TAccumulate, TAccumulate>
+  accumulatorCombiner;
+  private final Function2<TKey, TAccumulate, TResult> resultSelector;
+  private final EqualityComparer<TKey> comparer;
+  private final Spiller<Map.Entry<TKey, TAccumulate>> spiller;
+
+  HashAggregate(Enumerable<TSource> source,
+      Function1<TSource, TKey> keySelector,
+      Function0<TAccumulate> accumulatorInitializer,
+      Function2<TAccumulate, TSource, TAccumulate> accumulatorAdder,
+      Function2<TAccumulate, TAccumulate, TAccumulate> accumulatorCombiner,
+      Function2<TKey, TAccumulate, TResult> resultSelector,
+      EqualityComparer<TKey> comparer,
+      Spiller<Map.Entry<TKey, TAccumulate>> spiller) {
+    this.source = source;
+    this.keySelector = keySelector;
+    this.accumulatorInitializer = accumulatorInitializer;
+    this.accumulatorAdder = accumulatorAdder;
+    this.accumulatorCombiner = accumulatorCombiner;
+    this.resultSelector = resultSelector;
+    this.comparer = comparer;
+    this.spiller = spiller;
+  }
+
+  public Enumerator<TResult> enumerator() {
+    return new HashAggregateEnumerator();
+  }
+
+  /** Enumerator for a spilling hash aggregation. Reads the input on the
+   * first call to {@link #moveNext()}. */
+  private class HashAggregateEnumerator implements Enumerator<TResult> {
+    private boolean started;
+    /** Entries of the partition whose results are being returned. */
+    private Iterator<Map.Entry<TKey, TAccumulate>> entries;
+    /** Spilled partitions that have not been read yet, with the depth at
+     * which each was written. */
+    private final LinkedList<Spiller.RunWriter<Map.Entry<TKey, TAccumulate>>>
+    pending =
+        new LinkedList<Spiller.RunWriter<Map.Entry<TKey, TAccumulate>>>();
+    private final LinkedList<Integer> pendingDepths = new LinkedList<Integer>();
+    /** While reading, writer for the entries of each partition; null if the
+     * map has not been spilled. */
+    private Spiller.RunWriter<Map.Entry<TKey, TAccumulate>>[] writers;
+    private TResult current;
+
+    public TResult current() {
+      return current;
+    }
+
+    public boolean moveNext() {
+      if (!started) {
+        started = true;
+        aggregate();
+      }
+      for (;;) {
+        if (entries != null) {
+          if (entries.hasNext()) {
+            final Map.Entry<TKey, TAccumulate> entry = entries.next();
+            current = resultSelector.apply(entry.getKey(), entry.getValue());
+            return true;
+          }
+          entries = null;
+        }
+        if (pending.isEmpty()) {
+          return false;
+        }
+        final Spiller.RunWriter<Map.Entry<TKey, TAccumulate>> writer =
+            pending.removeFirst();
+        final int depth = pendingDepths.removeFirst();
+        try {
+          combine(writer.finish(), depth);
+        } finally {
+          writer.delete();
+        }
+      }
+    }
+
+    /** Reads the input. */
+    private void aggregate() {
+      final Map<TKey, TAccumulate> map = EnumerableDefaults.newMap(comparer);
+      final Enumerator<TSource> enumerator = source.enumerator();
+      try {
+        while (enumerator.moveNext()) {
+          final TSource row = enumerator.current();
+          final TKey key = keySelector.apply(row);
+          TAccumulate accumulator = map.get(key);
+          if (accumulator == null) {
+            accumulator = accumulatorInitializer.apply();
+          }
+          map.put(key, accumulatorAdder.apply(accumulator, row));
+          if (map.size() > spiller.maxRows) {
+            spill(map, 0);
+          }
+        }
+      } finally {
+        enumerator.close();
+      }
+      finish(map, 0);
+    }
+
+    /** Reads the entries of a spilled partition, merging entries that have
+     * the same key. */
+    private void combine(Enumerable<Map.Entry<TKey, TAccumulate>> run,
+        int depth) {
+      final Map<TKey, TAccumulate> map = EnumerableDefaults.newMap(comparer);
+      final Enumerator<Map.Entry<TKey, TAccumulate>> enumerator =
+          run.enumerator();
+      try {
+        while (enumerator.moveNext()) {
+          final Map.Entry<TKey, TAccumulate> entry = enumerator.current();
+          final TAccumulate accumulator = map.get(entry.getKey());
+          map.put(entry.getKey(),
+              accumulator == null
+                  ? entry.getValue()
+                  : accumulatorCombiner.apply(accumulator, entry.getValue()));
+          if (map.size() > spiller.maxRows && depth < HashJoin.MAX_DEPTH) {
+            spill(map, depth);
+          }
+        }
+      } finally {
+        enumerator.close();
+      }
+      finish(map, depth);
+    }
+
+    /** Writes the entries of the map to the file of their partition, and
+     * clears the map. */
+    private void spill(Map<TKey, TAccumulate> map, int depth) {
+      if (writers == null) {
+        //noinspection unchecked
+        writers = new Spiller.RunWriter[HashJoin.PARTITION_COUNT];
+      }
+      for (Map.Entry<TKey, TAccumulate> entry : map.entrySet()) {
+        final int p = HashJoin.partition(entry.getKey(), comparer, depth);
+        if (writers[p] == null) {
+          writers[p] = spiller.writer();
+        }
+        writers[p].add(
+            new AbstractMap.SimpleEntry<TKey, TAccumulate>(entry.getKey(),
+                entry.getValue()));
+      }
+      map.clear();
+    }
+
+    /** Called at the end of the input or of a spilled partition. If
+     * nothing was spilled, returns the entries of the map; otherwise spills
+     * the rest of the map, and queues the partitions to be read next. */
+    private void finish(Map<TKey, TAccumulate> map, int depth) {
+      if (writers == null) {
+        entries = map.entrySet().iterator();
+        return;
+      }
+      spill(map, depth);
+      for (int p = HashJoin.PARTITION_COUNT - 1; p >= 0; p--) {
+        if (writers[p] != null) {
+          pending.addFirst(writers[p]);
+          pendingDepths.addFirst(depth + 1);
+        }
+      }
+      writers = null;
+    }
+
+    public void reset() {
+      close();
+      started = false;
+      current = null;
+    }
+
+    public void close() {
+      entries = null;
+      if (writers != null) {
+        for (Spiller.RunWriter<?> writer : writers) {
+          if (writer != null) {
+            writer.delete();
+          }
+        }
+        writers = null;
+      }
+      for (Spiller.RunWriter<?> writer : pending) {
+        writer.delete();
+      }
+      pending.clear();
+      pendingDepths.clear();
+    }
+  }
+}
+
+// End HashAggregate.java
@@ -0,0 +1,349 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.linq4j;
+
+import net.hydromatic.linq4j.function.*;
+
+import java.util.*;
+
+/**
+ * Hybrid hash join that holds a bounded number of inner rows in memory.
+ *
+ * <p>Reads the inner input into memory. If the inner input fits within
+ * the budget (the inner spiller's {@link Spiller#maxRows}), builds a lookup
+ * and probes it with each outer row, just like
+ * {@link EnumerableDefaults#join}.</p>
+ *
+ * <p>Otherwise, divides the inner rows into partitions by the hash of their
+ * key, and writes the largest partitions to temporary files until the rest
+ * fit in memory. Outer rows whose key belongs to an in-memory partition are
+ * joined immediately; the others are written to a temporary file for their
+ * partition. Then each pair of spilled partitions is joined in the same
+ * way, with a different hash function, so that a partition that is still
+ * too large is divided again.</p>
+ *
+ * <p>Rows are not returned in the same order as by
+ * {@link EnumerableDefaults#join}.</p>
+ *
+ * @param <TSource> Outer row type
+ * @param <TInner> Inner row type
+ * @param <TKey> Key type
+ * @param <TResult> Result type
+ */
+class HashJoin<TSource, TInner, TKey, TResult>
+    extends AbstractEnumerable<TResult> {
+  /** Number of partitions into which an inner input that does not fit in
+   * memory is divided. */
+  static final int PARTITION_COUNT = 16;
+
+  /** Depth beyond which partitions are not divided further. A partition
+   * whose rows all have the same key cannot be divided, so at this depth it
+   * is held in memory regardless of the budget. */
+  static final int MAX_DEPTH = 4;
+
+  private final Enumerable<TSource> outer;
+  private final Enumerable<TInner> inner;
+  private final Function1<TSource, TKey> outerKeySelector;
+  private final Function1<TInner, TKey> innerKeySelector;
+  private final Function2<TSource, TInner, TResult> resultSelector;
+  private final EqualityComparer<TKey> comparer;
+  private final Spiller<TSource> outerSpiller;
+  private final Spiller<TInner> innerSpiller;
+  private final int depth;
+
+  HashJoin(Enumerable<TSource> outer, Enumerable<TInner> inner,
+      Function1<TSource, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      Function2<TSource, TInner, TResult> resultSelector,
+      EqualityComparer<TKey> comparer, Spiller<TSource> outerSpiller,
+      Spiller<TInner> innerSpiller, int depth) {
+    this.outer = outer;
+    this.inner = inner;
+    this.outerKeySelector = outerKeySelector;
+    this.innerKeySelector = innerKeySelector;
+    this.resultSelector = resultSelector;
+    this.comparer = comparer;
+    this.outerSpiller = outerSpiller;
+    this.innerSpiller = innerSpiller;
+    this.depth = depth;
+  }
+
+  public Enumerator<TResult> enumerator() {
+    return new HashJoinEnumerator();
+  }
+
+  /** Returns the partition to which a key belongs. */
+  private int partition(TKey key) {
+    return partition(key, comparer, depth);
+  }
+
+  /** Returns the partition, between 0 and {@link #PARTITION_COUNT} - 1, to
+   * which a key belongs. Each depth uses a different hash function. */
+  static <K> int partition(K key, EqualityComparer<K> comparer, int depth) {
+    return (hash(key, comparer, depth) & Integer.MAX_VALUE) % PARTITION_COUNT;
+  }
+
+  /** Returns a well-mixed hash code for a key. Each depth uses a different
+   * hash function. */
+  static <K> int hash(K key, EqualityComparer<K> comparer, int depth) {
+    int h = key == null ? 0
+        : comparer == null ? key.hashCode()
+        : comparer.hashCode(key);
+    h += depth * 0x9E3779B9;
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  /** Enumerator for a hybrid hash join. Reads the inner input on the first
+   * call to {@link #moveNext()}. */
+  private class HashJoinEnumerator implements Enumerator<TResult> {
+    private boolean started;
+    private Lookup<TKey, TInner> lookup;
+    /** Outer rows; null after all outer rows have been read. */
+    private Enumerator<TSource> outers;
+    /** Inner rows matching the current outer row. */
+    private Enumerator<TInner> inners = Linq4j.emptyEnumerator();
+    /** While reading the inner input, the inner rows in memory of each
+     * partition, or null if the partition has been spilled; null if the
+     * input has not been divided into partitions. */
+    private List<TInner>[] partitions;
+    /** Writer for the inner rows of each spilled partition; null if no
+     * partition has been spilled. */
+    private Spiller.RunWriter<TInner>[] innerWriters;
+    private Spiller.RunWriter<TSource>[] outerWriters;
+    /** All writers, so that their files can be deleted on close. */
+    private final List<Spiller.RunWriter<?>> writers =
+        new ArrayList<Spiller.RunWriter<?>>();
+    /** Spilled partition that is being joined. */
+    private int partition = -1;
+    /** Join of the spilled partition that is being joined. */
+    private Enumerator<TResult> partitionJoin;
+    private TResult current;
+
+    public TResult current() {
+      return current;
+    }
+
+    public boolean moveNext() {
+      if (!started) {
+        started = true;
+        build();
+        outers = outer.enumerator();
+      }
+      for (;;) {
+        if (partitionJoin != null) {
+          if (partitionJoin.moveNext()) {
+            current = partitionJoin.current();
+            return true;
+          }
+          partitionJoin.close();
+          partitionJoin = null;
+        }
+        if (outers != null) {
+          if (inners.moveNext()) {
+            current = resultSelector.apply(outers.current(), inners.current());
+            return true;
+          }
+          if (probe()) {
+            continue;
+          }
+          outers.close();
+          outers = null;
+        }
+        if (innerWriters == null || partition >= PARTITION_COUNT) {
+          return false;
+        }
+        if (partition >= 0) {
+          // Delete the files of the partition that has been joined.
+          delete(innerWriters[partition]);
+          delete(outerWriters[partition]);
+        }
+        if (++partition >= PARTITION_COUNT) {
+          return false;
+        }
+        if (innerWriters[partition] != null
+            && outerWriters[partition] != null) {
+          partitionJoin =
+              new HashJoin<TSource, TInner, TKey, TResult>(
+                  outerWriters[partition].finish(),
+                  innerWriters[partition].finish(),
+                  outerKeySelector, innerKeySelector, resultSelector,
+                  comparer, outerSpiller, innerSpiller, depth + 1)
+                  .enumerator();
+        }
+      }
+    }
+
+    /** Reads the inner input, spilling partitions if it does not fit in
+     * memory, and builds a lookup of the rows that remain in memory. */
+    private void build() {
+      List<TInner> rows = new ArrayList<TInner>();
+      int rowCount = 0;
+      final Enumerator<TInner> enumerator = inner.enumerator();
+      try {
+        while (enumerator.moveNext()) {
+          final TInner row = enumerator.current();
+          if (partitions == null) {
+            rows.add(row);
+            if (rows.size() > innerSpiller.maxRows && depth < MAX_DEPTH) {
+              startPartitioning(rows);
+              rowCount = rows.size();
+              // The rows are now in partitions; do not keep those that spill.
+              rows = null;
+              rowCount = spill(rowCount);
+            }
+          } else {
+            final int p = partition(innerKeySelector.apply(row));
+            if (innerWriters[p] != null) {
+              innerWriters[p].add(row);
+            } else {
+              partitions[p].add(row);
+              if (++rowCount > innerSpiller.maxRows) {
+                rowCount = spill(rowCount);
+              }
+            }
+          }
+        }
+      } finally {
+        enumerator.close();
+      }
+      if (partitions != null) {
+        rows = new ArrayList<TInner>();
+        for (List<TInner> list : partitions) {
+          if (list != null) {
+            rows.addAll(list);
+          }
+        }
+        partitions = null;
+      }
+      lookup = comparer == null
+          ? EnumerableDefaults.toLookup(Linq4j.asEnumerable(rows),
+              innerKeySelector)
+          : EnumerableDefaults.toLookup(Linq4j.asEnumerable(rows),
+              innerKeySelector, comparer);
+    }
+
+    /** Divides buffered inner rows into partitions. */
+    private void startPartitioning(List<TInner> rows) {
+      //noinspection unchecked
+      partitions = new List[PARTITION_COUNT];
+      //noinspection unchecked
+      innerWriters = new Spiller.RunWriter[PARTITION_COUNT];
+      //noinspection unchecked
+      outerWriters = new Spiller.RunWriter[PARTITION_COUNT];
+      for (int i = 0; i < PARTITION_COUNT; i++) {
+        partitions[i] = new ArrayList<TInner>();
+      }
+      for (TInner row : rows) {
+        partitions[partition(innerKeySelector.apply(row))].add(row);
+      }
+    }
+
+    /** Writes the largest partitions to temporary files until no more than
+     * the budget is in memory. Returns the number of rows that remain in
+     * memory. */
+    private int spill(int rowCount) {
+      while (rowCount > innerSpiller.maxRows) {
+        int largest = -1;
+        for (int i = 0; i < PARTITION_COUNT; i++) {
+          if (partitions[i] != null
+              && (largest < 0
+                  || partitions[i].size() > partitions[largest].size())) {
+            largest = i;
+          }
+        }
+        final Spiller.RunWriter<TInner> writer = innerSpiller.writer();
+        writers.add(writer);
+        for (TInner row : partitions[largest]) {
+          writer.add(row);
+        }
+        rowCount -= partitions[largest].size();
+        partitions[largest] = null;
+        innerWriters[largest] = writer;
+      }
+      return rowCount;
+    }
+
+    /** Moves to the next outer row that matches in-memory inner rows, and
+     * writes outer rows that belong to spilled partitions to temporary
+     * files. Returns false if there are no more outer rows. */
+    private boolean probe() {
+      while (outers.moveNext()) {
+        final TSource row = outers.current();
+        final TKey key = outerKeySelector.apply(row);
+        if (innerWriters != null) {
+          final int p = partition(key);
+          if (innerWriters[p] != null) {
+            if (outerWriters[p] == null) {
+              outerWriters[p] = outerSpiller.writer();
+              writers.add(outerWriters[p]);
+            }
+            outerWriters[p].add(row);
+            continue;
+          }
+        }
+        final Enumerable<TInner> innerEnumerable = lookup.get(key);
+        if (innerEnumerable != null) {
+          inners = innerEnumerable.enumerator();
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private void delete(Spiller.RunWriter<?> writer) {
+      if (writer != null) {
+        writer.delete();
+        writers.remove(writer);
+      }
+    }
+
+    public void reset() {
+      close();
+      started = false;
+      lookup = null;
+      inners = Linq4j.emptyEnumerator();
+      partitions = null;
+      innerWriters = null;
+      outerWriters = null;
+      partition = -1;
+      current = null;
+    }
+
+    public void close() {
+      if (partitionJoin != null) {
+        partitionJoin.close();
+        partitionJoin = null;
+      }
+      if (outers != null) {
+        outers.close();
+        outers = null;
+      }
+      for (Spiller.RunWriter<?> writer : writers) {
+        writer.delete();
+      }
+      writers.clear();
+    }
+  }
+}
+
+// End HashJoin.java
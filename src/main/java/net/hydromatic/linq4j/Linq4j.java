@@ -22,6 +22,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.sql.ResultSet;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Utility and factory methods for Linq4j.
@@ -187,6 +188,30 @@ public abstract class Linq4j {
     return new ListEnumerable<T>(Arrays.asList(ts));
   }
 
+  /**
+   * Returns the number of elements in an enumerable, if it is known without
+   * enumerating, otherwise -1.
+   *
+   * <p>The size is known for enumerables backed by a {@link Collection}
+   * (including those created by {@code asEnumerable} from a list, array or
+   * collection), for a {@link Lookup} (the number of keys), and for the
+   * result of sorting an enumerable whose size is known. Operators use the
+   * size as a hint; for example, a join reads the smaller input into a
+   * hash table.</p>
+   */
+  public static long knownSize(Enumerable<?> enumerable) {
+    if (enumerable instanceof CollectionEnumerable) {
+      return ((CollectionEnumerable<?>) enumerable).getCollection().size();
+    }
+    if (enumerable instanceof Lookup) {
+      return ((Lookup<?, ?>) enumerable).size();
+    }
+    if (enumerable instanceof OrderedEnumerableImpl) {
+      return ((OrderedEnumerableImpl<?>) enumerable).knownSize();
+    }
+    return -1;
+  }
+
   /**
    * Adapter that converts a collection into an enumerator.
    *
@@ -345,6 +370,53 @@ public abstract class Linq4j {
     return new CartesianProductEnumerator<T>(enumerators);
   }
 
+  /**
+   * Returns an enumerable that reads a source on a background thread.
+   *
+   * <p>Each enumerator submits a task to {@code executor} on its first call
+   * to {@link Enumerator#moveNext()}. The task reads the source into a
+   * buffer of up to {@code bufferSize} elements, and waits while the
+   * buffer is full. So while the consumer works on one element, the next
+   * elements are being read. Use it for sources such as JDBC result sets
+   * and files, whose {@code moveNext} blocks.</p>
+   *
+   * <p>If the source throws an exception, the enumerator returns the
+   * elements read before the failure, then throws the exception from
+   * {@code moveNext}. {@link Enumerator#close()} stops the task, closes the
+   * source's enumerator, and waits until the source is closed.</p>
+   *
+   * <p>If the enumerator is created on a thread that is running a task for
+   * {@code executor} (for example, inside a function passed to a
+   * {@link ParallelEnumerable} that uses the same executor), it reads the
+   * source directly, without prefetching.</p>
+   *
+   * @param source Source
+   * @param bufferSize Maximum number of elements read but not yet consumed
+   * @param executor Executor that runs the tasks that read the source
+   * @param <T> Element type
+   *
+   * @return Enumerable that reads the source in the background
+   */
+  public static <T> Enumerable<T> prefetch(final Enumerable<T> source,
+      final int bufferSize, final ExecutorService executor) {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("bufferSize must be positive: "
+          + bufferSize);
+    }
+    if (executor == null) {
+      throw new NullPointerException("executor");
+    }
+    return new AbstractEnumerable<T>() {
+      public Enumerator<T> enumerator() {
+        if (ParallelEnumerableImpl.isWorker(executor)) {
+          // The executor may have no other thread to run the producer.
+          return source.enumerator();
+        }
+        return new PrefetchEnumerator<T>(source, executor, bufferSize);
+      }
+    };
+  }
+
   /**
    * Returns whether the arguments are equal to each other.
    *
@@ -442,13 +514,15 @@ public abstract class Linq4j {
   }
 
   static class CompositeEnumerable<E> extends AbstractEnumerable<E> {
-    private final Enumerator<Enumerable<E>> enumerableEnumerator;
+    private final List<Enumerable<E>> enumerableList;
 
     CompositeEnumerable(List<Enumerable<E>> enumerableList) {
-      enumerableEnumerator = iterableEnumerator(enumerableList);
+      this.enumerableList = enumerableList;
     }
 
     public Enumerator<E> enumerator() {
+      final Enumerator<Enumerable<E>> enumerableEnumerator =
+          iterableEnumerator(enumerableList);
       return new Enumerator<E>() {
         // Never null.
         Enumerator<E> current = emptyEnumerator();
@@ -0,0 +1,441 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.linq4j;
+
+import net.hydromatic.linq4j.function.EqualityComparer;
+import net.hydromatic.linq4j.function.Functions;
+
+import java.util.*;
+
+/**
+ * Hash map that uses open addressing with linear probing.
+ *
+ * <p>Keys, values and key hash codes are stored in parallel arrays,
+ * indexed by an ordinal that is assigned when the key is added; the hash
+ * table is an array of {@code int} that holds the ordinal of each key. So
+ * there is no entry object per key, and iteration is in the order that keys
+ * were added, except that removing a key moves the last key into its
+ * ordinal.</p>
+ *
+ * <p>Keys are compared using an {@link EqualityComparer}, if specified,
+ * without wrapping them in another object. Null keys and values are
+ * allowed.</p>
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+class OpenHashMap<K, V> extends AbstractMap<K, V> {
+  private static final int INITIAL_CAPACITY = 8;
+
+  private final EqualityComparer<K> comparer;
+  private Object[] keys;
+  /** Values; null until a non-null value is stored, so that a map used as
+   * a set does not allocate them. */
+  private Object[] values;
+  private int[] hashes;
+  /** Hash table. Each slot holds the ordinal of a key plus 1, or 0 if the
+   * slot is empty. Its length is a power of 2, and at least twice the
+   * number of keys. */
+  private int[] slots;
+  private int size;
+
+  /**
+   * Creates an OpenHashMap.
+   *
+   * @param comparer Comparer, or null to compare keys using
+   *   {@link Object#equals} and {@link Object#hashCode}
+   */
+  OpenHashMap(EqualityComparer<K> comparer) {
+    this.comparer =
+        comparer == Functions.<K>identityComparer() ? null : comparer;
+    clear();
+  }
+
+  private int hash(Object key) {
+    //noinspection unchecked
+    int h = key == null ? 0
+        : comparer == null ? key.hashCode()
+        : comparer.hashCode((K) key);
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private boolean equal(Object key0, Object key1) {
+    if (key0 == key1) {
+      return true;
+    }
+    if (key0 == null || key1 == null) {
+      return false;
+    }
+    //noinspection unchecked
+    return comparer == null
+        ? key0.equals(key1)
+        : comparer.equal((K) key0, (K) key1);
+  }
+
+  /** Returns the slot that holds a key, or -1 if the key is not present. */
+  private int slotOf(Object key) {
+    final int h = hash(key);
+    final int mask = slots.length - 1;
+    for (int i = h & mask;; i = (i + 1) & mask) {
+      final int s = slots[i];
+      if (s == 0) {
+        return -1;
+      }
+      if (hashes[s - 1] == h && equal(keys[s - 1], key)) {
+        return i;
+      }
+    }
+  }
+
+  /** Returns the ordinal of a key, or -1 if the key is not present. */
+  int indexOf(Object key) {
+    final int i = slotOf(key);
+    return i < 0 ? -1 : slots[i] - 1;
+  }
+
+  /** Adds a key if it is not present. Returns the ordinal of the key if it
+   * was added, or the complement ({@code ~}) of its ordinal if it was
+   * already present. The value of a new key is null. */
+  int add(K key) {
+    final int h = hash(key);
+    final int mask = slots.length - 1;
+    int i = h & mask;
+    for (;; i = (i + 1) & mask) {
+      final int s = slots[i];
+      if (s == 0) {
+        break;
+      }
+      if (hashes[s - 1] == h && equal(keys[s - 1], key)) {
+        return ~(s - 1);
+      }
+    }
+    if (size == keys.length) {
+      grow(size * 2);
+    }
+    final int ordinal = size++;
+    keys[ordinal] = key;
+    hashes[ordinal] = h;
+    slots[i] = ordinal + 1;
+    if (size * 2 > slots.length) {
+      rehash(slots.length * 2);
+    }
+    return ordinal;
+  }
+
+  private void grow(int capacity) {
+    final Object[] keys0 = keys;
+    keys = new Object[capacity];
+    System.arraycopy(keys0, 0, keys, 0, size);
+    final int[] hashes0 = hashes;
+    hashes = new int[capacity];
+    System.arraycopy(hashes0, 0, hashes, 0, size);
+    if (values != null) {
+      final Object[] values0 = values;
+      values = new Object[capacity];
+      System.arraycopy(values0, 0, values, 0, size);
+    }
+  }
+
+  private void rehash(int capacity) {
+    slots = new int[capacity];
+    final int mask = capacity - 1;
+    for (int ordinal = 0; ordinal < size; ordinal++) {
+      int i = hashes[ordinal] & mask;
+      while (slots[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      slots[i] = ordinal + 1;
+    }
+  }
+
+  /** Returns the key with a given ordinal. */
+  K keyAt(int ordinal) {
+    //noinspection unchecked
+    return (K) keys[ordinal];
+  }
+
+  /** Returns the value of the key with a given ordinal. */
+  V valueAt(int ordinal) {
+    //noinspection unchecked
+    return values == null ? null : (V) values[ordinal];
+  }
+
+  /** Sets the value of the key with a given ordinal, and returns the
+   * previous value. */
+  V setValueAt(int ordinal, V value) {
+    if (values == null) {
+      if (value == null) {
+        return null;
+      }
+      values = new Object[keys.length];
+    }
+    //noinspection unchecked
+    final V previous = (V) values[ordinal];
+    values[ordinal] = value;
+    return previous;
+  }
+
+  /** Removes the key in a given slot, and moves the last key into its
+   * ordinal. Returns the previous value. */
+  private V removeSlot(int i) {
+    final int ordinal = slots[i] - 1;
+    final V previous = valueAt(ordinal);
+    final int mask = slots.length - 1;
+
+    // Shift back keys that follow in the same probe sequence, so that they
+    // can still be found.
+    slots[i] = 0;
+    for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+      final int home = hashes[slots[j] - 1] & mask;
+      if (j > i ? home <= i || home > j : home <= i && home > j) {
+        slots[i] = slots[j];
+        slots[j] = 0;
+        i = j;
+      }
+    }
+
+    final int last = --size;
+    if (ordinal != last) {
+      int k = hashes[last] & mask;
+      while (slots[k] != last + 1) {
+        k = (k + 1) & mask;
+      }
+      slots[k] = ordinal + 1;
+      keys[ordinal] = keys[last];
+      hashes[ordinal] = hashes[last];
+      if (values != null) {
+        values[ordinal] = values[last];
+      }
+    }
+    keys[last] = null;
+    if (values != null) {
+      values[last] = null;
+    }
+    return previous;
+  }
+
+  /** Removes the key with a given ordinal, and moves the last key into its
+   * ordinal. */
+  void removeAt(int ordinal) {
+    final int mask = slots.length - 1;
+    int i = hashes[ordinal] & mask;
+    while (slots[i] != ordinal + 1) {
+      i = (i + 1) & mask;
+    }
+    removeSlot(i);
+  }
+
+  /** Removes a key, and returns whether it was present. */
+  boolean removeKey(Object key) {
+    final int i = slotOf(key);
+    if (i < 0) {
+      return false;
+    }
+    removeSlot(i);
+    return true;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return slotOf(key) >= 0;
+  }
+
+  @Override
+  public V get(Object key) {
+    final int i = slotOf(key);
+    return i < 0 ? null : valueAt(slots[i] - 1);
+  }
+
+  @Override
+  public V put(K key, V value) {
+    final int ordinal = add(key);
+    return setValueAt(ordinal < 0 ? ~ordinal : ordinal, value);
+  }
+
+  @Override
+  public V remove(Object key) {
+    final int i = slotOf(key);
+    return i < 0 ? null : removeSlot(i);
+  }
+
+  @Override
+  public void clear() {
+    keys = new Object[INITIAL_CAPACITY];
+    hashes = new int[INITIAL_CAPACITY];
+    values = null;
+    slots = new int[INITIAL_CAPACITY * 2];
+    size = 0;
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return new AbstractSet<Entry<K, V>>() {
+      public Iterator<Entry<K, V>> iterator() {
+        return new OrdinalIterator<Entry<K, V>>() {
+          Entry<K, V> get(final int ordinal) {
+            return new OrdinalEntry(ordinal);
+          }
+        };
+      }
+
+      public int size() {
+        return size;
+      }
+
+      public boolean contains(Object o) {
+        if (!(o instanceof Entry)) {
+          return false;
+        }
+        final Entry<?, ?> entry = (Entry<?, ?>) o;
+        final int ordinal = indexOf(entry.getKey());
+        return ordinal >= 0
+            && Linq4j.equals(valueAt(ordinal), entry.getValue());
+      }
+    };
+  }
+
+  @Override
+  public Set<K> keySet() {
+    return new AbstractSet<K>() {
+      public Iterator<K> iterator() {
+        return keyIterator();
+      }
+
+      public int size() {
+        return size;
+      }
+
+      public boolean contains(Object o) {
+        return containsKey(o);
+      }
+
+      public boolean remove(Object o) {
+        return removeKey(o);
+      }
+    };
+  }
+
+  @Override
+  public Collection<V> values() {
+    return new AbstractCollection<V>() {
+      public Iterator<V> iterator() {
+        return new OrdinalIterator<V>() {
+          V get(int ordinal) {
+            return valueAt(ordinal);
+          }
+        };
+      }
+
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  /** Entry that reads and writes the key and value at an ordinal. Its
+   * {@code equals}, {@code hashCode} and {@code toString} follow the
+   * contract of {@link java.util.Map.Entry}, like those of
+   * {@link java.util.AbstractMap.SimpleEntry}, so that {@link #hashCode()}
+   * and {@link #toString()} of the map agree with other maps. */
+  private class OrdinalEntry implements Entry<K, V> {
+    private final int ordinal;
+
+    OrdinalEntry(int ordinal) {
+      this.ordinal = ordinal;
+    }
+
+    public K getKey() {
+      return keyAt(ordinal);
+    }
+
+    public V getValue() {
+      return valueAt(ordinal);
+    }
+
+    public V setValue(V value) {
+      return setValueAt(ordinal, value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      final Entry<?, ?> entry = (Entry<?, ?>) o;
+      return Linq4j.equals(getKey(), entry.getKey())
+          && Linq4j.equals(getValue(), entry.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      final K key = getKey();
+      final V value = getValue();
+      return (key == null ? 0 : key.hashCode())
+          ^ (value == null ? 0 : value.hashCode());
+    }
+
+    @Override
+    public String toString() {
+      return getKey() + "=" + getValue();
+    }
+  }
+
+  /** Returns an iterator over the keys, in order of their ordinals. */
+  Iterator<K> keyIterator() {
+    return new OrdinalIterator<K>() {
+      K get(int ordinal) {
+        return keyAt(ordinal);
+      }
+    };
+  }
+
+  /** Iterator over the ordinals of this map. Supports
+   * {@link Iterator#remove()}: because removal moves the last key into the
+   * removed ordinal, the iterator visits that ordinal again. */
+  private abstract class OrdinalIterator<T> implements Iterator<T> {
+    private int ordinal = -1;
+
+    abstract T get(int ordinal);
+
+    public boolean hasNext() {
+      return ordinal + 1 < size;
+    }
+
+    public T next() {
+      if (ordinal + 1 >= size) {
+        throw new NoSuchElementException();
+      }
+      return get(++ordinal);
+    }
+
+    public void remove() {
+      if (ordinal < 0) {
+        throw new IllegalStateException();
+      }
+      removeAt(ordinal--);
+    }
+  }
+}
+
+// End OpenHashMap.java
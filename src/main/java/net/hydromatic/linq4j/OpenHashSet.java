@@ -0,0 +1,77 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.linq4j;
+
+import net.hydromatic.linq4j.function.EqualityComparer;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+
+/**
+ * Hash set that uses open addressing with linear probing.
+ *
+ * <p>Stores its elements as the keys of an {@link OpenHashMap}, so there is
+ * no entry object per element, and elements are compared using an
+ * {@link EqualityComparer} without wrapping them. Iterates in the order
+ * that elements were added, unless elements have been removed.</p>
+ *
+ * @param <E> Element type
+ */
+class OpenHashSet<E> extends AbstractSet<E> {
+  private final OpenHashMap<E, Object> map;
+
+  /**
+   * Creates an OpenHashSet.
+   *
+   * @param comparer Comparer, or null to compare elements using
+   *   {@link Object#equals} and {@link Object#hashCode}
+   */
+  OpenHashSet(EqualityComparer<E> comparer) {
+    map = new OpenHashMap<E, Object>(comparer);
+  }
+
+  public Iterator<E> iterator() {
+    return map.keyIterator();
+  }
+
+  public int size() {
+    return map.size();
+  }
+
+  @Override
+  public boolean add(E e) {
+    return map.add(e) >= 0;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return map.indexOf(o) >= 0;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    return map.removeKey(o);
+  }
+
+  @Override
+  public void clear() {
+    map.clear();
+  }
+}
+
+// End OpenHashSet.java
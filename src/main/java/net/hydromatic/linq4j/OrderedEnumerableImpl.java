@@ -0,0 +1,969 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.linq4j;
+
+import net.hydromatic.linq4j.function.Function1;
+import net.hydromatic.linq4j.function.Functions;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Implementation of {@link OrderedEnumerable} that sorts the elements of a
+ * source enumerable by one or more keys.
+ *
+ * <p>Sorting is deferred until the enumerable is enumerated, so
+ * {@link #thenBy} adds a key to the sort rather than sorting again. Each
+ * enumeration reads the source into an array and evaluates each key
+ * selector once per element. Keys of type {@link Integer}, {@link Long} and
+ * {@link Double} that are compared in their natural order are stored in
+ * primitive arrays. Then an array of element positions is sorted using a
+ * stable merge sort.</p>
+ *
+ * <p>{@link #take} and {@link #skip} do not consume the sorted output; they
+ * set a limit on this enumerable. If there is a limit, enumeration keeps
+ * only the first {@code offset + fetch} elements seen so far, in a bounded
+ * heap, and does not sort the whole source. So "the first 100 rows by
+ * score" of a large source uses memory proportional to 100, and time
+ * O(N log 100).</p>
+ *
+ * <p>If there is a {@link Spiller}, enumeration holds at most
+ * {@link Spiller#maxRows} elements in memory. It sorts the source in
+ * batches of that size, writes each sorted batch ("run") to a temporary
+ * file, then merges the runs as the consumer reads. If there are more than
+ * {@link Spiller#maxFanIn} runs, it first merges adjacent runs, that many
+ * at a time, into longer runs, until few enough remain. The files are
+ * deleted when the enumerator is closed.</p>
+ *
+ * <p>If there is an executor, a sort of at least
+ * {@link #PARALLEL_SORT_THRESHOLD} elements evaluates keys and sorts on
+ * several threads. The array of positions is divided into a run for each
+ * thread, and each run is sorted as a separate task. Then pairs of
+ * adjacent runs are merged, in rounds, until one run is left. Each merge
+ * is divided into pieces of about the same size by binary search (the
+ * "merge path"), so every round keeps every thread busy. Merges take from
+ * the left run when keys are equal, so the sort is still stable.</p>
+ *
+ * <p>An enumerable created by {@link #presorted} does not sort; it declares
+ * that its source is already sorted, for example because it comes from an
+ * index. Operators such as {@link EnumerableDefaults#join} use the
+ * ordering to choose an algorithm; see {@link #declaredOrdering}.</p>
+ *
+ * @param <T> Element type
+ */
+class OrderedEnumerableImpl<T> extends AbstractEnumerable<T> {
+  /** Below this size, a merge sort sorts by insertion. */
+  private static final int INSERTION_SORT_THRESHOLD = 7;
+  /** Below this size, a sort runs on one thread even if there is an
+   * executor. */
+  static final int PARALLEL_SORT_THRESHOLD = 8192;
+
+  private final Enumerable<T> source;
+  private final List<SortKey<T, ?>> sortKeys;
+  /** Number of sorted elements to skip. */
+  private final int offset;
+  /** Maximum number of elements to return after skipping, or -1 if
+   * there is no limit. */
+  private final int fetch;
+  /** Spiller, or null to sort in memory. */
+  private final Spiller<T> spiller;
+  /** Whether the source is already sorted on the sort keys. */
+  private final boolean presorted;
+  /** Executor, or null to sort on the calling thread. */
+  private final ExecutorService executor;
+  /** Number of threads to divide a sort between. */
+  private final int parallelism;
+
+  private OrderedEnumerableImpl(Enumerable<T> source,
+      List<SortKey<T, ?>> sortKeys, int offset, int fetch,
+      Spiller<T> spiller, boolean presorted, ExecutorService executor,
+      int parallelism) {
+    this.source = source;
+    this.sortKeys = sortKeys;
+    this.offset = offset;
+    this.fetch = fetch;
+    this.spiller = spiller;
+    this.presorted = presorted;
+    this.executor = executor;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Creates an enumerable that sorts a source by a key.
+   *
+   * @param source Source
+   * @param keySelector Key selector
+   * @param comparator Comparator, or null to compare keys in their natural
+   *   order
+   * @param descending Whether to sort in descending order
+   * @param spiller Spiller, or null to sort in memory
+   */
+  static <T, K> OrderedEnumerableImpl<T> create(Enumerable<T> source,
+      Function1<T, K> keySelector, Comparator<K> comparator,
+      boolean descending, Spiller<T> spiller) {
+    return new OrderedEnumerableImpl<T>(source,
+        Collections.<SortKey<T, ?>>singletonList(
+            new SortKey<T, K>(keySelector, comparator, descending)),
+        0, -1, spiller, false, null, 1);
+  }
+
+  /**
+   * Creates an enumerable that sorts a source by a key, on several
+   * threads.
+   *
+   * @param source Source
+   * @param keySelector Key selector
+   * @param comparator Comparator, or null to compare keys in their natural
+   *   order
+   * @param descending Whether to sort in descending order
+   * @param executor Executor that runs the tasks of a sort
+   * @param parallelism Number of threads to divide a sort between
+   */
+  static <T, K> OrderedEnumerableImpl<T> create(Enumerable<T> source,
+      Function1<T, K> keySelector, Comparator<K> comparator,
+      boolean descending, ExecutorService executor, int parallelism) {
+    if (executor == null) {
+      throw new NullPointerException("executor");
+    }
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive: "
+          + parallelism);
+    }
+    return new OrderedEnumerableImpl<T>(source,
+        Collections.<SortKey<T, ?>>singletonList(
+            new SortKey<T, K>(keySelector, comparator, descending)),
+        0, -1, null, false, executor, parallelism);
+  }
+
+  /**
+   * Creates an enumerable whose source is already sorted by a key. The
+   * enumerable does not sort, but records the ordering.
+   *
+   * @param source Source, sorted by the key
+   * @param keySelector Key selector
+   * @param comparator Comparator, or null if keys are in their natural
+   *   order
+   */
+  static <T, K> OrderedEnumerableImpl<T> presorted(Enumerable<T> source,
+      Function1<T, K> keySelector, Comparator<K> comparator) {
+    return new OrderedEnumerableImpl<T>(source,
+        Collections.<SortKey<T, ?>>singletonList(
+            new SortKey<T, K>(keySelector, comparator, false)),
+        0, -1, null, true, null, 1);
+  }
+
+  /**
+   * Returns the order of the elements of an enumerable on a key, if the
+   * enumerable is known to be sorted on that key in natural order.
+   *
+   * <p>An enumerable is known to be sorted if it was created by
+   * {@code orderBy} or {@link #presorted}, and the first sort key uses the
+   * same key selector (compared by identity) with no comparator. The
+   * result is then one of two comparators: natural order, or its reverse
+   * if the sort is descending. Otherwise the result is null.</p>
+   */
+  private static <T, K> Comparator<K> naturalOrdering(
+      Enumerable<T> enumerable,
+      Function1<T, K> keySelector) {
+    if (!(enumerable instanceof OrderedEnumerableImpl)) {
+      return null;
+    }
+    final SortKey<?, ?> sortKey =
+        ((OrderedEnumerableImpl<?>) enumerable).sortKeys.get(0);
+    if (sortKey.keySelector != keySelector || sortKey.comparator != null) {
+      return null;
+    }
+    //noinspection unchecked
+    return (Comparator<K>) (Comparator)
+        Functions.nullsComparator(true, sortKey.descending);
+  }
+
+  /**
+   * Returns the order of the elements of an enumerable on a key, if the
+   * enumerable was declared by {@link #presorted} to be sorted on that key
+   * in natural order; otherwise null.
+   *
+   * <p>Ignores the result of {@code orderBy}. Whoever declares an ordering
+   * also declares that keys that compare equal are equal, so an operator
+   * may match keys using the ordering. Keys sorted by {@code orderBy} may
+   * compare equal without being equal, for example
+   * {@link java.math.BigDecimal} 1.0 and 1.00.</p>
+   */
+  static <T, K> Comparator<K> declaredOrdering(Enumerable<T> enumerable,
+      Function1<T, K> keySelector) {
+    if (!(enumerable instanceof OrderedEnumerableImpl)
+        || !((OrderedEnumerableImpl<?>) enumerable).presorted) {
+      return null;
+    }
+    return naturalOrdering(enumerable, keySelector);
+  }
+
+  /**
+   * Returns an enumerable that sorts by the keys of this enumerable, then
+   * by a further key.
+   *
+   * <p>If this enumerable has a limit, the limit applies first, and the
+   * new enumerable sorts the limited rows.</p>
+   */
+  <K> OrderedEnumerableImpl<T> thenBy(Function1<T, K> keySelector,
+      Comparator<K> comparator, boolean descending) {
+    final List<SortKey<T, ?>> list = new ArrayList<SortKey<T, ?>>(sortKeys);
+    list.add(new SortKey<T, K>(keySelector, comparator, descending));
+    return new OrderedEnumerableImpl<T>(isLimited() ? this : source, list,
+        0, -1, spiller, false, executor, parallelism);
+  }
+
+  /** Returns the number of elements, if it is known without enumerating,
+   * otherwise -1. If the size of the source is not known, neither is this
+   * size; {@code fetch} is only an upper bound. */
+  long knownSize() {
+    long size = Linq4j.knownSize(source);
+    if (size < 0) {
+      return -1;
+    }
+    size = Math.max(size - offset, 0);
+    return fetch < 0 ? size : Math.min(size, fetch);
+  }
+
+  /** Returns whether this enumerable skips or limits its sorted output. */
+  private boolean isLimited() {
+    return offset > 0 || fetch >= 0;
+  }
+
+  /** Returns an enumerable that returns at most {@code count} of the
+   * elements of this enumerable. */
+  @Override
+  public OrderedEnumerableImpl<T> take(int count) {
+    count = Math.max(count, 0);
+    return new OrderedEnumerableImpl<T>(source, sortKeys, offset,
+        fetch < 0 ? count : Math.min(fetch, count), spiller, presorted,
+        executor, parallelism);
+  }
+
+  /** Returns an enumerable that bypasses the first {@code count} of the
+   * elements of this enumerable. */
+  @Override
+  public OrderedEnumerableImpl<T> skip(int count) {
+    count = Math.max(count, 0);
+    return new OrderedEnumerableImpl<T>(source, sortKeys,
+        (int) Math.min((long) offset + count, Integer.MAX_VALUE),
+        fetch < 0 ? -1 : Math.max(fetch - count, 0), spiller, presorted,
+        executor, parallelism);
+  }
+
+  public Enumerator<T> enumerator() {
+    if (presorted) {
+      Enumerable<T> enumerable = source;
+      if (offset > 0) {
+        enumerable = EnumerableDefaults.skip(enumerable, offset);
+      }
+      if (fetch >= 0) {
+        enumerable = EnumerableDefaults.take(enumerable, fetch);
+      }
+      return enumerable.enumerator();
+    }
+    if (spiller != null
+        && (fetch < 0 || (long) offset + fetch > spiller.maxRows)) {
+      return new ExternalSortEnumerator();
+    }
+    if (fetch >= 0) {
+      return Linq4j.enumerator(topN());
+    }
+    final List<T> list = sort();
+    if (offset > 0) {
+      return Linq4j.enumerator(
+          list.subList(Math.min(offset, list.size()), list.size()));
+    }
+    return Linq4j.enumerator(list);
+  }
+
+  /** Reads the source and returns its first {@code offset + fetch}
+   * elements in sorted order, less the first {@code offset}. Never holds
+   * more than {@code offset + fetch} elements. */
+  List<T> topN() {
+    if (fetch == 0) {
+      return Collections.emptyList();
+    }
+    final int limit = (int) Math.min((long) offset + fetch, Integer.MAX_VALUE);
+    // A max-heap, so that the greatest of the rows kept so far is the one
+    // to discard when a lesser row arrives.
+    final RowComparator comparator = new RowComparator(sortKeys);
+    final PriorityQueue<Row> heap =
+        new PriorityQueue<Row>(Math.min(limit, 1024) + 1,
+            Collections.reverseOrder(comparator));
+    final Enumerator<T> enumerator = source.enumerator();
+    try {
+      int ordinal = 0;
+      while (enumerator.moveNext()) {
+        final T element = enumerator.current();
+        final Row row = new Row(element, keys(element), ordinal++);
+        if (heap.size() < limit) {
+          heap.add(row);
+        } else if (comparator.compare(row, heap.peek()) < 0) {
+          heap.poll();
+          heap.add(row);
+        }
+      }
+    } finally {
+      enumerator.close();
+    }
+    final Row[] rows = heap.toArray(new Row[heap.size()]);
+    Arrays.sort(rows, comparator);
+    final List<T> list = new ArrayList<T>();
+    for (int i = offset; i < rows.length; i++) {
+      //noinspection unchecked
+      list.add((T) rows[i].element);
+    }
+    return list;
+  }
+
+  /** Evaluates each sort key for an element. */
+  private Object[] keys(T element) {
+    final Object[] keys = new Object[sortKeys.size()];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = sortKeys.get(i).keySelector.apply(element);
+    }
+    return keys;
+  }
+
+  /** Reads the source and returns its elements in sorted order. */
+  List<T> sort() {
+    return sort(source.toList().toArray());
+  }
+
+  /** Returns elements in sorted order. */
+  private List<T> sort(Object[] elements) {
+    final int[] positions = sortedPositions(elements);
+    final Object[] sorted = new Object[elements.length];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = elements[positions[i]];
+    }
+    //noinspection unchecked
+    return (List<T>) Arrays.asList(sorted);
+  }
+
+  /** Returns the positions of elements in sorted order. */
+  int[] sortedPositions(Object[] elements) {
+    final int threadCount =
+        executor == null || elements.length < PARALLEL_SORT_THRESHOLD
+            ? 1
+            : parallelism;
+    final IndexComparator comparator = comparator(elements, threadCount);
+    final int[] positions = new int[elements.length];
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = i;
+    }
+    if (threadCount == 1) {
+      mergeSort(positions.clone(), positions, 0, positions.length,
+          comparator);
+    } else {
+      parallelSort(positions, comparator, threadCount);
+    }
+    return positions;
+  }
+
+  /** Returns a comparator that compares elements, given their positions,
+   * on all sort keys. */
+  private IndexComparator comparator(final Object[] elements,
+      int threadCount) {
+    final Object[][] keys = new Object[sortKeys.size()][elements.length];
+    forEachRange(elements.length, threadCount,
+        new RangeTask() {
+          public void run(int low, int high) {
+            for (int i = 0; i < keys.length; i++) {
+              final Function1<T, ?> keySelector = sortKeys.get(i).keySelector;
+              final Object[] keysOfKey = keys[i];
+              for (int j = low; j < high; j++) {
+                //noinspection unchecked
+                keysOfKey[j] = keySelector.apply((T) elements[j]);
+              }
+            }
+          }
+        });
+    if (sortKeys.size() == 1) {
+      return sortKeys.get(0).comparator(keys[0]);
+    }
+    final IndexComparator[] comparators =
+        new IndexComparator[sortKeys.size()];
+    for (int i = 0; i < comparators.length; i++) {
+      comparators[i] = sortKeys.get(i).comparator(keys[i]);
+    }
+    return new CompositeIndexComparator(comparators);
+  }
+
+  /** Divides {@code 0 .. size - 1} into a range for each thread, and runs a
+   * task on each range. If there is more than one thread, runs the tasks
+   * on the executor and waits for them to complete. */
+  private void forEachRange(int size, int threadCount, final RangeTask task) {
+    if (threadCount == 1) {
+      task.run(0, size);
+      return;
+    }
+    final List<Callable<Void>> callables = new ArrayList<Callable<Void>>();
+    for (int i = 0; i < threadCount; i++) {
+      final int low = (int) ((long) size * i / threadCount);
+      final int high = (int) ((long) size * (i + 1) / threadCount);
+      callables.add(
+          new Callable<Void>() {
+            public Void call() {
+              task.run(low, high);
+              return null;
+            }
+          });
+    }
+    ParallelEnumerableImpl.invokeAll(executor, callables);
+  }
+
+  /** Sorts positions stably on several threads. Sorts a run for each
+   * thread, then merges adjacent runs in rounds. */
+  private void parallelSort(final int[] positions,
+      final IndexComparator comparator, final int threadCount) {
+    final int size = positions.length;
+    final int[] workspace = positions.clone();
+    forEachRange(size, threadCount,
+        new RangeTask() {
+          public void run(int low, int high) {
+            mergeSort(workspace, positions, low, high, comparator);
+          }
+        });
+
+    // Runs start at the positions in "bounds", plus a sentinel at the end.
+    List<Integer> bounds = new ArrayList<Integer>();
+    for (int i = 0; i <= threadCount; i++) {
+      bounds.add((int) ((long) size * i / threadCount));
+    }
+    int[] src = positions;
+    int[] dest = workspace;
+    while (bounds.size() > 2) {
+      final List<Callable<Void>> callables = new ArrayList<Callable<Void>>();
+      final List<Integer> mergedBounds = new ArrayList<Integer>();
+      for (int i = 0; i < bounds.size() - 1; i += 2) {
+        final int low = bounds.get(i);
+        final int mid = bounds.get(i + 1);
+        final int high = i + 2 < bounds.size() ? bounds.get(i + 2) : mid;
+        mergedBounds.add(low);
+        // Divide the merge into pieces in proportion to its share of the
+        // elements. A run with no partner is copied as one piece.
+        final int pieceCount =
+            (int) Math.max(1, (long) (high - low) * threadCount / size);
+        for (int j = 0; j < pieceCount; j++) {
+          final int d0 = (int) ((long) (high - low) * j / pieceCount);
+          final int d1 = (int) ((long) (high - low) * (j + 1) / pieceCount);
+          final int[] mergeSrc = src;
+          final int[] mergeDest = dest;
+          callables.add(
+              new Callable<Void>() {
+                public Void call() {
+                  final int p0 =
+                      split(mergeSrc, low, mid, high, d0, comparator);
+                  final int p1 =
+                      split(mergeSrc, low, mid, high, d1, comparator);
+                  merge(mergeSrc, mergeDest, low + p0, low + p1,
+                      mid + d0 - p0, mid + d1 - p1, low + d0, comparator);
+                  return null;
+                }
+              });
+        }
+      }
+      mergedBounds.add(size);
+      ParallelEnumerableImpl.invokeAll(executor, callables);
+      bounds = mergedBounds;
+      final int[] t = src;
+      src = dest;
+      dest = t;
+    }
+    if (src != positions) {
+      System.arraycopy(src, 0, positions, 0, size);
+    }
+  }
+
+  /** Returns how many elements of the left run {@code src[low .. mid - 1]}
+   * are among the first {@code d} elements of the stable merge of the left
+   * run with the right run {@code src[mid .. high - 1]}. */
+  private static int split(int[] src, int low, int mid, int high, int d,
+      IndexComparator comparator) {
+    // Find the least i such that left element i comes after right
+    // element d - i - 1; on equal keys, left elements come first.
+    int lo = Math.max(0, d - (high - mid));
+    int hi = Math.min(d, mid - low);
+    while (lo < hi) {
+      final int i = (lo + hi) >>> 1;
+      if (comparator.compare(src[low + i], src[mid + d - i - 1]) > 0) {
+        hi = i;
+      } else {
+        lo = i + 1;
+      }
+    }
+    return lo;
+  }
+
+  /** Merges {@code src[p .. pEnd - 1]} and {@code src[q .. qEnd - 1]} into
+   * {@code dest}, starting at {@code i}. On equal keys, takes from the
+   * first range. */
+  private static void merge(int[] src, int[] dest, int p, int pEnd, int q,
+      int qEnd, int i, IndexComparator comparator) {
+    while (p < pEnd || q < qEnd) {
+      if (q >= qEnd
+          || p < pEnd && comparator.compare(src[p], src[q]) <= 0) {
+        dest[i++] = src[p++];
+      } else {
+        dest[i++] = src[q++];
+      }
+    }
+  }
+
+  /** Sorts {@code dest[low .. high - 1]} stably; {@code src} must contain
+   * the same values on entry, and is used as workspace. */
+  private static void mergeSort(int[] src, int[] dest, int low, int high,
+      IndexComparator comparator) {
+    final int length = high - low;
+    if (length < INSERTION_SORT_THRESHOLD) {
+      for (int i = low + 1; i < high; i++) {
+        for (int j = i;
+             j > low && comparator.compare(dest[j - 1], dest[j]) > 0;
+             j--) {
+          final int t = dest[j];
+          dest[j] = dest[j - 1];
+          dest[j - 1] = t;
+        }
+      }
+      return;
+    }
+
+    // Sort each half of src, using dest as workspace, then merge into dest.
+    final int mid = (low + high) >>> 1;
+    mergeSort(dest, src, low, mid, comparator);
+    mergeSort(dest, src, mid, high, comparator);
+    if (comparator.compare(src[mid - 1], src[mid]) <= 0) {
+      // Halves are already in order.
+      System.arraycopy(src, low, dest, low, length);
+      return;
+    }
+    merge(src, dest, low, mid, mid, high, low, comparator);
+  }
+
+  /** Enumerator that sorts the source in runs of at most
+   * {@link Spiller#maxRows} elements, and merges the runs.
+   *
+   * <p>Reads the source on the first call to {@link #moveNext()}. Each run
+   * but the last is written to a temporary file; the last stays in
+   * memory. The enumerator merges at most {@link Spiller#maxFanIn} runs at
+   * a time, and so has at most that many files open. */
+  private class ExternalSortEnumerator implements Enumerator<T> {
+    private List<Spiller.Run<T>> runs;
+    /** Enumerator for each run, positioned on the row in {@link #heads}. */
+    private final List<Enumerator<T>> enumerators =
+        new ArrayList<Enumerator<T>>();
+    /** Current row of each run, least first. A row's ordinal is the index
+     * of its run, so that rows with equal keys stay in source order. */
+    private final PriorityQueue<Row> heads =
+        new PriorityQueue<Row>(11, new RowComparator(sortKeys));
+    private Row current;
+    /** Number of rows returned or skipped so far. */
+    private long index;
+
+    public T current() {
+      if (current == null) {
+        throw new NoSuchElementException();
+      }
+      //noinspection unchecked
+      return (T) current.element;
+    }
+
+    public boolean moveNext() {
+      if (runs == null) {
+        runs = reduce(createRuns());
+        open();
+      }
+      for (;;) {
+        if (current != null) {
+          advance(enumerators, heads, current.ordinal);
+          current = null;
+        }
+        if (fetch >= 0 && index >= (long) offset + fetch
+            || heads.isEmpty()) {
+          return false;
+        }
+        current = heads.poll();
+        if (index++ >= offset) {
+          return true;
+        }
+      }
+    }
+
+    public void reset() {
+      closeEnumerators();
+      current = null;
+      index = 0;
+      if (runs != null) {
+        open();
+      }
+    }
+
+    public void close() {
+      closeEnumerators();
+      current = null;
+      if (runs != null) {
+        for (Spiller.Run<T> run : runs) {
+          run.delete();
+        }
+      }
+    }
+
+    /** Reads the source, and returns sorted runs. */
+    private List<Spiller.Run<T>> createRuns() {
+      final List<Spiller.Run<T>> runs = new ArrayList<Spiller.Run<T>>();
+      final Enumerator<T> enumerator = source.enumerator();
+      boolean success = false;
+      try {
+        final List<T> buffer = new ArrayList<T>();
+        while (enumerator.moveNext()) {
+          buffer.add(enumerator.current());
+          if (buffer.size() >= spiller.maxRows) {
+            runs.add(spiller.spill(sort(buffer.toArray())));
+            buffer.clear();
+          }
+        }
+        runs.add(Spiller.memoryRun(sort(buffer.toArray())));
+        success = true;
+        return runs;
+      } finally {
+        enumerator.close();
+        if (!success) {
+          for (Spiller.Run<T> run : runs) {
+            run.delete();
+          }
+        }
+      }
+    }
+
+    /** Merges groups of adjacent runs into longer runs, until there are at
+     * most {@link Spiller#maxFanIn} runs. Because the runs in a group are
+     * adjacent, rows with equal keys stay in source order. */
+    private List<Spiller.Run<T>> reduce(List<Spiller.Run<T>> runs) {
+      while (runs.size() > spiller.maxFanIn) {
+        final List<Spiller.Run<T>> merged = new ArrayList<Spiller.Run<T>>();
+        boolean success = false;
+        try {
+          for (int i = 0; i < runs.size(); i += spiller.maxFanIn) {
+            final List<Spiller.Run<T>> group =
+                runs.subList(i, Math.min(i + spiller.maxFanIn, runs.size()));
+            if (group.size() == 1) {
+              merged.add(group.get(0));
+            } else {
+              merged.add(merge(group));
+              for (Spiller.Run<T> run : group) {
+                run.delete();
+              }
+            }
+          }
+          success = true;
+        } finally {
+          if (!success) {
+            for (Spiller.Run<T> run : runs) {
+              run.delete();
+            }
+            for (Spiller.Run<T> run : merged) {
+              run.delete();
+            }
+          }
+        }
+        runs = merged;
+      }
+      return runs;
+    }
+
+    /** Merges runs into a run in a temporary file. */
+    private Spiller.Run<T> merge(List<Spiller.Run<T>> group) {
+      final List<Enumerator<T>> groupEnumerators =
+          new ArrayList<Enumerator<T>>();
+      final PriorityQueue<Row> groupHeads =
+          new PriorityQueue<Row>(group.size(), new RowComparator(sortKeys));
+      final Spiller.RunWriter<T> writer = spiller.writer();
+      boolean success = false;
+      try {
+        for (int i = 0; i < group.size(); i++) {
+          groupEnumerators.add(group.get(i).enumerator());
+          advance(groupEnumerators, groupHeads, i);
+        }
+        while (!groupHeads.isEmpty()) {
+          final Row row = groupHeads.poll();
+          //noinspection unchecked
+          writer.add((T) row.element);
+          advance(groupEnumerators, groupHeads, row.ordinal);
+        }
+        success = true;
+        return writer.finish();
+      } finally {
+        for (Enumerator<T> enumerator : groupEnumerators) {
+          enumerator.close();
+        }
+        if (!success) {
+          writer.delete();
+        }
+      }
+    }
+
+    private void open() {
+      for (int i = 0; i < runs.size(); i++) {
+        enumerators.add(runs.get(i).enumerator());
+        advance(enumerators, heads, i);
+      }
+    }
+
+    /** Moves run {@code i} to its next row, if any, and adds that row to
+     * the heads. */
+    private void advance(List<Enumerator<T>> enumerators, Queue<Row> heads,
+        int i) {
+      final Enumerator<T> enumerator = enumerators.get(i);
+      if (enumerator.moveNext()) {
+        final T element = enumerator.current();
+        heads.add(new Row(element, keys(element), i));
+      }
+    }
+
+    private void closeEnumerators() {
+      for (Enumerator<T> enumerator : enumerators) {
+        enumerator.close();
+      }
+      enumerators.clear();
+      heads.clear();
+    }
+  }
+
+  /** Key by which to sort, and the direction. */
+  private static class SortKey<T, K> {
+    final Function1<T, K> keySelector;
+    /** Comparator, or null to compare keys in their natural order. */
+    final Comparator<K> comparator;
+    final boolean descending;
+
+    SortKey(Function1<T, K> keySelector, Comparator<K> comparator,
+        boolean descending) {
+      if (comparator == Extensions.comparableComparator()) {
+        comparator = null;
+      } else if (comparator == Collections.reverseOrder()) {
+        comparator = null;
+        descending = !descending;
+      }
+      this.keySelector = keySelector;
+      this.comparator = comparator;
+      this.descending = descending;
+    }
+
+    /** Compares two values of this key. */
+    int compare(Object k0, Object k1) {
+      //noinspection unchecked
+      final Comparator<Object> c = comparator != null
+          ? (Comparator<Object>) comparator
+          : (Comparator<Object>) (Comparator) Extensions.comparableComparator();
+      return descending ? c.compare(k1, k0) : c.compare(k0, k1);
+    }
+
+    /** Returns a comparator that compares elements, given their positions,
+     * on this key.
+     *
+     * @param keys Value of this key for each element */
+    IndexComparator comparator(Object[] keys) {
+      if (comparator != null) {
+        //noinspection unchecked
+        return new ObjectIndexComparator<K>((K[]) keys, comparator,
+            descending);
+      }
+      final Class<?> clazz = keyClass(keys);
+      if (clazz == Integer.class) {
+        final int[] ints = new int[keys.length];
+        for (int i = 0; i < ints.length; i++) {
+          ints[i] = (Integer) keys[i];
+        }
+        return new IntIndexComparator(ints, descending);
+      }
+      if (clazz == Long.class) {
+        final long[] longs = new long[keys.length];
+        for (int i = 0; i < longs.length; i++) {
+          longs[i] = (Long) keys[i];
+        }
+        return new LongIndexComparator(longs, descending);
+      }
+      if (clazz == Double.class) {
+        final double[] doubles = new double[keys.length];
+        for (int i = 0; i < doubles.length; i++) {
+          doubles[i] = (Double) keys[i];
+        }
+        return new DoubleIndexComparator(doubles, descending);
+      }
+      //noinspection unchecked
+      return new ObjectIndexComparator<K>((K[]) keys,
+          (Comparator<K>) Extensions.comparableComparator(), descending);
+    }
+
+    /** Returns the class of the keys, or null if they are not all of the
+     * same class or any is null. */
+    private static Class<?> keyClass(Object[] keys) {
+      if (keys.length == 0 || keys[0] == null) {
+        return null;
+      }
+      final Class<?> clazz = keys[0].getClass();
+      for (Object key : keys) {
+        if (key == null || key.getClass() != clazz) {
+          return null;
+        }
+      }
+      return clazz;
+    }
+  }
+
+  /** Element held in a top-N heap, with its keys and its position in the
+   * source. */
+  private static class Row {
+    final Object element;
+    final Object[] keys;
+    final int ordinal;
+
+    Row(Object element, Object[] keys, int ordinal) {
+      this.element = element;
+      this.keys = keys;
+      this.ordinal = ordinal;
+    }
+  }
+
+  /** Compares rows on each sort key in turn, then on their position in the
+   * source, so that the order is stable. */
+  private static class RowComparator implements Comparator<Row> {
+    private final List<? extends SortKey<?, ?>> sortKeys;
+
+    RowComparator(List<? extends SortKey<?, ?>> sortKeys) {
+      this.sortKeys = sortKeys;
+    }
+
+    public int compare(Row row0, Row row1) {
+      for (int i = 0; i < row0.keys.length; i++) {
+        final int c = sortKeys.get(i).compare(row0.keys[i], row1.keys[i]);
+        if (c != 0) {
+          return c;
+        }
+      }
+      return row0.ordinal < row1.ordinal ? -1
+          : row0.ordinal == row1.ordinal ? 0 : 1;
+    }
+  }
+
+  /** Compares two elements, given their positions. */
+  interface IndexComparator {
+    int compare(int i, int j);
+  }
+
+  /** Work on a range of positions. */
+  private interface RangeTask {
+    void run(int low, int high);
+  }
+
+  /** Compares elements on each of several keys in turn. */
+  private static class CompositeIndexComparator implements IndexComparator {
+    private final IndexComparator[] comparators;
+
+    CompositeIndexComparator(IndexComparator[] comparators) {
+      this.comparators = comparators;
+    }
+
+    public int compare(int i, int j) {
+      for (IndexComparator comparator : comparators) {
+        final int c = comparator.compare(i, j);
+        if (c != 0) {
+          return c;
+        }
+      }
+      return 0;
+    }
+  }
+
+  /** Compares elements on a key of type {@code int}. */
+  private static class IntIndexComparator implements IndexComparator {
+    private final int[] keys;
+    private final boolean descending;
+
+    IntIndexComparator(int[] keys, boolean descending) {
+      this.keys = keys;
+      this.descending = descending;
+    }
+
+    public int compare(int i, int j) {
+      final int k0 = keys[descending ? j : i];
+      final int k1 = keys[descending ? i : j];
+      return k0 < k1 ? -1 : k0 == k1 ? 0 : 1;
+    }
+  }
+
+  /** Compares elements on a key of type {@code long}. */
+  private static class LongIndexComparator implements IndexComparator {
+    private final long[] keys;
+    private final boolean descending;
+
+    LongIndexComparator(long[] keys, boolean descending) {
+      this.keys = keys;
+      this.descending = descending;
+    }
+
+    public int compare(int i, int j) {
+      final long k0 = keys[descending ? j : i];
+      final long k1 = keys[descending ? i : j];
+      return k0 < k1 ? -1 : k0 == k1 ? 0 : 1;
+    }
+  }
+
+  /** Compares elements on a key of type {@code double}, in the same order
+   * as {@link Double#compareTo(Double)}. */
+  private static class DoubleIndexComparator implements IndexComparator {
+    private final double[] keys;
+    private final boolean descending;
+
+    DoubleIndexComparator(double[] keys, boolean descending) {
+      this.keys = keys;
+      this.descending = descending;
+    }
+
+    public int compare(int i, int j) {
+      return descending
+          ? Double.compare(keys[j], keys[i])
+          : Double.compare(keys[i], keys[j]);
+    }
+  }
+
+  /** Compares elements on a key of any type, using a comparator. */
+  private static class ObjectIndexComparator<K> implements IndexComparator {
+    private final K[] keys;
+    private final Comparator<K> comparator;
+    private final boolean descending;
+
+    ObjectIndexComparator(K[] keys, Comparator<K> comparator,
+        boolean descending) {
+      this.keys = keys;
+      this.comparator = comparator;
+      this.descending = descending;
+    }
+
+    public int compare(int i, int j) {
+      return descending
+          ? comparator.compare(keys[j], keys[i])
+          : comparator.compare(keys[i], keys[j]);
+    }
+  }
+}
+
+// End OrderedEnumerableImpl.java
@@ -0,0 +1,134 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.linq4j;
+
+import net.hydromatic.linq4j.function.*;
+
+/**
+ * Enumerable whose operators run on several threads.
+ *
+ * <p>Created by {@link ExtendedEnumerable#asParallel()}. The source is
+ * divided into chunks, and operators such as {@link #where},
+ * {@link #select} and {@link #selectMany} are applied to each chunk as a
+ * separate task. Aggregate operators such as {@link #count()},
+ * {@link #sum(IntegerFunction1)} and {@link #toLookup(Function1)} compute
+ * a partial result for each chunk, and combine the partial results. Other
+ * operators evaluate the parallel operators that precede them, then run on
+ * the calling thread; except that {@link #join} and {@code orderBy} also
+ * build their hash tables and sort on the executor.</p>
+ *
+ * <p>By default, results are in the same order as if the operators had run
+ * sequentially. After {@link #asUnordered()}, the results of each chunk
+ * are returned as soon as the chunk is complete.</p>
+ *
+ * <p>Functions passed to the operators may be called on several threads at
+ * once, and must be thread-safe.</p>
+ *
+ * <p>A function may itself use a parallel enumerable. If that enumerable
+ * uses the executor on which the function is running (for example, both
+ * were created by {@link ExtendedEnumerable#asParallel()}, which uses a
+ * shared executor with a fixed number of threads), its operators run on the
+ * function's thread rather than as new tasks. If they were queued behind
+ * the tasks that are waiting for them, no thread would be left to run
+ * them. Other ways of waiting for tasks on the same executor, such as
+ * submitting a task directly or going through a second executor whose
+ * tasks wait for the first, can still deadlock.</p>
+ *
+ * @param <T> Element type
+ */
+public interface ParallelEnumerable<T> extends Enumerable<T> {
+  /**
+   * Returns an enumerable with the same elements whose operators run on
+   * the calling thread.
+   */
+  Enumerable<T> asSequential();
+
+  /**
+   * Returns a parallel enumerable that returns results in the same order as
+   * if the operators had run sequentially. This is the default.
+   */
+  ParallelEnumerable<T> asOrdered();
+
+  /**
+   * Returns a parallel enumerable that may return results in any order.
+   */
+  ParallelEnumerable<T> asUnordered();
+
+  /**
+   * Applies an accumulator function over a sequence. Each chunk is
+   * aggregated into a new accumulator created by {@code seedFactory}, and
+   * the accumulators are combined using {@code combiner}.
+   */
+  <TAccumulate> TAccumulate aggregate(Function0<TAccumulate> seedFactory,
+      Function2<TAccumulate, T, TAccumulate> func,
+      Function2<TAccumulate, TAccumulate, TAccumulate> combiner);
+
+  /**
+   * Groups the elements of a sequence according to a specified key
+   * selector function, initializing an accumulator for each group and
+   * adding to it each time an element with the same key is seen. Each chunk
+   * is aggregated separately, and accumulators of the same key are merged
+   * using {@code accumulatorCombiner}. Creates a result value from each
+   * accumulator and its key using a specified function.
+   */
+  <TKey, TAccumulate, TResult> Enumerable<TResult> groupBy(
+      Function1<T, TKey> keySelector,
+      Function0<TAccumulate> accumulatorInitializer,
+      Function2<TAccumulate, T, TAccumulate> accumulatorAdder,
+      Function2<TAccumulate, TAccumulate, TAccumulate> accumulatorCombiner,
+      Function2<TKey, TAccumulate, TResult> resultSelector);
+
+  /**
+   * Correlates the elements of two sequences based on matching keys.
+   *
+   * <p>The inner sequence is divided into partitions by the hash code of
+   * its keys, and the hash table of each partition is built as a separate
+   * task. Then each chunk of this sequence is a task that looks up each
+   * element's key in the hash table of its partition, and buffers its
+   * results. If this enumerable is ordered, results are in the same order
+   * as {@link ExtendedEnumerable#join(Enumerable, Function1, Function1, Function2)}
+   * when it builds the inner sequence.</p>
+   *
+   * <p>If the inner sequence is itself a parallel enumerable, its chunks are
+   * evaluated and partitioned in parallel.</p>
+   */
+  <TInner, TKey, TResult> Enumerable<TResult> join(Enumerable<TInner> inner,
+      Function1<T, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      Function2<T, TInner, TResult> resultSelector);
+
+  /**
+   * Correlates the elements of two sequences based on matching keys,
+   * comparing keys using a specified comparer. Runs in parallel as
+   * {@link #join(Enumerable, Function1, Function1, Function2)}.
+   */
+  <TInner, TKey, TResult> Enumerable<TResult> join(Enumerable<TInner> inner,
+      Function1<T, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      Function2<T, TInner, TResult> resultSelector,
+      EqualityComparer<TKey> comparer);
+
+  ParallelEnumerable<T> where(Predicate1<T> predicate);
+
+  <TResult> ParallelEnumerable<TResult> select(Function1<T, TResult> selector);
+
+  <TResult> ParallelEnumerable<TResult> selectMany(
+      Function1<T, Enumerable<TResult>> selector);
+}
+
+// End ParallelEnumerable.java
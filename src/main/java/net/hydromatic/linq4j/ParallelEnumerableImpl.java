@@ -0,0 +1,820 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.linq4j;
+
+import net.hydromatic.linq4j.function.*;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Implementation of {@link ParallelEnumerable}.
+ *
+ * <p>Holds the source, and a pipeline of sequential operators to apply to
+ * each chunk of it. Operators such as {@link #where} extend the pipeline.
+ * When results are needed, divides the source into chunks, submits a task
+ * for each chunk that applies the pipeline and computes a partial result,
+ * and combines the partial results.</p>
+ *
+ * <p>A source that is a random-access list is divided without copying;
+ * any other source is first read into a list on the calling thread.</p>
+ *
+ * @param <TSource> Element type of the source
+ * @param <T> Element type
+ */
+class ParallelEnumerableImpl<TSource, T> extends AbstractEnumerable<T>
+    implements ParallelEnumerable<T> {
+  /** Number of chunks per thread. More than one, so that a thread that
+   * finishes its chunk early can take another. */
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  /** Executor for which the current thread is running a task, or null.
+   * A task that would be submitted to that executor is run on the current
+   * thread instead; see {@link #submit(ExecutorService, Callable)}. */
+  private static final ThreadLocal<ExecutorService> WORKER =
+      new ThreadLocal<ExecutorService>();
+
+  private final Enumerable<TSource> source;
+  private final Function1<Enumerable<TSource>, Enumerable<T>> pipeline;
+  private final ExecutorService executor;
+  private final int parallelism;
+  private final boolean ordered;
+
+  private ParallelEnumerableImpl(Enumerable<TSource> source,
+      Function1<Enumerable<TSource>, Enumerable<T>> pipeline,
+      ExecutorService executor, int parallelism, boolean ordered) {
+    if (executor == null) {
+      throw new NullPointerException("executor");
+    }
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive: "
+          + parallelism);
+    }
+    this.source = source;
+    this.pipeline = pipeline;
+    this.executor = executor;
+    this.parallelism = parallelism;
+    this.ordered = ordered;
+  }
+
+  /** Creates a parallel enumerable over a source.
+   *
+   * @param executor Executor, or null to use a shared executor that has a
+   *   thread for each processor
+   * @param parallelism Number of threads to divide work between; ignored
+   *   if {@code executor} is null
+   */
+  static <T> ParallelEnumerable<T> create(Enumerable<T> source,
+      ExecutorService executor, int parallelism) {
+    if (executor == null) {
+      executor = DefaultExecutor.INSTANCE;
+      parallelism = DefaultExecutor.PARALLELISM;
+    }
+    return new ParallelEnumerableImpl<T, T>(source,
+        Functions.<Enumerable<T>>identitySelector(), executor, parallelism,
+        true);
+  }
+
+  /** Returns a parallel enumerable that applies a further operator to each
+   * chunk. */
+  private <TResult> ParallelEnumerable<TResult> then(
+      final Function1<Enumerable<T>, Enumerable<TResult>> operator) {
+    return new ParallelEnumerableImpl<TSource, TResult>(source,
+        new Function1<Enumerable<TSource>, Enumerable<TResult>>() {
+          public Enumerable<TResult> apply(Enumerable<TSource> chunk) {
+            return operator.apply(pipeline.apply(chunk));
+          }
+        },
+        executor, parallelism, ordered);
+  }
+
+  /** Returns the source as a list that can be divided into chunks. */
+  private List<TSource> sourceList() {
+    if (source instanceof Linq4j.ListEnumerable) {
+      final List<TSource> list =
+          (List<TSource>) ((Linq4j.ListEnumerable<TSource>) source)
+              .getCollection();
+      if (list instanceof RandomAccess) {
+        return list;
+      }
+    }
+    return source.into(new ArrayList<TSource>());
+  }
+
+  /** Applies the pipeline and then a function to each chunk, and returns
+   * the results. */
+  private <R> List<R> evaluate(Function1<Enumerable<T>, R> function) {
+    final Evaluation<R> evaluation = new Evaluation<R>(function);
+    final List<R> list = new ArrayList<R>();
+    while (evaluation.hasNext()) {
+      list.add(evaluation.next());
+    }
+    return list;
+  }
+
+  public Enumerator<T> enumerator() {
+    return new Enumerator<T>() {
+      Evaluation<List<T>> evaluation;
+      Iterator<T> iterator = Collections.<T>emptyList().iterator();
+      T current;
+
+      public T current() {
+        return current;
+      }
+
+      public boolean moveNext() {
+        if (evaluation == null) {
+          evaluation = new Evaluation<List<T>>(
+              new Function1<Enumerable<T>, List<T>>() {
+                public List<T> apply(Enumerable<T> chunk) {
+                  return chunk.toList();
+                }
+              });
+        }
+        while (!iterator.hasNext()) {
+          if (!evaluation.hasNext()) {
+            return false;
+          }
+          iterator = evaluation.next().iterator();
+        }
+        current = iterator.next();
+        return true;
+      }
+
+      public void reset() {
+        close();
+        iterator = Collections.<T>emptyList().iterator();
+        current = null;
+      }
+
+      public void close() {
+        if (evaluation != null) {
+          evaluation.cancel();
+          evaluation = null;
+        }
+      }
+    };
+  }
+
+  public Enumerable<T> asSequential() {
+    return new AbstractEnumerable<T>() {
+      public Enumerator<T> enumerator() {
+        return ParallelEnumerableImpl.this.enumerator();
+      }
+    };
+  }
+
+  @Override
+  public ParallelEnumerable<T> asParallel() {
+    return this;
+  }
+
+  @Override
+  public ParallelEnumerable<T> asParallel(ExecutorService executor,
+      int parallelism) {
+    return new ParallelEnumerableImpl<TSource, T>(source, pipeline, executor,
+        parallelism, ordered);
+  }
+
+  public ParallelEnumerable<T> asOrdered() {
+    return ordered
+        ? this
+        : new ParallelEnumerableImpl<TSource, T>(source, pipeline, executor,
+            parallelism, true);
+  }
+
+  public ParallelEnumerable<T> asUnordered() {
+    return !ordered
+        ? this
+        : new ParallelEnumerableImpl<TSource, T>(source, pipeline, executor,
+            parallelism, false);
+  }
+
+  @Override
+  public ParallelEnumerable<T> where(final Predicate1<T> predicate) {
+    return then(
+        new Function1<Enumerable<T>, Enumerable<T>>() {
+          public Enumerable<T> apply(Enumerable<T> chunk) {
+            return chunk.where(predicate);
+          }
+        });
+  }
+
+  @Override
+  public <TResult> ParallelEnumerable<TResult> select(
+      final Function1<T, TResult> selector) {
+    return then(
+        new Function1<Enumerable<T>, Enumerable<TResult>>() {
+          public Enumerable<TResult> apply(Enumerable<T> chunk) {
+            return chunk.select(selector);
+          }
+        });
+  }
+
+  @Override
+  public <TResult> ParallelEnumerable<TResult> selectMany(
+      final Function1<T, Enumerable<TResult>> selector) {
+    return then(
+        new Function1<Enumerable<T>, Enumerable<TResult>>() {
+          public Enumerable<TResult> apply(Enumerable<T> chunk) {
+            return chunk.selectMany(selector);
+          }
+        });
+  }
+
+  public <TAccumulate> TAccumulate aggregate(
+      final Function0<TAccumulate> seedFactory,
+      final Function2<TAccumulate, T, TAccumulate> func,
+      Function2<TAccumulate, TAccumulate, TAccumulate> combiner) {
+    final List<TAccumulate> accumulators =
+        evaluate(
+            new Function1<Enumerable<T>, TAccumulate>() {
+              public TAccumulate apply(Enumerable<T> chunk) {
+                return chunk.aggregate(seedFactory.apply(), func);
+              }
+            });
+    if (accumulators.isEmpty()) {
+      return seedFactory.apply();
+    }
+    TAccumulate accumulator = accumulators.get(0);
+    for (int i = 1; i < accumulators.size(); i++) {
+      accumulator = combiner.apply(accumulator, accumulators.get(i));
+    }
+    return accumulator;
+  }
+
+  @Override
+  public int count() {
+    return (int) longCount();
+  }
+
+  @Override
+  public int count(Predicate1<T> predicate) {
+    return (int) longCount(predicate);
+  }
+
+  @Override
+  public long longCount() {
+    long count = 0;
+    for (Long partialCount
+        : evaluate(
+            new Function1<Enumerable<T>, Long>() {
+              public Long apply(Enumerable<T> chunk) {
+                return chunk.longCount();
+              }
+            })) {
+      count += partialCount;
+    }
+    return count;
+  }
+
+  @Override
+  public long longCount(Predicate1<T> predicate) {
+    return where(predicate).longCount();
+  }
+
+  @Override
+  public BigDecimal sum(final BigDecimalFunction1<T> selector) {
+    BigDecimal sum = BigDecimal.ZERO;
+    for (BigDecimal partialSum
+        : evaluate(
+            new Function1<Enumerable<T>, BigDecimal>() {
+              public BigDecimal apply(Enumerable<T> chunk) {
+                return chunk.sum(selector);
+              }
+            })) {
+      sum = sum.add(partialSum);
+    }
+    return sum;
+  }
+
+  @Override
+  public double sum(final DoubleFunction1<T> selector) {
+    double sum = 0d;
+    for (Double partialSum
+        : evaluate(
+            new Function1<Enumerable<T>, Double>() {
+              public Double apply(Enumerable<T> chunk) {
+                return chunk.sum(selector);
+              }
+            })) {
+      sum += partialSum;
+    }
+    return sum;
+  }
+
+  @Override
+  public int sum(final IntegerFunction1<T> selector) {
+    int sum = 0;
+    for (Integer partialSum
+        : evaluate(
+            new Function1<Enumerable<T>, Integer>() {
+              public Integer apply(Enumerable<T> chunk) {
+                return chunk.sum(selector);
+              }
+            })) {
+      sum += partialSum;
+    }
+    return sum;
+  }
+
+  @Override
+  public long sum(final LongFunction1<T> selector) {
+    long sum = 0L;
+    for (Long partialSum
+        : evaluate(
+            new Function1<Enumerable<T>, Long>() {
+              public Long apply(Enumerable<T> chunk) {
+                return chunk.sum(selector);
+              }
+            })) {
+      sum += partialSum;
+    }
+    return sum;
+  }
+
+  @Override
+  public T min() {
+    return minMax(true);
+  }
+
+  @Override
+  public T max() {
+    return minMax(false);
+  }
+
+  /** Returns the least or greatest element, or null if there are no
+   * elements. Elements must implement {@link Comparable}. */
+  private T minMax(final boolean min) {
+    T result = null;
+    for (T value
+        : evaluate(
+            new Function1<Enumerable<T>, T>() {
+              public T apply(Enumerable<T> chunk) {
+                return min ? chunk.min() : chunk.max();
+              }
+            })) {
+      //noinspection unchecked
+      if (value != null
+          && (result == null
+              || (((Comparable) value).compareTo(result) < 0) == min)) {
+        result = value;
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public <TResult extends Comparable<TResult>> TResult min(
+      Function1<T, TResult> selector) {
+    return select(selector).min();
+  }
+
+  @Override
+  public <TResult extends Comparable<TResult>> TResult max(
+      Function1<T, TResult> selector) {
+    return select(selector).max();
+  }
+
+  @Override
+  public <TKey> Lookup<TKey, T> toLookup(Function1<T, TKey> keySelector) {
+    return toLookup_(keySelector, null);
+  }
+
+  @Override
+  public <TKey> Lookup<TKey, T> toLookup(Function1<T, TKey> keySelector,
+      EqualityComparer<TKey> comparer) {
+    return toLookup_(keySelector, comparer);
+  }
+
+  /** Builds a lookup for each chunk, then merges them. If the enumerable
+   * is ordered, elements of each group are in their original order. */
+  private <TKey> Lookup<TKey, T> toLookup_(
+      final Function1<T, TKey> keySelector,
+      final EqualityComparer<TKey> comparer) {
+    final List<Lookup<TKey, T>> lookups =
+        evaluate(
+            new Function1<Enumerable<T>, Lookup<TKey, T>>() {
+              public Lookup<TKey, T> apply(Enumerable<T> chunk) {
+                return comparer == null
+                    ? chunk.toLookup(keySelector)
+                    : chunk.toLookup(keySelector, comparer);
+              }
+            });
+    if (lookups.size() == 1) {
+      return lookups.get(0);
+    }
+    final OpenHashMap<TKey, List<T>> map =
+        new OpenHashMap<TKey, List<T>>(comparer);
+    for (Lookup<TKey, T> lookup : lookups) {
+      for (Grouping<TKey, T> grouping : lookup) {
+        final int ordinal = map.add(grouping.getKey());
+        if (ordinal >= 0) {
+          map.setValueAt(ordinal, grouping.into(new ArrayList<T>()));
+        } else {
+          grouping.into(map.valueAt(~ordinal));
+        }
+      }
+    }
+    return new LookupImpl<TKey, T>(map);
+  }
+
+  public <TKey, TAccumulate, TResult> Enumerable<TResult> groupBy(
+      final Function1<T, TKey> keySelector,
+      final Function0<TAccumulate> accumulatorInitializer,
+      final Function2<TAccumulate, T, TAccumulate> accumulatorAdder,
+      Function2<TAccumulate, TAccumulate, TAccumulate> accumulatorCombiner,
+      Function2<TKey, TAccumulate, TResult> resultSelector) {
+    final List<List<Map.Entry<TKey, TAccumulate>>> partials =
+        evaluate(
+            new Function1<Enumerable<T>, List<Map.Entry<TKey, TAccumulate>>>() {
+              public List<Map.Entry<TKey, TAccumulate>> apply(
+                  Enumerable<T> chunk) {
+                return chunk.groupBy(keySelector, accumulatorInitializer,
+                    accumulatorAdder,
+                    new Function2<TKey, TAccumulate,
+                        Map.Entry<TKey, TAccumulate>>() {
+                      public Map.Entry<TKey, TAccumulate> apply(TKey key,
+                          TAccumulate accumulator) {
+                        return new AbstractMap.SimpleEntry<TKey,
+                            TAccumulate>(key, accumulator);
+                      }
+                    })
+                    .toList();
+              }
+            });
+    final OpenHashMap<TKey, TAccumulate> map =
+        new OpenHashMap<TKey, TAccumulate>(null);
+    for (List<Map.Entry<TKey, TAccumulate>> partial : partials) {
+      for (Map.Entry<TKey, TAccumulate> entry : partial) {
+        final int ordinal = map.add(entry.getKey());
+        if (ordinal >= 0) {
+          map.setValueAt(ordinal, entry.getValue());
+        } else {
+          map.setValueAt(~ordinal,
+              accumulatorCombiner.apply(map.valueAt(~ordinal),
+                  entry.getValue()));
+        }
+      }
+    }
+    final List<TResult> list = new ArrayList<TResult>(map.size());
+    for (int i = 0; i < map.size(); i++) {
+      list.add(resultSelector.apply(map.keyAt(i), map.valueAt(i)));
+    }
+    return Linq4j.asEnumerable(list);
+  }
+
+  @Override
+  public <TKey extends Comparable> OrderedEnumerable<T> orderBy(
+      Function1<T, TKey> keySelector) {
+    return OrderedEnumerableImpl.create(this, keySelector, null, false,
+        executor, parallelism);
+  }
+
+  @Override
+  public <TKey> OrderedEnumerable<T> orderBy(Function1<T, TKey> keySelector,
+      Comparator<TKey> comparator) {
+    return OrderedEnumerableImpl.create(this, keySelector, comparator, false,
+        executor, parallelism);
+  }
+
+  @Override
+  public <TKey extends Comparable> OrderedEnumerable<T> orderByDescending(
+      Function1<T, TKey> keySelector) {
+    return OrderedEnumerableImpl.create(this, keySelector, null, true,
+        executor, parallelism);
+  }
+
+  @Override
+  public <TKey> OrderedEnumerable<T> orderByDescending(
+      Function1<T, TKey> keySelector, Comparator<TKey> comparator) {
+    return OrderedEnumerableImpl.create(this, keySelector, comparator, true,
+        executor, parallelism);
+  }
+
+  @Override
+  public <TInner, TKey, TResult> Enumerable<TResult> join(
+      Enumerable<TInner> inner, Function1<T, TKey> outerKeySelector,
+      Function1<TInner, TKey> innerKeySelector,
+      Function2<T, TInner, TResult> resultSelector) {
+    return join(inner, outerKeySelector, innerKeySelector, resultSelector,
+        null);
+  }
+
+  @Override
+  public <TInner, TKey, TResult> Enumerable<TResult> join(
+      final Enumerable<TInner> inner,
+      final Function1<T, TKey> outerKeySelector,
+      final Function1<TInner, TKey> innerKeySelector,
+      final Function2<T, TInner, TResult> resultSelector,
+      final EqualityComparer<TKey> comparer) {
+    return new AbstractEnumerable<TResult>() {
+      public Enumerator<TResult> enumerator() {
+        final List<OpenHashMap<TKey, List<TInner>>> tables =
+            buildTables(inner, innerKeySelector, comparer);
+        return then(
+            new Function1<Enumerable<T>, Enumerable<TResult>>() {
+              public Enumerable<TResult> apply(Enumerable<T> chunk) {
+                final List<TResult> results = new ArrayList<TResult>();
+                for (T element : chunk) {
+                  final TKey key = outerKeySelector.apply(element);
+                  final List<TInner> inners =
+                      tables.get(partition(key, comparer, tables.size()))
+                          .get(key);
+                  if (inners != null) {
+                    for (TInner innerElement : inners) {
+                      results.add(
+                          resultSelector.apply(element, innerElement));
+                    }
+                  }
+                }
+                return Linq4j.asEnumerable(results);
+              }
+            }).enumerator();
+      }
+    };
+  }
+
+  /** Builds a hash table for each partition of the inner input of a join.
+   *
+   * <p>Each chunk of the inner input is divided into partitions as a
+   * separate task; then the hash table of each partition is built, from
+   * that partition of every chunk, as a separate task. Elements with the
+   * same key are in their original order. */
+  private <TInner, TKey> List<OpenHashMap<TKey, List<TInner>>> buildTables(
+      Enumerable<TInner> inner, final Function1<TInner, TKey> keySelector,
+      final EqualityComparer<TKey> comparer) {
+    final ParallelEnumerableImpl<?, TInner> parallelInner =
+        inner instanceof ParallelEnumerableImpl
+            ? (ParallelEnumerableImpl<?, TInner>) inner
+            : new ParallelEnumerableImpl<TInner, TInner>(inner,
+                Functions.<Enumerable<TInner>>identitySelector(), executor,
+                parallelism, true);
+    final int partitionCount = parallelism;
+    final List<List<Partition<TKey, TInner>>> chunks =
+        parallelInner.evaluate(
+            new Function1<Enumerable<TInner>,
+                List<Partition<TKey, TInner>>>() {
+              public List<Partition<TKey, TInner>> apply(
+                  Enumerable<TInner> chunk) {
+                final List<Partition<TKey, TInner>> partitions =
+                    new ArrayList<Partition<TKey, TInner>>(partitionCount);
+                for (int i = 0; i < partitionCount; i++) {
+                  partitions.add(new Partition<TKey, TInner>());
+                }
+                for (TInner element : chunk) {
+                  final TKey key = keySelector.apply(element);
+                  final Partition<TKey, TInner> partition =
+                      partitions.get(partition(key, comparer, partitionCount));
+                  partition.keys.add(key);
+                  partition.elements.add(element);
+                }
+                return partitions;
+              }
+            });
+    final List<Callable<OpenHashMap<TKey, List<TInner>>>> callables =
+        new ArrayList<Callable<OpenHashMap<TKey, List<TInner>>>>();
+    for (int i = 0; i < partitionCount; i++) {
+      final int partitionIndex = i;
+      callables.add(
+          new Callable<OpenHashMap<TKey, List<TInner>>>() {
+            public OpenHashMap<TKey, List<TInner>> call() {
+              final OpenHashMap<TKey, List<TInner>> table =
+                  new OpenHashMap<TKey, List<TInner>>(comparer);
+              for (List<Partition<TKey, TInner>> partitions : chunks) {
+                final Partition<TKey, TInner> partition =
+                    partitions.get(partitionIndex);
+                for (int j = 0; j < partition.keys.size(); j++) {
+                  final int ordinal = table.add(partition.keys.get(j));
+                  if (ordinal >= 0) {
+                    table.setValueAt(ordinal, new ArrayList<TInner>(2));
+                  }
+                  table.valueAt(ordinal >= 0 ? ordinal : ~ordinal)
+                      .add(partition.elements.get(j));
+                }
+              }
+              return table;
+            }
+          });
+    }
+    return invokeAll(executor, callables);
+  }
+
+  /** Returns the partition, between 0 and {@code partitionCount} - 1, to
+   * which a key belongs. */
+  private static <K> int partition(K key, EqualityComparer<K> comparer,
+      int partitionCount) {
+    return (HashJoin.hash(key, comparer, 0) & Integer.MAX_VALUE)
+        % partitionCount;
+  }
+
+  /** Runs tasks on an executor, waits for them to complete, and returns
+   * their results. If a task failed, cancels the other tasks and throws the
+   * task's exception. */
+  static <R> List<R> invokeAll(ExecutorService executor,
+      List<? extends Callable<R>> callables) {
+    final List<Future<R>> futures = new ArrayList<Future<R>>();
+    for (Callable<R> callable : callables) {
+      futures.add(submit(executor, callable));
+    }
+    final List<R> results = new ArrayList<R>(futures.size());
+    for (Future<R> future : futures) {
+      results.add(get(future, futures));
+    }
+    return results;
+  }
+
+  /** Submits a task to an executor. If the current thread is already
+   * running a task for the executor, runs the task now, on this thread, and
+   * returns its completed future; waiting for a queued task could
+   * deadlock, because the executor may have no other thread to run it. */
+  static <R> Future<R> submit(ExecutorService executor, Callable<R> callable) {
+    if (isWorker(executor)) {
+      final FutureTask<R> task = new FutureTask<R>(callable);
+      task.run();
+      return task;
+    }
+    return executor.submit(worker(executor, callable));
+  }
+
+  /** Returns whether the current thread is running a task for an
+   * executor. */
+  static boolean isWorker(ExecutorService executor) {
+    return WORKER.get() == executor;
+  }
+
+  /** Wraps a task so that, while it runs, its thread is known to be running
+   * a task for {@code executor}. */
+  static <R> Callable<R> worker(final ExecutorService executor,
+      final Callable<R> callable) {
+    return new Callable<R>() {
+      public R call() throws Exception {
+        final ExecutorService previous = WORKER.get();
+        WORKER.set(executor);
+        try {
+          return callable.call();
+        } finally {
+          if (previous == null) {
+            WORKER.remove();
+          } else {
+            WORKER.set(previous);
+          }
+        }
+      }
+    };
+  }
+
+  /** Waits for the result of a task. If the task failed, cancels the other
+   * tasks and throws the task's exception. */
+  private static <R> R get(Future<R> future, List<Future<R>> futures) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      cancel(futures);
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      cancel(futures);
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /** Cancels tasks that have not completed. */
+  private static <R> void cancel(List<Future<R>> futures) {
+    for (Future<R> future : futures) {
+      future.cancel(true);
+    }
+  }
+
+  /** Elements of one chunk of the inner input of a join that belong to one
+   * partition, and their keys.
+   *
+   * @param <K> Key type
+   * @param <V> Element type */
+  private static class Partition<K, V> {
+    final List<K> keys = new ArrayList<K>();
+    final List<V> elements = new ArrayList<V>();
+  }
+
+  /** Tasks that apply the pipeline and then a function to each chunk of
+   * the source. Results are returned in chunk order if the enumerable is
+   * ordered, otherwise in the order that tasks complete.
+   *
+   * @param <R> Result type */
+  private class Evaluation<R> {
+    private final List<Future<R>> futures = new ArrayList<Future<R>>();
+    private final CompletionService<R> completionService =
+        new ExecutorCompletionService<R>(executor);
+    /** Whether tasks run on the calling thread, because it is running a task
+     * for the same executor. */
+    private final boolean inline = isWorker(executor);
+    private int returnedCount;
+
+    Evaluation(final Function1<Enumerable<T>, R> function) {
+      final List<TSource> list = sourceList();
+      final int size = list.size();
+      final int chunkCount =
+          Math.max(1, Math.min(size, parallelism * CHUNKS_PER_THREAD));
+      for (int i = 0; i < chunkCount; i++) {
+        final List<TSource> chunk =
+            list.subList((int) ((long) size * i / chunkCount),
+                (int) ((long) size * (i + 1) / chunkCount));
+        final Callable<R> callable =
+            new Callable<R>() {
+              public R call() {
+                return function.apply(
+                    pipeline.apply(Linq4j.asEnumerable(chunk)));
+              }
+            };
+        futures.add(
+            inline
+                ? submit(executor, callable)
+                : completionService.submit(worker(executor, callable)));
+      }
+    }
+
+    boolean hasNext() {
+      return returnedCount < futures.size();
+    }
+
+    /** Waits for the next result. If a task failed, cancels the other tasks
+     * and throws the task's exception. */
+    R next() {
+      final Future<R> future;
+      if (ordered || inline) {
+        future = futures.get(returnedCount);
+      } else {
+        try {
+          future = completionService.take();
+        } catch (InterruptedException e) {
+          cancel();
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(e);
+        }
+      }
+      ++returnedCount;
+      boolean success = false;
+      try {
+        final R r = get(future, futures);
+        success = true;
+        return r;
+      } finally {
+        if (!success) {
+          returnedCount = futures.size();
+        }
+      }
+    }
+
+    /** Cancels tasks that have not completed. */
+    void cancel() {
+      ParallelEnumerableImpl.cancel(futures);
+      returnedCount = futures.size();
+    }
+  }
+
+  /** Holds the shared executor, which is created on first use. Its threads
+   * are daemon threads, so that it does not prevent the JVM from
+   * exiting. */
+  private static class DefaultExecutor {
+    static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    static final ExecutorService INSTANCE =
+        Executors.newFixedThreadPool(PARALLELISM,
+            new ThreadFactory() {
+              final AtomicInteger threadCount = new AtomicInteger();
+
+              public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable,
+                    "linq4j-parallel-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
+  }
+}
+
+// End ParallelEnumerableImpl.java
@@ -0,0 +1,279 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.linq4j;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Enumerator that reads a source on a background thread, and holds
+ * elements that the consumer has not yet read in a bounded ring buffer.
+ *
+ * <p>On the first call to {@link #moveNext()}, submits a producer task to
+ * the executor. The producer opens the source, and adds elements to the
+ * buffer until the source is exhausted, it fails, or the enumerator is
+ * closed; it waits while the buffer is full. The consumer takes all of the
+ * elements in the buffer at once, so while the producer keeps ahead, the
+ * consumer acquires the lock once per batch rather than once per
+ * element.</p>
+ *
+ * <p>If the source throws, the consumer reads the elements that preceded
+ * the failure, then the exception is thrown from {@link #moveNext()}.</p>
+ *
+ * <p>{@link #close()} stops the producer: it wakes the producer if it is
+ * waiting for space, and interrupts it if it is reading the source. The
+ * producer closes the source on its own thread, and {@code close} waits
+ * for it to do so. {@link #reset()} closes, and the next call to
+ * {@code moveNext} starts again from the beginning of the source.</p>
+ *
+ * @param <T> Element type
+ */
+class PrefetchEnumerator<T> implements Enumerator<T> {
+  private final Enumerable<T> source;
+  private final ExecutorService executor;
+  private final int bufferSize;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+
+  /** Per-producer state; null before the first call to {@link #moveNext()}
+   * and after {@link #close()}. */
+  private Producer producer;
+
+  /** Elements taken from the buffer and not yet returned. */
+  private final Object[] taken;
+  private int takenIndex;
+  private int takenCount;
+  private T current;
+  private boolean hasCurrent;
+
+  PrefetchEnumerator(Enumerable<T> source, ExecutorService executor,
+      int bufferSize) {
+    this.source = source;
+    this.executor = executor;
+    this.bufferSize = bufferSize;
+    this.taken = new Object[bufferSize];
+  }
+
+  public T current() {
+    if (!hasCurrent) {
+      throw new NoSuchElementException();
+    }
+    return current;
+  }
+
+  public boolean moveNext() {
+    if (producer == null) {
+      final Producer p = new Producer();
+      p.future = executor.submit(
+          ParallelEnumerableImpl.worker(executor, Executors.callable(p)));
+      producer = p;
+    }
+    if (takenIndex == takenCount && !take()) {
+      current = null;
+      hasCurrent = false;
+      return false;
+    }
+    //noinspection unchecked
+    current = (T) taken[takenIndex];
+    taken[takenIndex++] = null;
+    hasCurrent = true;
+    return true;
+  }
+
+  /** Waits until the buffer has elements, and moves them all into
+   * {@link #taken}. Returns false if the producer has finished and there
+   * are no elements left; throws if the producer failed. */
+  private boolean take() {
+    final Producer p = producer;
+    lock.lock();
+    try {
+      while (p.count == 0 && !p.finished) {
+        notEmpty.await();
+      }
+      if (p.count == 0) {
+        if (p.error != null) {
+          final Throwable e = p.error;
+          p.error = null;
+          if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+          }
+          if (e instanceof Error) {
+            throw (Error) e;
+          }
+          throw new RuntimeException(e);
+        }
+        return false;
+      }
+      final boolean wasFull = p.count == bufferSize;
+      for (int i = 0; i < p.count; i++) {
+        taken[i] = p.buffer[p.head];
+        p.buffer[p.head] = null;
+        if (++p.head == bufferSize) {
+          p.head = 0;
+        }
+      }
+      takenIndex = 0;
+      takenCount = p.count;
+      p.count = 0;
+      if (wasFull) {
+        notFull.signal();
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void reset() {
+    close();
+  }
+
+  public void close() {
+    final Producer p = producer;
+    producer = null;
+    for (int i = takenIndex; i < takenCount; i++) {
+      taken[i] = null;
+    }
+    takenIndex = takenCount = 0;
+    current = null;
+    hasCurrent = false;
+    if (p == null) {
+      return;
+    }
+    lock.lock();
+    try {
+      p.closed = true;
+      notFull.signal();
+      if (!p.started) {
+        // The task has not started, and now never will open the source.
+        p.future.cancel(false);
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (p.done.getCount() > 0) {
+      p.future.cancel(true);
+    }
+    boolean interrupted = false;
+    for (;;) {
+      try {
+        p.done.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Task that reads the source into the buffer. The first call to
+   * {@link #moveNext()} after a reset starts a new producer. */
+  private class Producer implements Runnable {
+    final Object[] buffer = new Object[bufferSize];
+    /** Index of the oldest element in {@link #buffer}. */
+    int head;
+    /** Number of elements in {@link #buffer}. */
+    int count;
+    boolean started;
+    boolean finished;
+    boolean closed;
+    Throwable error;
+    Future<?> future;
+    /** Counted down when the producer has closed the source. */
+    final CountDownLatch done = new CountDownLatch(1);
+
+    public void run() {
+      lock.lock();
+      try {
+        if (closed) {
+          return;
+        }
+        started = true;
+      } finally {
+        lock.unlock();
+      }
+      Throwable throwable = null;
+      try {
+        final Enumerator<T> enumerator = source.enumerator();
+        try {
+          while (enumerator.moveNext()) {
+            if (!put(enumerator.current())) {
+              break;
+            }
+          }
+        } finally {
+          enumerator.close();
+        }
+      } catch (Throwable e) {
+        throwable = e;
+      } finally {
+        lock.lock();
+        try {
+          finished = true;
+          if (!closed) {
+            error = throwable;
+          }
+          notEmpty.signal();
+        } finally {
+          lock.unlock();
+        }
+        done.countDown();
+      }
+    }
+
+    /** Adds an element to the buffer, waiting while it is full. Returns
+     * false if the enumerator has been closed. */
+    private boolean put(Object element) {
+      lock.lock();
+      try {
+        while (count == bufferSize && !closed) {
+          notFull.awaitUninterruptibly();
+        }
+        if (closed) {
+          return false;
+        }
+        int tail = head + count;
+        if (tail >= bufferSize) {
+          tail -= bufferSize;
+        }
+        buffer[tail] = element;
+        if (count++ == 0) {
+          notEmpty.signal();
+        }
+        return true;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
+
+// End PrefetchEnumerator.java
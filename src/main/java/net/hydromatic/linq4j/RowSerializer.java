@@ -0,0 +1,43 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.linq4j;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Writes rows to, and reads rows from, a stream.
+ *
+ * <p>Used by a {@link Spiller} to write rows to temporary files when an
+ * operator exceeds its memory budget. Rows are read back in the order they
+ * were written, using the same serializer.</p>
+ *
+ * @param <T> Row type
+ *
+ * @see Spiller#javaSerializer()
+ */
+public interface RowSerializer<T> {
+  /** Writes a row. */
+  void write(ObjectOutput out, T row) throws IOException;
+
+  /** Reads a row. */
+  T read(ObjectInput in) throws IOException;
+}
+
+// End RowSerializer.java
@@ -0,0 +1,322 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.linq4j;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Memory budget for an operator, and the means to write rows to temporary
+ * files when the budget is exceeded.
+ *
+ * <p>The budget is a number of rows, not bytes; the operator holds at most
+ * that many rows in memory, and writes larger inputs to disk in batches
+ * ("runs") of that size. Each run is a temporary file in {@link #directory},
+ * written using {@link #serializer}, and is deleted when the enumerator that
+ * created it is closed. Each row is written independently of the others,
+ * so an object that is shared between rows is written once per row.</p>
+ *
+ * <p>An operator that merges runs reads at most {@link #maxFanIn} of them at
+ * a time, so that it does not open too many files at once. If there are
+ * more, it first merges them in groups into longer runs.</p>
+ *
+ * @param <T> Row type
+ */
+public class Spiller<T> {
+  /** Maximum number of rows an operator may hold in memory. */
+  public final int maxRows;
+  public final RowSerializer<T> serializer;
+  /** Directory for temporary files, or null for the system's default
+   * temporary directory. */
+  public final File directory;
+  /** Maximum number of runs to merge at a time. */
+  public final int maxFanIn;
+
+  /** Default value of {@link #maxFanIn}. */
+  public static final int DEFAULT_MAX_FAN_IN = 64;
+
+  private static final RowSerializer JAVA_SERIALIZER =
+      new RowSerializer<Object>() {
+        public void write(ObjectOutput out, Object row) throws IOException {
+          out.writeObject(row);
+        }
+
+        public Object read(ObjectInput in) throws IOException {
+          try {
+            return in.readObject();
+          } catch (ClassNotFoundException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+
+  /**
+   * Creates a Spiller.
+   *
+   * @param maxRows Maximum number of rows to hold in memory; must be
+   *   positive
+   * @param serializer Serializer for rows
+   * @param directory Directory for temporary files, or null for the
+   *   system's default temporary directory
+   */
+  public Spiller(int maxRows, RowSerializer<T> serializer, File directory) {
+    this(maxRows, serializer, directory, DEFAULT_MAX_FAN_IN);
+  }
+
+  /**
+   * Creates a Spiller with a given fan-in.
+   *
+   * @param maxRows Maximum number of rows to hold in memory; must be
+   *   positive
+   * @param serializer Serializer for rows
+   * @param directory Directory for temporary files, or null for the
+   *   system's default temporary directory
+   * @param maxFanIn Maximum number of runs to merge at a time; must be at
+   *   least 2
+   */
+  public Spiller(int maxRows, RowSerializer<T> serializer, File directory,
+      int maxFanIn) {
+    if (maxRows <= 0) {
+      throw new IllegalArgumentException("maxRows must be positive: "
+          + maxRows);
+    }
+    if (maxFanIn < 2) {
+      throw new IllegalArgumentException("maxFanIn must be at least 2: "
+          + maxFanIn);
+    }
+    if (serializer == null) {
+      throw new NullPointerException("serializer");
+    }
+    this.maxRows = maxRows;
+    this.serializer = serializer;
+    this.directory = directory;
+    this.maxFanIn = maxFanIn;
+  }
+
+  /** Creates a Spiller that writes rows using Java serialization, to the
+   * system's default temporary directory. Rows must implement
+   * {@link Serializable}. */
+  public static <T> Spiller<T> of(int maxRows) {
+    return new Spiller<T>(maxRows, Spiller.<T>javaSerializer(), null);
+  }
+
+  /** Returns a serializer that uses Java serialization. */
+  public static <T> RowSerializer<T> javaSerializer() {
+    //noinspection unchecked
+    return JAVA_SERIALIZER;
+  }
+
+  /** Writes rows to a temporary file, and returns a run that can read them
+   * back. */
+  Run<T> spill(List<T> rows) {
+    final RunWriter<T> writer = writer();
+    boolean success = false;
+    try {
+      for (T row : rows) {
+        writer.add(row);
+      }
+      success = true;
+      return writer.finish();
+    } finally {
+      if (!success) {
+        writer.delete();
+      }
+    }
+  }
+
+  /** Creates a temporary file, and returns a writer that writes rows to it
+   * one at a time. */
+  RunWriter<T> writer() {
+    final File file;
+    try {
+      file = File.createTempFile("linq4j", ".spill", directory);
+    } catch (IOException e) {
+      throw new RuntimeException("while creating temporary file in "
+          + directory, e);
+    }
+    return new RunWriter<T>(file, serializer);
+  }
+
+  /** Returns a run that holds rows in memory. */
+  static <T> Run<T> memoryRun(final List<T> rows) {
+    return new Run<T>() {
+      public Enumerator<T> enumerator() {
+        return Linq4j.enumerator(rows);
+      }
+
+      void delete() {
+      }
+    };
+  }
+
+  /** Sequence of rows, in memory or in a temporary file, that can be read
+   * any number of times until it is deleted. */
+  abstract static class Run<T> extends AbstractEnumerable<T> {
+    /** Releases the resources held by this run. Idempotent. */
+    abstract void delete();
+  }
+
+  /** Writes rows to a temporary file. {@link #finish()} returns a run that
+   * reads them back. */
+  static class RunWriter<T> {
+    private final File file;
+    private final RowSerializer<T> serializer;
+    private ObjectOutputStream out;
+    private int rowCount;
+
+    RunWriter(File file, RowSerializer<T> serializer) {
+      this.file = file;
+      this.serializer = serializer;
+    }
+
+    /** Writes a row.
+     *
+     * <p>Resets the stream after each row. Otherwise the stream, and the
+     * stream that reads the run back, would keep a reference to every
+     * object written, and spilled rows would stay in memory.</p> */
+    void add(T row) {
+      try {
+        if (out == null) {
+          out = new ObjectOutputStream(
+              new BufferedOutputStream(new FileOutputStream(file)));
+        }
+        serializer.write(out, row);
+        out.reset();
+      } catch (IOException e) {
+        throw new RuntimeException("while writing to " + file, e);
+      }
+      ++rowCount;
+    }
+
+    /** Closes the file, and returns a run that reads the rows written. */
+    Run<T> finish() {
+      if (rowCount == 0) {
+        delete();
+        return memoryRun(Collections.<T>emptyList());
+      }
+      close();
+      return new FileRun<T>(file, rowCount, serializer);
+    }
+
+    /** Closes and deletes the file, including after {@link #finish()}.
+     * Idempotent. */
+    void delete() {
+      close();
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+
+    private void close() {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          throw new RuntimeException("while writing to " + file, e);
+        } finally {
+          out = null;
+        }
+      }
+    }
+  }
+
+  /** Run whose rows are in a temporary file. */
+  private static class FileRun<T> extends Run<T> {
+    private final File file;
+    private final int rowCount;
+    private final RowSerializer<T> serializer;
+
+    FileRun(File file, int rowCount, RowSerializer<T> serializer) {
+      this.file = file;
+      this.rowCount = rowCount;
+      this.serializer = serializer;
+    }
+
+    public Enumerator<T> enumerator() {
+      return new FileRunEnumerator<T>(file, rowCount, serializer);
+    }
+
+    void delete() {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  /** Enumerator that reads the rows of a {@link FileRun}. Opens the file
+   * when it is first needed. */
+  private static class FileRunEnumerator<T> implements Enumerator<T> {
+    private final File file;
+    private final int rowCount;
+    private final RowSerializer<T> serializer;
+    private ObjectInputStream in;
+    private int index = -1;
+    private T current;
+
+    FileRunEnumerator(File file, int rowCount, RowSerializer<T> serializer) {
+      this.file = file;
+      this.rowCount = rowCount;
+      this.serializer = serializer;
+    }
+
+    public T current() {
+      if (index < 0 || index >= rowCount) {
+        throw new NoSuchElementException();
+      }
+      return current;
+    }
+
+    public boolean moveNext() {
+      if (index >= rowCount - 1) {
+        index = rowCount;
+        current = null;
+        return false;
+      }
+      try {
+        if (in == null) {
+          in = new ObjectInputStream(
+              new BufferedInputStream(new FileInputStream(file)));
+        }
+        current = serializer.read(in);
+      } catch (IOException e) {
+        throw new RuntimeException("while reading from " + file, e);
+      }
+      ++index;
+      return true;
+    }
+
+    public void reset() {
+      close();
+      index = -1;
+      current = null;
+    }
+
+    public void close() {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          // ignore
+        }
+        in = null;
+      }
+    }
+  }
+}
+
+// End Spiller.java
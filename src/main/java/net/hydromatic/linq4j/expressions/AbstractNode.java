@@ -26,6 +26,10 @@ public abstract class AbstractNode implements Node {
   public final ExpressionType nodeType;
   public final Type type;
 
+  /** Hash code, or 0 if it has not been computed yet. Nodes are immutable,
+   * so it is computed at most once. */
+  private int hash;
+
   AbstractNode(ExpressionType nodeType, Type type) {
     this.type = type;
     this.nodeType = nodeType;
@@ -46,6 +50,39 @@ public abstract class AbstractNode implements Node {
     return type;
   }
 
+  /**
+   * Returns a hash code consistent with {@link #equals(Object)}.
+   *
+   * <p>The value is computed by {@link #computeHashCode()} on first use and
+   * cached. A sub-class that defines structural equality overrides
+   * {@code computeHashCode} rather than this method, so that hashing a
+   * large tree touches each node only once.</p>
+   */
+  @Override
+  public int hashCode() {
+    int h = hash;
+    if (h == 0) {
+      h = computeHashCode();
+      if (h == 0) {
+        h = 1;
+      }
+      hash = h;
+    }
+    return h;
+  }
+
+  /**
+   * Computes the hash code of this node. Called at most once.
+   *
+   * <p>The default implementation is consistent with identity equality.
+   * Sub-classes that override {@link #equals(Object)} must override this
+   * method too, and should combine the hash codes of the same fields that
+   * {@code equals} compares.</p>
+   */
+  protected int computeHashCode() {
+    return System.identityHashCode(this);
+  }
+
   public void accept(ExpressionWriter writer) {
     accept(writer, 0, 0);
   }
@@ -0,0 +1,129 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.linq4j.expressions;
+
+/**
+ * Calls a method or constructor, or reads a field.
+ *
+ * <p>The interpreter generates a sub-class for each member that it calls
+ * often; see {@link Invoker}. This class is public only so that generated
+ * classes, which are loaded by their own class loader, can extend it. It is
+ * not part of the API.</p>
+ *
+ * <p>Each method takes the target, which is ignored for static members and
+ * constructors, followed by the arguments. A call with up to three
+ * arguments uses the method for its number of arguments, and does not
+ * allocate an array. A generated sub-class overrides that method and
+ * {@link #invokeArray}; the others are not called.</p>
+ */
+public abstract class Accessor {
+  /** Calls the member with an array of arguments. */
+  public abstract Object invokeArray(Object target, Object[] args)
+    throws Throwable;
+
+  /** Calls the member with no arguments, or reads a field. */
+  public Object invoke(Object target) throws Throwable {
+    return invokeArray(target, Invoker.NO_ARGS);
+  }
+
+  /** Calls the member with one argument. */
+  public Object invoke(Object target, Object a0) throws Throwable {
+    return invokeArray(target, new Object[] {a0});
+  }
+
+  /** Calls the member with two arguments. */
+  public Object invoke(Object target, Object a0, Object a1) throws Throwable {
+    return invokeArray(target, new Object[] {a0, a1});
+  }
+
+  /** Calls the member with three arguments. */
+  public Object invoke(Object target, Object a0, Object a1, Object a2)
+    throws Throwable {
+    return invokeArray(target, new Object[] {a0, a1, a2});
+  }
+
+  // The following methods convert an argument to a primitive parameter
+  // type. Like reflection, they unbox the argument and allow a widening
+  // conversion, and throw IllegalArgumentException otherwise.
+
+  protected static boolean booleanArg(Object o) {
+    if (o instanceof Boolean) {
+      return (Boolean) o;
+    }
+    throw mismatch(o);
+  }
+
+  protected static char charArg(Object o) {
+    if (o instanceof Character) {
+      return (Character) o;
+    }
+    throw mismatch(o);
+  }
+
+  protected static byte byteArg(Object o) {
+    if (o instanceof Byte) {
+      return (Byte) o;
+    }
+    throw mismatch(o);
+  }
+
+  protected static short shortArg(Object o) {
+    if (o instanceof Short || o instanceof Byte) {
+      return ((Number) o).shortValue();
+    }
+    throw mismatch(o);
+  }
+
+  protected static int intArg(Object o) {
+    if (o instanceof Integer || o instanceof Short || o instanceof Byte) {
+      return ((Number) o).intValue();
+    }
+    if (o instanceof Character) {
+      return (Character) o;
+    }
+    throw mismatch(o);
+  }
+
+  protected static long longArg(Object o) {
+    if (o instanceof Long) {
+      return (Long) o;
+    }
+    return intArg(o);
+  }
+
+  protected static float floatArg(Object o) {
+    if (o instanceof Float) {
+      return (Float) o;
+    }
+    return longArg(o);
+  }
+
+  protected static double doubleArg(Object o) {
+    if (o instanceof Double) {
+      return (Double) o;
+    }
+    return floatArg(o);
+  }
+
+  private static IllegalArgumentException mismatch(Object o) {
+    return new IllegalArgumentException("argument type mismatch: "
+        + (o == null ? "null" : o.getClass().getName()));
+  }
+}
+
+// End Accessor.java
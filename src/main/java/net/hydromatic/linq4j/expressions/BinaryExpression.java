@@ -18,6 +18,7 @@
 package net.hydromatic.linq4j.expressions;
 
 import java.lang.reflect.Type;
+import java.util.Arrays;
 
 /**
  * Represents an expression that has a binary operator.
@@ -25,6 +26,8 @@ import java.lang.reflect.Type;
 public class BinaryExpression extends Expression {
   public final Expression expression0;
   public final Expression expression1;
+  /** Type in which the operands are evaluated, after numeric promotion; null
+   * if they are not primitive values. */
   private final Primitive primitive;
 
   BinaryExpression(ExpressionType nodeType, Type type, Expression expression0,
@@ -32,7 +35,7 @@ public class BinaryExpression extends Expression {
     super(nodeType, type);
     this.expression0 = expression0;
     this.expression1 = expression1;
-    this.primitive = Primitive.of(expression0.getType());
+    this.primitive = operandPrimitive(nodeType, expression0, expression1);
   }
 
   @Override
@@ -42,7 +45,8 @@ public class BinaryExpression extends Expression {
     }
     if (obj instanceof BinaryExpression) {
       final BinaryExpression binary = (BinaryExpression) obj;
-      return nodeType == binary.nodeType
+      return hashCode() == binary.hashCode()
+             && nodeType == binary.nodeType
              && type.equals(binary.type)
              && expression0.equals(binary.expression0)
              && expression1.equals(binary.expression1);
@@ -51,10 +55,8 @@ public class BinaryExpression extends Expression {
   }
 
   @Override
-  public int hashCode() {
-    return nodeType.hashCode()
-           ^ expression0.hashCode()
-           ^ expression1.hashCode();
+  protected int computeHashCode() {
+    return Arrays.hashCode(new Object[] {nodeType, expression0, expression1});
   }
 
   @Override
@@ -64,113 +66,444 @@ public class BinaryExpression extends Expression {
     return visitor.visit(this, expression0, expression1);
   }
 
+  /** Returns the type in which an operator evaluates its operands. */
+  private static Primitive operandPrimitive(ExpressionType nodeType,
+      Expression expression0, Expression expression1) {
+    switch (nodeType) {
+    case LeftShift:
+    case LeftShiftAssign:
+    case RightShift:
+    case RightShiftAssign:
+      return Evaluator.promote(expression0.getType());
+    case Equal:
+    case NotEqual:
+      // Like Java, compare values only if at least one side is primitive.
+      if (!Primitive.is(expression0.getType())
+          && !Primitive.is(expression1.getType())) {
+        return null;
+      }
+      // fall through
+    default:
+      return Evaluator.promote(expression0.getType(), expression1.getType());
+    }
+  }
+
   public Object evaluate(Evaluator evaluator) {
     switch (nodeType) {
     case AndAlso:
-      return (Boolean) expression0.evaluate(evaluator)
-             && (Boolean) expression1.evaluate(evaluator);
-    case Add:
-      switch (primitive) {
-      case INT:
-        return (Integer) expression0.evaluate(evaluator) + (Integer) expression1
-            .evaluate(evaluator);
-      case DOUBLE:
-        return (Double) expression0.evaluate(evaluator)
-               + (Double) expression1.evaluate(evaluator);
-      default:
-        throw cannotEvaluate();
-      }
-    case Divide:
-      switch (primitive) {
-      case INT:
-        return (Integer) expression0.evaluate(evaluator) / (Integer) expression1
-            .evaluate(evaluator);
-      case DOUBLE:
-        return (Double) expression0.evaluate(evaluator)
-               / (Double) expression1.evaluate(evaluator);
-      default:
-        throw cannotEvaluate();
+    case OrElse:
+    case Equal:
+    case NotEqual:
+    case GreaterThan:
+    case GreaterThanOrEqual:
+    case LessThan:
+    case LessThanOrEqual:
+      return evaluateBoolean(evaluator);
+    case Assign:
+      return assign(evaluator, expression1.evaluate(evaluator));
+    case AddAssign:
+    case AddAssignChecked:
+    case AndAssign:
+    case DivideAssign:
+    case ExclusiveOrAssign:
+    case LeftShiftAssign:
+    case ModuloAssign:
+    case MultiplyAssign:
+    case MultiplyAssignChecked:
+    case OrAssign:
+    case RightShiftAssign:
+    case SubtractAssign:
+    case SubtractAssignChecked:
+      return assign(evaluator, evaluate(baseOp(nodeType), evaluator));
+    default:
+      return evaluate(nodeType, evaluator);
+    }
+  }
+
+  private Object assign(Evaluator evaluator, Object value) {
+    if (!(expression0 instanceof ParameterExpression)) {
+      throw cannotEvaluate();
+    }
+    final Object value1 =
+        Evaluator.convert(value, Primitive.ofBoxOr(expression0.getType()));
+    evaluator.push((ParameterExpression) expression0, value1);
+    return value1;
+  }
+
+  /** Evaluates an arithmetic, bitwise or shift operator, and boxes the
+   * result. */
+  private Object evaluate(ExpressionType op, Evaluator evaluator) {
+    if (primitive == null) {
+      if (op == ExpressionType.Add
+          && (expression0.getType() == String.class
+              || expression1.getType() == String.class)) {
+        return String.valueOf(expression0.evaluate(evaluator))
+            + expression1.evaluate(evaluator);
       }
+      throw cannotEvaluate();
+    }
+    switch (primitive) {
+    case BOOLEAN:
+      return evaluateBoolean(op, evaluator);
+    case INT:
+      return evaluateInt(op, evaluator);
+    case LONG:
+      return evaluateLong(op, evaluator);
+    case FLOAT:
+      return evaluateFloat(op, evaluator);
+    case DOUBLE:
+      return evaluateDouble(op, evaluator);
+    default:
+      throw cannotEvaluate();
+    }
+  }
+
+  @Override
+  boolean evaluateBoolean(Evaluator evaluator) {
+    switch (nodeType) {
+    case AndAlso:
+      return expression0.evaluateBoolean(evaluator)
+          && expression1.evaluateBoolean(evaluator);
+    case OrElse:
+      return expression0.evaluateBoolean(evaluator)
+          || expression1.evaluateBoolean(evaluator);
     case Equal:
-      return expression0.evaluate(evaluator).equals(expression1.evaluate(
-          evaluator));
+    case NotEqual:
     case GreaterThan:
+    case GreaterThanOrEqual:
+    case LessThan:
+    case LessThanOrEqual:
+      return compare(evaluator);
+    case And:
+    case Or:
+    case ExclusiveOr:
+      if (primitive == Primitive.BOOLEAN) {
+        return evaluateBoolean(nodeType, evaluator);
+      }
+      // fall through
+    default:
+      return super.evaluateBoolean(evaluator);
+    }
+  }
+
+  @Override
+  int evaluateInt(Evaluator evaluator) {
+    if (primitive == Primitive.INT && isArithmetic(nodeType)) {
+      return evaluateInt(nodeType, evaluator);
+    }
+    return super.evaluateInt(evaluator);
+  }
+
+  @Override
+  long evaluateLong(Evaluator evaluator) {
+    if (primitive != null && isArithmetic(nodeType)) {
       switch (primitive) {
       case INT:
-        return (Integer) expression0.evaluate(evaluator) > (Integer) expression1
-            .evaluate(evaluator);
-      case DOUBLE:
-        return (Double) expression0.evaluate(evaluator)
-               > (Double) expression1.evaluate(evaluator);
-      default:
-        throw cannotEvaluate();
+        return evaluateInt(nodeType, evaluator);
+      case LONG:
+        return evaluateLong(nodeType, evaluator);
       }
-    case GreaterThanOrEqual:
+    }
+    return super.evaluateLong(evaluator);
+  }
+
+  @Override
+  float evaluateFloat(Evaluator evaluator) {
+    if (primitive != null && isArithmetic(nodeType)) {
       switch (primitive) {
       case INT:
-        return (Integer) expression0.evaluate(evaluator)
-               >= (Integer) expression1.evaluate(evaluator);
-      case DOUBLE:
-        return (Double) expression0.evaluate(evaluator)
-               >= (Double) expression1.evaluate(evaluator);
-      default:
-        throw cannotEvaluate();
+        return evaluateInt(nodeType, evaluator);
+      case LONG:
+        return evaluateLong(nodeType, evaluator);
+      case FLOAT:
+        return evaluateFloat(nodeType, evaluator);
       }
-    case LessThan:
+    }
+    return super.evaluateFloat(evaluator);
+  }
+
+  @Override
+  double evaluateDouble(Evaluator evaluator) {
+    if (primitive != null && isArithmetic(nodeType)) {
       switch (primitive) {
       case INT:
-        return (Integer) expression0.evaluate(evaluator) < (Integer) expression1
-            .evaluate(evaluator);
+        return evaluateInt(nodeType, evaluator);
+      case LONG:
+        return evaluateLong(nodeType, evaluator);
+      case FLOAT:
+        return evaluateFloat(nodeType, evaluator);
       case DOUBLE:
-        return (Double) expression0.evaluate(evaluator)
-               < (Double) expression1.evaluate(evaluator);
+        return evaluateDouble(nodeType, evaluator);
+      }
+    }
+    return super.evaluateDouble(evaluator);
+  }
+
+  /** Evaluates a comparison. As in Java, both operands are converted to the
+   * promoted type: integral values are compared as {@code long}, which is
+   * exact; otherwise as {@code float} or {@code double}, which may round an
+   * {@code int} or {@code long} operand. */
+  private boolean compare(Evaluator evaluator) {
+    if (primitive == null) {
+      switch (nodeType) {
+      case Equal:
+        return expression0.evaluate(evaluator).equals(
+            expression1.evaluate(evaluator));
+      case NotEqual:
+        return !expression0.evaluate(evaluator).equals(
+            expression1.evaluate(evaluator));
       default:
         throw cannotEvaluate();
       }
-    case LessThanOrEqual:
-      switch (primitive) {
-      case INT:
-        return (Integer) expression0.evaluate(evaluator)
-               <= (Integer) expression1.evaluate(evaluator);
-      case DOUBLE:
-        return (Double) expression0.evaluate(evaluator)
-               <= (Double) expression1.evaluate(evaluator);
+    }
+    switch (primitive) {
+    case BOOLEAN:
+      final boolean b0 = expression0.evaluateBoolean(evaluator);
+      final boolean b1 = expression1.evaluateBoolean(evaluator);
+      switch (nodeType) {
+      case Equal:
+        return b0 == b1;
+      case NotEqual:
+        return b0 != b1;
       default:
         throw cannotEvaluate();
       }
-    case Multiply:
-      switch (primitive) {
-      case INT:
-        return (Integer) expression0.evaluate(evaluator) * (Integer) expression1
-            .evaluate(evaluator);
-      case DOUBLE:
-        return (Double) expression0.evaluate(evaluator)
-               * (Double) expression1.evaluate(evaluator);
+    case INT:
+    case LONG:
+      final long l0 = expression0.evaluateLong(evaluator);
+      final long l1 = expression1.evaluateLong(evaluator);
+      switch (nodeType) {
+      case Equal:
+        return l0 == l1;
+      case NotEqual:
+        return l0 != l1;
+      case GreaterThan:
+        return l0 > l1;
+      case GreaterThanOrEqual:
+        return l0 >= l1;
+      case LessThan:
+        return l0 < l1;
       default:
-        throw cannotEvaluate();
+        return l0 <= l1;
       }
-    case NotEqual:
-      return !expression0.evaluate(evaluator).equals(expression1.evaluate(
-          evaluator));
-    case OrElse:
-      return (Boolean) expression0.evaluate(evaluator)
-             || (Boolean) expression1.evaluate(evaluator);
-    case Subtract:
-      switch (primitive) {
-      case INT:
-        return (Integer) expression0.evaluate(evaluator) - (Integer) expression1
-            .evaluate(evaluator);
-      case DOUBLE:
-        return (Double) expression0.evaluate(evaluator)
-               - (Double) expression1.evaluate(evaluator);
+    case FLOAT:
+      final float f0 = expression0.evaluateFloat(evaluator);
+      final float f1 = expression1.evaluateFloat(evaluator);
+      switch (nodeType) {
+      case Equal:
+        return f0 == f1;
+      case NotEqual:
+        return f0 != f1;
+      case GreaterThan:
+        return f0 > f1;
+      case GreaterThanOrEqual:
+        return f0 >= f1;
+      case LessThan:
+        return f0 < f1;
       default:
-        throw cannotEvaluate();
+        return f0 <= f1;
+      }
+    default:
+      final double d0 = expression0.evaluateDouble(evaluator);
+      final double d1 = expression1.evaluateDouble(evaluator);
+      switch (nodeType) {
+      case Equal:
+        return d0 == d1;
+      case NotEqual:
+        return d0 != d1;
+      case GreaterThan:
+        return d0 > d1;
+      case GreaterThanOrEqual:
+        return d0 >= d1;
+      case LessThan:
+        return d0 < d1;
+      default:
+        return d0 <= d1;
       }
+    }
+  }
+
+  private boolean evaluateBoolean(ExpressionType op, Evaluator evaluator) {
+    final boolean v0 = expression0.evaluateBoolean(evaluator);
+    final boolean v1 = expression1.evaluateBoolean(evaluator);
+    switch (op) {
+    case And:
+      return v0 & v1;
+    case Or:
+      return v0 | v1;
+    case ExclusiveOr:
+      return v0 ^ v1;
+    default:
+      throw cannotEvaluate();
+    }
+  }
+
+  private int evaluateInt(ExpressionType op, Evaluator evaluator) {
+    final int v0 = expression0.evaluateInt(evaluator);
+    final int v1 = expression1.evaluateInt(evaluator);
+    switch (op) {
+    case Add:
+    case AddChecked:
+      return v0 + v1;
+    case Subtract:
+    case SubtractChecked:
+      return v0 - v1;
+    case Multiply:
+    case MultiplyChecked:
+      return v0 * v1;
+    case Divide:
+      return v0 / v1;
+    case Modulo:
+      return v0 % v1;
+    case And:
+      return v0 & v1;
+    case Or:
+      return v0 | v1;
+    case ExclusiveOr:
+      return v0 ^ v1;
+    case LeftShift:
+      return v0 << v1;
+    case RightShift:
+      return v0 >> v1;
+    default:
+      throw cannotEvaluate();
+    }
+  }
+
+  private long evaluateLong(ExpressionType op, Evaluator evaluator) {
+    final long v0 = expression0.evaluateLong(evaluator);
+    final long v1 = expression1.evaluateLong(evaluator);
+    switch (op) {
+    case Add:
+    case AddChecked:
+      return v0 + v1;
+    case Subtract:
+    case SubtractChecked:
+      return v0 - v1;
+    case Multiply:
+    case MultiplyChecked:
+      return v0 * v1;
+    case Divide:
+      return v0 / v1;
+    case Modulo:
+      return v0 % v1;
+    case And:
+      return v0 & v1;
+    case Or:
+      return v0 | v1;
+    case ExclusiveOr:
+      return v0 ^ v1;
+    case LeftShift:
+      return v0 << v1;
+    case RightShift:
+      return v0 >> v1;
+    default:
+      throw cannotEvaluate();
+    }
+  }
+
+  private float evaluateFloat(ExpressionType op, Evaluator evaluator) {
+    final float v0 = expression0.evaluateFloat(evaluator);
+    final float v1 = expression1.evaluateFloat(evaluator);
+    switch (op) {
+    case Add:
+    case AddChecked:
+      return v0 + v1;
+    case Subtract:
+    case SubtractChecked:
+      return v0 - v1;
+    case Multiply:
+    case MultiplyChecked:
+      return v0 * v1;
+    case Divide:
+      return v0 / v1;
+    case Modulo:
+      return v0 % v1;
+    default:
+      throw cannotEvaluate();
+    }
+  }
+
+  private double evaluateDouble(ExpressionType op, Evaluator evaluator) {
+    final double v0 = expression0.evaluateDouble(evaluator);
+    final double v1 = expression1.evaluateDouble(evaluator);
+    switch (op) {
+    case Add:
+    case AddChecked:
+      return v0 + v1;
+    case Subtract:
+    case SubtractChecked:
+      return v0 - v1;
+    case Multiply:
+    case MultiplyChecked:
+      return v0 * v1;
+    case Divide:
+      return v0 / v1;
+    case Modulo:
+      return v0 % v1;
     default:
       throw cannotEvaluate();
     }
   }
 
+  /** Returns whether an operator's result has the type of its promoted
+   * operands. */
+  private static boolean isArithmetic(ExpressionType op) {
+    switch (op) {
+    case Add:
+    case AddChecked:
+    case Subtract:
+    case SubtractChecked:
+    case Multiply:
+    case MultiplyChecked:
+    case Divide:
+    case Modulo:
+    case And:
+    case Or:
+    case ExclusiveOr:
+    case LeftShift:
+    case RightShift:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /** Returns the operator that a compound assignment applies; for example,
+   * {@code Add} for {@code AddAssign}. */
+  private static ExpressionType baseOp(ExpressionType op) {
+    switch (op) {
+    case AddAssign:
+      return ExpressionType.Add;
+    case AddAssignChecked:
+      return ExpressionType.AddChecked;
+    case AndAssign:
+      return ExpressionType.And;
+    case DivideAssign:
+      return ExpressionType.Divide;
+    case ExclusiveOrAssign:
+      return ExpressionType.ExclusiveOr;
+    case LeftShiftAssign:
+      return ExpressionType.LeftShift;
+    case ModuloAssign:
+      return ExpressionType.Modulo;
+    case MultiplyAssign:
+      return ExpressionType.Multiply;
+    case MultiplyAssignChecked:
+      return ExpressionType.MultiplyChecked;
+    case OrAssign:
+      return ExpressionType.Or;
+    case RightShiftAssign:
+      return ExpressionType.RightShift;
+    case SubtractAssign:
+      return ExpressionType.Subtract;
+    case SubtractAssignChecked:
+      return ExpressionType.SubtractChecked;
+    default:
+      throw new AssertionError(op);
+    }
+  }
+
   void accept(ExpressionWriter writer, int lprec, int rprec) {
     if (writer.requireParentheses(this, lprec, rprec)) {
       return;
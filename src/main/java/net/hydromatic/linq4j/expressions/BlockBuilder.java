@@ -28,7 +28,16 @@ import java.util.*;
 public class BlockBuilder {
   final List<Statement> statements = new ArrayList<Statement>();
   final Set<String> variables = new HashSet<String>();
+  /** Maps the initializer of each final variable declared in this block to
+   * its declaration. If several variables have the same initializer, the
+   * first wins. */
+  private final Map<Expression, DeclarationStatement> expressionForReuse =
+      new HashMap<Expression, DeclarationStatement>();
+  /** For each suggested variable name, the suffix to try next. */
+  private final Map<String, Integer> nextSuffix =
+      new HashMap<String, Integer>();
   private final boolean optimizing;
+  private final BlockBuilder parent;
 
   /**
    * Creates a non-optimizing BlockBuilder.
@@ -43,7 +52,24 @@ public class BlockBuilder {
    * @param optimizing Whether to eliminate common sub-expressions
    */
   public BlockBuilder(boolean optimizing) {
+    this(optimizing, null);
+  }
+
+  /**
+   * Creates a BlockBuilder for a block nested within another block.
+   *
+   * <p>The nested block can re-use variables that have already been declared
+   * in the enclosing block (and its enclosing blocks), because they are
+   * declared before the nested block. For the same reason, the enclosing
+   * block must not be optimized (see {@link #toBlock()}) until the nested
+   * block has been added to it.</p>
+   *
+   * @param optimizing Whether to eliminate common sub-expressions
+   * @param parent Builder for the enclosing block, or null
+   */
+  public BlockBuilder(boolean optimizing, BlockBuilder parent) {
     this.optimizing = optimizing;
+    this.parent = parent;
   }
 
   /**
@@ -52,6 +78,8 @@ public class BlockBuilder {
   public void clear() {
     statements.clear();
     variables.clear();
+    expressionForReuse.clear();
+    nextSuffix.clear();
   }
 
   /**
@@ -95,7 +123,7 @@ public class BlockBuilder {
       }
       if (statement instanceof DeclarationStatement) {
         DeclarationStatement declaration = (DeclarationStatement) statement;
-        if (variables.contains(declaration.parameter.name)) {
+        if (hasVariable(declaration.parameter.name)) {
           Expression x = append(
               newName(declaration.parameter.name, optimize),
               declaration.initializer);
@@ -181,15 +209,9 @@ public class BlockBuilder {
       return expression;
     }
     if (optimizing) {
-      for (Statement statement : statements) {
-        if (statement instanceof DeclarationStatement) {
-          DeclarationStatement decl = (DeclarationStatement) statement;
-          if ((decl.modifiers & Modifier.FINAL) != 0
-              && decl.initializer != null
-              && decl.initializer.equals(expression)) {
-            return decl.parameter;
-          }
-        }
+      final DeclarationStatement decl = getComputedExpression(expression);
+      if (decl != null) {
+        return decl.parameter;
       }
     }
     DeclarationStatement declare = Expressions.declare(Modifier.FINAL, newName(
@@ -198,13 +220,38 @@ public class BlockBuilder {
     return declare.parameter;
   }
 
+  /**
+   * Returns the declaration of a final variable, in this block or an
+   * enclosing block, whose initializer is equal to a given expression; or
+   * null if there is none.
+   */
+  private DeclarationStatement getComputedExpression(Expression expression) {
+    for (BlockBuilder b = this; b != null; b = b.parent) {
+      final DeclarationStatement decl = b.expressionForReuse.get(expression);
+      if (decl != null) {
+        return decl;
+      }
+    }
+    return null;
+  }
+
   public void add(Statement statement) {
     statements.add(statement);
     if (statement instanceof DeclarationStatement) {
-      String name = ((DeclarationStatement) statement).parameter.name;
+      DeclarationStatement decl = (DeclarationStatement) statement;
+      String name = decl.parameter.name;
       if (!variables.add(name)) {
         throw new AssertionError("duplicate variable " + name);
       }
+      addExpressionForReuse(decl);
+    }
+  }
+
+  private void addExpressionForReuse(DeclarationStatement decl) {
+    if ((decl.modifiers & Modifier.FINAL) != 0
+        && decl.initializer != null
+        && !expressionForReuse.containsKey(decl.initializer)) {
+      expressionForReuse.put(decl.initializer, decl);
     }
   }
 
@@ -295,6 +342,13 @@ public class BlockBuilder {
         statements.add(oldStatement.accept(visitor));
       }
     }
+    // Variables may have been inlined, and initializers rewritten.
+    expressionForReuse.clear();
+    for (Statement statement : statements) {
+      if (statement instanceof DeclarationStatement) {
+        addExpressionForReuse((DeclarationStatement) statement);
+      }
+    }
   }
 
   /**
@@ -310,19 +364,35 @@ public class BlockBuilder {
   }
 
   /**
-   * Creates a name for a new variable, unique within this block.
+   * Creates a name for a new variable, unique within this block and the
+   * blocks that enclose it.
    */
   public String newName(String suggestion) {
-    int i = 0;
-    String candidate = suggestion;
+    if (!hasVariable(suggestion)) {
+      return suggestion;
+    }
+    // Start from the suffix after the last one generated for this
+    // suggestion, so that generating n names is O(n), not O(n ^ 2).
+    final Integer start = nextSuffix.get(suggestion);
+    int i = start == null ? 0 : start;
     for (;;) {
-      if (!variables.contains(candidate)) {
+      final String candidate = suggestion + (i++);
+      if (!hasVariable(candidate)) {
+        nextSuffix.put(suggestion, i);
         return candidate;
       }
-      candidate = suggestion + (i++);
     }
   }
 
+  private boolean hasVariable(String name) {
+    for (BlockBuilder b = this; b != null; b = b.parent) {
+      if (b.variables.contains(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public BlockBuilder append(Expression expression) {
     add(expression);
     return this;
@@ -18,6 +18,7 @@
 package net.hydromatic.linq4j.expressions;
 
 import java.lang.reflect.Type;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -74,9 +75,31 @@ public class BlockStatement extends Statement {
     Object o = null;
     for (Statement statement : statements) {
       o = statement.evaluate(evaluator);
+      if (evaluator.jump != null) {
+        break;
+      }
     }
     return o;
   }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof BlockStatement) {
+      final BlockStatement blockStatement = (BlockStatement) obj;
+      return hashCode() == blockStatement.hashCode()
+          && nodeType == blockStatement.nodeType
+          && statements.equals(blockStatement.statements);
+    }
+    return false;
+  }
+
+  @Override
+  protected int computeHashCode() {
+    return Arrays.hashCode(new Object[] {nodeType, statements});
+  }
 }
 
 // End BlockStatement.java
@@ -17,6 +17,8 @@
 */
 package net.hydromatic.linq4j.expressions;
 
+import java.util.Arrays;
+
 /**
  * Represents a catch statement in a try block.
  */
@@ -29,6 +31,24 @@ public class CatchBlock {
     this.parameter = parameter;
     this.body = body;
   }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof CatchBlock) {
+      final CatchBlock catchBlock = (CatchBlock) obj;
+      return parameter.equals(catchBlock.parameter)
+          && body.equals(catchBlock.body);
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(new Object[] {parameter, body});
+  }
 }
 
 // End CatchBlock.java
@@ -17,8 +17,11 @@
 */
 package net.hydromatic.linq4j.expressions;
 
+import net.hydromatic.linq4j.Linq4j;
+
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -63,6 +66,29 @@ public class ClassDeclaration extends MemberDeclaration {
         Expressions.acceptMemberDeclarations(memberDeclarations, visitor);
     return visitor.visit(this, members1);
   }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof ClassDeclaration) {
+      final ClassDeclaration classDeclaration = (ClassDeclaration) obj;
+      return modifier == classDeclaration.modifier
+          && name.equals(classDeclaration.name)
+          && memberDeclarations.equals(classDeclaration.memberDeclarations)
+          && Linq4j.equals(extended, classDeclaration.extended)
+          && Linq4j.equals(implemented, classDeclaration.implemented);
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(
+        new Object[] {
+          modifier, name, memberDeclarations, extended, implemented});
+  }
 }
 
 // End ClassDeclaration.java
@@ -18,6 +18,7 @@
 package net.hydromatic.linq4j.expressions;
 
 import java.lang.reflect.Type;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -42,7 +43,7 @@ public class ConditionalExpression extends AbstractNode {
 
   @Override
   void accept(ExpressionWriter writer, int lprec, int rprec) {
-    for (int i = 0; i < expressionList.size(); i += 2) {
+    for (int i = 0; i < expressionList.size() - 1; i += 2) {
       writer.append(i > 0 ? " else if (" : "if (")
           .append(expressionList.get(i))
           .append(") ")
@@ -53,6 +54,26 @@ public class ConditionalExpression extends AbstractNode {
           expressionList.size() - 1)));
     }
   }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof ConditionalExpression) {
+      final ConditionalExpression conditionalExpression =
+          (ConditionalExpression) obj;
+      return hashCode() == conditionalExpression.hashCode()
+          && nodeType == conditionalExpression.nodeType
+          && expressionList.equals(conditionalExpression.expressionList);
+    }
+    return false;
+  }
+
+  @Override
+  protected int computeHashCode() {
+    return Arrays.hashCode(new Object[] {nodeType, expressionList});
+  }
 }
 
 // End ConditionalExpression.java
@@ -17,6 +17,7 @@
 */
 package net.hydromatic.linq4j.expressions;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -32,7 +33,7 @@ import java.util.List;
  * </p>
  */
 public class ConditionalStatement extends Statement {
-  private final List<Node> expressionList;
+  public final List<Node> expressionList;
 
   public ConditionalStatement(List<Node> expressionList) {
     super(ExpressionType.Conditional, Void.TYPE);
@@ -40,27 +41,62 @@ public class ConditionalStatement extends Statement {
   }
 
   @Override
-  public ConditionalStatement accept(Visitor visitor) {
+  public Statement accept(Visitor visitor) {
     List<Node> list = Expressions.acceptNodes(expressionList, visitor);
-    if (!list.equals(expressionList)) {
-      return new ConditionalStatement(list);
-    }
-    return this;
+    return visitor.visit(this, list);
   }
 
   @Override
   void accept0(ExpressionWriter writer) {
-    for (int i = 0; i < expressionList.size(); i += 2) {
+    for (int i = 0; i < expressionList.size() - 1; i += 2) {
+      if (i > 0) {
+        writer.backUp();
+      }
       writer.append(i > 0 ? " else if (" : "if (")
           .append(expressionList.get(i))
           .append(") ")
           .append(Blocks.toBlock(expressionList.get(i + 1)));
     }
     if (expressionList.size() % 2 == 1) {
+      writer.backUp();
       writer.append(" else ").append(Blocks.toBlock(expressionList.get(
           expressionList.size() - 1)));
     }
   }
+
+  @Override
+  public Object evaluate(Evaluator evaluator) {
+    for (int i = 0; i < expressionList.size() - 1; i += 2) {
+      if ((Boolean) evaluator.evaluate(expressionList.get(i))) {
+        return evaluator.evaluate(expressionList.get(i + 1));
+      }
+    }
+    if (expressionList.size() % 2 == 1) {
+      return evaluator.evaluate(
+          expressionList.get(expressionList.size() - 1));
+    }
+    return null;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof ConditionalStatement) {
+      final ConditionalStatement conditionalStatement =
+          (ConditionalStatement) obj;
+      return hashCode() == conditionalStatement.hashCode()
+          && nodeType == conditionalStatement.nodeType
+          && expressionList.equals(conditionalStatement.expressionList);
+    }
+    return false;
+  }
+
+  @Override
+  protected int computeHashCode() {
+    return Arrays.hashCode(new Object[] {nodeType, expressionList});
+  }
 }
 
 // End ConditionalStatement.java
@@ -53,7 +53,7 @@ public class ConstantExpression extends Expression {
   }
 
   @Override
-  public int hashCode() {
+  protected int computeHashCode() {
     return value == null ? 1 : value.hashCode();
   }
 
@@ -61,9 +61,18 @@ public class ConstantExpression extends Expression {
   public boolean equals(Object obj) {
     // REVIEW: Should constants with the same value and different type
     // (e.g. 3L and 3) be considered equal.
+    //
+    // Constants with equal values but different types (e.g. "(String) null"
+    // and "(Integer) null") are different; otherwise CSE and interning
+    // would change the type of an expression.
+    //
+    // A sub-class (such as a placeholder for a constant in a generated class)
+    // is never equal to a plain constant.
     return obj == this
-           || obj instanceof ConstantExpression
-              && Linq4j.equals(value, ((ConstantExpression) obj).value);
+           || obj != null
+              && obj.getClass() == getClass()
+              && Linq4j.equals(value, ((ConstantExpression) obj).value)
+              && type.equals(((ConstantExpression) obj).type);
   }
 
   public Object evaluate(Evaluator evaluator) {
@@ -77,9 +86,26 @@ public class ConstantExpression extends Expression {
 
   @Override
   void accept(ExpressionWriter writer, int lprec, int rprec) {
+    if (!isLiteral(value)) {
+      final String name = writer.bindConstant(this);
+      if (name != null) {
+        writer.append(name);
+        return;
+      }
+    }
     write(writer, value, type);
   }
 
+  /** Returns whether a value can be written as a Java literal that, when
+   * evaluated, is equal to the value and has the same identity semantics.
+   * Other values (say a {@code BigDecimal}) can be written as Java code, but
+   * evaluating that code creates a new object each time. */
+  static boolean isLiteral(Object value) {
+    return value == null
+        || value instanceof String
+        || Primitive.isBox(value.getClass());
+  }
+
   private static ExpressionWriter write(ExpressionWriter writer,
       final Object value, Type type) {
     if (value == null) {
@@ -92,8 +118,9 @@ public class ConstantExpression extends Expression {
       }
     }
     if (value instanceof String) {
-      escapeString(writer.getBuf(), (String) value);
-      return writer;
+      final StringBuilder buf = new StringBuilder();
+      escapeString(buf, (String) value);
+      return writer.appendLiteral(buf);
     }
     final Primitive primitive = Primitive.of(type);
     if (primitive != null) {
@@ -22,6 +22,7 @@ import net.hydromatic.linq4j.function.Functions;
 
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -48,7 +49,7 @@ public class ConstructorDeclaration extends MemberDeclaration {
     return visitor.visit(this, parameters, body);
   }
 
-  public void accept(ExpressionWriter writer) {
+  public void accept(final ExpressionWriter writer) {
     String modifiers = Modifier.toString(modifier);
     writer.append(modifiers);
     if (!modifiers.isEmpty()) {
@@ -60,16 +61,34 @@ public class ConstructorDeclaration extends MemberDeclaration {
             Functions.adapt(parameters,
                 new Function1<ParameterExpression, String>() {
                   public String apply(ParameterExpression parameter) {
-                    final String modifiers =
-                        Modifier.toString(parameter.modifier);
-                    return modifiers + (modifiers.isEmpty() ? "" : " ")
-                        + Types.className(parameter.getType()) + " "
-                        + parameter.name;
+                    return parameter.declString(writer);
                   }
                 }))
         .append(' ').append(body);
     writer.newlineAndIndent();
   }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof ConstructorDeclaration) {
+      final ConstructorDeclaration constructorDeclaration =
+          (ConstructorDeclaration) obj;
+      return modifier == constructorDeclaration.modifier
+          && resultType.equals(constructorDeclaration.resultType)
+          && parameters.equals(constructorDeclaration.parameters)
+          && body.equals(constructorDeclaration.body);
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(
+        new Object[] {modifier, resultType, parameters, body});
+  }
 }
 
 // End ConstructorDeclaration.java
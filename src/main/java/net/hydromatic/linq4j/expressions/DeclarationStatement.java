@@ -17,7 +17,10 @@
 */
 package net.hydromatic.linq4j.expressions;
 
+import net.hydromatic.linq4j.Linq4j;
+
 import java.lang.reflect.Modifier;
+import java.util.Arrays;
 
 /**
  * Expression that declares and optionally initializes a variable.
@@ -50,7 +53,8 @@ public class DeclarationStatement extends Statement {
     if (!modifiers.isEmpty()) {
       writer.append(modifiers).append(' ');
     }
-    writer.append(parameter.type).append(' ').append(parameter.name);
+    writer.append(parameter.type).append(' ')
+        .append(writer.declare(parameter));
     if (initializer != null) {
       writer.append(" = ").append(initializer);
     }
@@ -58,6 +62,13 @@ public class DeclarationStatement extends Statement {
     writer.newlineAndIndent();
   }
 
+  @Override
+  public Object evaluate(Evaluator evaluator) {
+    evaluator.push(parameter,
+        initializer == null ? null : initializer.evaluate(evaluator));
+    return null;
+  }
+
   public void accept2(ExpressionWriter writer, boolean withType) {
     if (withType) {
       final String modifiers = Modifier.toString(this.modifiers);
@@ -68,11 +79,34 @@ public class DeclarationStatement extends Statement {
     } else {
       writer.append(", ");
     }
-    writer.append(parameter.name);
+    writer.append(writer.declare(parameter));
     if (initializer != null) {
       writer.append(" = ").append(initializer);
     }
   }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof DeclarationStatement) {
+      final DeclarationStatement declarationStatement =
+          (DeclarationStatement) obj;
+      return hashCode() == declarationStatement.hashCode()
+          && nodeType == declarationStatement.nodeType
+          && modifiers == declarationStatement.modifiers
+          && parameter.equals(declarationStatement.parameter)
+          && Linq4j.equals(initializer, declarationStatement.initializer);
+    }
+    return false;
+  }
+
+  @Override
+  protected int computeHashCode() {
+    return Arrays.hashCode(
+        new Object[] {nodeType, modifiers, parameter, initializer});
+  }
 }
 
 // End DeclarationStatement.java
@@ -17,49 +17,272 @@
 */
 package net.hydromatic.linq4j.expressions;
 
+import net.hydromatic.linq4j.function.Function;
+
+import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Holds context for evaluating expressions.
+ *
+ * <p>Each variable has a fixed slot in the frame, assigned once per function
+ * by {@link #resolve(FunctionExpression, Map)}. The resolve pass also
+ * replaces each use of a variable with a {@link Slot} that knows its index,
+ * so reading or writing a variable is an array access.</p>
  */
 class Evaluator {
-  final List<ParameterExpression> parameters =
-      new ArrayList<ParameterExpression>();
-  final List<Object> values = new ArrayList<Object>();
+  final Map<ParameterExpression, Integer> slots;
+  final Object[] frame;
+
+  /** Kind of jump in progress ({@link GotoExpressionKind#Return},
+   * {@link GotoExpressionKind#Break} or {@link GotoExpressionKind#Continue}),
+   * or null if statements are executing normally. Blocks and loops look at
+   * this after evaluating each statement. */
+  GotoExpressionKind jump;
 
-  Evaluator() {
+  Evaluator(Map<ParameterExpression, Integer> slots, Object[] frame) {
+    assert frame.length == slots.size();
+    this.slots = slots;
+    this.frame = frame;
   }
 
-  void push(ParameterExpression parameter, Object value) {
-    parameters.add(parameter);
-    values.add(value);
+  /** Assigns a frame slot to each variable declared in a function: its
+   * parameters, variables declared in its body, and the parameters and
+   * variables of any lambdas nested within it. Records the slots in
+   * {@code slots}, and returns a copy of the function in which every
+   * declaration and use of those variables is a {@link Slot}.
+   *
+   * <p>A variable used inside a node whose children a {@link Visitor} does
+   * not visit (such as a {@link TryStatement}) is not replaced, and is
+   * looked up in {@code slots} each time it is accessed.</p> */
+  static <F extends Function<?>> FunctionExpression<F> resolve(
+      FunctionExpression<F> expression,
+      final Map<ParameterExpression, Integer> slots) {
+    // First pass assigns slots. A second pass is needed to replace uses,
+    // because a function's body is visited before its parameters.
+    final Map<ParameterExpression, Slot> resolved =
+        new IdentityHashMap<ParameterExpression, Slot>();
+    expression.accept(
+        new Visitor() {
+          @Override
+          public DeclarationStatement visit(
+              DeclarationStatement declarationStatement,
+              ParameterExpression parameter, Expression initializer) {
+            define(parameter);
+            return super.visit(declarationStatement, parameter, initializer);
+          }
+
+          @Override
+          public Expression visit(FunctionExpression functionExpression,
+              BlockStatement body, List<ParameterExpression> parameterList) {
+            for (ParameterExpression parameter : parameterList) {
+              define(parameter);
+            }
+            return super.visit(functionExpression, body, parameterList);
+          }
+
+          private void define(ParameterExpression parameter) {
+            if (!slots.containsKey(parameter)) {
+              final int index = slots.size();
+              slots.put(parameter, index);
+              resolved.put(parameter, new Slot(parameter, index));
+            }
+          }
+        });
+    //noinspection unchecked
+    return (FunctionExpression<F>) expression.accept(
+        new Visitor() {
+          @Override
+          public Expression visit(ParameterExpression parameterExpression) {
+            return slot(parameterExpression);
+          }
+
+          @Override
+          public DeclarationStatement visit(
+              DeclarationStatement declarationStatement,
+              ParameterExpression parameter, Expression initializer) {
+            return super.visit(declarationStatement, slot(parameter),
+                initializer);
+          }
+
+          @Override
+          public Expression visit(FunctionExpression functionExpression,
+              BlockStatement body, List<ParameterExpression> parameterList) {
+            final List<ParameterExpression> list =
+                new ArrayList<ParameterExpression>();
+            for (ParameterExpression parameter : parameterList) {
+              list.add(slot(parameter));
+            }
+            return super.visit(functionExpression, body, list);
+          }
+
+          private ParameterExpression slot(ParameterExpression parameter) {
+            final Slot slot = resolved.get(parameter);
+            return slot == null ? parameter : slot;
+          }
+        });
   }
 
-  void pop(int n) {
-    while (n > 0) {
-      parameters.remove(parameters.size() - 1);
-      values.remove(values.size() - 1);
-      --n;
-    }
+  void push(ParameterExpression parameter, Object value) {
+    frame[slot(slots, parameter)] = value;
   }
 
   Object peek(ParameterExpression param) {
-    for (int i = parameters.size() - 1; i >= 0; i--) {
-      if (parameters.get(i) == param) {
-        return values.get(i);
-      }
+    return frame[slot(slots, param)];
+  }
+
+  /** Returns the index in the frame of a variable. */
+  static int slot(Map<ParameterExpression, Integer> slots,
+      ParameterExpression param) {
+    if (param instanceof Slot) {
+      return ((Slot) param).index;
     }
-    throw new RuntimeException("parameter " + param + " not on stack");
+    final Integer slot = slots.get(param);
+    if (slot == null) {
+      throw new RuntimeException("parameter " + param + " not on stack");
+    }
+    return slot;
   }
 
   Object evaluate(Node expression) {
     return ((AbstractNode) expression).evaluate(this);
   }
 
-  void clear() {
-    parameters.clear();
-    values.clear();
+  /** Evaluates a list of expressions, returning their values in a new
+   * array. If the list is empty, returns a shared empty array. */
+  Object[] evaluate(List<Expression> expressions) {
+    final int size = expressions.size();
+    if (size == 0) {
+      return Invoker.NO_ARGS;
+    }
+    final Object[] values = new Object[size];
+    for (int i = 0; i < size; i++) {
+      values[i] = expressions.get(i).evaluate(this);
+    }
+    return values;
+  }
+
+  /** Returns the type in which a binary operator on operands of the given
+   * types is evaluated, per Java's binary numeric promotion; or
+   * {@link Primitive#BOOLEAN} if both are boolean; or null if the operands
+   * are not primitive (or boxed primitive) values. */
+  static Primitive promote(Type type0, Type type1) {
+    final Primitive primitive0 = Primitive.ofBoxOr(type0);
+    final Primitive primitive1 = Primitive.ofBoxOr(type1);
+    if (primitive0 == Primitive.BOOLEAN && primitive1 == Primitive.BOOLEAN) {
+      return Primitive.BOOLEAN;
+    }
+    if (!isArithmetic(primitive0) || !isArithmetic(primitive1)) {
+      return null;
+    }
+    if (primitive0 == Primitive.DOUBLE || primitive1 == Primitive.DOUBLE) {
+      return Primitive.DOUBLE;
+    }
+    if (primitive0 == Primitive.FLOAT || primitive1 == Primitive.FLOAT) {
+      return Primitive.FLOAT;
+    }
+    if (primitive0 == Primitive.LONG || primitive1 == Primitive.LONG) {
+      return Primitive.LONG;
+    }
+    return Primitive.INT;
+  }
+
+  /** Returns the type in which a unary operator on an operand of the given
+   * type is evaluated, per Java's unary numeric promotion. */
+  static Primitive promote(Type type) {
+    final Primitive primitive = Primitive.ofBoxOr(type);
+    if (primitive == Primitive.BOOLEAN) {
+      return primitive;
+    }
+    if (!isArithmetic(primitive)) {
+      return null;
+    }
+    switch (primitive) {
+    case LONG:
+    case FLOAT:
+    case DOUBLE:
+      return primitive;
+    default:
+      return Primitive.INT;
+    }
+  }
+
+  private static boolean isArithmetic(Primitive primitive) {
+    return primitive != null
+        && (primitive.isNumeric() || primitive == Primitive.CHAR);
+  }
+
+  static int toInt(Object value) {
+    return value instanceof Character
+        ? (Character) value
+        : ((Number) value).intValue();
+  }
+
+  static long toLong(Object value) {
+    return value instanceof Character
+        ? (Character) value
+        : ((Number) value).longValue();
+  }
+
+  static float toFloat(Object value) {
+    return value instanceof Character
+        ? (Character) value
+        : ((Number) value).floatValue();
+  }
+
+  static double toDouble(Object value) {
+    return value instanceof Character
+        ? (Character) value
+        : ((Number) value).doubleValue();
+  }
+
+  /** Converts a value to a given primitive type, as a Java cast would, and
+   * boxes it. Returns the value unchanged if it already has the right type,
+   * or if {@code primitive} is null or not a numeric type. */
+  static Object convert(Object value, Primitive primitive) {
+    if (value == null
+        || primitive == null
+        || primitive.boxClass == null
+        || primitive.boxClass.isInstance(value)) {
+      return value;
+    }
+    switch (primitive) {
+    case BYTE:
+      return (byte) toInt(value);
+    case CHAR:
+      return (char) toInt(value);
+    case SHORT:
+      return (short) toInt(value);
+    case INT:
+      return toInt(value);
+    case LONG:
+      return toLong(value);
+    case FLOAT:
+      return toFloat(value);
+    case DOUBLE:
+      return toDouble(value);
+    default:
+      return value;
+    }
+  }
+
+  /** Variable whose slot in the frame has been assigned by
+   * {@link Evaluator#resolve(FunctionExpression, Map)}. */
+  static class Slot extends ParameterExpression {
+    final int index;
+
+    Slot(ParameterExpression parameter, int index) {
+      super(parameter.modifier, parameter.type, parameter.name);
+      this.index = index;
+    }
+
+    @Override
+    public Object evaluate(Evaluator evaluator) {
+      return evaluator.frame[index];
+    }
   }
 }
 
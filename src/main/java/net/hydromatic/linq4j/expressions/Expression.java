@@ -59,6 +59,32 @@ public abstract class Expression extends AbstractNode {
   public boolean canReduce() {
     return false;
   }
+
+  // The following methods evaluate this expression to a primitive value. A
+  // parent calls the method for the type in which it does its arithmetic,
+  // so nested arithmetic does not box intermediate results. Subclasses that
+  // can compute the primitive value directly override them; the defaults
+  // unbox the value returned by evaluate.
+
+  boolean evaluateBoolean(Evaluator evaluator) {
+    return (Boolean) evaluate(evaluator);
+  }
+
+  int evaluateInt(Evaluator evaluator) {
+    return Evaluator.toInt(evaluate(evaluator));
+  }
+
+  long evaluateLong(Evaluator evaluator) {
+    return Evaluator.toLong(evaluate(evaluator));
+  }
+
+  float evaluateFloat(Evaluator evaluator) {
+    return Evaluator.toFloat(evaluate(evaluator));
+  }
+
+  double evaluateDouble(Evaluator evaluator) {
+    return Evaluator.toDouble(evaluate(evaluator));
+  }
 }
 
 // End Expression.java
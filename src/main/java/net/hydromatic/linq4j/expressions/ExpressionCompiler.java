@@ -0,0 +1,929 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.linq4j.expressions;
+
+import net.hydromatic.linq4j.function.Function;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.tools.*;
+
+/**
+ * Compiles a {@link FunctionExpression} into a Java class that implements
+ * the function interface directly.
+ *
+ * <p>The generated code is the Java source that
+ * {@link Expressions#toString(Node)} produces for the expression, wrapped in
+ * a class that has a static factory method. It is compiled in-process by the
+ * platform Java compiler and loaded into its own class loader. Invoking the
+ * resulting function is an ordinary virtual call, which the JIT can inline.
+ * </p>
+ *
+ * <p>Compiled classes are held in a {@link Cache}, so that compiling an
+ * expression that has the same structure as one compiled previously does not
+ * generate or load any code. The structure is found by normalizing the
+ * expression: its variables are renamed, and constants that have no literal
+ * form are replaced by placeholders. Source code is generated only if the
+ * normalized expression is not in the cache.</p>
+ *
+ * <p>Compilation requires a JDK, not just a JRE. If there is no compiler, or
+ * if the expression cannot be converted to valid Java (for example, if it
+ * calls a method that is not public), the compile methods return null, and
+ * the caller should fall back to the interpreter; see
+ * {@link FunctionExpression#compile()}.</p>
+ */
+public final class ExpressionCompiler {
+  private static final String CLASS_NAME_PREFIX = "Linq4jFunction";
+
+  private static final String FACTORY_METHOD_NAME = "create";
+
+  private static final AtomicInteger SEQ = new AtomicInteger();
+
+  /** Default maximum number of classes in the cache. */
+  public static final int DEFAULT_CACHE_SIZE = 256;
+
+  private static final Cache CACHE = new Cache(DEFAULT_CACHE_SIZE);
+
+  /** Value in the cache for source code that did not compile. */
+  private static final Object FAILED = new Object();
+
+  private ExpressionCompiler() {
+    throw new AssertionError("no instances");
+  }
+
+  /**
+   * Returns whether there is a Java compiler in this JVM.
+   */
+  public static boolean isAvailable() {
+    return CompilerHolder.COMPILER != null;
+  }
+
+  /**
+   * Returns the cache of compiled classes.
+   */
+  public static Cache getCache() {
+    return CACHE;
+  }
+
+  /**
+   * Compiles a function expression to an instance of its function type,
+   * or returns null if the expression cannot be compiled.
+   */
+  public static <F extends Function<?>> F compile(
+      FunctionExpression<F> expression) {
+    final Unit unit = normalize(expression.optimize());
+    if (unit == null) {
+      return null;
+    }
+    final Class<?> factoryClass = CACHE.get(unit,
+        parentClassLoader(Thread.currentThread().getContextClassLoader()));
+    if (factoryClass == null) {
+      return null;
+    }
+    return newFunction(factoryClass, unit.constants, expression);
+  }
+
+  /**
+   * Compiles a factory class whose factory method returns the value of a
+   * Java expression, and returns that value; or returns null if the code does
+   * not compile. The class is held in the cache, so each expression is
+   * compiled once.
+   *
+   * @param expression Java source code of an expression
+   * @param clazz Class whose class loader, if it can see linq4j, the
+   *   generated class delegates to
+   */
+  static Object create(String expression, Class<?> clazz) {
+    final String body = "  public static Object " + FACTORY_METHOD_NAME
+        + "(Object[] $constants) {\n"
+        + "    return " + expression + ";\n"
+        + "  }\n";
+    final Unit unit = new Unit(body, Collections.emptyList(),
+        Collections.<Type>emptyList());
+    final Class<?> factoryClass =
+        CACHE.get(unit, parentClassLoader(clazz.getClassLoader()));
+    if (factoryClass == null) {
+      return null;
+    }
+    try {
+      return factoryClass.getMethod(FACTORY_METHOD_NAME, Object[].class)
+          .invoke(null, (Object) new Object[0]);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Converts a function expression to a unit whose shape is the normalized
+   * expression, or returns null if the expression has no body.
+   *
+   * <p>Each variable is replaced by a variable named "$v0", "$v1" etc., in
+   * order of first use, and each constant that has no literal form (see
+   * {@link ConstantExpression#isLiteral(Object)}) by a placeholder "$c0",
+   * "$c1" etc. whose value becomes an argument to the factory method.
+   * Thus expressions that differ only in the names of variables or the values
+   * of such constants have equal shapes. No source code is generated until
+   * the cache needs to compile the unit.</p>
+   *
+   * <p>If the expression contains a node whose children a {@link Visitor}
+   * does not visit, such as a {@link TryStatement}, the unit is created by
+   * {@link #translate(FunctionExpression)} instead, and its shape is its
+   * source code.</p>
+   */
+  static Unit normalize(FunctionExpression<?> expression) {
+    if (expression.body == null) {
+      return null;
+    }
+    final Normalizer normalizer = new Normalizer();
+    final Expression normalized;
+    try {
+      normalized = expression.accept(normalizer);
+    } catch (RuntimeException e) {
+      // Some node cannot be visited.
+      return translate(expression);
+    }
+    if (!normalizer.complete) {
+      return translate(expression);
+    }
+    return new Unit(normalized, normalizer.constants, normalizer.types);
+  }
+
+  /** Generates the source code of the body of a factory class for a
+   * normalized expression, or returns null if the expression cannot be
+   * converted to Java. */
+  private static String generate(Expression expression, List<Type> types) {
+    final ExpressionWriter writer = new ExpressionWriter(true);
+    try {
+      writer.write(expression);
+    } catch (RuntimeException e) {
+      // Some node cannot be un-parsed.
+      return null;
+    }
+    return factory(types, writer);
+  }
+
+  /**
+   * Converts a function expression to the source code of the body of a
+   * factory class, or returns null if the expression cannot be converted to
+   * Java. The unit's shape is its source code.
+   *
+   * <p>Constants that have no literal form (see
+   * {@link ConstantExpression#isLiteral(Object)}) become arguments to the
+   * factory method, so the function sees the same objects as the
+   * interpreter would. Variables are renamed. Thus expressions that differ
+   * only in the names of variables or the values of such constants generate
+   * the same code.</p>
+   */
+  static Unit translate(FunctionExpression<?> expression) {
+    if (expression.body == null) {
+      return null;
+    }
+    final ExpressionWriter writer = new ExpressionWriter(true);
+    writer.bindConstants();
+    writer.normalizeNames();
+    try {
+      writer.write(expression);
+    } catch (RuntimeException e) {
+      // Some node cannot be un-parsed.
+      return null;
+    }
+    final List<Object> constants = new ArrayList<Object>();
+    final List<Type> types = new ArrayList<Type>();
+    for (ConstantExpression constant : writer.getBoundConstants()) {
+      constants.add(constant.value);
+      types.add(constant.type);
+    }
+    final String body = factory(types, writer);
+    return new Unit(body, constants, types);
+  }
+
+  /** Returns the source code of a factory method that declares a variable
+   * "$c<i>i</i>" for each constant and returns the expression that has been
+   * written to {@code writer}. */
+  private static String factory(List<Type> types, ExpressionWriter writer) {
+    final StringBuilder buf = new StringBuilder()
+        .append("  public static Object ").append(FACTORY_METHOD_NAME)
+        .append("(Object[] $constants) {\n");
+    for (int i = 0; i < types.size(); i++) {
+      final String typeName = declaredClassName(types.get(i));
+      buf.append("    final ").append(typeName).append(" $c").append(i)
+          .append(" = (").append(typeName).append(") $constants[").append(i)
+          .append("];\n");
+    }
+    buf.append("    return ").append(writer.getBuf()).append(";\n")
+        .append("  }\n");
+    return buf.toString();
+  }
+
+  /** Returns the name of the type with which to declare a variable that
+   * holds a constant. If the type is not public, uses {@code Object}; code
+   * that calls methods on the constant will not compile, and the function
+   * will be interpreted. */
+  private static String declaredClassName(Type type) {
+    final Type rawType = type instanceof ParameterizedType
+        ? ((ParameterizedType) type).getRawType()
+        : type;
+    if (rawType instanceof Class
+        && Modifier.isPublic(((Class) rawType).getModifiers())) {
+      return Types.className(type);
+    }
+    return "Object";
+  }
+
+  /**
+   * Compiles a unit to a factory class that is loaded by a child of a given
+   * class loader, or returns null if the code does not compile. Call
+   * {@link #newFunction} to create an instance of the function.
+   */
+  static Class<?> compileClass(Unit unit, ClassLoader parent) {
+    final JavaCompiler compiler = CompilerHolder.COMPILER;
+    if (compiler == null) {
+      return null;
+    }
+    final String body = unit.body();
+    if (body == null) {
+      return null;
+    }
+    final String className = CLASS_NAME_PREFIX + SEQ.getAndIncrement();
+    final String source = "public final class " + className + " {\n"
+        + body
+        + "}\n";
+    final Map<String, byte[]> classes = compile(compiler, className, source);
+    if (classes == null) {
+      return null;
+    }
+    try {
+      return new ByteArrayClassLoader(parent, classes)
+          .loadClass(className);
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (LinkageError e) {
+      return null;
+    }
+  }
+
+  /**
+   * Creates an instance of a function, given a class created by
+   * {@link #compileClass} and the values of its constants. Returns null if
+   * the instance does not implement the function type of the expression.
+   */
+  static <F extends Function<?>> F newFunction(Class<?> factoryClass,
+      List<Object> constants, FunctionExpression<F> expression) {
+    final Object o;
+    try {
+      o = factoryClass.getMethod(FACTORY_METHOD_NAME, Object[].class)
+          .invoke(null, (Object) constants.toArray());
+    } catch (Exception e) {
+      return null;
+    }
+    if (!Types.toClass(expression.type).isInstance(o)) {
+      return null;
+    }
+    //noinspection unchecked
+    return (F) o;
+  }
+
+  /** Compiles a source file, returning the bytecode of each generated class,
+   * or null if there are errors. */
+  private static Map<String, byte[]> compile(JavaCompiler compiler,
+      String className, String source) {
+    final DiagnosticCollector<JavaFileObject> diagnostics =
+        new DiagnosticCollector<JavaFileObject>();
+    final MemoryFileManager fileManager =
+        new MemoryFileManager(
+            compiler.getStandardFileManager(diagnostics, null, null));
+    final List<String> options =
+        Arrays.asList("-classpath", classPath(), "-g:none", "-nowarn",
+            "-proc:none");
+    final JavaFileObject file = new SourceFileObject(className, source);
+    final Boolean success;
+    try {
+      success = compiler.getTask(null, fileManager, diagnostics, options,
+          null, Collections.singletonList(file)).call();
+    } catch (RuntimeException e) {
+      return null;
+    }
+    if (success == null || !success) {
+      return null;
+    }
+    return fileManager.classBytes();
+  }
+
+  /** Returns the class path for compiling generated code: the class path of
+   * the JVM, plus the location of linq4j itself, which may have been loaded
+   * from somewhere else (for example, inside a container). */
+  private static String classPath() {
+    final StringBuilder buf =
+        new StringBuilder(System.getProperty("java.class.path", ""));
+    final CodeSource codeSource =
+        ExpressionCompiler.class.getProtectionDomain().getCodeSource();
+    if (codeSource != null) {
+      final URL location = codeSource.getLocation();
+      if (location != null && "file".equals(location.getProtocol())) {
+        try {
+          final String path = new File(location.toURI()).getPath();
+          buf.append(File.pathSeparatorChar).append(path);
+        } catch (Exception e) {
+          // ignore; rely on java.class.path
+        }
+      }
+    }
+    return buf.toString();
+  }
+
+  /** Returns the class loader for generated classes to delegate to. Prefers
+   * a given class loader, usually the thread's context class loader, which is
+   * more likely to see user classes, provided that it can see linq4j. */
+  private static ClassLoader parentClassLoader(ClassLoader preferredLoader) {
+    final ClassLoader linq4jLoader = ExpressionCompiler.class.getClassLoader();
+    if (preferredLoader != null && preferredLoader != linq4jLoader) {
+      try {
+        if (preferredLoader.loadClass(Function.class.getName())
+            == Function.class) {
+          return preferredLoader;
+        }
+      } catch (ClassNotFoundException e) {
+        // fall through
+      }
+    }
+    return linq4jLoader;
+  }
+
+  /** Shape of a generated class, and the values of the constants that must
+   * be passed to its factory method. The shape is either a normalized
+   * expression or source code; units with equal shapes generate the same
+   * class. */
+  static class Unit {
+    final Object shape;
+    final List<Object> constants;
+    private final List<Type> types;
+
+    Unit(Object shape, List<Object> constants, List<Type> types) {
+      this.shape = shape;
+      this.constants = constants;
+      this.types = types;
+    }
+
+    /** Returns the source code of the body of the generated class, or null
+     * if the expression cannot be converted to Java. */
+    String body() {
+      return shape instanceof String
+          ? (String) shape
+          : generate((Expression) shape, types);
+    }
+  }
+
+  /** Key of a class in the cache. Two expressions with the same shape
+   * generate different classes if the classes delegate to different class
+   * loaders, because the same name may denote different classes.
+   *
+   * <p>The key refers to the class loader weakly. A key that is used to look
+   * up the cache holds the shape strongly; once the key is stored in the
+   * cache, it reaches the shape only through its {@link EntryReference}, so
+   * that neither the shape nor the class loader is pinned by the cache.</p> */
+  private static class Key {
+    private final int hash;
+    private final WeakReference<ClassLoader> parent;
+    private Object shape;
+    private EntryReference entry;
+
+    Key(Object shape, ClassLoader parent) {
+      this.hash = shape.hashCode() * 31 + System.identityHashCode(parent);
+      this.shape = shape;
+      this.parent = new WeakReference<ClassLoader>(parent);
+    }
+
+    /** Makes this key refer to its entry softly, and releases the shape. */
+    void store(Entry entry, ReferenceQueue<Entry> queue) {
+      this.entry = new EntryReference(entry, this, queue);
+      this.shape = null;
+    }
+
+    /** Returns the shape, or null if the entry has been cleared. */
+    Object shape() {
+      if (shape != null) {
+        return shape;
+      }
+      final Entry e = entry.get();
+      return e == null ? null : e.shape;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj == this) {
+        return true;
+      }
+      if (!(obj instanceof Key) || hash != ((Key) obj).hash) {
+        return false;
+      }
+      final Key key = (Key) obj;
+      final ClassLoader loader = parent.get();
+      final Object s = shape();
+      return loader != null
+          && loader == key.parent.get()
+          && s != null
+          && s.equals(key.shape());
+    }
+  }
+
+  /** Entry in the cache: a class, or {@link #FAILED}, and the shape of the
+   * unit from which it was compiled. */
+  private static class Entry {
+    final Object shape;
+    final Object value;
+
+    Entry(Object shape, Object value) {
+      this.shape = shape;
+      this.value = value;
+    }
+  }
+
+  /** Soft reference from a key to its entry. When the garbage collector
+   * clears it, the reference is queued, and the cache removes the key. */
+  private static class EntryReference extends SoftReference<Entry> {
+    final Key key;
+
+    EntryReference(Entry entry, Key key, ReferenceQueue<Entry> queue) {
+      super(entry, queue);
+      this.key = key;
+    }
+  }
+
+  /** Visitor that normalizes an expression; see
+   * {@link ExpressionCompiler#normalize(FunctionExpression)}. */
+  private static class Normalizer extends Visitor {
+    private final Map<ParameterExpression, ParameterExpression> variables =
+        new IdentityHashMap<ParameterExpression, ParameterExpression>();
+    private final Map<Object, ConstantExpression> placeholders =
+        new IdentityHashMap<Object, ConstantExpression>();
+    /** Values of the constants, in order of their placeholders. */
+    final List<Object> constants = new ArrayList<Object>();
+    /** Types of the constants, in order of their placeholders. */
+    final List<Type> types = new ArrayList<Type>();
+    /** Whether every node has been visited; false if the expression contains
+     * a node whose children this visitor cannot reach. */
+    boolean complete = true;
+
+    private ParameterExpression variable(ParameterExpression parameter) {
+      ParameterExpression variable = variables.get(parameter);
+      if (variable == null) {
+        variable = new Variable(parameter.modifier, parameter.type,
+            "$v" + variables.size());
+        variables.put(parameter, variable);
+      }
+      return variable;
+    }
+
+    private List<ParameterExpression> variables(
+        List<ParameterExpression> parameters) {
+      final List<ParameterExpression> list =
+          new ArrayList<ParameterExpression>();
+      for (ParameterExpression parameter : parameters) {
+        list.add(variable(parameter));
+      }
+      return list;
+    }
+
+    @Override
+    public Expression visit(ParameterExpression parameterExpression) {
+      return variable(parameterExpression);
+    }
+
+    @Override
+    public ConstantExpression visit(ConstantExpression constantExpression) {
+      final Object value = constantExpression.value;
+      if (ConstantExpression.isLiteral(value)) {
+        return constantExpression;
+      }
+      ConstantExpression placeholder = placeholders.get(value);
+      if (placeholder == null) {
+        placeholder =
+            new Placeholder(constantExpression.type, constants.size());
+        placeholders.put(value, placeholder);
+        constants.add(value);
+        types.add(constantExpression.type);
+      }
+      return placeholder;
+    }
+
+    @Override
+    public DeclarationStatement visit(
+        DeclarationStatement declarationStatement,
+        ParameterExpression parameter, Expression initializer) {
+      return super.visit(declarationStatement, variable(parameter),
+          initializer);
+    }
+
+    @Override
+    public Expression visit(FunctionExpression functionExpression,
+        BlockStatement body, List<ParameterExpression> parameterList) {
+      return super.visit(functionExpression, body, variables(parameterList));
+    }
+
+    @Override
+    public MemberDeclaration visit(MethodDeclaration methodDeclaration,
+        List<ParameterExpression> parameters, BlockStatement body) {
+      return super.visit(methodDeclaration, variables(parameters), body);
+    }
+
+    @Override
+    public MemberDeclaration visit(FieldDeclaration fieldDeclaration,
+        ParameterExpression parameter, Expression initializer) {
+      return super.visit(fieldDeclaration, variable(parameter), initializer);
+    }
+
+    @Override
+    public Expression visit(TernaryExpression ternaryExpression,
+        Expression expression0, Expression expression1,
+        Expression expression2) {
+      // Keep the type; Expressions.makeTernary would deduce it from the
+      // operands, and a placeholder is not a null constant.
+      return ternaryExpression.expression0 == expression0
+             && ternaryExpression.expression1 == expression1
+             && ternaryExpression.expression2 == expression2
+          ? ternaryExpression
+          : new TernaryExpression(ternaryExpression.nodeType,
+              ternaryExpression.type, expression0, expression1, expression2);
+    }
+
+    @Override
+    public Statement visit(ThrowStatement throwStatement) {
+      complete = false;
+      return throwStatement;
+    }
+
+    @Override
+    public Expression visit(LambdaExpression lambdaExpression) {
+      complete = false;
+      return lambdaExpression;
+    }
+
+    @Override
+    public Expression visit(DynamicExpression dynamicExpression) {
+      complete = false;
+      return dynamicExpression;
+    }
+
+    @Override
+    public Expression visit(InvocationExpression invocationExpression) {
+      complete = false;
+      return invocationExpression;
+    }
+
+    @Override
+    public Expression visit(ListInitExpression listInitExpression) {
+      complete = false;
+      return listInitExpression;
+    }
+
+    @Override
+    public Statement visit(SwitchStatement switchStatement) {
+      complete = false;
+      return switchStatement;
+    }
+
+    @Override
+    public Statement visit(TryStatement tryStatement) {
+      complete = false;
+      return tryStatement;
+    }
+
+    @Override
+    public Expression visit(MemberInitExpression memberInitExpression) {
+      complete = false;
+      return memberInitExpression;
+    }
+
+    @Override
+    public Expression visit(TypeBinaryExpression typeBinaryExpression,
+        Expression expression) {
+      complete = false;
+      return typeBinaryExpression;
+    }
+
+    @Override
+    public ClassDeclaration visit(ClassDeclaration classDeclaration,
+        List<MemberDeclaration> memberDeclarations) {
+      complete = false;
+      return classDeclaration;
+    }
+
+    @Override
+    public MemberDeclaration visit(
+        ConstructorDeclaration constructorDeclaration,
+        List<ParameterExpression> parameters, BlockStatement body) {
+      complete = false;
+      return constructorDeclaration;
+    }
+  }
+
+  /** Variable in a normalized expression. Unlike other parameters, which are
+   * equal only to themselves, variables with the same name, type and
+   * modifiers are equal. */
+  private static class Variable extends ParameterExpression {
+    Variable(int modifier, Type type, String name) {
+      super(modifier, type, name);
+    }
+
+    @Override
+    protected int computeHashCode() {
+      return (name.hashCode() * 31 + type.hashCode()) * 31 + modifier;
+    }
+
+    // Hash code is cached by AbstractNode; see computeHashCode.
+    // CHECKSTYLE: IGNORE 1
+    @Override
+    public boolean equals(Object obj) {
+      return obj == this
+          || obj instanceof Variable
+          && name.equals(((Variable) obj).name)
+          && type.equals(((Variable) obj).type)
+          && modifier == ((Variable) obj).modifier;
+    }
+  }
+
+  /** Placeholder for a constant in a normalized expression. It is written as
+   * the variable in which the factory method stores the constant. */
+  private static class Placeholder extends ConstantExpression {
+    private final int ordinal;
+
+    Placeholder(Type type, int ordinal) {
+      super(type, null);
+      this.ordinal = ordinal;
+    }
+
+    @Override
+    protected int computeHashCode() {
+      return ordinal * 31 + type.hashCode();
+    }
+
+    // Hash code is cached by AbstractNode; see computeHashCode.
+    // CHECKSTYLE: IGNORE 1
+    @Override
+    public boolean equals(Object obj) {
+      return obj == this
+          || obj instanceof Placeholder
+          && ordinal == ((Placeholder) obj).ordinal
+          && type.equals(((Placeholder) obj).type);
+    }
+
+    @Override
+    void accept(ExpressionWriter writer, int lprec, int rprec) {
+      writer.append("$c" + ordinal);
+    }
+  }
+
+  /**
+   * Cache of compiled classes.
+   *
+   * <p>The key is the shape of the unit, usually the normalized expression
+   * (see {@link ExpressionCompiler#normalize(FunctionExpression)}), together
+   * with the class loader to which the class delegates. Source code is
+   * generated only when a unit is not found. If code fails to compile, the
+   * failure is cached too, so that the compiler is not invoked again.</p>
+   *
+   * <p>When the cache is full, the least recently used class is evicted.
+   * Each class has its own class loader, so an evicted class can be
+   * unloaded when no functions created from it remain.</p>
+   *
+   * <p>The cache holds class loaders weakly, and classes and shapes softly.
+   * (A class refers to its parent class loader, and a shape may refer to
+   * classes loaded by it.) Therefore the cache does not prevent the class
+   * loader of, say, a redeployed web application from being unloaded; the
+   * garbage collector clears its entries before it runs out of memory.</p>
+   *
+   * <p>This class is thread-safe.</p>
+   */
+  public static class Cache {
+    private final int maximumSize;
+    private final Map<Key, EntryReference> map;
+    private final ReferenceQueue<Entry> queue = new ReferenceQueue<Entry>();
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * Creates a Cache.
+     *
+     * @param maximumSize Maximum number of classes; if 0, nothing is cached
+     */
+    public Cache(int maximumSize) {
+      assert maximumSize >= 0;
+      this.maximumSize = maximumSize;
+      this.map = new LinkedHashMap<Key, EntryReference>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<Key, EntryReference> eldest) {
+          if (size() > Cache.this.maximumSize) {
+            ++evictionCount;
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+
+    /** Returns the class for a unit whose class loader delegates to a given
+     * class loader, compiling it if it is not in the cache. Returns null if
+     * the unit does not compile. */
+    Class<?> get(Unit unit, ClassLoader parent) {
+      final Key key = new Key(unit.shape, parent);
+      synchronized (this) {
+        final Entry entry = lookup(key);
+        if (entry != null) {
+          ++hitCount;
+          return entry.value == FAILED ? null : (Class<?>) entry.value;
+        }
+        ++missCount;
+      }
+      // Compile outside the lock. If two threads compile the same unit at
+      // the same time, the first to finish wins.
+      final Class<?> clazz = compileClass(unit, parent);
+      synchronized (this) {
+        final Entry entry = lookup(key);
+        if (entry != null) {
+          return entry.value == FAILED ? null : (Class<?>) entry.value;
+        }
+        final Entry newEntry =
+            new Entry(unit.shape, clazz == null ? FAILED : clazz);
+        key.store(newEntry, queue);
+        map.put(key, key.entry);
+      }
+      return clazz;
+    }
+
+    /** Returns the entry for a key, or null. Caller must hold the lock. */
+    private Entry lookup(Key key) {
+      expunge();
+      final EntryReference ref = map.get(key);
+      return ref == null ? null : ref.get();
+    }
+
+    /** Removes keys whose entries have been cleared by the garbage
+     * collector. Caller must hold the lock. */
+    private void expunge() {
+      for (Reference<? extends Entry> ref; (ref = queue.poll()) != null;) {
+        map.remove(((EntryReference) ref).key);
+      }
+    }
+
+    /** Returns the maximum number of classes in this cache. */
+    public int getMaximumSize() {
+      return maximumSize;
+    }
+
+    /** Returns the number of classes in this cache. */
+    public synchronized int size() {
+      expunge();
+      return map.size();
+    }
+
+    /** Returns the number of times that a class was found in the cache. */
+    public synchronized long getHitCount() {
+      return hitCount;
+    }
+
+    /** Returns the number of times that a class was not found in the cache
+     * and had to be compiled. */
+    public synchronized long getMissCount() {
+      return missCount;
+    }
+
+    /** Returns the number of classes that have been removed from the cache
+     * to make room for others. */
+    public synchronized long getEvictionCount() {
+      return evictionCount;
+    }
+
+    /** Removes all classes from the cache. Does not reset the counters. */
+    public synchronized void clear() {
+      map.clear();
+    }
+  }
+
+  /** Holds the system Java compiler. It is loaded lazily, the first time that
+   * someone attempts to compile an expression. */
+  private static class CompilerHolder {
+    static final JavaCompiler COMPILER = getCompiler();
+
+    private static JavaCompiler getCompiler() {
+      try {
+        return ToolProvider.getSystemJavaCompiler();
+      } catch (Throwable e) {
+        return null;
+      }
+    }
+  }
+
+  /** Java source file held in memory. */
+  private static class SourceFileObject extends SimpleJavaFileObject {
+    private final String source;
+
+    SourceFileObject(String className, String source) {
+      super(URI.create("string:///" + className + Kind.SOURCE.extension),
+          Kind.SOURCE);
+      this.source = source;
+    }
+
+    @Override
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+      return source;
+    }
+  }
+
+  /** Java class file held in memory. */
+  private static class ClassFileObject extends SimpleJavaFileObject {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    ClassFileObject(String className) {
+      super(URI.create("bytes:///" + className.replace('.', '/')
+          + Kind.CLASS.extension), Kind.CLASS);
+    }
+
+    @Override
+    public OutputStream openOutputStream() {
+      return out;
+    }
+  }
+
+  /** File manager that writes class files to memory. */
+  private static class MemoryFileManager
+      extends ForwardingJavaFileManager<StandardJavaFileManager> {
+    private final Map<String, ClassFileObject> classFiles =
+        new LinkedHashMap<String, ClassFileObject>();
+
+    MemoryFileManager(StandardJavaFileManager fileManager) {
+      super(fileManager);
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput(Location location,
+        String className, JavaFileObject.Kind kind, FileObject sibling) {
+      final ClassFileObject file = new ClassFileObject(className);
+      classFiles.put(className, file);
+      return file;
+    }
+
+    Map<String, byte[]> classBytes() {
+      final Map<String, byte[]> map = new HashMap<String, byte[]>();
+      for (Map.Entry<String, ClassFileObject> entry : classFiles.entrySet()) {
+        map.put(entry.getKey(), entry.getValue().out.toByteArray());
+      }
+      return map;
+    }
+  }
+
+  /** Class loader that defines classes from bytecode held in memory. */
+  private static class ByteArrayClassLoader extends ClassLoader {
+    private final Map<String, byte[]> classes;
+
+    ByteArrayClassLoader(ClassLoader parent, Map<String, byte[]> classes) {
+      super(parent);
+      this.classes = classes;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      final byte[] bytes = classes.get(name);
+      if (bytes == null) {
+        return super.findClass(name);
+      }
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+}
+
+// End ExpressionCompiler.java
@@ -17,27 +17,143 @@
 */
 package net.hydromatic.linq4j.expressions;
 
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.*;
 
 /**
  * Converts an expression to Java code.
+ *
+ * <p>By default the code is accumulated in memory and returned by
+ * {@link #toString()}. If the writer is created with an {@link Appendable},
+ * the code is written to it in chunks as it is generated, so the memory
+ * used does not grow with the size of the code; call {@link #flush()} when
+ * done.</p>
+ *
+ * <p>In compact mode, the writer omits line breaks and indentation.</p>
  */
 class ExpressionWriter {
   static final Indent INDENT = new Indent(20);
 
+  /** Number of characters to accumulate before writing them to the
+   * {@link Appendable}. */
+  private static final int FLUSH_SIZE = 8192;
+
   private final StringBuilder buf = new StringBuilder();
+  private final Appendable out;
+  private final boolean compact;
   private int level;
   private String indent = "";
   private boolean indentPending;
+  /** Whether a line break has been omitted in compact mode, and a space
+   * must be written if the next character would otherwise join the
+   * previous token. */
+  private boolean separatorPending;
   private final boolean generics;
 
+  /** Constants that are written as references to variables, or null if
+   * all constants are written as literals. See {@link #bindConstants()}. */
+  private List<ConstantExpression> boundConstants;
+  private Map<Object, String> boundConstantNames;
+
+  /** Names of variables, or null if each variable is written with its own
+   * name. See {@link #normalizeNames()}. */
+  private Map<ParameterExpression, String> variableNames;
+
   public ExpressionWriter() {
     this(true);
   }
 
   public ExpressionWriter(boolean generics) {
+    this(generics, null, false);
+  }
+
+  /**
+   * Creates an ExpressionWriter.
+   *
+   * @param generics Whether to write type parameters
+   * @param out Appendable to write to, or null to accumulate the code in
+   *   memory
+   * @param compact Whether to omit line breaks and indentation
+   */
+  public ExpressionWriter(boolean generics, Appendable out, boolean compact) {
     this.generics = generics;
+    this.out = out;
+    this.compact = compact;
+  }
+
+  /**
+   * Causes constants whose values have no literal form to be written as
+   * references to variables. The caller is responsible for declaring the
+   * variables; see {@link #getBoundConstants()}.
+   */
+  void bindConstants() {
+    boundConstants = new ArrayList<ConstantExpression>();
+    boundConstantNames = new IdentityHashMap<Object, String>();
+  }
+
+  /**
+   * Returns the variable name for a constant, or null if the constant is
+   * to be written as a literal. Constants with the same value share a
+   * variable.
+   */
+  String bindConstant(ConstantExpression constant) {
+    if (boundConstants == null) {
+      return null;
+    }
+    String name = boundConstantNames.get(constant.value);
+    if (name == null) {
+      name = "$c" + boundConstants.size();
+      boundConstants.add(constant);
+      boundConstantNames.put(constant.value, name);
+    }
+    return name;
+  }
+
+  /**
+   * Causes variables to be written with generated names "$v0", "$v1" etc.,
+   * in order of declaration, rather than their own names. Two expressions
+   * that differ only in the names of their variables are then written the
+   * same.
+   */
+  void normalizeNames() {
+    variableNames = new IdentityHashMap<ParameterExpression, String>();
+  }
+
+  /**
+   * Returns the name with which to declare a variable.
+   */
+  String declare(ParameterExpression parameter) {
+    if (variableNames == null) {
+      return parameter.name;
+    }
+    String name = variableNames.get(parameter);
+    if (name == null) {
+      name = "$v" + variableNames.size();
+      variableNames.put(parameter, name);
+    }
+    return name;
+  }
+
+  /**
+   * Returns the name with which to reference a variable. If the variable
+   * has not been declared (say it is a field, or a variable defined outside
+   * the expression) this is its own name.
+   */
+  String name(ParameterExpression parameter) {
+    if (variableNames == null) {
+      return parameter.name;
+    }
+    final String name = variableNames.get(parameter);
+    return name == null ? parameter.name : name;
+  }
+
+  /**
+   * Returns the constants that have been written as variables. The variable
+   * for the constant at position {@code i} is called {@code $ci}.
+   */
+  List<ConstantExpression> getBoundConstants() {
+    return boundConstants;
   }
 
   public void write(Node expression) {
@@ -49,6 +165,11 @@ class ExpressionWriter {
     }
   }
 
+  /**
+   * Returns the code written so far. If the writer was created with an
+   * {@link Appendable}, returns only the code that has not yet been passed
+   * to it.
+   */
   @Override
   public String toString() {
     return buf.toString();
@@ -65,9 +186,9 @@ class ExpressionWriter {
         && expression.nodeType.rprec >= rprec) {
       return false;
     }
-    buf.append("(");
+    emit("(");
     expression.accept(this, 0, 0);
-    buf.append(")");
+    emit(")");
     return true;
   }
 
@@ -75,24 +196,30 @@ class ExpressionWriter {
    * Increases the indentation level.
    */
   public void begin() {
-    indent = INDENT.get(++level);
+    ++level;
+    if (!compact) {
+      indent = INDENT.of(level);
+    }
   }
 
   /**
    * Decreases the indentation level.
    */
   public void end() {
-    indent = INDENT.get(--level);
+    --level;
+    if (!compact) {
+      indent = INDENT.of(level);
+    }
   }
 
   public ExpressionWriter newlineAndIndent() {
-    buf.append("\n");
+    emit("\n");
     indentPending = true;
     return this;
   }
 
   public ExpressionWriter indent() {
-    buf.append(indent);
+    emit(indent);
     return this;
   }
 
@@ -112,7 +239,7 @@ class ExpressionWriter {
 
   public ExpressionWriter append(char c) {
     checkIndent();
-    buf.append(c);
+    emit(String.valueOf(c));
     return this;
   }
 
@@ -121,7 +248,7 @@ class ExpressionWriter {
     if (!generics) {
       type = Types.stripGenerics(type);
     }
-    buf.append(Types.className(type));
+    emit(Types.className(type));
     return this;
   }
 
@@ -132,25 +259,108 @@ class ExpressionWriter {
 
   public ExpressionWriter append(Object o) {
     checkIndent();
-    buf.append(o);
+    emit(String.valueOf(o));
     return this;
   }
 
   public ExpressionWriter append(String s) {
     checkIndent();
-    buf.append(s);
+    emit(s);
+    return this;
+  }
+
+  /**
+   * Appends a literal, such as a quoted string, as a single token. Unlike
+   * {@link #append(String)}, does not look for line breaks in it.
+   */
+  public ExpressionWriter appendLiteral(CharSequence literal) {
+    checkIndent();
+    if (literal.length() > 0) {
+      separate(literal.charAt(0));
+      buf.append(literal);
+      checkFlush();
+    }
     return this;
   }
 
   private void checkIndent() {
     if (indentPending) {
-      buf.append(indent);
+      emit(indent);
       indentPending = false;
     }
   }
 
+  /** Writes a piece of code to the buffer, omitting line breaks if in
+   * compact mode, and passes the buffer to the {@link Appendable} if it is
+   * full. */
+  private void emit(String s) {
+    if (!compact) {
+      buf.append(s);
+    } else {
+      for (int i = 0; i < s.length(); i++) {
+        final char c = s.charAt(i);
+        if (c == '\n') {
+          separatorPending = true;
+          continue;
+        }
+        separate(c);
+        buf.append(c);
+      }
+    }
+    checkFlush();
+  }
+
+  /** In compact mode, if a line break has been omitted, writes a space if
+   * character {@code c} would otherwise join the previous token. */
+  private void separate(char c) {
+    if (separatorPending) {
+      separatorPending = false;
+      final int n = buf.length();
+      if (n > 0
+          && Character.isJavaIdentifierPart(c)
+          && Character.isJavaIdentifierPart(buf.charAt(n - 1))) {
+        buf.append(' ');
+      }
+    }
+  }
+
+  /** Passes the buffer to the {@link Appendable} if it is full. */
+  private void checkFlush() {
+    if (out != null && buf.length() >= FLUSH_SIZE) {
+      // Keep the last character, so that backUp can remove a line break.
+      write(buf.length() - 1);
+    }
+  }
+
+  /** Writes the first {@code n} characters of the buffer to the
+   * {@link Appendable}, and removes them from the buffer. */
+  private void write(int n) {
+    try {
+      out.append(buf, 0, n);
+    } catch (IOException e) {
+      throw new IORuntimeException(e);
+    }
+    buf.delete(0, n);
+  }
+
+  /** Writes any buffered code to the {@link Appendable}. */
+  public void flush() {
+    if (out != null) {
+      write(buf.length());
+    }
+  }
+
+  /**
+   * Returns the buffer that holds the code written so far.
+   *
+   * @throws IllegalStateException if the writer was created with an
+   *   {@link Appendable}, in which case the buffer holds only the code that
+   *   has not yet been passed to it
+   */
   public StringBuilder getBuf() {
-    checkIndent();
+    if (out != null) {
+      throw new IllegalStateException("code is written to an Appendable");
+    }
     return buf;
   }
 
@@ -173,7 +383,7 @@ class ExpressionWriter {
         if (!iterator.hasNext()) {
           break;
         }
-        buf.append(sep);
+        emit(sep);
         if (sep.endsWith("\n")) {
           indentPending = true;
         }
@@ -183,18 +393,37 @@ class ExpressionWriter {
       while (begin.endsWith("\n")) {
         begin = begin.substring(0, begin.length() - 1);
       }
-      buf.append(begin).append(end);
+      emit(begin);
+      emit(end);
     }
     return this;
   }
 
   public void backUp() {
-    if (buf.lastIndexOf("\n") == buf.length() - 1) {
-      buf.delete(buf.length() - 1, buf.length());
+    if (compact) {
+      separatorPending = false;
+      indentPending = false;
+    } else if (buf.length() > 0 && buf.charAt(buf.length() - 1) == '\n') {
+      buf.setLength(buf.length() - 1);
       indentPending = false;
     }
   }
 
+  /** Unchecked exception that wraps an {@link IOException} thrown by the
+   * {@link Appendable}. */
+  static class IORuntimeException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    IORuntimeException(IOException cause) {
+      super(cause);
+    }
+
+    @Override
+    public IOException getCause() {
+      return (IOException) super.getCause();
+    }
+  }
+
   /** Helps generate strings of spaces, to indent text. */
   private static class Indent extends ArrayList<String> {
     public Indent(int initialCapacity) {
@@ -208,9 +437,12 @@ class ExpressionWriter {
     }
 
     private void ensureSize(int targetSize) {
-      if (targetSize < size()) {
+      if (targetSize <= size()) {
         return;
       }
+      // Grow geometrically, so that deeply nested code does not rebuild
+      // the list at every level.
+      targetSize = Math.max(targetSize, size() * 2);
       char[] chars = new char[2 * targetSize];
       Arrays.fill(chars, ' ');
       String bigString = new String(chars);
@@ -20,6 +20,7 @@ package net.hydromatic.linq4j.expressions;
 import net.hydromatic.linq4j.Extensions;
 import net.hydromatic.linq4j.function.*;
 
+import java.io.IOException;
 import java.lang.reflect.*;
 import java.math.BigDecimal;
 import java.math.BigInteger;
@@ -52,6 +53,43 @@ public abstract class Expressions {
     return toString(Collections.singletonList(expression), "", true);
   }
 
+  /**
+   * Writes a list of expressions as Java source code to an
+   * {@link Appendable}, such as a {@link java.io.Writer}.
+   *
+   * <p>The code is written in chunks as it is generated, rather than built
+   * as a string, so the memory used does not depend on the size of the
+   * code.</p>
+   *
+   * @param out Appendable to write to
+   * @param expressions Expressions to write
+   * @param sep Separator written after each expression
+   * @param generics Whether to write type parameters
+   * @param compact Whether to omit line breaks and indentation
+   */
+  public static void write(Appendable out, List<? extends Node> expressions,
+      String sep, boolean generics, boolean compact) throws IOException {
+    final ExpressionWriter writer =
+        new ExpressionWriter(generics, out, compact);
+    try {
+      for (Node expression : expressions) {
+        writer.write(expression);
+        writer.append(sep);
+      }
+      writer.flush();
+    } catch (ExpressionWriter.IORuntimeException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Writes an expression as Java source code to an {@link Appendable}.
+   */
+  public static void write(Appendable out, Node expression)
+    throws IOException {
+    write(out, Collections.singletonList(expression), "", true, false);
+  }
+
   /**
    * Creates a BinaryExpression that represents an arithmetic
    * addition operation that does not have overflow checking.
@@ -571,9 +609,15 @@ public abstract class Expressions {
 
   /**
    * Creates a GotoExpression representing a continue statement.
+   *
+   * <p>Labeled loops are not supported yet, so {@code labelTarget} must be
+   * null; the statement continues the innermost enclosing loop.</p>
    */
   public static GotoStatement continue_(LabelTarget labelTarget) {
-    throw Extensions.todo();
+    if (labelTarget != null) {
+      throw Extensions.todo();
+    }
+    return new GotoStatement(GotoExpressionKind.Continue, null, null);
   }
 
   /**
@@ -2966,6 +3010,33 @@ public abstract class Expressions {
     return e;
   }
 
+  /**
+   * Returns a node structurally equal to the given node in which identical
+   * sub-trees are represented by the same object.
+   *
+   * <p>Nodes are shared with, and added to, {@code pool}. Use the same pool
+   * for several trees to share sub-trees between them, for example to
+   * reduce the memory used by a large generated program; then
+   * {@code ==} is a cheap test for structural equality between nodes in
+   * the pool.</p>
+   *
+   * @param node Node
+   * @param pool Pool of canonical nodes, each mapped to itself
+   * @return Canonical node equal to {@code node}
+   */
+  public static <T extends Node> T intern(T node, Map<Node, Node> pool) {
+    //noinspection unchecked
+    return (T) node.accept(new InternVisitor(pool));
+  }
+
+  /**
+   * Returns a node structurally equal to the given node in which identical
+   * sub-trees are represented by the same object.
+   */
+  public static <T extends Node> T intern(T node) {
+    return intern(node, new HashMap<Node, Node>());
+  }
+
   /**
    * Creates an empty fluent list.
    */
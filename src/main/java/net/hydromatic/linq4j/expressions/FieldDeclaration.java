@@ -17,7 +17,10 @@
 */
 package net.hydromatic.linq4j.expressions;
 
+import net.hydromatic.linq4j.Linq4j;
+
 import java.lang.reflect.Modifier;
+import java.util.Arrays;
 
 /**
  * Declaration of a field.
@@ -55,6 +58,25 @@ public class FieldDeclaration extends MemberDeclaration {
     writer.append(';');
     writer.newlineAndIndent();
   }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof FieldDeclaration) {
+      final FieldDeclaration fieldDeclaration = (FieldDeclaration) obj;
+      return modifier == fieldDeclaration.modifier
+          && parameter.equals(fieldDeclaration.parameter)
+          && Linq4j.equals(initializer, fieldDeclaration.initializer);
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(new Object[] {modifier, parameter, initializer});
+  }
 }
 
 // End FieldDeclaration.java
@@ -17,8 +17,10 @@
 */
 package net.hydromatic.linq4j.expressions;
 
+import net.hydromatic.linq4j.Linq4j;
 import net.hydromatic.linq4j.Ord;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -68,6 +70,55 @@ public class ForStatement extends Statement {
     }
     writer.append(") ").append(Blocks.toBlock(body));
   }
+
+  @Override
+  public Object evaluate(Evaluator evaluator) {
+    for (DeclarationStatement declaration : declarations) {
+      declaration.evaluate(evaluator);
+    }
+    while (condition == null || (Boolean) condition.evaluate(evaluator)) {
+      final Object o = body.evaluate(evaluator);
+      if (evaluator.jump != null) {
+        switch (evaluator.jump) {
+        case Break:
+          evaluator.jump = null;
+          return null;
+        case Continue:
+          evaluator.jump = null;
+          break;
+        default:
+          return o;
+        }
+      }
+      if (post != null) {
+        post.evaluate(evaluator);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof ForStatement) {
+      final ForStatement forStatement = (ForStatement) obj;
+      return hashCode() == forStatement.hashCode()
+          && nodeType == forStatement.nodeType
+          && declarations.equals(forStatement.declarations)
+          && Linq4j.equals(condition, forStatement.condition)
+          && Linq4j.equals(post, forStatement.post)
+          && body.equals(forStatement.body);
+    }
+    return false;
+  }
+
+  @Override
+  protected int computeHashCode() {
+    return Arrays.hashCode(
+        new Object[] {nodeType, declarations, condition, post, body});
+  }
 }
 
 // End ForStatement.java
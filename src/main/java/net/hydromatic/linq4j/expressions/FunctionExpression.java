@@ -17,10 +17,12 @@
 */
 package net.hydromatic.linq4j.expressions;
 
+import net.hydromatic.linq4j.Linq4j;
 import net.hydromatic.linq4j.function.*;
 
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Represents a strongly typed lambda expression as a data structure in the form
@@ -62,37 +64,120 @@ public final class FunctionExpression<F extends Function<?>>
   }
 
   public Invokable compile() {
+    final Map<ParameterExpression, Integer> slots =
+        new IdentityHashMap<ParameterExpression, Integer>();
+    return Evaluator.resolve(optimize(), slots).compile(slots, null);
+  }
+
+  /** Returns a function expression whose body has been simplified by
+   * {@link OptimizeVisitor}, or this if there is nothing to simplify. */
+  FunctionExpression<F> optimize() {
+    if (body == null) {
+      return this;
+    }
+    final BlockStatement body1 = body.accept(new OptimizeVisitor());
+    if (body1 == body) {
+      return this;
+    }
+    //noinspection unchecked
+    return new FunctionExpression<F>((Class<F>) Types.toClass(type), body1,
+        parameterList);
+  }
+
+  /** Creates an Invokable that evaluates the body in a new frame. If
+   * {@code outerFrame} is not null, the new frame starts as a copy of it,
+   * which gives a nested lambda access to the variables of the functions
+   * that enclose it.
+   *
+   * <p>An evaluator and its frame are reused by successive calls. A call
+   * that starts while another is in progress (on another thread, or
+   * recursively) creates its own.</p> */
+  private Invokable compile(final Map<ParameterExpression, Integer> slots,
+      final Object[] outerFrame) {
+    final int[] parameterSlots = new int[parameterList.size()];
+    for (int i = 0; i < parameterSlots.length; i++) {
+      parameterSlots[i] = Evaluator.slot(slots, parameterList.get(i));
+    }
+    final AtomicReference<Evaluator> spare = new AtomicReference<Evaluator>();
     return new Invokable() {
       public Object dynamicInvoke(Object... args) {
-        final Evaluator evaluator = new Evaluator();
-        for (int i = 0; i < args.length; i++) {
-          evaluator.push(parameterList.get(i), args[i]);
+        Evaluator evaluator = spare.getAndSet(null);
+        if (evaluator == null) {
+          evaluator = new Evaluator(slots, new Object[slots.size()]);
+        }
+        final Object[] frame = evaluator.frame;
+        if (outerFrame != null) {
+          System.arraycopy(outerFrame, 0, frame, 0, frame.length);
+        }
+        if (args != null) {
+          for (int i = 0; i < args.length; i++) {
+            frame[parameterSlots[i]] = args[i];
+          }
+        }
+        try {
+          return evaluator.evaluate(body);
+        } finally {
+          // Release values so that the spare frame does not retain them.
+          Arrays.fill(frame, null);
+          evaluator.jump = null;
+          spare.set(evaluator);
         }
-        return evaluator.evaluate(body);
       }
     };
   }
 
+  /**
+   * Returns an implementation of this function.
+   *
+   * <p>If possible, the expression is compiled to a class that implements
+   * the function type directly (see {@link ExpressionCompiler}). Otherwise
+   * returns a proxy that evaluates the expression tree on each call.</p>
+   */
   public F getFunction() {
     if (function != null) {
       return function;
     }
     if (dynamicFunction == null) {
-      final Invokable x = compile();
-
-      //noinspection unchecked
-      dynamicFunction = (F) Proxy.newProxyInstance(getClass().getClassLoader(),
-          new Class[]{Types.toClass(type)},
-          new InvocationHandler() {
-            public Object invoke(Object proxy, Method method, Object[] args)
-              throws Throwable {
-              return x.dynamicInvoke(args);
-            }
-          });
+      F f = ExpressionCompiler.compile(this);
+      if (f == null) {
+        f = interpretedFunction();
+      }
+      dynamicFunction = f;
     }
     return dynamicFunction;
   }
 
+  /**
+   * Returns an implementation of this function that evaluates the
+   * expression tree on each call.
+   */
+  F interpretedFunction() {
+    return proxy(compile());
+  }
+
+  /** Evaluates a lambda nested within another function. The result is a
+   * function that sees the enclosing function's variables as they are
+   * now. */
+  @Override
+  public Object evaluate(Evaluator evaluator) {
+    if (function != null) {
+      return function;
+    }
+    return proxy(compile(evaluator.slots, evaluator.frame.clone()));
+  }
+
+  private F proxy(final Invokable x) {
+    //noinspection unchecked
+    return (F) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class[]{Types.toClass(type)},
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable {
+            return x.dynamicInvoke(args);
+          }
+        });
+  }
+
   @Override
   void accept(ExpressionWriter writer, int lprec, int rprec) {
     // "new Function1() {
@@ -128,13 +213,14 @@ public final class FunctionExpression<F extends Function<?>>
       final Type parameterType = parameterExpression.getType();
       final Type parameterBoxType = Types.box(parameterType);
       final String parameterBoxTypeName = Types.className(parameterBoxType);
-      params.add(parameterExpression.declString());
-      bridgeParams.add(parameterExpression.declString(Object.class));
-      bridgeArgs.add("(" + parameterBoxTypeName + ") "
-          + parameterExpression.name);
+      final String name = writer.declare(parameterExpression);
+      params.add(parameterExpression.declString(writer));
+      bridgeParams.add(parameterExpression.declString(writer, Object.class));
+      bridgeArgs.add("(" + parameterBoxTypeName + ") " + name);
 
-      boxBridgeParams.add(parameterExpression.declString(parameterBoxType));
-      boxBridgeArgs.add(parameterExpression.name
+      boxBridgeParams.add(
+          parameterExpression.declString(writer, parameterBoxType));
+      boxBridgeArgs.add(name
           + (Primitive.is(parameterType)
           ? "." + Primitive.of(parameterType).primitiveName + "Value()"
           : ""));
@@ -150,6 +236,12 @@ public final class FunctionExpression<F extends Function<?>>
       resultType2 = body.getType();
     }
     String methodName = getAbstractMethodName();
+    // Bridge methods return the same type as the interface method. Usually
+    // that is an object, but for example Predicate1.apply returns boolean.
+    final String bridgeResultTypeName =
+        isAbstractMethodPrimitive()
+            ? Types.className(bridgeResultType)
+            : Types.boxClassName(bridgeResultType);
     writer.append("new ")
         .append(type)
         .append("()")
@@ -164,7 +256,7 @@ public final class FunctionExpression<F extends Function<?>>
     if (!boxBridgeParams.equals(params)) {
       writer
           .append("public ")
-          .append(Types.boxClassName(bridgeResultType))
+          .append(bridgeResultTypeName)
           .list(" " + methodName + "(", ", ", ") ", boxBridgeParams)
           .begin("{\n")
           .list("return " + methodName + "(\n", ",\n", ");\n", boxBridgeArgs)
@@ -179,7 +271,7 @@ public final class FunctionExpression<F extends Function<?>>
     if (!bridgeParams.equals(params)) {
       writer
         .append("public ")
-        .append(Types.boxClassName(bridgeResultType))
+        .append(bridgeResultTypeName)
         .list(" " + methodName + "(", ", ", ") ", bridgeParams)
         .begin("{\n")
         .list("return " + methodName + "(\n", ",\n", ");\n", bridgeArgs)
@@ -196,10 +288,48 @@ public final class FunctionExpression<F extends Function<?>>
     return "apply";
   }
 
+  /** Returns whether the abstract method of the function type returns a
+   * primitive value, as {@link Predicate1#apply} does. */
+  private boolean isAbstractMethodPrimitive() {
+    final String methodName = getAbstractMethodName();
+    for (Method method : Types.toClass(type).getMethods()) {
+      if (method.getName().equals(methodName)
+          && Modifier.isAbstract(method.getModifiers())) {
+        return method.getReturnType().isPrimitive();
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof FunctionExpression) {
+      final FunctionExpression<?> functionExpression =
+          (FunctionExpression<?>) obj;
+      return hashCode() == functionExpression.hashCode()
+          && nodeType == functionExpression.nodeType
+          && type.equals(functionExpression.type)
+          && Linq4j.equals(function, functionExpression.function)
+          && Linq4j.equals(body, functionExpression.body)
+          && parameterList.equals(functionExpression.parameterList);
+    }
+    return false;
+  }
+
+  @Override
+  protected int computeHashCode() {
+    return Arrays.hashCode(
+        new Object[] {nodeType, type, function, body, parameterList});
+  }
+
   /** Function that can be invoked with a variable number of arguments. */
   public interface Invokable {
     Object dynamicInvoke(Object... args);
   }
+
 }
 
 // End FunctionExpression.java
@@ -17,6 +17,10 @@
 */
 package net.hydromatic.linq4j.expressions;
 
+import net.hydromatic.linq4j.Linq4j;
+
+import java.util.Arrays;
+
 /**
  * Represents an unconditional jump. This includes return statements, break and
  * continue statements, and other jumps.
@@ -87,14 +91,43 @@ public class GotoStatement extends Statement {
   public Object evaluate(Evaluator evaluator) {
     switch (kind) {
     case Return:
+      final Object o =
+          expression == null ? null : expression.evaluate(evaluator);
+      evaluator.jump = kind;
+      return o;
+    case Break:
+    case Continue:
+      // Jumps to the innermost enclosing loop.
+      evaluator.jump = kind;
+      return null;
     case Sequence:
-      // NOTE: We ignore control flow. This is only correct if "return"
-      // is the last statement in the block.
       return expression.evaluate(evaluator);
     default:
       throw new AssertionError("evaluate not implemented");
     }
   }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof GotoStatement) {
+      final GotoStatement gotoStatement = (GotoStatement) obj;
+      return hashCode() == gotoStatement.hashCode()
+          && nodeType == gotoStatement.nodeType
+          && kind == gotoStatement.kind
+          && Linq4j.equals(labelTarget, gotoStatement.labelTarget)
+          && Linq4j.equals(expression, gotoStatement.expression);
+    }
+    return false;
+  }
+
+  @Override
+  protected int computeHashCode() {
+    return Arrays.hashCode(
+        new Object[] {nodeType, kind, labelTarget, expression});
+  }
 }
 
 // End GotoStatement.java
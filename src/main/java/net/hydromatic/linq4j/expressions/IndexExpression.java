@@ -17,6 +17,7 @@
 */
 package net.hydromatic.linq4j.expressions;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -34,8 +35,8 @@ public class IndexExpression extends Expression {
   }
 
   @Override
-  public int hashCode() {
-    return nodeType.hashCode() ^ array.hashCode() ^ indexExpressions.hashCode();
+  protected int computeHashCode() {
+    return Arrays.hashCode(new Object[] {nodeType, array, indexExpressions});
   }
 
   @Override
@@ -45,7 +46,8 @@ public class IndexExpression extends Expression {
     }
     if (obj instanceof IndexExpression) {
       final IndexExpression indexExpression = (IndexExpression) obj;
-      return nodeType == indexExpression.nodeType
+      return hashCode() == indexExpression.hashCode()
+          && nodeType == indexExpression.nodeType
           && array.equals(indexExpression.array)
           && indexExpressions.equals(indexExpression.indexExpressions);
     }
@@ -0,0 +1,208 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.linq4j.expressions;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Visitor that replaces each node with a canonical node that is
+ * structurally equal to it, so that identical sub-trees are represented by
+ * the same object.
+ *
+ * <p>Nodes are visited bottom-up. Once a node's children have been replaced
+ * by their canonical instances, the node is looked up in the pool; if the
+ * pool already contains an equal node, that node is returned, otherwise the
+ * node is added to the pool.</p>
+ *
+ * <p>Parameters are not interned, because two parameters are never equal
+ * unless they are the same object.</p>
+ *
+ * @see Expressions#intern(Node, java.util.Map)
+ */
+class InternVisitor extends Visitor {
+  private final Map<Node, Node> pool;
+
+  InternVisitor(Map<Node, Node> pool) {
+    this.pool = pool;
+  }
+
+  /** Returns the canonical instance of a node, adding it to the pool if
+   * there is none. */
+  <T extends Node> T intern(T node) {
+    if (node == null) {
+      return null;
+    }
+    //noinspection unchecked
+    final T t = (T) pool.get(node);
+    if (t != null) {
+      return t;
+    }
+    pool.put(node, node);
+    return node;
+  }
+
+  @Override
+  public Statement visit(WhileStatement whileStatement, Expression condition,
+      Statement body) {
+    return intern(super.visit(whileStatement, condition, body));
+  }
+
+  @Override
+  public BlockStatement visit(BlockStatement blockStatement,
+      List<Statement> statements) {
+    return intern(super.visit(blockStatement, statements));
+  }
+
+  @Override
+  public Statement visit(GotoStatement gotoStatement, Expression expression) {
+    return intern(super.visit(gotoStatement, expression));
+  }
+
+  @Override
+  public LabelStatement visit(LabelStatement labelStatement) {
+    return intern(super.visit(labelStatement));
+  }
+
+  @Override
+  public ForStatement visit(ForStatement forStatement,
+      List<DeclarationStatement> declarations, Expression condition,
+      Expression post, Statement body) {
+    return intern(
+        super.visit(forStatement, declarations, condition, post, body));
+  }
+
+  @Override
+  public Statement visit(ConditionalStatement conditionalStatement,
+      List<Node> list) {
+    return intern(super.visit(conditionalStatement, list));
+  }
+
+  @Override
+  public Statement visit(ThrowStatement throwStatement) {
+    return intern(super.visit(throwStatement));
+  }
+
+  @Override
+  public DeclarationStatement visit(DeclarationStatement declarationStatement,
+      ParameterExpression parameter, Expression initializer) {
+    return intern(
+        super.visit(declarationStatement, parameter, initializer));
+  }
+
+  @Override
+  public Expression visit(FunctionExpression functionExpression,
+      BlockStatement body, List<ParameterExpression> parameterList) {
+    return intern(super.visit(functionExpression, body, parameterList));
+  }
+
+  @Override
+  public Expression visit(BinaryExpression binaryExpression,
+      Expression expression0, Expression expression1) {
+    return intern(super.visit(binaryExpression, expression0, expression1));
+  }
+
+  @Override
+  public Expression visit(TernaryExpression ternaryExpression,
+      Expression expression0, Expression expression1, Expression expression2) {
+    return intern(
+        super.visit(ternaryExpression, expression0, expression1,
+            expression2));
+  }
+
+  @Override
+  public Expression visit(IndexExpression indexExpression, Expression array,
+      List<Expression> indexExpressions) {
+    return intern(super.visit(indexExpression, array, indexExpressions));
+  }
+
+  @Override
+  public Expression visit(UnaryExpression unaryExpression,
+      Expression expression) {
+    return intern(super.visit(unaryExpression, expression));
+  }
+
+  @Override
+  public Expression visit(MethodCallExpression methodCallExpression,
+      Expression targetExpression, List<Expression> expressions) {
+    return intern(
+        super.visit(methodCallExpression, targetExpression, expressions));
+  }
+
+  @Override
+  public Expression visit(MemberExpression memberExpression,
+      Expression expression) {
+    return intern(super.visit(memberExpression, expression));
+  }
+
+  @Override
+  public Expression visit(NewArrayExpression newArrayExpression, int dimension,
+      Expression bound, List<Expression> expressions) {
+    return intern(
+        super.visit(newArrayExpression, dimension, bound, expressions));
+  }
+
+  @Override
+  public Expression visit(NewExpression newExpression,
+      List<Expression> arguments, List<MemberDeclaration> memberDeclarations) {
+    return intern(
+        super.visit(newExpression, arguments, memberDeclarations));
+  }
+
+  @Override
+  public Statement visit(TryStatement tryStatement) {
+    return intern(super.visit(tryStatement));
+  }
+
+  @Override
+  public Expression visit(TypeBinaryExpression typeBinaryExpression,
+      Expression expression) {
+    return intern(super.visit(typeBinaryExpression, expression));
+  }
+
+  @Override
+  public MemberDeclaration visit(MethodDeclaration methodDeclaration,
+      List<ParameterExpression> parameters, BlockStatement body) {
+    return intern(super.visit(methodDeclaration, parameters, body));
+  }
+
+  @Override
+  public MemberDeclaration visit(FieldDeclaration fieldDeclaration,
+      ParameterExpression parameter, Expression initializer) {
+    return intern(super.visit(fieldDeclaration, parameter, initializer));
+  }
+
+  @Override
+  public ConstantExpression visit(ConstantExpression constantExpression) {
+    return intern(super.visit(constantExpression));
+  }
+
+  @Override
+  public ClassDeclaration visit(ClassDeclaration classDeclaration,
+      List<MemberDeclaration> memberDeclarations) {
+    return intern(super.visit(classDeclaration, memberDeclarations));
+  }
+
+  @Override
+  public MemberDeclaration visit(ConstructorDeclaration constructorDeclaration,
+      List<ParameterExpression> parameters, BlockStatement body) {
+    return intern(super.visit(constructorDeclaration, parameters, body));
+  }
+}
+
+// End InternVisitor.java
@@ -0,0 +1,296 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.linq4j.expressions;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+/**
+ * Calls a method or constructor, or reads a field, on behalf of the
+ * interpreter.
+ *
+ * <p>An expression creates its invoker the first time it is evaluated, and
+ * keeps it. The first {@link #INFLATION_THRESHOLD} calls go through
+ * reflection. Then, if code can call the member directly, the invoker
+ * generates an {@link Accessor} that does so, without reflection, and uses
+ * it from then on. Accessors are compiled by {@link ExpressionCompiler} and
+ * held in its cache, so each member is compiled at most once, and only if it
+ * is called often. Calls with up to three arguments pass them to the
+ * accessor without allocating an array.</p>
+ *
+ * <p>Reflection does not bypass Java's access checks. Thus the interpreter,
+ * like compiled code, cannot call a member that is not public, or a public
+ * member of a class that is not public.</p>
+ *
+ * <p>An unchecked exception thrown by the member propagates unchanged, as
+ * it would from compiled code; a checked exception is wrapped in a
+ * {@link RuntimeException}.</p>
+ */
+final class Invoker {
+  /** Number of calls through reflection before an accessor is generated. */
+  static final int INFLATION_THRESHOLD = 15;
+
+  /** Shared argument array for calls that have no arguments. */
+  static final Object[] NO_ARGS = {};
+
+  /** Expression that owns this invoker; used in error messages. */
+  private final Node node;
+
+  /** Member to generate an accessor for, or null if none can be. */
+  private final Member member;
+
+  private volatile Accessor accessor;
+
+  /** Number of calls so far, up to {@link #INFLATION_THRESHOLD}. Updates
+   * may be lost if several threads call at once, which only delays
+   * generation. */
+  private int callCount;
+
+  private Invoker(Node node, Member member, Accessor accessor) {
+    this.node = node;
+    this.member = member;
+    this.accessor = accessor;
+  }
+
+  /** Creates an invoker that calls a method. */
+  static Invoker of(Node node, final Method method) {
+    return new Invoker(node, method,
+        new Accessor() {
+          public Object invokeArray(Object target, Object[] args)
+            throws Throwable {
+            try {
+              return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+              throw e.getCause();
+            }
+          }
+        });
+  }
+
+  /** Creates an invoker that calls a constructor. */
+  static Invoker of(Node node, final Constructor<?> constructor) {
+    return new Invoker(node, constructor,
+        new Accessor() {
+          public Object invokeArray(Object target, Object[] args)
+            throws Throwable {
+            try {
+              return constructor.newInstance(args);
+            } catch (InvocationTargetException e) {
+              throw e.getCause();
+            }
+          }
+        });
+  }
+
+  /** Creates an invoker that reads a field that may not be a Java field,
+   * such as a field of a synthetic record type. */
+  static Invoker of(Node node, final PseudoField field) {
+    final Member member = field instanceof Types.ReflectedPseudoField
+        ? ((Types.ReflectedPseudoField) field).field
+        : null;
+    return new Invoker(node, member,
+        new Accessor() {
+          public Object invokeArray(Object target, Object[] args)
+            throws Throwable {
+            return field.get(target);
+          }
+        });
+  }
+
+  /** Reads the field. */
+  Object get(Object target) {
+    final Accessor accessor = accessor();
+    try {
+      return accessor.invoke(target);
+    } catch (Throwable e) {
+      throw propagate(e);
+    }
+  }
+
+  /** Evaluates arguments, in order, and calls the member. The target is
+   * ignored for static members and constructors. */
+  Object invoke(Object target, List<Expression> arguments,
+      Evaluator evaluator) {
+    final int n = arguments.size();
+    final Object[] args = n > 3 ? evaluator.evaluate(arguments) : null;
+    final Object a0 = n > 0 && n <= 3 ? evaluator.evaluate(arguments.get(0))
+        : null;
+    final Object a1 = n > 1 && n <= 3 ? evaluator.evaluate(arguments.get(1))
+        : null;
+    final Object a2 = n == 3 ? evaluator.evaluate(arguments.get(2)) : null;
+    final Accessor accessor = accessor();
+    try {
+      switch (n) {
+      case 0:
+        return accessor.invoke(target);
+      case 1:
+        return accessor.invoke(target, a0);
+      case 2:
+        return accessor.invoke(target, a0, a1);
+      case 3:
+        return accessor.invoke(target, a0, a1, a2);
+      default:
+        return accessor.invokeArray(target, args);
+      }
+    } catch (Throwable e) {
+      throw propagate(e);
+    }
+  }
+
+  /** Returns the accessor for the next call, generating one if this call
+   * reaches the threshold. */
+  private Accessor accessor() {
+    if (member != null
+        && callCount < INFLATION_THRESHOLD
+        && ++callCount == INFLATION_THRESHOLD) {
+      final String source = source(member);
+      if (source != null) {
+        final Object o =
+            ExpressionCompiler.create(source, member.getDeclaringClass());
+        if (o instanceof Accessor) {
+          accessor = (Accessor) o;
+        }
+      }
+    }
+    return accessor;
+  }
+
+  /** Rethrows an unchecked exception, or wraps a checked exception. */
+  private RuntimeException propagate(Throwable e) {
+    if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    }
+    if (e instanceof Error) {
+      throw (Error) e;
+    }
+    return new RuntimeException("error while evaluating " + node, e);
+  }
+
+  /** Returns the source code of an expression that creates an
+   * {@link Accessor} for a member, or null if code cannot call the member
+   * directly. */
+  static String source(Member member) {
+    final Class<?> clazz = member.getDeclaringClass();
+    if (!Modifier.isPublic(member.getModifiers()) || !isPublic(clazz)) {
+      return null;
+    }
+    final boolean isStatic = Modifier.isStatic(member.getModifiers());
+    final String className = clazz.getCanonicalName();
+    final StringBuilder call = new StringBuilder();
+    final Class<?>[] parameterTypes;
+    final boolean isVoid;
+    if (member instanceof Field) {
+      parameterTypes = new Class<?>[0];
+      isVoid = false;
+    } else if (member instanceof Method) {
+      parameterTypes = ((Method) member).getParameterTypes();
+      isVoid = ((Method) member).getReturnType() == Void.TYPE;
+    } else {
+      if (Modifier.isAbstract(clazz.getModifiers())
+          || clazz.getEnclosingClass() != null
+          && !Modifier.isStatic(clazz.getModifiers())) {
+        return null;
+      }
+      parameterTypes = ((Constructor<?>) member).getParameterTypes();
+      isVoid = false;
+      call.append("new ").append(className);
+    }
+    if (!(member instanceof Constructor)) {
+      if (isStatic) {
+        call.append(className);
+      } else {
+        call.append("((").append(className).append(") target)");
+      }
+      call.append('.').append(member.getName());
+    }
+    final int n = parameterTypes.length;
+    if (!(member instanceof Field)) {
+      call.append('(');
+      for (int i = 0; i < n; i++) {
+        final Class<?> parameterType = parameterTypes[i];
+        if (!isPublic(parameterType)) {
+          return null;
+        }
+        if (i > 0) {
+          call.append(", ");
+        }
+        final String arg = n > 3 ? "args[" + i + "]" : "a" + i;
+        if (parameterType.isPrimitive()) {
+          call.append(parameterType.getName()).append("Arg(").append(arg)
+              .append(')');
+        } else {
+          call.append('(').append(parameterType.getCanonicalName())
+              .append(") ").append(arg);
+        }
+      }
+      call.append(')');
+    }
+    final String body = isVoid
+        ? call + ";\n        return null;\n"
+        : "return " + call + ";\n";
+    final StringBuilder buf = new StringBuilder()
+        .append("new ").append(Accessor.class.getName()).append("() {\n")
+        .append("      public Object invokeArray(Object target,")
+        .append(" Object[] args)\n")
+        .append("          throws Throwable {\n");
+    if (n > 3) {
+      buf.append("        ").append(body)
+          .append("      }\n");
+    } else {
+      final StringBuilder params = new StringBuilder();
+      final StringBuilder args = new StringBuilder();
+      for (int i = 0; i < n; i++) {
+        params.append(", Object a").append(i);
+        args.append(", args[").append(i).append(']');
+      }
+      buf.append("        return invoke(target").append(args).append(");\n")
+          .append("      }\n")
+          .append("      public Object invoke(Object target").append(params)
+          .append(")\n")
+          .append("          throws Throwable {\n")
+          .append("        ").append(body)
+          .append("      }\n");
+    }
+    return buf.append("    }").toString();
+  }
+
+  /** Returns whether code in another package can refer to a class: whether
+   * it, its enclosing classes and (for an array) its component type are
+   * public. */
+  private static boolean isPublic(Class<?> clazz) {
+    while (clazz.isArray()) {
+      clazz = clazz.getComponentType();
+    }
+    if (clazz.isPrimitive()) {
+      return true;
+    }
+    for (Class<?> c = clazz; c != null; c = c.getEnclosingClass()) {
+      if (!Modifier.isPublic(c.getModifiers())) {
+        return false;
+      }
+    }
+    return !clazz.isAnonymousClass() && !clazz.isLocalClass();
+  }
+}
+
+// End Invoker.java
@@ -17,6 +17,10 @@
 */
 package net.hydromatic.linq4j.expressions;
 
+import net.hydromatic.linq4j.Linq4j;
+
+import java.util.Arrays;
+
 /**
  * Represents a label, which can be put in any {@link Expression} context. If it
  * is jumped to, it will get the value provided by the corresponding
@@ -36,6 +40,25 @@ public class LabelStatement extends Statement {
   public LabelStatement accept(Visitor visitor) {
     return visitor.visit(this);
   }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof LabelStatement) {
+      final LabelStatement labelStatement = (LabelStatement) obj;
+      return hashCode() == labelStatement.hashCode()
+          && nodeType == labelStatement.nodeType
+          && Linq4j.equals(defaultValue, labelStatement.defaultValue);
+    }
+    return false;
+  }
+
+  @Override
+  protected int computeHashCode() {
+    return Arrays.hashCode(new Object[] {nodeType, defaultValue});
+  }
 }
 
 // End LabelStatement.java
@@ -17,8 +17,11 @@
 */
 package net.hydromatic.linq4j.expressions;
 
+import net.hydromatic.linq4j.Linq4j;
+
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.Arrays;
 
 /**
  * Represents accessing a field or property.
@@ -26,6 +29,7 @@ import java.lang.reflect.Modifier;
 public class MemberExpression extends Expression {
   public final Expression expression;
   public final PseudoField field;
+  private Invoker invoker; // created on first evaluation
 
   public MemberExpression(Expression expression, Field field) {
     this(expression, Types.field(field));
@@ -51,11 +55,10 @@ public class MemberExpression extends Expression {
     final Object o = expression == null
         ? null
         : expression.evaluate(evaluator);
-    try {
-      return field.get(o);
-    } catch (IllegalAccessException e) {
-      throw new RuntimeException("error while evaluating " + this, e);
+    if (invoker == null) {
+      invoker = Invoker.of(this, field);
     }
+    return invoker.get(o);
   }
 
   @Override
@@ -71,6 +74,26 @@ public class MemberExpression extends Expression {
     }
     writer.append('.').append(field.getName());
   }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof MemberExpression) {
+      final MemberExpression memberExpression = (MemberExpression) obj;
+      return hashCode() == memberExpression.hashCode()
+          && nodeType == memberExpression.nodeType
+          && Linq4j.equals(expression, memberExpression.expression)
+          && field.equals(memberExpression.field);
+    }
+    return false;
+  }
+
+  @Override
+  protected int computeHashCode() {
+    return Arrays.hashCode(new Object[] {nodeType, expression, field});
+  }
 }
 
 // End MemberExpression.java
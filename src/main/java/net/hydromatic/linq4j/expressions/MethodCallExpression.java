@@ -19,10 +19,10 @@ package net.hydromatic.linq4j.expressions;
 
 import net.hydromatic.linq4j.Linq4j;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -32,6 +32,7 @@ public class MethodCallExpression extends Expression {
   public final Method method;
   public final Expression targetExpression; // null for call to static method
   public final List<Expression> expressions;
+  private Invoker invoker; // created on first evaluation
 
   MethodCallExpression(Type returnType, Method method,
       Expression targetExpression, List<Expression> expressions) {
@@ -52,11 +53,9 @@ public class MethodCallExpression extends Expression {
   }
 
   @Override
-  public int hashCode() {
-    return nodeType.hashCode()
-           ^ method.hashCode()
-           ^ targetExpression.hashCode()
-           ^ expressions.hashCode();
+  protected int computeHashCode() {
+    return Arrays.hashCode(
+        new Object[] {nodeType, method, targetExpression, expressions});
   }
 
   @Override
@@ -66,8 +65,10 @@ public class MethodCallExpression extends Expression {
     }
     if (obj instanceof MethodCallExpression) {
       final MethodCallExpression call = (MethodCallExpression) obj;
-      return nodeType == call.nodeType
-          && method == call.method
+      return hashCode() == call.hashCode()
+          && nodeType == call.nodeType
+          && type.equals(call.type)
+          && method.equals(call.method)
           && Linq4j.equals(targetExpression, call.targetExpression)
           && expressions.equals(call.expressions);
     }
@@ -91,18 +92,10 @@ public class MethodCallExpression extends Expression {
     } else {
       target = targetExpression.evaluate(evaluator);
     }
-    final Object[] args = new Object[expressions.size()];
-    for (int i = 0; i < expressions.size(); i++) {
-      Expression expression = expressions.get(i);
-      args[i] = expression.evaluate(evaluator);
-    }
-    try {
-      return method.invoke(target, args);
-    } catch (IllegalAccessException e) {
-      throw new RuntimeException("error while evaluating " + this, e);
-    } catch (InvocationTargetException e) {
-      throw new RuntimeException("error while evaluating " + this, e);
+    if (invoker == null) {
+      invoker = Invoker.of(this, method);
     }
+    return invoker.invoke(target, expressions, evaluator);
   }
 
   @Override
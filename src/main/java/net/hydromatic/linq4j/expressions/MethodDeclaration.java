@@ -20,6 +20,7 @@ package net.hydromatic.linq4j.expressions;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
 import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -48,7 +49,7 @@ public class MethodDeclaration extends MemberDeclaration {
     return visitor.visit(this, parameters, body);
   }
 
-  public void accept(ExpressionWriter writer) {
+  public void accept(final ExpressionWriter writer) {
     String modifiers = Modifier.toString(modifier);
     writer.append(modifiers);
     if (!modifiers.isEmpty()) {
@@ -57,7 +58,7 @@ public class MethodDeclaration extends MemberDeclaration {
     writer.append(resultType).append(' ').append(name).list("(", ", ", ")",
         new AbstractList<String>() {
           public String get(int index) {
-            return parameters.get(index).declString();
+            return parameters.get(index).declString(writer);
           }
 
           public int size() {
@@ -66,6 +67,28 @@ public class MethodDeclaration extends MemberDeclaration {
         }).append(' ').append(body);
     writer.newlineAndIndent();
   }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof MethodDeclaration) {
+      final MethodDeclaration methodDeclaration = (MethodDeclaration) obj;
+      return modifier == methodDeclaration.modifier
+          && name.equals(methodDeclaration.name)
+          && resultType.equals(methodDeclaration.resultType)
+          && parameters.equals(methodDeclaration.parameters)
+          && body.equals(methodDeclaration.body);
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(
+        new Object[] {modifier, name, resultType, parameters, body});
+  }
 }
 
 // End MethodDeclaration.java
@@ -17,7 +17,10 @@
 */
 package net.hydromatic.linq4j.expressions;
 
+import net.hydromatic.linq4j.Linq4j;
+
 import java.lang.reflect.Type;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -61,6 +64,29 @@ public class NewArrayExpression extends Expression {
       writer.list(" {\n", ",\n", "}", expressions);
     }
   }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof NewArrayExpression) {
+      final NewArrayExpression newArrayExpression = (NewArrayExpression) obj;
+      return hashCode() == newArrayExpression.hashCode()
+          && nodeType == newArrayExpression.nodeType
+          && type.equals(newArrayExpression.type)
+          && dimension == newArrayExpression.dimension
+          && Linq4j.equals(bound, newArrayExpression.bound)
+          && Linq4j.equals(expressions, newArrayExpression.expressions);
+    }
+    return false;
+  }
+
+  @Override
+  protected int computeHashCode() {
+    return Arrays.hashCode(
+        new Object[] {nodeType, type, dimension, bound, expressions});
+  }
 }
 
 // End NewArrayExpression.java
@@ -17,7 +17,10 @@
 */
 package net.hydromatic.linq4j.expressions;
 
+import net.hydromatic.linq4j.Linq4j;
+
 import java.lang.reflect.Type;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -30,6 +33,7 @@ public class NewExpression extends Expression {
   public final Type type;
   public final List<Expression> arguments;
   public final List<MemberDeclaration> memberDeclarations;
+  private Invoker invoker; // created on first evaluation
 
   public NewExpression(Type type, List<Expression> arguments,
       List<MemberDeclaration> memberDeclarations) {
@@ -48,6 +52,19 @@ public class NewExpression extends Expression {
     return visitor.visit(this, arguments, memberDeclarations);
   }
 
+  @Override
+  public Object evaluate(Evaluator evaluator) {
+    if (memberDeclarations != null) {
+      // Cannot create an anonymous class without compiling it.
+      return super.evaluate(evaluator);
+    }
+    if (invoker == null) {
+      invoker = Invoker.of(this,
+          Types.lookupConstructor(type, Types.toClassArray(arguments)));
+    }
+    return invoker.invoke(null, arguments, evaluator);
+  }
+
   @Override
   void accept(ExpressionWriter writer, int lprec, int rprec) {
     writer.append("new ").append(type).list("(\n", ",\n", ")", arguments);
@@ -55,6 +72,29 @@ public class NewExpression extends Expression {
       writer.list("{\n", "", "}", memberDeclarations);
     }
   }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof NewExpression) {
+      final NewExpression newExpression = (NewExpression) obj;
+      return hashCode() == newExpression.hashCode()
+          && nodeType == newExpression.nodeType
+          && type.equals(newExpression.type)
+          && arguments.equals(newExpression.arguments)
+          && Linq4j.equals(memberDeclarations,
+              newExpression.memberDeclarations);
+    }
+    return false;
+  }
+
+  @Override
+  protected int computeHashCode() {
+    return Arrays.hashCode(
+        new Object[] {nodeType, type, arguments, memberDeclarations});
+  }
 }
 
 // End NewExpression.java
@@ -0,0 +1,435 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package net.hydromatic.linq4j.expressions;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Visitor that optimizes expressions.
+ *
+ * <p>Optimizations performed:</p>
+ * <ul>
+ *   <li>Folds operators whose operands are literal constants, for example
+ *   {@code 1 + 2} becomes {@code 3};</li>
+ *   <li>Simplifies boolean logic, for example {@code x && true} becomes
+ *   {@code x}, {@code !!x} becomes {@code x}, {@code x == false} becomes
+ *   {@code !x} and {@code c ? a : a} becomes {@code a};</li>
+ *   <li>Removes branches of {@link ConditionalStatement} and
+ *   {@link TernaryExpression} whose conditions are constant;</li>
+ *   <li>Removes casts to the type an expression already has, upcasts that
+ *   are immediately followed by another cast, and unboxing of a value that
+ *   was just boxed, such as those generated by
+ *   {@link Types#castIfNecessary(Type, Expression)}.</li>
+ * </ul>
+ *
+ * <p>An expression that may have side effects is never removed.</p>
+ */
+public class OptimizeVisitor extends Visitor {
+  public static final ConstantExpression FALSE_EXPR =
+      Expressions.constant(false);
+  public static final ConstantExpression TRUE_EXPR =
+      Expressions.constant(true);
+
+  @Override
+  public Expression visit(BinaryExpression binaryExpression,
+      Expression expression0, Expression expression1) {
+    switch (binaryExpression.nodeType) {
+    case AndAlso:
+      if (isConstant(expression0, true)) {
+        // "true && x" becomes "x"
+        return expression1;
+      }
+      if (isConstant(expression0, false)) {
+        // "false && x" becomes "false"
+        return FALSE_EXPR;
+      }
+      if (isConstant(expression1, true)) {
+        // "x && true" becomes "x"
+        return expression0;
+      }
+      if (isConstant(expression1, false) && isSimple(expression0)) {
+        // "x && false" becomes "false"
+        return FALSE_EXPR;
+      }
+      if (expression0.equals(expression1) && isSimple(expression0)) {
+        // "x && x" becomes "x"
+        return expression0;
+      }
+      break;
+    case OrElse:
+      if (isConstant(expression0, false)) {
+        // "false || x" becomes "x"
+        return expression1;
+      }
+      if (isConstant(expression0, true)) {
+        // "true || x" becomes "true"
+        return TRUE_EXPR;
+      }
+      if (isConstant(expression1, false)) {
+        // "x || false" becomes "x"
+        return expression0;
+      }
+      if (isConstant(expression1, true) && isSimple(expression0)) {
+        // "x || true" becomes "true"
+        return TRUE_EXPR;
+      }
+      if (expression0.equals(expression1) && isSimple(expression0)) {
+        // "x || x" becomes "x"
+        return expression0;
+      }
+      break;
+    case Equal:
+    case NotEqual:
+      final boolean equal =
+          binaryExpression.nodeType == ExpressionType.Equal;
+      if (expression0.getType() == boolean.class
+          && expression1.getType() == boolean.class) {
+        // "x == true" becomes "x", "x == false" becomes "!x",
+        // "x != true" becomes "!x", "x != false" becomes "x"
+        if (isConstant(expression1, true) || isConstant(expression1, false)) {
+          return equal == isConstant(expression1, true)
+              ? expression0
+              : not(expression0);
+        }
+        if (isConstant(expression0, true) || isConstant(expression0, false)) {
+          return equal == isConstant(expression0, true)
+              ? expression1
+              : not(expression1);
+        }
+      }
+      break;
+    }
+    if (isFoldable(binaryExpression.nodeType)
+        && isLiteral(expression0)
+        && isLiteral(expression1)
+        // Java compares references with "==", so fold only if comparing
+        // primitive values
+        && (binaryExpression.nodeType != ExpressionType.Equal
+            && binaryExpression.nodeType != ExpressionType.NotEqual
+            || Primitive.is(expression0.getType())
+            || Primitive.is(expression1.getType()))) {
+      final Type type =
+          binaryExpression.nodeType == ExpressionType.Add
+          && (expression0.getType() == String.class
+              || expression1.getType() == String.class)
+              ? String.class
+              : binaryExpression.getType();
+      final Expression e =
+          fold(Expressions.makeBinary(binaryExpression.nodeType, expression0,
+              expression1), type);
+      if (e != null) {
+        return e;
+      }
+    }
+    return super.visit(binaryExpression, expression0, expression1);
+  }
+
+  @Override
+  public Expression visit(UnaryExpression unaryExpression,
+      Expression expression) {
+    switch (unaryExpression.nodeType) {
+    case Not:
+      if (expression instanceof UnaryExpression
+          && expression.nodeType == ExpressionType.Not) {
+        // "!!x" becomes "x"
+        return ((UnaryExpression) expression).expression;
+      }
+      break;
+    case Convert:
+      if (expression.getType().equals(unaryExpression.getType())) {
+        // "(T) x" becomes "x" if x already has type T
+        return expression;
+      }
+      if (expression instanceof UnaryExpression
+          && expression.nodeType == ExpressionType.Convert) {
+        // "(T) (U) x" becomes "(T) x" if x is an object of type U
+        final Expression inner = ((UnaryExpression) expression).expression;
+        if (!Primitive.is(expression.getType())
+            && !Primitive.is(inner.getType())
+            && Types.isAssignableFrom(expression.getType(), inner.getType())) {
+          return visit(
+              Expressions.convert_(inner, unaryExpression.getType()),
+              inner);
+        }
+      }
+      if (!Primitive.is(unaryExpression.getType())) {
+        // Do not fold boxing casts; the result would have a different type.
+        return super.visit(unaryExpression, expression);
+      }
+      break;
+    }
+    if (isFoldable(unaryExpression.nodeType) && isLiteral(expression)) {
+      final Expression e =
+          fold(
+              Expressions.makeUnary(unaryExpression.nodeType, expression,
+                  unaryExpression.getType(), null),
+              unaryExpression.getType());
+      if (e != null) {
+        return e;
+      }
+    }
+    return super.visit(unaryExpression, expression);
+  }
+
+  @Override
+  public Expression visit(TernaryExpression ternaryExpression,
+      Expression expression0, Expression expression1, Expression expression2) {
+    if (ternaryExpression.nodeType == ExpressionType.Conditional) {
+      if (isConstant(expression0, true)) {
+        // "true ? a : b" becomes "a"
+        return withType(expression1, ternaryExpression.getType());
+      }
+      if (isConstant(expression0, false)) {
+        // "false ? a : b" becomes "b"
+        return withType(expression2, ternaryExpression.getType());
+      }
+      if (expression1.equals(expression2)
+          && expression1.getType().equals(expression2.getType())
+          && isSimple(expression0)) {
+        // "c ? a : a" becomes "a"
+        return withType(expression1, ternaryExpression.getType());
+      }
+      if (isConstant(expression1, true) && isConstant(expression2, false)) {
+        // "c ? true : false" becomes "c"
+        return expression0;
+      }
+      if (isConstant(expression1, false) && isConstant(expression2, true)) {
+        // "c ? false : true" becomes "!c"
+        return not(expression0);
+      }
+    }
+    return super.visit(ternaryExpression, expression0, expression1,
+        expression2);
+  }
+
+  @Override
+  public Statement visit(ConditionalStatement conditionalStatement,
+      List<Node> list) {
+    final List<Node> newList = new ArrayList<Node>();
+    boolean hasElse = list.size() % 2 == 1;
+    for (int i = 0; i < list.size() - 1; i += 2) {
+      final Node condition = list.get(i);
+      if (isConstant(condition, false)) {
+        // "if (false) a" is dead
+        continue;
+      }
+      if (isConstant(condition, true)) {
+        // "if (true) a else b" becomes "a"; the branch becomes the "else"
+        // of the preceding branches, if any
+        newList.add(list.get(i + 1));
+        hasElse = false;
+        break;
+      }
+      newList.add(condition);
+      newList.add(list.get(i + 1));
+    }
+    if (hasElse) {
+      newList.add(list.get(list.size() - 1));
+    }
+    switch (newList.size()) {
+    case 0:
+      return Expressions.block();
+    case 1:
+      final Node node = newList.get(0);
+      return node instanceof Statement
+          ? (Statement) node
+          : Expressions.statement((Expression) node);
+    default:
+      return super.visit(conditionalStatement, newList);
+    }
+  }
+
+  @Override
+  public BlockStatement visit(BlockStatement blockStatement,
+      List<Statement> statements) {
+    // Remove empty blocks, which are left when a conditional statement with
+    // a constant condition has no branch to execute.
+    List<Statement> newStatements = statements;
+    for (int i = 0; i < newStatements.size(); i++) {
+      final Statement statement = newStatements.get(i);
+      if (statement instanceof BlockStatement
+          && ((BlockStatement) statement).statements.isEmpty()) {
+        if (newStatements == statements) {
+          newStatements = new ArrayList<Statement>(statements);
+        }
+        newStatements.remove(i--);
+      }
+    }
+    return super.visit(blockStatement, newStatements);
+  }
+
+  @Override
+  public Expression visit(MethodCallExpression methodCallExpression,
+      Expression targetExpression, List<Expression> expressions) {
+    // "Integer.valueOf(i).intValue()" becomes "i"
+    if (expressions.isEmpty()
+        && targetExpression instanceof MethodCallExpression) {
+      final MethodCallExpression call =
+          (MethodCallExpression) targetExpression;
+      final Primitive primitive =
+          Primitive.ofBox(call.method.getDeclaringClass());
+      if (primitive != null
+          && call.targetExpression == null
+          && call.method.getName().equals("valueOf")
+          && call.expressions.size() == 1
+          && call.expressions.get(0).getType() == primitive.primitiveClass
+          && methodCallExpression.method.getName().equals(
+              primitive.primitiveName + "Value")) {
+        return call.expressions.get(0);
+      }
+    }
+    return super.visit(methodCallExpression, targetExpression, expressions);
+  }
+
+  /** Evaluates an expression whose operands are literals, and returns a
+   * constant with its value; or null if the expression cannot be evaluated
+   * (for example, division by zero) or its value would not have the
+   * expected type. */
+  private static Expression fold(Expression expression, Type type) {
+    final Object value;
+    try {
+      value = expression.evaluate(
+          new Evaluator(Collections.<ParameterExpression, Integer>emptyMap(),
+              new Object[0]));
+    } catch (RuntimeException e) {
+      return null;
+    }
+    final Primitive primitive = Primitive.of(type);
+    if (primitive != null
+        ? primitive.boxClass.isInstance(value)
+        : type == String.class && value instanceof String) {
+      return Expressions.constant(value, type);
+    }
+    return null;
+  }
+
+  /** Returns whether an operator can be evaluated at compile time if its
+   * operands are constants. Excludes assignments. */
+  private static boolean isFoldable(ExpressionType nodeType) {
+    switch (nodeType) {
+    case Add:
+    case AddChecked:
+    case And:
+    case AndAlso:
+    case Convert:
+    case Divide:
+    case Equal:
+    case ExclusiveOr:
+    case GreaterThan:
+    case GreaterThanOrEqual:
+    case LeftShift:
+    case LessThan:
+    case LessThanOrEqual:
+    case Modulo:
+    case Multiply:
+    case MultiplyChecked:
+    case Negate:
+    case NegateChecked:
+    case Not:
+    case NotEqual:
+    case OnesComplement:
+    case Or:
+    case OrElse:
+    case RightShift:
+    case Subtract:
+    case SubtractChecked:
+    case UnaryPlus:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /** Returns whether an expression is a constant whose value is a string,
+   * or a primitive or boxed primitive value. */
+  private static boolean isLiteral(Expression expression) {
+    if (!(expression instanceof ConstantExpression)) {
+      return false;
+    }
+    final Object value = ((ConstantExpression) expression).value;
+    return value != null && ConstantExpression.isLiteral(value);
+  }
+
+  private static boolean isConstant(Node node, boolean value) {
+    return node instanceof ConstantExpression
+        && Boolean.valueOf(value).equals(((ConstantExpression) node).value);
+  }
+
+  /** Returns whether an expression can be removed without changing the
+   * behavior of the program, because it has no side effects and cannot
+   * throw. */
+  private static boolean isSimple(Expression expression) {
+    if (expression instanceof ParameterExpression
+        || expression instanceof ConstantExpression) {
+      return true;
+    }
+    if (expression instanceof UnaryExpression) {
+      switch (expression.nodeType) {
+      case Not:
+      case Negate:
+      case UnaryPlus:
+      case OnesComplement:
+        return isSimple(((UnaryExpression) expression).expression);
+      default:
+        return false;
+      }
+    }
+    if (expression instanceof BinaryExpression
+        && Primitive.is(((BinaryExpression) expression).expression0.getType())
+        && Primitive.is(
+            ((BinaryExpression) expression).expression1.getType())) {
+      switch (expression.nodeType) {
+      case Add:
+      case Subtract:
+      case Multiply:
+      case And:
+      case Or:
+      case ExclusiveOr:
+      case AndAlso:
+      case OrElse:
+      case Equal:
+      case NotEqual:
+      case LessThan:
+      case LessThanOrEqual:
+      case GreaterThan:
+      case GreaterThanOrEqual:
+        return isSimple(((BinaryExpression) expression).expression0)
+            && isSimple(((BinaryExpression) expression).expression1);
+      default:
+        return false;
+      }
+    }
+    return false;
+  }
+
+  private Expression not(Expression expression) {
+    return visit(Expressions.not(expression), expression);
+  }
+
+  private static Expression withType(Expression expression,
+      Type type) {
+    return expression.getType().equals(type)
+        ? expression
+        : Expressions.convert_(expression, type);
+  }
+}
+
+// End OptimizeVisitor.java
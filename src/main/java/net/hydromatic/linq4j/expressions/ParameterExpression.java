@@ -50,20 +50,20 @@ public class ParameterExpression extends Expression {
 
   @Override
   void accept(ExpressionWriter writer, int lprec, int rprec) {
-    writer.append(name);
+    writer.append(writer.name(this));
   }
 
-  String declString() {
-    return declString(type);
+  String declString(ExpressionWriter writer) {
+    return declString(writer, type);
   }
 
-  String declString(Type type) {
+  String declString(ExpressionWriter writer, Type type) {
     final String modifiers = Modifier.toString(modifier);
     return modifiers
         + (modifiers.isEmpty() ? "" : " ")
         + Types.className(type)
         + " "
-        + name;
+        + writer.declare(this);
   }
 }
 
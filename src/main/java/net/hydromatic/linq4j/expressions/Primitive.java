@@ -227,15 +227,7 @@ public enum Primitive {
    */
   public static List<?> asList(final Object array) {
     // REVIEW: A per-type list might be more efficient. (Or might not.)
-    return new AbstractList() {
-      public Object get(int index) {
-        return Array.get(array, index);
-      }
-
-      public int size() {
-        return Array.getLength(array);
-      }
-    };
+    return new ArrayAsList(array);
   }
 
   /**
@@ -977,6 +969,28 @@ public enum Primitive {
     Object getObject();
   }
 
+  /** List backed by an array of primitive values. Implements
+   * {@link RandomAccess} so that algorithms such as
+   * {@link Collections#binarySearch} and
+   * {@link net.hydromatic.linq4j.ParallelEnumerable} access elements by
+   * index. */
+  private static class ArrayAsList extends AbstractList
+      implements RandomAccess {
+    private final Object array;
+
+    ArrayAsList(Object array) {
+      this.array = array;
+    }
+
+    public Object get(int index) {
+      return Array.get(array, index);
+    }
+
+    public int size() {
+      return Array.getLength(array);
+    }
+  }
+
   /** What kind of type? */
   public enum Flavor {
     /** A primitive type, e.g. {@code int}. */
@@ -18,6 +18,7 @@
 package net.hydromatic.linq4j.expressions;
 
 import java.lang.reflect.Type;
+import java.util.Arrays;
 
 /**
  * Represents an expression that has a ternary operator.
@@ -53,6 +54,41 @@ public class TernaryExpression extends Expression {
     writer.append(nodeType.op2);
     expression2.accept(writer, nodeType.rprec, rprec);
   }
+
+  @Override
+  public Object evaluate(Evaluator evaluator) {
+    switch (nodeType) {
+    case Conditional:
+      return (Boolean) expression0.evaluate(evaluator)
+          ? expression1.evaluate(evaluator)
+          : expression2.evaluate(evaluator);
+    default:
+      return super.evaluate(evaluator);
+    }
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof TernaryExpression) {
+      final TernaryExpression ternaryExpression = (TernaryExpression) obj;
+      return hashCode() == ternaryExpression.hashCode()
+          && nodeType == ternaryExpression.nodeType
+          && type.equals(ternaryExpression.type)
+          && expression0.equals(ternaryExpression.expression0)
+          && expression1.equals(ternaryExpression.expression1)
+          && expression2.equals(ternaryExpression.expression2);
+    }
+    return false;
+  }
+
+  @Override
+  protected int computeHashCode() {
+    return Arrays.hashCode(
+        new Object[] {nodeType, type, expression0, expression1, expression2});
+  }
 }
 
 // End TernaryExpression.java
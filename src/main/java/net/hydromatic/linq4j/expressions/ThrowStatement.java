@@ -17,6 +17,8 @@
 */
 package net.hydromatic.linq4j.expressions;
 
+import java.util.Arrays;
+
 /**
  * Represents a {@code throw} statement.
  */
@@ -37,6 +39,25 @@ public class ThrowStatement extends Statement {
   void accept0(ExpressionWriter writer) {
     writer.append("throw ").append(expression).append(';').newlineAndIndent();
   }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof ThrowStatement) {
+      final ThrowStatement throwStatement = (ThrowStatement) obj;
+      return hashCode() == throwStatement.hashCode()
+          && nodeType == throwStatement.nodeType
+          && expression.equals(throwStatement.expression);
+    }
+    return false;
+  }
+
+  @Override
+  protected int computeHashCode() {
+    return Arrays.hashCode(new Object[] {nodeType, expression});
+  }
 }
 
 // End ThrowStatement.java
@@ -17,6 +17,9 @@
 */
 package net.hydromatic.linq4j.expressions;
 
+import net.hydromatic.linq4j.Linq4j;
+
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -45,7 +48,7 @@ public class TryStatement extends Statement {
     writer.append("try ").append(Blocks.toBlock(body));
     for (CatchBlock catchBlock : catchBlocks) {
       writer.backUp();
-      writer.append(" catch (").append(catchBlock.parameter.declString())
+      writer.append(" catch (").append(catchBlock.parameter.declString(writer))
           .append(") ").append(Blocks.toBlock(catchBlock.body));
     }
     if (fynally != null) {
@@ -53,6 +56,27 @@ public class TryStatement extends Statement {
       writer.append(" finally ").append(Blocks.toBlock(fynally));
     }
   }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof TryStatement) {
+      final TryStatement tryStatement = (TryStatement) obj;
+      return hashCode() == tryStatement.hashCode()
+          && nodeType == tryStatement.nodeType
+          && body.equals(tryStatement.body)
+          && catchBlocks.equals(tryStatement.catchBlocks)
+          && Linq4j.equals(fynally, tryStatement.fynally);
+    }
+    return false;
+  }
+
+  @Override
+  protected int computeHashCode() {
+    return Arrays.hashCode(new Object[] {nodeType, body, catchBlocks, fynally});
+  }
 }
 
 // End TryStatement.java
@@ -18,6 +18,7 @@
 package net.hydromatic.linq4j.expressions;
 
 import java.lang.reflect.Type;
+import java.util.Arrays;
 
 /**
  * Represents an operation between an expression and a type.
@@ -47,6 +48,27 @@ public class TypeBinaryExpression extends Expression {
     writer.append(nodeType.op);
     writer.append(type);
   }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof TypeBinaryExpression) {
+      final TypeBinaryExpression typeBinaryExpression =
+          (TypeBinaryExpression) obj;
+      return hashCode() == typeBinaryExpression.hashCode()
+          && nodeType == typeBinaryExpression.nodeType
+          && expression.equals(typeBinaryExpression.expression)
+          && type.equals(typeBinaryExpression.type);
+    }
+    return false;
+  }
+
+  @Override
+  protected int computeHashCode() {
+    return Arrays.hashCode(new Object[] {nodeType, expression, type});
+  }
 }
 
 // End TypeBinaryExpression.java
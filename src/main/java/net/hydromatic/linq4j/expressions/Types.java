@@ -490,27 +490,7 @@ public abstract class Types {
   }
 
   public static PseudoField field(final Field field) {
-    return new PseudoField() {
-      public String getName() {
-        return field.getName();
-      }
-
-      public Type getType() {
-        return field.getType();
-      }
-
-      public int getModifiers() {
-        return field.getModifiers();
-      }
-
-      public Object get(Object o) throws IllegalAccessException {
-        return field.get(o);
-      }
-
-      public Class<?> getDeclaringClass() {
-        return field.getDeclaringClass();
-      }
-    };
+    return new ReflectedPseudoField(field);
   }
 
   static Class arrayClass(Type type) {
@@ -629,6 +609,47 @@ public abstract class Types {
       return componentType;
     }
   }
+
+  /** Implementation of {@link PseudoField} that wraps a Java field. */
+  static class ReflectedPseudoField implements PseudoField {
+    final Field field;
+
+    ReflectedPseudoField(Field field) {
+      this.field = field;
+    }
+
+    public String getName() {
+      return field.getName();
+    }
+
+    public Type getType() {
+      return field.getType();
+    }
+
+    public int getModifiers() {
+      return field.getModifiers();
+    }
+
+    public Object get(Object o) throws IllegalAccessException {
+      return field.get(o);
+    }
+
+    public Class<?> getDeclaringClass() {
+      return field.getDeclaringClass();
+    }
+
+    @Override
+    public int hashCode() {
+      return field.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj == this
+          || obj instanceof ReflectedPseudoField
+          && field.equals(((ReflectedPseudoField) obj).field);
+    }
+  }
 }
 
 // End Types.java
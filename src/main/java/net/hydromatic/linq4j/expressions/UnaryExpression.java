@@ -18,16 +18,21 @@
 package net.hydromatic.linq4j.expressions;
 
 import java.lang.reflect.Type;
+import java.util.Arrays;
 
 /**
  * Represents an expression that has a unary operator.
  */
 public class UnaryExpression extends Expression {
   public final Expression expression;
+  /** Type in which the operand is evaluated, after numeric promotion; null
+   * if it is not a primitive value. */
+  private final Primitive primitive;
 
   UnaryExpression(ExpressionType nodeType, Type type, Expression expression) {
     super(nodeType, type);
     this.expression = expression;
+    this.primitive = Evaluator.promote(expression.getType());
   }
 
   @Override
@@ -36,6 +41,316 @@ public class UnaryExpression extends Expression {
     return visitor.visit(this, expression);
   }
 
+  @Override
+  public Object evaluate(Evaluator evaluator) {
+    switch (nodeType) {
+    case Convert:
+      if (primitive == null || primitive == Primitive.BOOLEAN) {
+        return Evaluator.convert(expression.evaluate(evaluator),
+            Primitive.of(type));
+      }
+      final Primitive target = Primitive.of(type);
+      if (target == null) {
+        // Boxing, or a cast to a reference type.
+        return expression.evaluate(evaluator);
+      }
+      switch (target) {
+      case BYTE:
+        return (byte) convertInt(evaluator);
+      case CHAR:
+        return (char) convertInt(evaluator);
+      case SHORT:
+        return (short) convertInt(evaluator);
+      case INT:
+        return convertInt(evaluator);
+      case LONG:
+        return convertLong(evaluator);
+      case FLOAT:
+        return convertFloat(evaluator);
+      case DOUBLE:
+        return convertDouble(evaluator);
+      default:
+        throw cannotEvaluate();
+      }
+    case Not:
+      return evaluateBoolean(evaluator);
+    case Negate:
+    case NegateChecked:
+    case UnaryPlus:
+    case OnesComplement:
+      if (primitive == null) {
+        throw cannotEvaluate();
+      }
+      switch (primitive) {
+      case INT:
+        return evaluateInt(evaluator);
+      case LONG:
+        return evaluateLong(evaluator);
+      case FLOAT:
+        return evaluateFloat(evaluator);
+      case DOUBLE:
+        return evaluateDouble(evaluator);
+      default:
+        throw cannotEvaluate();
+      }
+    case PreIncrementAssign:
+      return increment(evaluator, 1, true);
+    case PreDecrementAssign:
+      return increment(evaluator, -1, true);
+    case PostIncrementAssign:
+      return increment(evaluator, 1, false);
+    case PostDecrementAssign:
+      return increment(evaluator, -1, false);
+    default:
+      throw cannotEvaluate();
+    }
+  }
+
+  /** Adds {@code delta} to a variable, and returns its new value if
+   * {@code pre}, otherwise its old value. */
+  private Object increment(Evaluator evaluator, int delta, boolean pre) {
+    if (primitive == null
+        || primitive == Primitive.BOOLEAN
+        || !(expression instanceof ParameterExpression)) {
+      throw cannotEvaluate();
+    }
+    final Object value = expression.evaluate(evaluator);
+    final Object value1;
+    switch (primitive) {
+    case INT:
+      value1 = Evaluator.toInt(value) + delta;
+      break;
+    case LONG:
+      value1 = Evaluator.toLong(value) + delta;
+      break;
+    case FLOAT:
+      value1 = Evaluator.toFloat(value) + delta;
+      break;
+    default:
+      value1 = Evaluator.toDouble(value) + delta;
+      break;
+    }
+    final Object value2 =
+        Evaluator.convert(value1, Primitive.ofBoxOr(expression.getType()));
+    evaluator.push((ParameterExpression) expression, value2);
+    return pre ? value2 : value;
+  }
+
+  @Override
+  boolean evaluateBoolean(Evaluator evaluator) {
+    if (nodeType == ExpressionType.Not) {
+      return !expression.evaluateBoolean(evaluator);
+    }
+    return super.evaluateBoolean(evaluator);
+  }
+
+  @Override
+  int evaluateInt(Evaluator evaluator) {
+    switch (nodeType) {
+    case Negate:
+    case NegateChecked:
+      if (primitive == Primitive.INT) {
+        return -expression.evaluateInt(evaluator);
+      }
+      break;
+    case UnaryPlus:
+      if (primitive == Primitive.INT) {
+        return expression.evaluateInt(evaluator);
+      }
+      break;
+    case OnesComplement:
+      if (primitive == Primitive.INT) {
+        return ~expression.evaluateInt(evaluator);
+      }
+      break;
+    case Convert:
+      final Primitive target = Primitive.of(type);
+      if (target != null && isNumeric(primitive)) {
+        switch (target) {
+        case BYTE:
+          return (byte) convertInt(evaluator);
+        case CHAR:
+          return (char) convertInt(evaluator);
+        case SHORT:
+          return (short) convertInt(evaluator);
+        case INT:
+          return convertInt(evaluator);
+        }
+      }
+      break;
+    }
+    return super.evaluateInt(evaluator);
+  }
+
+  @Override
+  long evaluateLong(Evaluator evaluator) {
+    switch (nodeType) {
+    case Negate:
+    case NegateChecked:
+      if (primitive == Primitive.LONG) {
+        return -expression.evaluateLong(evaluator);
+      }
+      break;
+    case UnaryPlus:
+      if (primitive == Primitive.LONG) {
+        return expression.evaluateLong(evaluator);
+      }
+      break;
+    case OnesComplement:
+      if (primitive == Primitive.LONG) {
+        return ~expression.evaluateLong(evaluator);
+      }
+      break;
+    case Convert:
+      if (Primitive.of(type) == Primitive.LONG && isNumeric(primitive)) {
+        return convertLong(evaluator);
+      }
+      break;
+    }
+    if (primitive == Primitive.INT || isIntConvert()) {
+      return evaluateInt(evaluator);
+    }
+    return super.evaluateLong(evaluator);
+  }
+
+  @Override
+  float evaluateFloat(Evaluator evaluator) {
+    switch (nodeType) {
+    case Negate:
+    case NegateChecked:
+      if (primitive == Primitive.FLOAT) {
+        return -expression.evaluateFloat(evaluator);
+      }
+      break;
+    case UnaryPlus:
+      if (primitive == Primitive.FLOAT) {
+        return expression.evaluateFloat(evaluator);
+      }
+      break;
+    case Convert:
+      if (Primitive.of(type) == Primitive.FLOAT && isNumeric(primitive)) {
+        return convertFloat(evaluator);
+      }
+      break;
+    }
+    if (primitive == Primitive.INT
+        || primitive == Primitive.LONG
+        || isIntConvert()) {
+      return evaluateLong(evaluator);
+    }
+    return super.evaluateFloat(evaluator);
+  }
+
+  @Override
+  double evaluateDouble(Evaluator evaluator) {
+    switch (nodeType) {
+    case Negate:
+    case NegateChecked:
+      if (primitive == Primitive.DOUBLE) {
+        return -expression.evaluateDouble(evaluator);
+      }
+      break;
+    case UnaryPlus:
+      if (primitive == Primitive.DOUBLE) {
+        return expression.evaluateDouble(evaluator);
+      }
+      break;
+    case Convert:
+      if (Primitive.of(type) == Primitive.DOUBLE && isNumeric(primitive)) {
+        return convertDouble(evaluator);
+      }
+      break;
+    }
+    if (primitive == Primitive.INT
+        || primitive == Primitive.LONG
+        || isIntConvert()) {
+      return evaluateLong(evaluator);
+    }
+    if (primitive == Primitive.FLOAT) {
+      return evaluateFloat(evaluator);
+    }
+    return super.evaluateDouble(evaluator);
+  }
+
+  private static boolean isNumeric(Primitive primitive) {
+    return primitive != null && primitive != Primitive.BOOLEAN;
+  }
+
+  /** Returns whether this is a conversion between numeric types whose result
+   * is {@code int} or narrower. */
+  private boolean isIntConvert() {
+    if (nodeType != ExpressionType.Convert || !isNumeric(primitive)) {
+      return false;
+    }
+    final Primitive target = Primitive.of(type);
+    return target == Primitive.BYTE
+        || target == Primitive.CHAR
+        || target == Primitive.SHORT
+        || target == Primitive.INT;
+  }
+
+  // The following methods convert the operand, whose promoted type is
+  // numeric, as a Java cast would. A conversion to byte, char or short
+  // converts to int first, then narrows.
+
+  private int convertInt(Evaluator evaluator) {
+    switch (primitive) {
+    case INT:
+      return expression.evaluateInt(evaluator);
+    case LONG:
+      return (int) expression.evaluateLong(evaluator);
+    case FLOAT:
+      return (int) expression.evaluateFloat(evaluator);
+    default:
+      return (int) expression.evaluateDouble(evaluator);
+    }
+  }
+
+  private long convertLong(Evaluator evaluator) {
+    switch (primitive) {
+    case INT:
+      return expression.evaluateInt(evaluator);
+    case LONG:
+      return expression.evaluateLong(evaluator);
+    case FLOAT:
+      return (long) expression.evaluateFloat(evaluator);
+    default:
+      return (long) expression.evaluateDouble(evaluator);
+    }
+  }
+
+  private float convertFloat(Evaluator evaluator) {
+    switch (primitive) {
+    case INT:
+      return expression.evaluateInt(evaluator);
+    case LONG:
+      return expression.evaluateLong(evaluator);
+    case FLOAT:
+      return expression.evaluateFloat(evaluator);
+    default:
+      return (float) expression.evaluateDouble(evaluator);
+    }
+  }
+
+  private double convertDouble(Evaluator evaluator) {
+    switch (primitive) {
+    case INT:
+      return expression.evaluateInt(evaluator);
+    case LONG:
+      return expression.evaluateLong(evaluator);
+    case FLOAT:
+      return expression.evaluateFloat(evaluator);
+    default:
+      return expression.evaluateDouble(evaluator);
+    }
+  }
+
+  private RuntimeException cannotEvaluate() {
+    return new RuntimeException("cannot evaluate " + this
+        + ", nodeType=" + nodeType
+        + ", primitive=" + primitive);
+  }
+
   @Override
   public boolean equals(Object obj) {
     if (obj == this) {
@@ -43,7 +358,8 @@ public class UnaryExpression extends Expression {
     }
     if (obj instanceof UnaryExpression) {
       final UnaryExpression unaryExpression = (UnaryExpression) obj;
-      return nodeType == unaryExpression.nodeType
+      return hashCode() == unaryExpression.hashCode()
+          && nodeType == unaryExpression.nodeType
           && type.equals(unaryExpression.type)
           && expression.equals(unaryExpression.expression);
     }
@@ -51,8 +367,8 @@ public class UnaryExpression extends Expression {
   }
 
   @Override
-  public int hashCode() {
-    return nodeType.hashCode() ^ expression.hashCode();
+  protected int computeHashCode() {
+    return Arrays.hashCode(new Object[] {nodeType, expression});
   }
 
   void accept(ExpressionWriter writer, int lprec, int rprec) {
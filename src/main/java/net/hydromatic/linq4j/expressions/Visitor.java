@@ -17,8 +17,6 @@
 */
 package net.hydromatic.linq4j.expressions;
 
-import net.hydromatic.linq4j.Linq4j;
-
 import java.util.List;
 
 /**
@@ -35,7 +33,7 @@ public class Visitor {
 
   public BlockStatement visit(BlockStatement blockStatement,
       List<Statement> statements) {
-    return statements.equals(blockStatement.statements)
+    return same(statements, blockStatement.statements)
         ? blockStatement
         : Expressions.block(statements);
   }
@@ -55,7 +53,19 @@ public class Visitor {
   public ForStatement visit(ForStatement forStatement,
       List<DeclarationStatement> declarations, Expression condition,
       Expression post, Statement body) {
-    return forStatement;
+    return same(declarations, forStatement.declarations)
+           && condition == forStatement.condition
+           && post == forStatement.post
+           && body == forStatement.body
+        ? forStatement
+        : Expressions.for_(declarations, condition, post, body);
+  }
+
+  public Statement visit(ConditionalStatement conditionalStatement,
+      List<Node> list) {
+    return same(list, conditionalStatement.expressionList)
+        ? conditionalStatement
+        : new ConditionalStatement(list);
   }
 
   public Statement visit(ThrowStatement throwStatement) {
@@ -78,10 +88,11 @@ public class Visitor {
 
   public Expression visit(FunctionExpression functionExpression,
       BlockStatement body, List<ParameterExpression> parameterList) {
-    return functionExpression.body.equals(body)
-           && functionExpression.parameterList.equals(parameterList)
+    return functionExpression.body == body
+           && same(functionExpression.parameterList, parameterList)
         ? functionExpression
-        : Expressions.lambda(body, parameterList);
+        : new FunctionExpression(Types.toClass(functionExpression.type), body,
+            parameterList);
   }
 
   public Expression visit(BinaryExpression binaryExpression,
@@ -106,7 +117,7 @@ public class Visitor {
   public Expression visit(IndexExpression indexExpression, Expression array,
       List<Expression> indexExpressions) {
     return indexExpression.array == array
-           && indexExpression.indexExpressions.equals(indexExpressions)
+           && same(indexExpression.indexExpressions, indexExpressions)
         ? indexExpression
         : new IndexExpression(array, indexExpressions);
   }
@@ -122,7 +133,7 @@ public class Visitor {
   public Expression visit(MethodCallExpression methodCallExpression,
       Expression targetExpression, List<Expression> expressions) {
     return methodCallExpression.targetExpression == targetExpression
-           && methodCallExpression.expressions.equals(expressions)
+           && same(methodCallExpression.expressions, expressions)
         ? methodCallExpression
         : Expressions.call(targetExpression, methodCallExpression.method,
             expressions);
@@ -147,14 +158,29 @@ public class Visitor {
     return invocationExpression;
   }
 
-  static <T> boolean eq(T t0, T t1) {
-    return t0 == t1 || t0 != null && t1 != null && t0.equals(t1);
+  /** Returns whether two lists contain the same nodes. Compares elements
+   * by identity: a visitor rebuilds a node only if a child has been
+   * replaced, and an identity check is cheaper than the structural
+   * {@link Object#equals}. */
+  static boolean same(List<?> list0, List<?> list1) {
+    if (list0 == list1) {
+      return true;
+    }
+    if (list0 == null || list1 == null || list0.size() != list1.size()) {
+      return false;
+    }
+    for (int i = 0; i < list0.size(); i++) {
+      if (list0.get(i) != list1.get(i)) {
+        return false;
+      }
+    }
+    return true;
   }
 
   public Expression visit(NewArrayExpression newArrayExpression, int dimension,
       Expression bound, List<Expression> expressions) {
-    return eq(expressions, newArrayExpression.expressions)
-        && eq(bound, newArrayExpression.bound)
+    return same(expressions, newArrayExpression.expressions)
+        && bound == newArrayExpression.bound
         ? newArrayExpression
         : expressions == null
         ? Expressions.newArrayBounds(
@@ -170,8 +196,8 @@ public class Visitor {
 
   public Expression visit(NewExpression newExpression,
       List<Expression> arguments, List<MemberDeclaration> memberDeclarations) {
-    return arguments.equals(newExpression.arguments)
-        && Linq4j.equals(memberDeclarations, newExpression.memberDeclarations)
+    return same(arguments, newExpression.arguments)
+        && same(memberDeclarations, newExpression.memberDeclarations)
         ? newExpression
         : Expressions.new_(newExpression.type, arguments, memberDeclarations);
   }
@@ -195,8 +221,8 @@ public class Visitor {
 
   public MemberDeclaration visit(MethodDeclaration methodDeclaration,
       List<ParameterExpression> parameters, BlockStatement body) {
-    return parameters.equals(methodDeclaration.parameters)
-        && body.equals(methodDeclaration.body)
+    return same(parameters, methodDeclaration.parameters)
+        && body == methodDeclaration.body
         ? methodDeclaration
         : Expressions.methodDecl(methodDeclaration.modifier,
              methodDeclaration.resultType, methodDeclaration.name, parameters,
@@ -205,8 +231,8 @@ public class Visitor {
 
   public MemberDeclaration visit(FieldDeclaration fieldDeclaration,
       ParameterExpression parameter, Expression initializer) {
-    return parameter.equals(fieldDeclaration.parameter)
-        && eq(initializer, fieldDeclaration.initializer)
+    return parameter == fieldDeclaration.parameter
+        && initializer == fieldDeclaration.initializer
         ? fieldDeclaration
         : Expressions.fieldDecl(fieldDeclaration.modifier, parameter,
             initializer);
@@ -17,6 +17,8 @@
 */
 package net.hydromatic.linq4j.expressions;
 
+import java.util.Arrays;
+
 /**
  * Represents a "while" statement.
  */
@@ -42,6 +44,46 @@ public class WhileStatement extends Statement {
     writer.append("while (").append(condition).append(") ").append(
         Blocks.toBlock(body));
   }
+
+  @Override
+  public Object evaluate(Evaluator evaluator) {
+    while ((Boolean) condition.evaluate(evaluator)) {
+      final Object o = body.evaluate(evaluator);
+      if (evaluator.jump != null) {
+        switch (evaluator.jump) {
+        case Break:
+          evaluator.jump = null;
+          return null;
+        case Continue:
+          evaluator.jump = null;
+          break;
+        default:
+          return o;
+        }
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof WhileStatement) {
+      final WhileStatement whileStatement = (WhileStatement) obj;
+      return hashCode() == whileStatement.hashCode()
+          && nodeType == whileStatement.nodeType
+          && condition.equals(whileStatement.condition)
+          && body.equals(whileStatement.body);
+    }
+    return false;
+  }
+
+  @Override
+  protected int computeHashCode() {
+    return Arrays.hashCode(new Object[] {nodeType, condition, body});
+  }
 }
 
 // End WhileStatement.java
@@ -18,14 +18,21 @@
 package net.hydromatic.linq4j.test;
 
 import net.hydromatic.linq4j.expressions.*;
+import net.hydromatic.linq4j.function.Function0;
 import net.hydromatic.linq4j.function.Function1;
+import net.hydromatic.linq4j.function.Function2;
+import net.hydromatic.linq4j.function.Predicate1;
 
 import org.junit.Test;
 
+import java.io.IOException;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
 import java.lang.reflect.Type;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.*;
 
 import static org.junit.Assert.*;
@@ -781,6 +788,82 @@ public class ExpressionTest {
         Expressions.toString(node));
   }
 
+  @Test public void testWriteCompact() throws IOException {
+    final ParameterExpression x = Expressions.parameter(int.class, "x");
+    final Node node =
+        Expressions.block(
+            Expressions.declare(Modifier.FINAL, x, Expressions.constant(1)),
+            Expressions.ifThenElse(
+                Expressions.lessThan(x, Expressions.constant(10)),
+                Expressions.return_(null, x),
+                Expressions.throw_(
+                    Expressions.new_(RuntimeException.class))));
+    final StringBuilder buf = new StringBuilder();
+    Expressions.write(buf, Collections.singletonList(node), "", true, true);
+    assertEquals(
+        "{final int x = 1;if (x < 10) {return x;} else {"
+        + "throw new RuntimeException();}}",
+        buf.toString());
+
+    // A string literal after an omitted line break, containing an escaped
+    // line break
+    final Node node2 =
+        Expressions.block(
+            Expressions.declare(Modifier.FINAL, x, Expressions.constant(1)),
+            Expressions.return_(null, Expressions.constant("a\nb")));
+    buf.setLength(0);
+    Expressions.write(buf, Collections.singletonList(node2), "", true, true);
+    assertEquals("{final int x = 1;return \"a\\nb\";}", buf.toString());
+  }
+
+  /** Writes a large, deeply nested program to an {@link Appendable}, and
+   * checks that it arrives in several pieces and is the same as the
+   * string. */
+  @Test public void testWriteStreaming() throws IOException {
+    final ParameterExpression x = Expressions.parameter(int.class, "x");
+    Statement statement =
+        Expressions.statement(Expressions.postIncrementAssign(x));
+    for (int i = 0; i < 50; i++) {
+      final List<Statement> statements = new ArrayList<Statement>();
+      for (int j = 0; j < 10; j++) {
+        statements.add(
+            Expressions.statement(
+                Expressions.addAssign(x, Expressions.constant(j))));
+      }
+      statements.add(
+          Expressions.while_(
+              Expressions.lessThan(x, Expressions.constant(i)), statement));
+      statement = Expressions.block(statements);
+    }
+    final StringBuilder buf = new StringBuilder();
+    final int[] appendCount = {0};
+    Expressions.write(
+        new Appendable() {
+          public Appendable append(CharSequence csq) {
+            ++appendCount[0];
+            buf.append(csq);
+            return this;
+          }
+
+          public Appendable append(CharSequence csq, int start, int end) {
+            ++appendCount[0];
+            buf.append(csq, start, end);
+            return this;
+          }
+
+          public Appendable append(char c) {
+            ++appendCount[0];
+            buf.append(c);
+            return this;
+          }
+        },
+        statement);
+    final String s = Expressions.toString(statement);
+    assertEquals(s, buf.toString());
+    assertTrue(s.length() > 20000);
+    assertTrue(appendCount[0] > 1);
+  }
+
   @Test public void testType() {
     // Type of ternary operator is the gcd of its arguments.
     assertEquals(
@@ -834,6 +917,625 @@ public class ExpressionTest {
     assertEquals(1234, x);
   }
 
+  /** Tests that {@link FunctionExpression#getFunction()} generates a class
+   * that implements the function interface directly, rather than a proxy
+   * over the interpreter. */
+  @Test public void testCompileToClass() {
+    ParameterExpression param = Expressions.parameter(int.class, "x");
+    final FunctionExpression<Predicate1<Integer>> lambda =
+        Expressions.lambda(
+            Expressions.greaterThan(param, Expressions.constant(3)),
+            param);
+    final Predicate1<Integer> predicate = lambda.getFunction();
+    assertTrue(predicate.apply(5));
+    assertFalse(predicate.apply(3));
+    if (ExpressionCompiler.isAvailable()) {
+      assertFalse(Proxy.isProxyClass(predicate.getClass()));
+    }
+
+    // A constant that has no literal form is passed to the generated class
+    // as an argument, so the compiled function sees the same object.
+    final Object o = new Object();
+    ParameterExpression param2 = Expressions.parameter(Object.class, "o");
+    final FunctionExpression<Predicate1<Object>> lambda2 =
+        Expressions.lambda(
+            Expressions.equal(param2, Expressions.constant(o)),
+            param2);
+    final Predicate1<Object> predicate2 = lambda2.getFunction();
+    if (ExpressionCompiler.isAvailable()) {
+      assertFalse(Proxy.isProxyClass(predicate2.getClass()));
+    }
+    assertTrue(predicate2.apply(o));
+    assertFalse(predicate2.apply(new Object()));
+  }
+
+  /** Tests that compiling two lambdas that differ only in the names of their
+   * parameters and in the values of non-literal constants generates one
+   * class. */
+  @Test public void testCompileCache() {
+    if (!ExpressionCompiler.isAvailable()) {
+      return;
+    }
+    final ExpressionCompiler.Cache cache = ExpressionCompiler.getCache();
+    final List<Object> list0 = new ArrayList<Object>(Arrays.asList(1, 2));
+    final List<Object> list1 = new ArrayList<Object>(Arrays.asList(3));
+    final ParameterExpression x = Expressions.parameter(Object.class, "x");
+    final ParameterExpression y = Expressions.parameter(Object.class, "y");
+    final FunctionExpression<Predicate1<Object>> lambda0 =
+        Expressions.lambda(
+            Expressions.call(Expressions.constant(list0, List.class),
+                "contains", x),
+            x);
+    final FunctionExpression<Predicate1<Object>> lambda1 =
+        Expressions.lambda(
+            Expressions.call(Expressions.constant(list1, List.class),
+                "contains", y),
+            y);
+    final long hitCount = cache.getHitCount();
+    final Predicate1<Object> predicate0 = lambda0.getFunction();
+    final Predicate1<Object> predicate1 = lambda1.getFunction();
+    assertEquals(hitCount + 1, cache.getHitCount());
+    assertSame(predicate0.getClass(), predicate1.getClass());
+    assertTrue(predicate0.apply(2));
+    assertFalse(predicate0.apply(3));
+    assertTrue(predicate1.apply(3));
+  }
+
+  /** Tests that lambdas that differ only in which parameter they use do not
+   * share a class. */
+  @Test public void testCompileCacheParameterOrder() {
+    final ParameterExpression a = Expressions.parameter(String.class, "a");
+    final ParameterExpression b = Expressions.parameter(String.class, "b");
+    final FunctionExpression<Function2<String, String, String>> first =
+        Expressions.lambda(a, a, b);
+    final FunctionExpression<Function2<String, String, String>> second =
+        Expressions.lambda(b, a, b);
+    assertEquals("x", first.getFunction().apply("x", "y"));
+    assertEquals("y", second.getFunction().apply("x", "y"));
+  }
+
+  /** Tests that a class compiled for one context class loader is not reused
+   * for another, in which the same names may denote different classes. */
+  @Test public void testCompileCacheClassLoader() {
+    if (!ExpressionCompiler.isAvailable()) {
+      return;
+    }
+    final ClassLoader parent = ExpressionTest.class.getClassLoader();
+    final ClassLoader loader0 = new URLClassLoader(new URL[0], parent);
+    final ClassLoader loader1 = new URLClassLoader(new URL[0], parent);
+    final Thread thread = Thread.currentThread();
+    final ClassLoader contextLoader = thread.getContextClassLoader();
+    final Predicate1<Integer> predicate0;
+    final Predicate1<Integer> predicate1;
+    final Predicate1<Integer> predicate2;
+    try {
+      thread.setContextClassLoader(loader0);
+      predicate0 = greaterThan7().getFunction();
+      predicate1 = greaterThan7().getFunction();
+      thread.setContextClassLoader(loader1);
+      predicate2 = greaterThan7().getFunction();
+    } finally {
+      thread.setContextClassLoader(contextLoader);
+    }
+    assertSame(predicate0.getClass(), predicate1.getClass());
+    assertNotSame(predicate0.getClass(), predicate2.getClass());
+    assertSame(loader0, predicate0.getClass().getClassLoader().getParent());
+    assertSame(loader1, predicate2.getClass().getClassLoader().getParent());
+    assertTrue(predicate2.apply(8));
+    assertFalse(predicate2.apply(7));
+  }
+
+  private static FunctionExpression<Predicate1<Integer>> greaterThan7() {
+    final ParameterExpression x = Expressions.parameter(int.class, "x");
+    return Expressions.lambda(
+        Expressions.greaterThan(x, Expressions.constant(7)), x);
+  }
+
+  /** Tests that the interpreter handles loops, jumps and nested lambdas. */
+  @Test public void testInterpret() {
+    // int n -> {
+    //   int s = 0;
+    //   for (int i = 0; i < n; i = i + 1) {
+    //     if (i == 3) continue;
+    //     if (i == 8) break;
+    //     s = s + i;
+    //   }
+    //   int j = 0;
+    //   while (true) {
+    //     if (j > 2) return s + j;
+    //     j = j + 1;
+    //   }
+    // }
+    final ParameterExpression n = Expressions.parameter(int.class, "n");
+    final DeclarationStatement sDecl =
+        Expressions.declare(0, "s", Expressions.constant(0));
+    final DeclarationStatement iDecl =
+        Expressions.declare(0, "i", Expressions.constant(0));
+    final DeclarationStatement jDecl =
+        Expressions.declare(0, "j", Expressions.constant(0));
+    final ParameterExpression s = sDecl.parameter;
+    final ParameterExpression i = iDecl.parameter;
+    final ParameterExpression j = jDecl.parameter;
+    final FunctionExpression<Function1<Integer, Integer>> lambda =
+        Expressions.lambda(
+            Expressions.block(
+                sDecl,
+                Expressions.for_(
+                    iDecl,
+                    Expressions.lessThan(i, n),
+                    Expressions.assign(i,
+                        Expressions.add(i, Expressions.constant(1))),
+                    Expressions.block(
+                        Expressions.ifThen(
+                            Expressions.equal(i, Expressions.constant(3)),
+                            Expressions.continue_(null)),
+                        Expressions.ifThen(
+                            Expressions.equal(i, Expressions.constant(8)),
+                            Expressions.break_(null)),
+                        Expressions.statement(
+                            Expressions.assign(s, Expressions.add(s, i))))),
+                jDecl,
+                Expressions.while_(
+                    Expressions.constant(true),
+                    Expressions.block(
+                        Expressions.ifThen(
+                            Expressions.greaterThan(j, Expressions.constant(2)),
+                            Expressions.return_(null, Expressions.add(s, j))),
+                        Expressions.statement(
+                            Expressions.assign(j,
+                                Expressions.add(j, Expressions.constant(1)))))),
+                Expressions.return_(null, Expressions.constant(-1))),
+            n);
+    final FunctionExpression.Invokable invokable = lambda.compile();
+    assertEquals(10, invokable.dynamicInvoke(5));
+    assertEquals(28, invokable.dynamicInvoke(100));
+
+    // a labeled continue is not supported, rather than silently unlabeled
+    try {
+      final GotoStatement statement =
+          Expressions.continue_(new LabelTarget("outer"));
+      fail("expected error, got " + statement);
+    } catch (RuntimeException e) {
+      // ok
+    }
+
+    // x -> (y -> x * y)
+    final ParameterExpression x = Expressions.parameter(int.class, "x");
+    final ParameterExpression y = Expressions.parameter(int.class, "y");
+    final FunctionExpression<Function1<Integer, Function1<Integer, Integer>>>
+        lambda2 =
+        Expressions.lambda(
+            Expressions.lambda(Expressions.multiply(x, y), y),
+            x);
+    @SuppressWarnings("unchecked")
+    final Function1<Integer, Integer> times3 =
+        (Function1<Integer, Integer>) lambda2.compile().dynamicInvoke(3);
+    assertEquals(12, (int) times3.apply(4));
+    assertEquals(15, (int) times3.apply(5));
+  }
+
+  /** Tests that an interpreted function can be called again, recursively and
+   * from several threads, while closures created by earlier calls keep their
+   * own values. */
+  @Test public void testInterpretReentrant() throws Exception {
+    // x -> (y -> x * y)
+    final ParameterExpression x = Expressions.parameter(int.class, "x");
+    final ParameterExpression y = Expressions.parameter(int.class, "y");
+    final FunctionExpression<Function1<Integer, Function1<Integer, Integer>>>
+        lambda =
+        Expressions.lambda(
+            Expressions.lambda(Expressions.multiply(x, y), y),
+            x);
+    final FunctionExpression.Invokable invokable = lambda.compile();
+    @SuppressWarnings("unchecked")
+    final Function1<Integer, Integer> times3 =
+        (Function1<Integer, Integer>) invokable.dynamicInvoke(3);
+    @SuppressWarnings("unchecked")
+    final Function1<Integer, Integer> times5 =
+        (Function1<Integer, Integer>) invokable.dynamicInvoke(5);
+    assertEquals(12, (int) times3.apply(4));
+    assertEquals(20, (int) times5.apply(4));
+    assertEquals(15, (int) times3.apply(5));
+
+    // (n, f) -> f.apply(n + 1) + n; reads n after a call of the same
+    // function has started and finished.
+    final ParameterExpression n = Expressions.parameter(int.class, "n");
+    final ParameterExpression f =
+        Expressions.parameter(Function1.class, "f");
+    final FunctionExpression.Invokable add =
+        Expressions.lambda(
+            Expressions.add(
+                Expressions.convert_(
+                    Expressions.call(f,
+                        Function1.class.getMethod("apply", Object.class),
+                        Expressions.box(Expressions.add(n,
+                            Expressions.constant(1)))),
+                    int.class),
+                n),
+            n, f).compile();
+    final Function1<Integer, Integer> hundred =
+        new Function1<Integer, Integer>() {
+          public Integer apply(Integer a0) {
+            return 100;
+          }
+        };
+    final Function1<Integer, Integer> inner =
+        new Function1<Integer, Integer>() {
+          public Integer apply(Integer a0) {
+            return (Integer) add.dynamicInvoke(a0, hundred);
+          }
+        };
+    assertEquals(100 + 7, add.dynamicInvoke(7, hundred));
+    assertEquals((100 + 2) + 1, add.dynamicInvoke(1, inner));
+
+    final List<Thread> threads = new ArrayList<Thread>();
+    final List<Object> failures =
+        Collections.synchronizedList(new ArrayList<Object>());
+    for (int i = 0; i < 4; i++) {
+      final int k = i;
+      threads.add(
+          new Thread() {
+            public void run() {
+              for (int j = 0; j < 1000; j++) {
+                @SuppressWarnings("unchecked")
+                final Function1<Integer, Integer> times =
+                    (Function1<Integer, Integer>) invokable.dynamicInvoke(k);
+                if (times.apply(j) != k * j) {
+                  failures.add(k + "*" + j);
+                }
+              }
+            }
+          });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(Collections.emptyList(), failures);
+  }
+
+  /** Tests that the interpreter evaluates arithmetic on each primitive type
+   * as Java would, including numeric promotion and casts. */
+  @Test public void testInterpretPrimitives() {
+    final ParameterExpression i = Expressions.parameter(int.class, "i");
+    final ParameterExpression l = Expressions.parameter(long.class, "l");
+    final ParameterExpression b = Expressions.parameter(byte.class, "b");
+    final ParameterExpression c = Expressions.parameter(char.class, "c");
+    final ParameterExpression f = Expressions.parameter(float.class, "f");
+    final ParameterExpression d = Expressions.parameter(double.class, "d");
+    final List<ParameterExpression> parameters = Arrays.asList(i, l, b, c, f,
+        d);
+    final Object[] args = {1 << 30, 1L << 40, (byte) 100, 'a', 1.5f, -2.75d};
+
+    // int overflows; int + long is long
+    checkInterpret(-1 << 31,
+        Expressions.multiply(i, Expressions.constant(2)), parameters, args);
+    checkInterpret((1L << 40) + (1 << 30),
+        Expressions.add(l, i), parameters, args);
+    // byte + byte is int; char promotes to int
+    checkInterpret(200, Expressions.add(b, b), parameters, args);
+    checkInterpret(98, Expressions.add(c, Expressions.constant(1)),
+        parameters, args);
+    // float * double is double; float % float is float
+    checkInterpret(-4.125d, Expressions.multiply(f, d), parameters, args);
+    checkInterpret(0.5f, Expressions.modulo(f, Expressions.constant(1f)),
+        parameters, args);
+    // bitwise and shift operators
+    checkInterpret(1L << 43, Expressions.leftShift(l, Expressions.constant(3)),
+        parameters, args);
+    checkInterpret(1 << 28, Expressions.rightShift(i, Expressions.constant(2)),
+        parameters, args);
+    checkInterpret(6, Expressions.and(Expressions.constant(7),
+        Expressions.constant(14)), parameters, args);
+    checkInterpret(15, Expressions.or(Expressions.constant(7),
+        Expressions.constant(14)), parameters, args);
+    checkInterpret(9, Expressions.exclusiveOr(Expressions.constant(7),
+        Expressions.constant(14)), parameters, args);
+    checkInterpret(~(1L << 40), Expressions.onesComplement(l), parameters,
+        args);
+    checkInterpret(true, Expressions.exclusiveOr(Expressions.constant(true),
+        Expressions.constant(false)), parameters, args);
+    // negation and casts
+    checkInterpret(2.75d, Expressions.negate(d), parameters, args);
+    checkInterpret(-2, Expressions.convert_(d, int.class), parameters, args);
+    checkInterpret((byte) 0, Expressions.convert_(l, byte.class), parameters,
+        args);
+    checkInterpret(1.5d, Expressions.convert_(f, double.class), parameters,
+        args);
+    // comparisons across types
+    checkInterpret(true,
+        Expressions.greaterThan(l, i), parameters, args);
+    checkInterpret(true,
+        Expressions.equal(c, Expressions.constant(97)), parameters, args);
+    checkInterpret(false,
+        Expressions.lessThan(f, d), parameters, args);
+    checkInterpret(false,
+        Expressions.equal(Expressions.constant(Double.NaN),
+            Expressions.constant(Double.NaN)), parameters, args);
+    // int and long are converted to float before comparing with a float,
+    // which rounds 16777217 to 16777216
+    final ParameterExpression p = Expressions.parameter(int.class, "p");
+    final ParameterExpression q = Expressions.parameter(long.class, "q");
+    checkInterpret(true,
+        Expressions.equal(p, Expressions.constant(16777216f)),
+        Arrays.asList(p, q), new Object[] {16777217, 16777217L});
+    checkInterpret(false,
+        Expressions.lessThan(Expressions.constant(16777216f), q),
+        Arrays.asList(p, q), new Object[] {16777217, 16777217L});
+    // but are widened to double exactly in a double context
+    checkInterpret(-16777216.5d,
+        Expressions.add(Expressions.constant(0.5d), Expressions.negate(p)),
+        Arrays.asList(p, q), new Object[] {16777217, 123456789012345L});
+    checkInterpret(-123456789012344.5d,
+        Expressions.add(Expressions.constant(0.5d), Expressions.negate(q)),
+        Arrays.asList(p, q), new Object[] {16777217, 123456789012345L});
+
+    // compound assignment narrows to the type of the variable
+    final DeclarationStatement xDecl =
+        Expressions.declare(0, "x", Expressions.constant((byte) 120));
+    final ParameterExpression x = xDecl.parameter;
+    final DeclarationStatement yDecl =
+        Expressions.declare(0, "y", Expressions.constant(5L));
+    final ParameterExpression y = yDecl.parameter;
+    final FunctionExpression<Function1<Integer, Object>> lambda =
+        Expressions.lambda(
+            Expressions.block(
+                xDecl,
+                yDecl,
+                Expressions.statement(Expressions.addAssign(x, i)),
+                Expressions.statement(Expressions.postIncrementAssign(y)),
+                Expressions.statement(Expressions.multiplyAssign(y, i)),
+                Expressions.return_(null,
+                    Expressions.add(
+                        Expressions.multiply(x, Expressions.constant(1000)),
+                        y))),
+            i);
+    // x = (byte) (120 + 10) = -126; y = (5 + 1) * 10 = 60
+    assertEquals(-125940L, lambda.compile().dynamicInvoke(10));
+  }
+
+  private void checkInterpret(Object expected, Expression expression,
+      List<ParameterExpression> parameters, Object[] args) {
+    final Object actual =
+        Expressions.lambda(expression, parameters).compile()
+            .dynamicInvoke(args);
+    assertEquals(expression.toString(), expected, actual);
+  }
+
+  /** Tests that the interpreter calls constructors and methods and reads
+   * fields. */
+  @Test public void testInterpretMembers() {
+    // s -> new StringBuilder(s).append(Integer.MAX_VALUE).toString()
+    final ParameterExpression s = Expressions.parameter(String.class, "s");
+    final FunctionExpression<Function1<String, String>> lambda =
+        Expressions.lambda(
+            Expressions.call(
+                Expressions.call(
+                    Expressions.new_(StringBuilder.class, s),
+                    "append",
+                    Expressions.field(null, Integer.class, "MAX_VALUE")),
+                "toString"),
+            s);
+    final FunctionExpression.Invokable invokable = lambda.compile();
+    assertEquals("x2147483647", invokable.dynamicInvoke("x"));
+    assertEquals("y2147483647", invokable.dynamicInvoke("y"));
+  }
+
+  /** Tests that the interpreter calls members directly, without reflection,
+   * once it has called them often enough, and that the results and
+   * exceptions are the same before and after. */
+  @Test public void testInterpretMembersInflated() {
+    final ParameterExpression s = Expressions.parameter(String.class, "s");
+    final ParameterExpression i = Expressions.parameter(int.class, "i");
+    final List<ParameterExpression> parameters = Arrays.asList(s, i);
+    // s.regionMatches(true, 1, "XELL", i, 3) has five arguments, so the
+    // arguments are passed in an array
+    final FunctionExpression.Invokable regionMatches =
+        Expressions.lambda(
+            Expressions.call(s, "regionMatches", Expressions.constant(true),
+                Expressions.constant(1), Expressions.constant("XELL"), i,
+                Expressions.constant(3)),
+            parameters).compile();
+    // new StringBuilder(s).append(Math.max(i, Integer.MAX_VALUE - 1))
+    //   .length()
+    final FunctionExpression.Invokable length =
+        Expressions.lambda(
+            Expressions.call(
+                Expressions.call(
+                    Expressions.new_(StringBuilder.class, s),
+                    "append",
+                    Expressions.call(Math.class, "max", i,
+                        Expressions.subtract(
+                            Expressions.field(null, Integer.class,
+                                "MAX_VALUE"),
+                            Expressions.constant(1)))),
+                "length"),
+            parameters).compile();
+    // Integer.parseInt(s) throws an unchecked exception
+    final FunctionExpression.Invokable parseInt =
+        Expressions.lambda(
+            Expressions.call(Integer.class, "parseInt", s),
+            parameters).compile();
+    // new java.net.URI(s) throws a checked exception
+    final FunctionExpression.Invokable uri =
+        Expressions.lambda(
+            Expressions.new_(java.net.URI.class, s),
+            parameters).compile();
+    for (int k = 0; k < 40; k++) {
+      assertEquals(true, regionMatches.dynamicInvoke("hello", 1));
+      assertEquals(false, regionMatches.dynamicInvoke("hello", 2));
+      assertEquals(12, length.dynamicInvoke("ab", 7));
+      assertEquals(k, parseInt.dynamicInvoke(Integer.toString(k), 0));
+      try {
+        final Object o = parseInt.dynamicInvoke("x", 0);
+        fail("expected error, got " + o);
+      } catch (NumberFormatException e) {
+        if (k > 20 && ExpressionCompiler.isAvailable()) {
+          // Between this test and Integer.parseInt, the exception passed
+          // through a generated class, not through reflection.
+          boolean generated = false;
+          for (StackTraceElement element : e.getStackTrace()) {
+            final String className = element.getClassName();
+            if (className.equals(ExpressionTest.class.getName())) {
+              break;
+            }
+            assertFalse(element.toString(),
+                className.startsWith("java.lang.reflect.")
+                || className.startsWith("sun.reflect.")
+                || className.startsWith("jdk.internal.reflect."));
+            generated |= className.startsWith("Linq4jFunction");
+          }
+          assertTrue(generated);
+        }
+      }
+      try {
+        final Object o = uri.dynamicInvoke(":", 0);
+        fail("expected error, got " + o);
+      } catch (RuntimeException e) {
+        assertTrue(e.getCause() instanceof java.net.URISyntaxException);
+      }
+    }
+  }
+
+  /** Tests that the interpreter, like compiled code, cannot call a private
+   * method, read a private field, or call a public method of a class that
+   * is not public. */
+  @Test public void testInterpretPrivateMembers() throws Exception {
+    final Counter counter = new Counter();
+    final FunctionExpression<Function0<Integer>> lambda0 =
+        Expressions.lambda(
+            Expressions.call(Expressions.constant(counter), "next"));
+    try {
+      final Object o = lambda0.compile().dynamicInvoke();
+      fail("expected error, got " + o);
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof IllegalAccessException);
+    }
+    final FunctionExpression<Function0<Integer>> lambda =
+        Expressions.lambda(
+            Expressions.call(Expressions.constant(counter),
+                Counter.class.getDeclaredMethod("reset")));
+    try {
+      final Object o = lambda.compile().dynamicInvoke();
+      fail("expected error, got " + o);
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof IllegalAccessException);
+    }
+    final FunctionExpression<Function0<Integer>> lambda2 =
+        Expressions.lambda(
+            Expressions.field(Expressions.constant(counter),
+                Counter.class.getDeclaredField("n")));
+    try {
+      final Object o = lambda2.compile().dynamicInvoke();
+      fail("expected error, got " + o);
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof IllegalAccessException);
+    }
+    assertEquals(1, counter.next());
+  }
+
+  @Test public void testOptimize() {
+    final ParameterExpression x = Expressions.parameter(boolean.class, "x");
+    final ParameterExpression i = Expressions.parameter(int.class, "i");
+    final ParameterExpression s = Expressions.parameter(String.class, "s");
+
+    // constant folding
+    checkOptimize("7",
+        Expressions.add(Expressions.constant(1),
+            Expressions.multiply(Expressions.constant(2),
+                Expressions.constant(3))));
+    checkOptimize("i + 7",
+        Expressions.add(i,
+            Expressions.add(Expressions.constant(3),
+                Expressions.constant(4))));
+    checkOptimize("\"a1\"",
+        Expressions.add(Expressions.constant("a"), Expressions.constant(1)));
+    checkOptimize("3",
+        Expressions.convert_(Expressions.constant(3.7D), int.class));
+    // division by zero is left for run time
+    checkOptimize("1 / 0",
+        Expressions.divide(Expressions.constant(1), Expressions.constant(0)));
+    // strings are compared by reference, so not folded
+    checkOptimize("\"a\" == \"a\"",
+        Expressions.equal(Expressions.constant("a"),
+            Expressions.constant("a")));
+
+    // boolean logic
+    checkOptimize("x",
+        Expressions.andAlso(x, Expressions.constant(true)));
+    checkOptimize("false",
+        Expressions.andAlso(Expressions.constant(false), x));
+    checkOptimize("x",
+        Expressions.orElse(Expressions.constant(false), x));
+    checkOptimize("x",
+        Expressions.not(Expressions.not(x)));
+    checkOptimize("!x",
+        Expressions.equal(x, Expressions.constant(false)));
+    checkOptimize("x",
+        Expressions.notEqual(Expressions.constant(false), x));
+    checkOptimize("i",
+        Expressions.condition(x, i, i));
+    checkOptimize("!x",
+        Expressions.condition(x, Expressions.constant(false),
+            Expressions.constant(true)));
+    checkOptimize("s",
+        Expressions.condition(
+            Expressions.lessThan(Expressions.constant(1),
+                Expressions.constant(2)),
+            s,
+            Expressions.constant("b")));
+
+    // redundant casts
+    checkOptimize("s",
+        Expressions.convert_(Expressions.convert_(s, Object.class),
+            String.class));
+    checkOptimize("i",
+        Expressions.unbox(Expressions.box(i), Primitive.INT));
+    checkOptimize("i",
+        Types.castIfNecessary(int.class,
+            Types.castIfNecessary(Integer.class, i)));
+
+    // dead branches
+    checkOptimize(
+        "{\n"
+        + "  return i;\n"
+        + "}\n",
+        Expressions.block(
+            Expressions.ifThenElse(Expressions.constant(false),
+                Expressions.return_(null, s),
+                Expressions.return_(null, i))));
+    checkOptimize(
+        "{\n"
+        + "  if (x) {\n"
+        + "    return 1;\n"
+        + "  } else {\n"
+        + "    return 2;\n"
+        + "  }\n"
+        + "}\n",
+        Expressions.block(
+            new ConditionalStatement(
+                Arrays.<Node>asList(x,
+                    Expressions.return_(null, Expressions.constant(1)),
+                    Expressions.not(Expressions.constant(false)),
+                    Expressions.return_(null, Expressions.constant(2)),
+                    Expressions.return_(null, Expressions.constant(3))))));
+    checkOptimize(
+        "{\n"
+        + "  return i;\n"
+        + "}\n",
+        Expressions.block(
+            Expressions.ifThen(Expressions.constant(false),
+                Expressions.return_(null, s)),
+            Expressions.return_(null, i)));
+  }
+
+  private void checkOptimize(String expected, Node node) {
+    assertEquals(expected,
+        Expressions.toString(node.accept(new OptimizeVisitor())));
+  }
+
   @Test public void testBlockBuilder() {
     checkBlockBuilder(
         false,
@@ -963,6 +1665,139 @@ public class ExpressionTest {
     expression.accept(new Visitor());
   }
 
+  /** Tests that a nested block re-uses variables declared in the enclosing
+   * block, and does not declare variables that would hide them. */
+  @Test public void testBlockBuilderNested() {
+    final ParameterExpression x = Expressions.parameter(int.class, "x");
+    final BlockBuilder builder0 = new BlockBuilder();
+    final Expression a =
+        builder0.append("a", Expressions.add(x, Expressions.constant(1)));
+    final Expression b =
+        builder0.append("b", Expressions.add(x, Expressions.constant(2)));
+
+    final BlockBuilder builder1 = new BlockBuilder(true, builder0);
+    final Expression a1 =
+        builder1.append("a", Expressions.add(x, Expressions.constant(1)));
+    final Expression b1 =
+        builder1.append("b", Expressions.add(x, Expressions.constant(2)));
+    final Expression c1 =
+        builder1.append("a", Expressions.add(x, Expressions.constant(3)));
+    // a nested block that declares "b" must not re-declare the enclosing "b"
+    final Expression d1 =
+        builder1.append("d",
+            Expressions.block(
+                Expressions.declare(Modifier.FINAL, "b",
+                    Expressions.add(x, Expressions.constant(4)))));
+    assertSame(a, a1);
+    assertSame(b, b1);
+    builder1.add(
+        Expressions.return_(null,
+            Expressions.add(
+                Expressions.add(Expressions.add(a1, b1),
+                    Expressions.multiply(c1, c1)),
+                Expressions.multiply(d1, d1))));
+
+    builder0.add(
+        Expressions.ifThen(
+            Expressions.greaterThan(x, Expressions.constant(0)),
+            builder1.toBlock()));
+    builder0.add(Expressions.return_(null, Expressions.multiply(a, b)));
+    assertEquals(
+        "{\n"
+        + "  final int a = x + 1;\n"
+        + "  final int b = x + 2;\n"
+        + "  if (x > 0) {\n"
+        + "    final int a0 = x + 3;\n"
+        + "    final int b0 = x + 4;\n"
+        + "    return a + b + a0 * a0 + b0 * b0;\n"
+        + "  }\n"
+        + "  return a * b;\n"
+        + "}\n",
+        Expressions.toString(builder0.toBlock()));
+  }
+
+  /** Tests that a block with many declarations finds each common
+   * sub-expression. */
+  @Test public void testBlockBuilderMany() {
+    final ParameterExpression x = Expressions.parameter(int.class, "x");
+    final BlockBuilder builder = new BlockBuilder();
+    final int n = 20000;
+    final List<Expression> variables = new ArrayList<Expression>();
+    for (int i = 0; i < n; i++) {
+      variables.add(
+          builder.append("v",
+              Expressions.call(Math.class, "max", x,
+                  Expressions.constant(i))));
+    }
+    assertEquals(n, new HashSet<Expression>(variables).size());
+    for (int i = n - 1; i >= 0; i -= 997) {
+      assertSame(variables.get(i),
+          builder.append("w",
+              Expressions.call(Math.class, "max", x,
+                  Expressions.constant(i))));
+    }
+  }
+
+  /** Tests that nodes are equal if they have the same structure, and that
+   * parameters are equal only to themselves. */
+  @Test public void testEquals() {
+    final ParameterExpression x = Expressions.parameter(int.class, "x");
+    final ParameterExpression x2 = Expressions.parameter(int.class, "x");
+    assertFalse(x.equals(x2));
+
+    final Statement s1 = whileLoop(x);
+    final Statement s2 = whileLoop(x);
+    assertNotSame(s1, s2);
+    assertEquals(s1, s2);
+    assertEquals(s1.hashCode(), s2.hashCode());
+    assertFalse(s1.equals(whileLoop(x2)));
+
+    // Static call has no target expression.
+    final Expression call =
+        Expressions.call(Math.class, "abs", Expressions.constant(-1));
+    assertEquals(call,
+        Expressions.call(Math.class, "abs", Expressions.constant(-1)));
+    assertEquals(call.hashCode(),
+        Expressions.call(Math.class, "abs", Expressions.constant(-1))
+            .hashCode());
+
+    // Constants of different types are different.
+    assertFalse(Expressions.constant(null, String.class)
+        .equals(Expressions.constant(null, Integer.class)));
+    assertFalse(Expressions.constant(1, int.class)
+        .equals(Expressions.constant(1, Integer.class)));
+  }
+
+  /** Tests that interning a tree makes identical sub-trees share one
+   * object. */
+  @Test public void testIntern() {
+    final ParameterExpression x = Expressions.parameter(int.class, "x");
+    final BlockStatement block =
+        Expressions.block(whileLoop(x), whileLoop(x));
+    assertNotSame(block.statements.get(0), block.statements.get(1));
+
+    final Map<Node, Node> pool = new HashMap<Node, Node>();
+    final BlockStatement block2 = Expressions.intern(block, pool);
+    assertEquals(block, block2);
+    assertSame(block2.statements.get(0), block2.statements.get(1));
+    assertEquals(
+        Expressions.toString(block), Expressions.toString(block2));
+
+    // A tree interned in the same pool shares its sub-trees.
+    final Statement loop = Expressions.intern(whileLoop(x), pool);
+    assertSame(block2.statements.get(0), loop);
+    assertSame(block2, Expressions.intern(block2, pool));
+  }
+
+  /** Creates "while (x < 10) { x += 1; }". */
+  private static Statement whileLoop(ParameterExpression x) {
+    return Expressions.while_(
+        Expressions.lessThan(x, Expressions.constant(10)),
+        Expressions.block(
+            Expressions.statement(
+                Expressions.addAssign(x, Expressions.constant(1)))));
+  }
+
   @Test public void testConstantExpression() {
     final Expression constant = Expressions.constant(
         new Object[] {
@@ -1204,6 +2039,19 @@ public class ExpressionTest {
       this.o = o;
     }
   }
+
+  /** Class that is not visible outside this class. */
+  private static class Counter {
+    private int n;
+
+    public int next() {
+      return ++n;
+    }
+
+    private int reset() {
+      return n = 0;
+    }
+  }
 }
 
 // End ExpressionTest.java
@@ -23,7 +23,13 @@ import net.hydromatic.linq4j.function.*;
 
 import org.junit.Test;
 
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import static org.junit.Assert.*;
 
@@ -381,6 +387,105 @@ public class Linq4jTest {
         buf.toString());
   }
 
+  /** Tests a lookup with many keys, including removing keys, which moves
+   * entries within the hash table. */
+  @Test public void testToLookupMany() {
+    final Random random = new Random(6);
+    final List<Integer> list = new ArrayList<Integer>();
+    for (int i = 0; i < 10000; i++) {
+      list.add(random.nextInt(3000) - 1000);
+    }
+    final Function1<Integer, Integer> mod =
+        new Function1<Integer, Integer>() {
+          public Integer apply(Integer v) {
+            return v % 700;
+          }
+        };
+    final Map<Integer, List<Integer>> expected =
+        new HashMap<Integer, List<Integer>>();
+    for (Integer v : list) {
+      List<Integer> values = expected.get(mod.apply(v));
+      if (values == null) {
+        values = new ArrayList<Integer>();
+        expected.put(mod.apply(v), values);
+      }
+      values.add(v);
+    }
+    final Lookup<Integer, Integer> lookup =
+        Linq4j.asEnumerable(list).toLookup(mod);
+    assertEquals(expected.size(), lookup.size());
+    for (Map.Entry<Integer, List<Integer>> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), lookup.get(entry.getKey()).toList());
+    }
+    assertNull(lookup.get(5000));
+
+    int i = 0;
+    for (Iterator<Integer> iterator = lookup.keySet().iterator();
+         iterator.hasNext();) {
+      final Integer key = iterator.next();
+      if (i++ % 3 == 0) {
+        iterator.remove();
+        expected.remove(key);
+      }
+    }
+    for (Integer key : new ArrayList<Integer>(expected.keySet())) {
+      if (key % 2 == 0) {
+        assertNotNull(lookup.remove(key));
+        expected.remove(key);
+      }
+    }
+    assertEquals(expected.size(), lookup.size());
+    assertEquals(expected.keySet(), new HashSet<Integer>(lookup.keySet()));
+    for (Map.Entry<Integer, List<Integer>> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), lookup.get(entry.getKey()).toList());
+    }
+  }
+
+  /** Tests that the hash table behind lookups and hash aggregation has
+   * entries that obey the {@link Map.Entry} contract, so that it equals, and
+   * has the same hash code as, a {@link HashMap} with the same contents. The
+   * class is not public, so the test creates it reflectively. */
+  @Test public void testOpenHashMapEntries() throws Exception {
+    final Constructor<?> constructor =
+        Class.forName("net.hydromatic.linq4j.OpenHashMap")
+            .getDeclaredConstructor(EqualityComparer.class);
+    constructor.setAccessible(true);
+    @SuppressWarnings("unchecked")
+    final Map<String, Integer> map =
+        (Map<String, Integer>) constructor.newInstance((Object) null);
+    final Map<String, Integer> expected = new HashMap<String, Integer>();
+    for (String key : Arrays.asList("a", "b", null, "d")) {
+      final Integer value = key == null ? null : key.hashCode() * 17;
+      map.put(key, value);
+      expected.put(key, value);
+    }
+    map.put("e", null);
+    expected.put("e", null);
+    assertEquals(expected, map);
+    assertEquals(map, expected);
+    assertEquals(expected.hashCode(), map.hashCode());
+    assertEquals(expected.entrySet(), map.entrySet());
+    assertEquals(map.entrySet(), expected.entrySet());
+    assertEquals(expected.entrySet().hashCode(), map.entrySet().hashCode());
+    for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+      assertTrue(map.entrySet().contains(entry));
+      assertTrue(map.entrySet().contains(
+          new AbstractMap.SimpleEntry<String, Integer>(entry)));
+    }
+    assertFalse(map.entrySet().contains(
+        new AbstractMap.SimpleEntry<String, Integer>("a", 0)));
+    assertFalse(map.entrySet().contains(
+        new AbstractMap.SimpleEntry<String, Integer>("z", null)));
+    assertFalse(map.entrySet().contains("a"));
+
+    final Map.Entry<String, Integer> entry = map.entrySet().iterator().next();
+    assertEquals("a=" + "a".hashCode() * 17, entry.toString());
+    assertEquals(new AbstractMap.SimpleEntry<String, Integer>(entry), entry);
+    assertEquals(
+        new AbstractMap.SimpleEntry<String, Integer>(entry).hashCode(),
+        entry.hashCode());
+  }
+
   private static <K extends Comparable, V> Function1<Grouping<K, V>, K>
   groupingKeyExtractor() {
     return new Function1<Grouping<K, V>, K>() {
@@ -420,6 +525,110 @@ public class Linq4jTest {
         s);
   }
 
+  @Test public void testSortedGroupBy() {
+    final Function0<Integer> zero =
+        new Function0<Integer>() {
+          public Integer apply() {
+            return 0;
+          }
+        };
+    final Function2<Integer, Integer, Integer> count =
+        new Function2<Integer, Integer, Integer>() {
+          public Integer apply(Integer v0, Integer v1) {
+            return v0 + 1;
+          }
+        };
+    final Function2<Integer, Integer, String> format =
+        new Function2<Integer, Integer, String>() {
+          public String apply(Integer v0, Integer v1) {
+            return v0 + ":" + v1;
+          }
+        };
+    final Function1<Integer, Integer> tens =
+        new Function1<Integer, Integer>() {
+          public Integer apply(Integer v) {
+            return v / 10;
+          }
+        };
+    final List<Integer> list =
+        Arrays.asList(1, 3, 12, 14, 15, 17, 40, 41, 43, 90);
+    assertEquals("[0:2, 1:4, 4:3, 9:1]",
+        EnumerableDefaults.sortedGroupBy(Linq4j.asEnumerable(list), tens,
+            zero, count, format, null)
+            .toList().toString());
+    assertEquals("[0: [1, 3], 1: [12, 14, 15, 17], 4: [40, 41, 43], 9: [90]]",
+        EnumerableDefaults.sortedGroupBy(Linq4j.asEnumerable(list), tens,
+            null)
+            .toList().toString());
+    assertEquals("[]",
+        EnumerableDefaults.sortedGroupBy(
+            Linq4j.asEnumerable(Collections.<Integer>emptyList()), tens,
+            zero, count, format, null)
+            .toList().toString());
+
+    // Reads only as far as the first element of the next group.
+    final int[] readCount = {0};
+    final Enumerable<Integer> counting =
+        Linq4j.asEnumerable(list).select(
+            new Function1<Integer, Integer>() {
+              public Integer apply(Integer v) {
+                ++readCount[0];
+                return v;
+              }
+            });
+    final Enumerator<String> enumerator =
+        EnumerableDefaults.sortedGroupBy(counting, tens, zero, count, format,
+            null)
+            .enumerator();
+    assertTrue(enumerator.moveNext());
+    assertEquals("0:2", enumerator.current());
+    assertEquals(3, readCount[0]);
+    enumerator.close();
+
+    // Input that is not sorted
+    try {
+      final List<String> result =
+          EnumerableDefaults.sortedGroupBy(Linq4j.asEnumerable(list).reverse(),
+              tens, zero, count, format, null)
+              .toList();
+      fail("expected error, got " + result);
+    } catch (IllegalStateException e) {
+      assertEquals("input is not sorted: key 9 precedes 4", e.getMessage());
+    }
+
+    // groupBy on input declared sorted by the same key streams, and returns
+    // groups in key order.
+    assertEquals("[0:2, 1:4, 4:3, 9:1]",
+        EnumerableDefaults.asOrdered(Linq4j.asEnumerable(list), tens, null)
+            .groupBy(tens, zero, count, format)
+            .toList().toString());
+    assertEquals("[10: [Fred, Eric, Janet], 30: [Bill]]",
+        EnumerableDefaults.asOrdered(
+            Linq4j.asEnumerable(emps).orderBy(EMP_DEPTNO_SELECTOR),
+            EMP_DEPTNO_SELECTOR, null)
+            .groupBy(EMP_DEPTNO_SELECTOR)
+            .select(
+                new Function1<Grouping<Integer, Employee>, String>() {
+                  public String apply(Grouping<Integer, Employee> group) {
+                    return group.getKey() + ": "
+                        + group.select(EMP_NAME_SELECTOR).toList();
+                  }
+                })
+            .toList().toString());
+
+    // Keys 1.0 and 1.00 compare equal but are not equal. Sorting the input
+    // does not declare that they are the same group.
+    final List<BigDecimal> decimals =
+        Arrays.asList(new BigDecimal("1.0"), new BigDecimal("1.00"),
+            new BigDecimal("2"));
+    final Function1<BigDecimal, BigDecimal> identity =
+        Functions.identitySelector();
+    assertEquals(3, Linq4j.asEnumerable(decimals).groupBy(identity).count());
+    assertEquals(3,
+        Linq4j.asEnumerable(decimals).orderBy(identity).groupBy(identity)
+            .count());
+  }
+
   /**
    * Tests the version of
    * {@link ExtendedEnumerable#aggregate}
@@ -596,6 +805,550 @@ public class Linq4jTest {
             .count());
   }
 
+  /** Tests that set operators read their input only when enumerated, and
+   * return elements in the order they first occur in the left input. */
+  @Test public void testSetOperatorsLazy() {
+    final int[] readCount = {0};
+    final Enumerable<Integer> left =
+        Linq4j.asEnumerable(Arrays.asList(5, 3, 5, 1, 4, 3, 2, 1, 6, -1))
+            .select(
+                new Function1<Integer, Integer>() {
+                  public Integer apply(Integer v) {
+                    ++readCount[0];
+                    if (v < 0) {
+                      throw new IllegalStateException("read too far");
+                    }
+                    return v;
+                  }
+                });
+    final Enumerable<Integer> right =
+        Linq4j.asEnumerable(Arrays.asList(1, 2, 3, 7));
+
+    final Enumerable<Integer> distinct = left.distinct();
+    final Enumerable<Integer> union = left.take(9).union(right);
+    final Enumerable<Integer> intersect = left.intersect(right);
+    final Enumerable<Integer> except = left.except(right);
+    assertEquals(0, readCount[0]);
+
+    // take reads only as much of the input as it needs
+    assertEquals("[5, 3, 1, 4, 2, 6]", distinct.take(6).toList().toString());
+    assertEquals("[5, 3, 1, 4, 2, 6, 7]", union.toList().toString());
+    assertEquals("[3, 1, 2]", intersect.take(3).toList().toString());
+    assertEquals("[5, 4, 6]", except.take(3).toList().toString());
+    assertEquals("[5]", except.take(1).toList().toString());
+  }
+
+  @Test public void testParallel() {
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final int[] ints = new int[10000];
+      final List<Integer> list = new ArrayList<Integer>();
+      final Random random = new Random(7);
+      for (int i = 0; i < ints.length; i++) {
+        ints[i] = random.nextInt(1000);
+        list.add(ints[i]);
+      }
+      final Enumerable<Integer> sequential = Linq4j.asEnumerable(list);
+      final ParallelEnumerable<Integer> parallel =
+          Linq4j.asEnumerable(Primitive.asList(ints)).asParallel(executor, 4);
+      final Predicate1<Integer> even =
+          new Predicate1<Integer>() {
+            public boolean apply(Integer v) {
+              return v % 2 == 0;
+            }
+          };
+      final Function1<Integer, Integer> twice =
+          new Function1<Integer, Integer>() {
+            public Integer apply(Integer v) {
+              return v * 2;
+            }
+          };
+      final Function1<Integer, Integer> mod7 =
+          new Function1<Integer, Integer>() {
+            public Integer apply(Integer v) {
+              return v % 7;
+            }
+          };
+      final IntegerFunction1<Integer> intValue =
+          new IntegerFunction1<Integer>() {
+            public int apply(Integer v) {
+              return v;
+            }
+          };
+
+      // Operators on chunks; results in original order.
+      assertEquals(sequential.where(even).select(twice).toList(),
+          parallel.where(even).select(twice).toList());
+      assertEquals(
+          sequential.selectMany(
+              new Function1<Integer, Enumerable<Integer>>() {
+                public Enumerable<Integer> apply(Integer v) {
+                  return Linq4j.asEnumerable(Arrays.asList(v, -v));
+                }
+              }).toList(),
+          parallel.selectMany(
+              new Function1<Integer, Enumerable<Integer>>() {
+                public Enumerable<Integer> apply(Integer v) {
+                  return Linq4j.asEnumerable(Arrays.asList(v, -v));
+                }
+              }).toList());
+      final List<Integer> unordered =
+          parallel.asUnordered().where(even).toList();
+      Collections.sort(unordered);
+      final List<Integer> expectedEven = sequential.where(even).toList();
+      Collections.sort(expectedEven);
+      assertEquals(expectedEven, unordered);
+
+      // Aggregates
+      assertEquals(sequential.count(), parallel.count());
+      assertEquals(sequential.count(even), parallel.count(even));
+      assertEquals(sequential.sum(intValue), parallel.sum(intValue));
+      assertEquals(sequential.min(), parallel.min());
+      assertEquals(sequential.max(), parallel.max());
+      assertEquals(sequential.max(mod7), parallel.max(mod7));
+      assertEquals(Integer.valueOf(sequential.sum(intValue)),
+          parallel.aggregate(
+              new Function0<Integer>() {
+                public Integer apply() {
+                  return 0;
+                }
+              },
+              new Function2<Integer, Integer, Integer>() {
+                public Integer apply(Integer v0, Integer v1) {
+                  return v0 + v1;
+                }
+              },
+              new Function2<Integer, Integer, Integer>() {
+                public Integer apply(Integer v0, Integer v1) {
+                  return v0 + v1;
+                }
+              }));
+      assertEquals(0, parallel.where(Functions.<Integer>falsePredicate1())
+          .count());
+      assertNull(parallel.where(Functions.<Integer>falsePredicate1()).max());
+
+      // Grouping; the elements of each group are in their original order.
+      final Lookup<Integer, Integer> lookup = parallel.toLookup(mod7);
+      assertEquals(7, lookup.size());
+      for (Grouping<Integer, Integer> grouping : sequential.groupBy(mod7)) {
+        assertEquals(grouping.toList(),
+            lookup.get(grouping.getKey()).toList());
+      }
+      final Function2<Integer, Integer, String> format =
+          new Function2<Integer, Integer, String>() {
+            public String apply(Integer v0, Integer v1) {
+              return v0 + ":" + v1;
+            }
+          };
+      final Function0<Integer> zero =
+          new Function0<Integer>() {
+            public Integer apply() {
+              return 0;
+            }
+          };
+      final Function2<Integer, Integer, Integer> count =
+          new Function2<Integer, Integer, Integer>() {
+            public Integer apply(Integer v0, Integer v1) {
+              return v0 + 1;
+            }
+          };
+      final Function2<Integer, Integer, Integer> plus =
+          new Function2<Integer, Integer, Integer>() {
+            public Integer apply(Integer v0, Integer v1) {
+              return v0 + v1;
+            }
+          };
+      final List<String> expected =
+          sequential.groupBy(mod7, zero, count, format).toList();
+      Collections.sort(expected);
+      final List<String> actual =
+          parallel.groupBy(mod7, zero, count, plus, format).toList();
+      Collections.sort(actual);
+      assertEquals(expected, actual);
+
+      // A source that is not a list is read into a list first
+      assertEquals(sequential.where(even).toList(),
+          sequential.where(Functions.<Integer>truePredicate1())
+              .asParallel(executor, 3).where(even).toList());
+
+      // An exception in a task is thrown to the caller
+      try {
+        final int n = parallel.select(
+            new Function1<Integer, Integer>() {
+              public Integer apply(Integer v) {
+                if (v == 500) {
+                  throw new IllegalArgumentException("500");
+                }
+                return v;
+              }
+            }).count();
+        fail("expected error, got " + n);
+      } catch (IllegalArgumentException e) {
+        assertEquals("500", e.getMessage());
+      }
+
+      assertFalse(parallel.asSequential() instanceof ParallelEnumerable);
+      assertEquals(list, parallel.asSequential().toList());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test public void testParallelJoin() {
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      // Facts reference dimension keys 0 .. 119; the dimension has keys
+      // 0 .. 99, and keys 0 .. 9 twice.
+      final Random random = new Random(11);
+      final List<Integer> facts = new ArrayList<Integer>();
+      for (int i = 0; i < 20000; i++) {
+        facts.add(random.nextInt(120));
+      }
+      final List<String> dimension = new ArrayList<String>();
+      for (int i = 0; i < 100; i++) {
+        dimension.add(i + ":a");
+      }
+      for (int i = 0; i < 10; i++) {
+        dimension.add(i + ":b");
+      }
+      final Function1<Integer, Integer> factKey =
+          Functions.identitySelector();
+      final Function1<String, Integer> dimensionKey =
+          new Function1<String, Integer>() {
+            public Integer apply(String v) {
+              return Integer.valueOf(v.substring(0, v.indexOf(':')));
+            }
+          };
+      final Function2<Integer, String, String> resultSelector =
+          new Function2<Integer, String, String>() {
+            public String apply(Integer v0, String v1) {
+              return v0 + "=" + v1;
+            }
+          };
+      final List<String> expected =
+          Linq4j.asEnumerable(facts)
+              .join(Linq4j.asEnumerable(dimension), factKey, dimensionKey,
+                  resultSelector)
+              .toList();
+      assertTrue(expected.size() > 17000);
+
+      // Results are in the same order as a sequential join
+      final ParallelEnumerable<Integer> parallelFacts =
+          Linq4j.asEnumerable(facts).asParallel(executor, 4);
+      assertEquals(expected,
+          parallelFacts.join(Linq4j.asEnumerable(dimension), factKey,
+              dimensionKey, resultSelector).toList());
+      assertEquals(expected,
+          parallelFacts.join(
+              Linq4j.asEnumerable(dimension).asParallel(executor, 3),
+              factKey, dimensionKey, resultSelector).toList());
+      assertEquals(expected,
+          parallelFacts.join(Linq4j.asEnumerable(dimension), factKey,
+              dimensionKey, resultSelector,
+              Functions.<Integer>identityComparer()).toList());
+      final List<String> unordered =
+          parallelFacts.asUnordered().join(Linq4j.asEnumerable(dimension),
+              factKey, dimensionKey, resultSelector).toList();
+      final List<String> sortedExpected = new ArrayList<String>(expected);
+      Collections.sort(sortedExpected);
+      Collections.sort(unordered);
+      assertEquals(sortedExpected, unordered);
+
+      // A comparer that ignores case
+      final EqualityComparer<String> ignoreCase =
+          new EqualityComparer<String>() {
+            public boolean equal(String v1, String v2) {
+              return v1.equalsIgnoreCase(v2);
+            }
+
+            public int hashCode(String s) {
+              return s.toLowerCase().hashCode();
+            }
+          };
+      final Function1<String, String> identity =
+          Functions.identitySelector();
+      assertEquals("[a=A, B=b, B=B, c=C]",
+          Linq4j.asEnumerable(Arrays.asList("a", "B", "c", "d"))
+              .asParallel(executor, 2)
+              .join(Linq4j.asEnumerable(Arrays.asList("A", "b", "C", "B")),
+                  identity, identity,
+                  new Function2<String, String, String>() {
+                    public String apply(String v0, String v1) {
+                      return v0 + "=" + v1;
+                    }
+                  },
+                  ignoreCase)
+              .toList().toString());
+
+      // An exception while building is thrown to the caller
+      try {
+        final int n = parallelFacts.join(Linq4j.asEnumerable(dimension),
+            factKey,
+            new Function1<String, Integer>() {
+              public Integer apply(String v) {
+                throw new IllegalStateException(v);
+              }
+            },
+            resultSelector).count();
+        fail("expected error, got " + n);
+      } catch (IllegalStateException e) {
+        assertTrue(e.getMessage().contains(":"));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test public void testParallelSort() {
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      // Many duplicate keys, so that the test detects an unstable sort.
+      final Random random = new Random(13);
+      final List<String> list = new ArrayList<String>();
+      for (int i = 0; i < 50000; i++) {
+        list.add(random.nextInt(100) + ":" + random.nextInt(10) + ":" + i);
+      }
+      final Function1<String, Integer> first =
+          new Function1<String, Integer>() {
+            public Integer apply(String v) {
+              return Integer.valueOf(v.substring(0, v.indexOf(':')));
+            }
+          };
+      final Function1<String, String> second =
+          new Function1<String, String>() {
+            public String apply(String v) {
+              return v.substring(v.indexOf(':') + 1, v.lastIndexOf(':'));
+            }
+          };
+      final Enumerable<String> enumerable = Linq4j.asEnumerable(list);
+      final List<String> expected =
+          enumerable.orderBy(first).thenByDescending(second).toList();
+      final List<String> expectedDescending =
+          enumerable.orderByDescending(first).toList();
+
+      // Per call; 3 and 5 threads leave a run with no partner to merge
+      for (int parallelism : new int[] {2, 3, 4, 5}) {
+        assertEquals(expected,
+            EnumerableDefaults.orderBy(enumerable, first, null, executor,
+                parallelism).thenByDescending(second).toList());
+        assertEquals(expectedDescending,
+            EnumerableDefaults.orderByDescending(enumerable, first, null,
+                executor, parallelism).toList());
+      }
+
+      // In parallel mode
+      final ParallelEnumerable<String> parallel =
+          enumerable.asParallel(executor, 4);
+      assertEquals(expected,
+          parallel.orderBy(first).thenByDescending(second).toList());
+      assertEquals(expectedDescending,
+          parallel.orderByDescending(first).toList());
+      assertEquals(expected.subList(100, 110),
+          parallel.orderBy(first).thenByDescending(second).skip(100)
+              .take(10).toList());
+      assertEquals(
+          enumerable.orderBy(second, Collections.<String>reverseOrder())
+              .toList(),
+          parallel.orderBy(second, Collections.<String>reverseOrder())
+              .toList());
+
+      // Smaller than the threshold, and empty
+      assertEquals(expected.subList(0, 0),
+          parallel.where(Functions.<String>falsePredicate1()).orderBy(first)
+              .toList());
+      assertEquals(
+          Linq4j.asEnumerable(list.subList(0, 100)).orderBy(first).toList(),
+          Linq4j.asEnumerable(list.subList(0, 100)).asParallel(executor, 4)
+              .orderBy(first).toList());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /** Tests that a function passed to a parallel operator can use a parallel
+   * enumerable, or prefetch, on the executor that runs it, without
+   * deadlocking; including the shared executor of
+   * {@link ExtendedEnumerable#asParallel()}. */
+  @Test public void testNestedParallel() throws Exception {
+    final List<Integer> list = new ArrayList<Integer>();
+    for (int i = 0; i < 200; i++) {
+      list.add(i);
+    }
+    final IntegerFunction1<Integer> identity =
+        new IntegerFunction1<Integer>() {
+          public int apply(Integer v) {
+            return v;
+          }
+        };
+    final List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < 200; i++) {
+      expected.add(i * (i - 1) / 2);
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    final ExecutorService watchdog = Executors.newSingleThreadExecutor();
+    try {
+      final Future<List<Integer>> future0 =
+          watchdog.submit(
+              new Callable<List<Integer>>() {
+                public List<Integer> call() {
+                  return Linq4j.asEnumerable(list).asParallel()
+                      .select(
+                          new Function1<Integer, Integer>() {
+                            public Integer apply(Integer n) {
+                              return Linq4j.asEnumerable(list.subList(0, n))
+                                  .asParallel()
+                                  .sum(identity);
+                            }
+                          })
+                      .toList();
+                }
+              });
+      assertEquals(expected, future0.get(60, TimeUnit.SECONDS));
+
+      final Future<List<Integer>> future1 =
+          watchdog.submit(
+              new Callable<List<Integer>>() {
+                public List<Integer> call() {
+                  return Linq4j.asEnumerable(list).asParallel(executor, 2)
+                      .asUnordered()
+                      .select(
+                          new Function1<Integer, Integer>() {
+                            public Integer apply(Integer n) {
+                              final Enumerable<Integer> nested =
+                                  Linq4j.asEnumerable(list.subList(0, n))
+                                      .asParallel(executor, 2)
+                                      .orderByDescending(
+                                          Functions.<Integer>identitySelector())
+                                      .asEnumerable();
+                              return Linq4j.prefetch(nested, 4, executor)
+                                  .sum(identity);
+                            }
+                          })
+                      .orderBy(Functions.<Integer>identitySelector())
+                      .toList();
+                }
+              });
+      assertEquals(expected, future1.get(60, TimeUnit.SECONDS));
+    } finally {
+      watchdog.shutdownNow();
+      executor.shutdownNow();
+    }
+  }
+
+  @Test public void testPrefetch() {
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      final List<Integer> list = new ArrayList<Integer>();
+      for (int i = 0; i < 1000; i++) {
+        list.add(i % 10 == 0 ? null : i);
+      }
+      assertEquals(list,
+          Linq4j.prefetch(Linq4j.asEnumerable(list), 16, executor).toList());
+      assertEquals(list,
+          Linq4j.prefetch(Linq4j.asEnumerable(list), 1, executor).toList());
+      assertEquals(0,
+          Linq4j.prefetch(Linq4j.<Integer>emptyEnumerable(), 4, executor)
+              .count());
+
+      // An endless source that records how far it has been read, the
+      // thread that read it, and whether it has been closed. It fails if
+      // asked to read element -1.
+      final AtomicInteger readCount = new AtomicInteger();
+      final AtomicBoolean closed = new AtomicBoolean();
+      final List<Thread> threads = new ArrayList<Thread>();
+      final Enumerable<Integer> endless =
+          new AbstractEnumerable<Integer>() {
+            public Enumerator<Integer> enumerator() {
+              return new Enumerator<Integer>() {
+                int i = -1;
+
+                public Integer current() {
+                  return i;
+                }
+
+                public boolean moveNext() {
+                  if (threads.isEmpty()) {
+                    threads.add(Thread.currentThread());
+                  }
+                  readCount.incrementAndGet();
+                  return ++i < Integer.MAX_VALUE;
+                }
+
+                public void reset() {
+                  i = -1;
+                }
+
+                public void close() {
+                  closed.set(true);
+                }
+              };
+            }
+          };
+      final Enumerator<Integer> enumerator =
+          Linq4j.prefetch(endless, 8, executor).enumerator();
+      assertTrue(enumerator.moveNext());
+      assertEquals(0, (int) enumerator.current());
+      assertTrue(enumerator.moveNext());
+      assertEquals(1, (int) enumerator.current());
+      assertNotSame(Thread.currentThread(), threads.get(0));
+
+      // Reset starts again from the start
+      enumerator.reset();
+      assertTrue(closed.getAndSet(false));
+      assertTrue(enumerator.moveNext());
+      assertEquals(0, (int) enumerator.current());
+      assertTrue(enumerator.moveNext());
+      assertTrue(enumerator.moveNext());
+      assertEquals(2, (int) enumerator.current());
+
+      // Close stops the producer, which closes the source before close
+      // returns. Each producer read at most the batch that the consumer
+      // took, plus a full buffer, plus one element it could not add.
+      enumerator.close();
+      assertTrue(closed.get());
+      final int count = readCount.get();
+      assertTrue("read " + count, count <= 2 * (8 + 8 + 1));
+      assertEquals(count, readCount.get());
+
+      // An exception in the source follows the elements before it
+      final Enumerator<Integer> failing =
+          Linq4j.prefetch(
+              Linq4j.asEnumerable(Arrays.asList(1, 2, 3))
+                  .select(
+                      new Function1<Integer, Integer>() {
+                        public Integer apply(Integer v) {
+                          if (v == 3) {
+                            throw new IllegalStateException("bad " + v);
+                          }
+                          return v;
+                        }
+                      })
+                  .where(Functions.<Integer>truePredicate1()),
+              2, executor).enumerator();
+      assertTrue(failing.moveNext());
+      assertEquals(1, (int) failing.current());
+      assertTrue(failing.moveNext());
+      assertEquals(2, (int) failing.current());
+      try {
+        final boolean b = failing.moveNext();
+        fail("expected error, got " + b);
+      } catch (IllegalStateException e) {
+        assertEquals("bad 3", e.getMessage());
+      }
+      failing.close();
+
+      try {
+        final Enumerable<Integer> e =
+            Linq4j.prefetch(Linq4j.asEnumerable(list), 0, executor);
+        fail("expected error, got " + e);
+      } catch (IllegalArgumentException e) {
+        assertEquals("bufferSize must be positive: 0", e.getMessage());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   @Test public void testGroupJoin() {
     // Note #1: Group join is a "left join": "bad employees" are filtered
     //   out, but empty departments are not.
@@ -657,6 +1410,269 @@ public class Linq4jTest {
         s);
   }
 
+  @Test public void testOuterJoin() {
+    final Function2<Employee, Department, String> resultSelector =
+        new Function2<Employee, Department, String>() {
+          public String apply(Employee v1, Department v2) {
+            return (v1 == null ? "-" : v1.name)
+                + ":" + (v2 == null ? "-" : v2.name);
+          }
+        };
+    final Enumerable<Employee> allEmps =
+        Linq4j.asEnumerable(emps).concat(Linq4j.asEnumerable(badEmps));
+    final String[] expected = {
+      "[Fred:Sales, Bill:Marketing, Eric:Sales, Janet:Sales]",
+      "[Fred:Sales, Bill:Marketing, Eric:Sales, Janet:Sales, Cedric:-]",
+      "[Fred:Sales, Bill:Marketing, Eric:Sales, Janet:Sales, -:HR]",
+      "[Fred:Sales, Bill:Marketing, Eric:Sales, Janet:Sales, Cedric:-,"
+          + " -:HR]",
+    };
+    for (int i = 0; i < 4; i++) {
+      final boolean generateNullsOnLeft = (i & 2) != 0;
+      final boolean generateNullsOnRight = (i & 1) != 0;
+      assertEquals(expected[i],
+          allEmps.join(Linq4j.asEnumerable(depts), EMP_DEPTNO_SELECTOR,
+              DEPT_DEPTNO_SELECTOR, resultSelector, null,
+              generateNullsOnLeft, generateNullsOnRight)
+              .toList().toString());
+
+      // Building the outer input gives the same results in a different
+      // order.
+      final List<String> list =
+          allEmps.join(Linq4j.asEnumerable(depts), EMP_DEPTNO_SELECTOR,
+              DEPT_DEPTNO_SELECTOR, resultSelector,
+              Functions.<Integer>identityComparer(), generateNullsOnLeft,
+              generateNullsOnRight, BuildSide.OUTER)
+              .toList();
+      final List<String> expectedList =
+          Arrays.asList(
+              expected[i].substring(1, expected[i].length() - 1)
+                  .split(", "));
+      assertEquals(sorted(expectedList), sorted(list));
+    }
+  }
+
+  private static <E extends Comparable<E>> List<E> sorted(List<E> list) {
+    final List<E> list2 = new ArrayList<E>(list);
+    Collections.sort(list2);
+    return list2;
+  }
+
+  @Test public void testSemiJoin() {
+    final Enumerable<Employee> allEmps =
+        Linq4j.asEnumerable(emps).concat(Linq4j.asEnumerable(badEmps));
+    assertEquals("[Sales, Marketing]",
+        Linq4j.asEnumerable(depts)
+            .semiJoin(allEmps, DEPT_DEPTNO_SELECTOR, EMP_DEPTNO_SELECTOR)
+            .select(DEPT_NAME_SELECTOR)
+            .toList().toString());
+    assertEquals("[HR]",
+        Linq4j.asEnumerable(depts)
+            .antiJoin(allEmps, DEPT_DEPTNO_SELECTOR, EMP_DEPTNO_SELECTOR)
+            .select(DEPT_NAME_SELECTOR)
+            .toList().toString());
+    assertEquals("[Fred, Bill, Eric, Janet]",
+        allEmps
+            .semiJoin(Linq4j.asEnumerable(depts), EMP_DEPTNO_SELECTOR,
+                DEPT_DEPTNO_SELECTOR)
+            .select(EMP_NAME_SELECTOR)
+            .toList().toString());
+    assertEquals("[Cedric]",
+        allEmps
+            .antiJoin(Linq4j.asEnumerable(depts), EMP_DEPTNO_SELECTOR,
+                DEPT_DEPTNO_SELECTOR)
+            .select(EMP_NAME_SELECTOR)
+            .toList().toString());
+
+    // Build the outer input.
+    assertEquals("[Bill, Eric, Fred, Janet]",
+        allEmps
+            .semiJoin(Linq4j.asEnumerable(depts), EMP_DEPTNO_SELECTOR,
+                DEPT_DEPTNO_SELECTOR, null, BuildSide.OUTER)
+            .select(EMP_NAME_SELECTOR)
+            .orderBy(Functions.<String>identitySelector())
+            .toList().toString());
+    assertEquals("[Cedric]",
+        allEmps
+            .antiJoin(Linq4j.asEnumerable(depts), EMP_DEPTNO_SELECTOR,
+                DEPT_DEPTNO_SELECTOR, Functions.<Integer>identityComparer(),
+                BuildSide.OUTER)
+            .select(EMP_NAME_SELECTOR)
+            .toList().toString());
+    assertEquals("[HR]",
+        Linq4j.asEnumerable(depts)
+            .antiJoin(allEmps, DEPT_DEPTNO_SELECTOR, EMP_DEPTNO_SELECTOR,
+                null, BuildSide.OUTER)
+            .select(DEPT_NAME_SELECTOR)
+            .toList().toString());
+  }
+
+  @Test public void testMergeJoin() {
+    final Random random = new Random(4);
+    final List<Integer> outer = new ArrayList<Integer>();
+    final List<Integer> inner = new ArrayList<Integer>();
+    for (int i = 0; i < 300; i++) {
+      outer.add(random.nextInt(500));
+      inner.add(random.nextInt(500));
+    }
+    Collections.sort(outer);
+    Collections.sort(inner);
+    final Function1<Integer, Integer> tens =
+        new Function1<Integer, Integer>() {
+          public Integer apply(Integer v) {
+            return v / 10;
+          }
+        };
+    final Function2<Integer, Integer, String> concat =
+        new Function2<Integer, Integer, String>() {
+          public String apply(Integer v0, Integer v1) {
+            return v0 + ":" + v1;
+          }
+        };
+    final List<String> expected =
+        Linq4j.asEnumerable(outer)
+            .join(Linq4j.asEnumerable(inner), tens, tens, concat)
+            .toList();
+    assertTrue(expected.size() > 1000);
+    assertEquals(expected,
+        EnumerableDefaults.mergeJoin(Linq4j.asEnumerable(outer),
+            Linq4j.asEnumerable(inner), tens, tens, concat, null)
+            .toList());
+
+    // Input that is not sorted
+    try {
+      final List<String> list =
+          EnumerableDefaults.mergeJoin(Linq4j.asEnumerable(outer),
+              Linq4j.asEnumerable(inner).reverse(), tens, tens, concat, null)
+              .toList();
+      fail("expected error, got " + list);
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage(),
+          e.getMessage().startsWith("inner input is not sorted"));
+    }
+
+    // If both inputs are declared sorted on the join key, join uses a merge
+    // join, which reads the inner input only as far as it needs to.
+    final int[] innerCount = {0};
+    final Enumerable<Integer> countingInner =
+        Linq4j.asEnumerable(inner).select(
+            new Function1<Integer, Integer>() {
+              public Integer apply(Integer v) {
+                ++innerCount[0];
+                return v;
+              }
+            });
+    final Enumerator<String> enumerator =
+        EnumerableDefaults.asOrdered(Linq4j.asEnumerable(outer), tens, null)
+            .join(EnumerableDefaults.asOrdered(countingInner, tens, null),
+                tens, tens, concat)
+            .enumerator();
+    assertTrue(enumerator.moveNext());
+    assertEquals(expected.get(0), enumerator.current());
+    assertTrue(innerCount[0] < 50);
+    int n = 1;
+    while (enumerator.moveNext()) {
+      assertEquals(expected.get(n++), enumerator.current());
+    }
+    assertEquals(expected.size(), n);
+    enumerator.close();
+
+    assertEquals(
+        "[Fred:Sales, Eric:Sales, Janet:Sales, Bill:Marketing]",
+        Linq4j.asEnumerable(emps).orderBy(EMP_DEPTNO_SELECTOR)
+            .join(Linq4j.asEnumerable(depts).orderBy(DEPT_DEPTNO_SELECTOR),
+                EMP_DEPTNO_SELECTOR, DEPT_DEPTNO_SELECTOR,
+                new Function2<Employee, Department, String>() {
+                  public String apply(Employee v1, Department v2) {
+                    return v1.name + ":" + v2.name;
+                  }
+                })
+            .toList().toString());
+
+    // Keys 1.0 and 1.00 compare equal but are not equal. Sorting the inputs
+    // does not declare that they match, so join still uses a hash join.
+    final List<BigDecimal> decimals =
+        Arrays.asList(new BigDecimal("1.0"), new BigDecimal("1.00"),
+            new BigDecimal("2"));
+    final Function1<BigDecimal, BigDecimal> identity =
+        Functions.identitySelector();
+    final Function2<BigDecimal, BigDecimal, String> pair =
+        new Function2<BigDecimal, BigDecimal, String>() {
+          public String apply(BigDecimal v0, BigDecimal v1) {
+            return v0 + ":" + v1;
+          }
+        };
+    assertEquals("[1.0:1.0, 1.00:1.00, 2:2]",
+        Linq4j.asEnumerable(decimals)
+            .join(Linq4j.asEnumerable(decimals), identity, identity, pair)
+            .toList().toString());
+    assertEquals("[1.0:1.0, 1.00:1.00, 2:2]",
+        Linq4j.asEnumerable(decimals).orderBy(identity)
+            .join(Linq4j.asEnumerable(decimals).orderBy(identity), identity,
+                identity, pair)
+            .toList().toString());
+  }
+
+  @Test public void testKnownSize() {
+    final List<String> list = Arrays.asList("a", "b", "c", "d");
+    assertEquals(4, Linq4j.knownSize(Linq4j.asEnumerable(list)));
+    assertEquals(2,
+        Linq4j.knownSize(
+            Linq4j.asEnumerable(new HashSet<String>(Arrays.asList("x", "y")))));
+    assertEquals(-1,
+        Linq4j.knownSize(Linq4j.asEnumerable(list).where(
+            Functions.<String>truePredicate1())));
+    assertEquals(2,
+        Linq4j.knownSize(
+            Linq4j.asEnumerable(emps).toLookup(EMP_DEPTNO_SELECTOR)));
+    final Enumerable<String> sorted =
+        Linq4j.asEnumerable(list).orderBy(Functions.<String>identitySelector());
+    assertEquals(4, Linq4j.knownSize(sorted));
+    assertEquals(3, Linq4j.knownSize(sorted.skip(1)));
+    assertEquals(2, Linq4j.knownSize(sorted.skip(1).take(2)));
+    assertEquals(0, Linq4j.knownSize(sorted.skip(10)));
+    // take gives an upper bound, not the size, of a source of unknown size
+    assertEquals(-1,
+        Linq4j.knownSize(
+            Linq4j.asEnumerable(list)
+                .where(Functions.<String>truePredicate1())
+                .orderBy(Functions.<String>identitySelector())
+                .take(1000000)));
+  }
+
+  /** Tests that join builds the smaller input if the sizes of the inputs
+   * are known. */
+  @Test public void testJoinBuildSide() {
+    final Function2<Department, Employee, String> resultSelector =
+        new Function2<Department, Employee, String>() {
+          public String apply(Department v1, Employee v2) {
+            return v1.name + ":" + v2.name;
+          }
+        };
+    // The outer input, depts, is smaller, so it is built, and results are
+    // in the order of the inner input, emps.
+    assertEquals("[Sales:Fred, Marketing:Bill, Sales:Eric, Sales:Janet]",
+        Linq4j.asEnumerable(depts)
+            .join(Linq4j.asEnumerable(emps), DEPT_DEPTNO_SELECTOR,
+                EMP_DEPTNO_SELECTOR, resultSelector)
+            .toList().toString());
+    // Override, to build the inner input.
+    assertEquals("[Sales:Fred, Sales:Eric, Sales:Janet, Marketing:Bill]",
+        Linq4j.asEnumerable(depts)
+            .join(Linq4j.asEnumerable(emps), DEPT_DEPTNO_SELECTOR,
+                EMP_DEPTNO_SELECTOR, resultSelector, null, false, false,
+                BuildSide.INNER)
+            .toList().toString());
+    // The size of the inner input is not known, so it is built.
+    assertEquals("[Sales:Fred, Sales:Eric, Sales:Janet, Marketing:Bill]",
+        Linq4j.asEnumerable(depts)
+            .join(
+                Linq4j.asEnumerable(emps)
+                    .where(Functions.<Employee>truePredicate1()),
+                DEPT_DEPTNO_SELECTOR, EMP_DEPTNO_SELECTOR, resultSelector)
+            .toList().toString());
+  }
+
   @Test public void testJoinCartesianProduct() {
     int n =
         Linq4j.asEnumerable(emps)
@@ -1071,6 +2087,660 @@ public class Linq4jTest {
             .toList().toString());
   }
 
+  @Test public void testThenBy() {
+    assertEquals(
+        "[Employee(name: Eric, deptno:10),"
+        + " Employee(name: Fred, deptno:10),"
+        + " Employee(name: Janet, deptno:10),"
+        + " Employee(name: Bill, deptno:30)]",
+        Linq4j.asEnumerable(emps)
+            .orderBy(EMP_DEPTNO_SELECTOR)
+            .thenBy(EMP_NAME_SELECTOR)
+            .toList().toString());
+    assertEquals(
+        "[Employee(name: Bill, deptno:30),"
+        + " Employee(name: Janet, deptno:10),"
+        + " Employee(name: Fred, deptno:10),"
+        + " Employee(name: Eric, deptno:10)]",
+        Linq4j.asEnumerable(emps)
+            .orderByDescending(EMP_DEPTNO_SELECTOR)
+            .thenByDescending(EMP_NAME_SELECTOR)
+            .toList().toString());
+    // Comparator that compares names by their second letter. "Fred" and
+    // "Eric" tie, and stay in input order.
+    final Comparator<String> secondLetter = new Comparator<String>() {
+      public int compare(String o1, String o2) {
+        return o1.charAt(1) - o2.charAt(1);
+      }
+    };
+    assertEquals(
+        "[Employee(name: Janet, deptno:10),"
+        + " Employee(name: Fred, deptno:10),"
+        + " Employee(name: Eric, deptno:10),"
+        + " Employee(name: Bill, deptno:30)]",
+        Linq4j.asEnumerable(emps)
+            .orderBy(EMP_DEPTNO_SELECTOR)
+            .thenBy(EMP_NAME_SELECTOR, secondLetter)
+            .toList().toString());
+    assertEquals(
+        "[Employee(name: Fred, deptno:10),"
+        + " Employee(name: Eric, deptno:10),"
+        + " Employee(name: Janet, deptno:10),"
+        + " Employee(name: Bill, deptno:30)]",
+        Linq4j.asEnumerable(emps)
+            .orderBy(EMP_DEPTNO_SELECTOR)
+            .thenByDescending(EMP_NAME_SELECTOR, secondLetter)
+            .toList().toString());
+  }
+
+  /** Sorts random data on keys of several types, and checks the result
+   * against {@link Collections#sort}. */
+  @Test public void testOrderByRandom() {
+    final Random random = new Random(0);
+    final List<long[]> rows = new ArrayList<long[]>();
+    for (int i = 0; i < 5000; i++) {
+      rows.add(new long[] {random.nextInt(20), random.nextInt(), i});
+    }
+    final Function1<long[], Integer> intKey =
+        new Function1<long[], Integer>() {
+          public Integer apply(long[] row) {
+            return (int) row[0];
+          }
+        };
+    final Function1<long[], Long> longKey =
+        new Function1<long[], Long>() {
+          public Long apply(long[] row) {
+            return row[1];
+          }
+        };
+    final Function1<long[], Double> doubleKey =
+        new Function1<long[], Double>() {
+          public Double apply(long[] row) {
+            return row[1] % 7 / 2d;
+          }
+        };
+    final Function1<long[], String> stringKey =
+        new Function1<long[], String>() {
+          public String apply(long[] row) {
+            return Long.toString(row[1] % 5);
+          }
+        };
+    final List<long[]> expected = new ArrayList<long[]>(rows);
+    Collections.sort(expected,
+        new Comparator<long[]>() {
+          public int compare(long[] o1, long[] o2) {
+            int c = intKey.apply(o1).compareTo(intKey.apply(o2));
+            if (c == 0) {
+              c = doubleKey.apply(o2).compareTo(doubleKey.apply(o1));
+            }
+            if (c == 0) {
+              c = stringKey.apply(o1).compareTo(stringKey.apply(o2));
+            }
+            return c;
+          }
+        });
+    assertEquals(expected,
+        Linq4j.asEnumerable(rows)
+            .orderBy(intKey)
+            .thenByDescending(doubleKey)
+            .thenBy(stringKey)
+            .toList());
+
+    Collections.sort(expected,
+        new Comparator<long[]>() {
+          public int compare(long[] o1, long[] o2) {
+            return longKey.apply(o2).compareTo(longKey.apply(o1));
+          }
+        });
+    assertEquals(expected,
+        Linq4j.asEnumerable(rows).orderByDescending(longKey).toList());
+  }
+
+  /** Tests {@code take} and {@code skip} following a sort, which use a
+   * top-N sort. */
+  @Test public void testOrderByTake() {
+    assertEquals(
+        "[Employee(name: Fred, deptno:10),"
+        + " Employee(name: Eric, deptno:10)]",
+        Linq4j.asEnumerable(emps)
+            .orderBy(EMP_DEPTNO_SELECTOR)
+            .take(2)
+            .toList().toString());
+    assertEquals(
+        "[Employee(name: Eric, deptno:10),"
+        + " Employee(name: Janet, deptno:10)]",
+        Linq4j.asEnumerable(emps)
+            .orderBy(EMP_DEPTNO_SELECTOR)
+            .skip(1)
+            .take(2)
+            .toList().toString());
+    assertEquals(
+        "[Employee(name: Bill, deptno:30)]",
+        Linq4j.asEnumerable(emps)
+            .orderByDescending(EMP_DEPTNO_SELECTOR)
+            .take(3)
+            .take(1)
+            .toList().toString());
+    assertEquals(0,
+        Linq4j.asEnumerable(emps).orderBy(EMP_DEPTNO_SELECTOR).take(0)
+            .count());
+    assertEquals(0,
+        Linq4j.asEnumerable(emps).orderBy(EMP_DEPTNO_SELECTOR).skip(5)
+            .take(2).count());
+
+    // Compare with a full sort, many keys tied.
+    final Random random = new Random(1);
+    final List<Integer> list = new ArrayList<Integer>();
+    for (int i = 0; i < 2000; i++) {
+      list.add(random.nextInt(100));
+    }
+    final Function1<Integer, Integer> tens =
+        new Function1<Integer, Integer>() {
+          public Integer apply(Integer v) {
+            return v / 10;
+          }
+        };
+    final List<Integer> sorted =
+        Linq4j.asEnumerable(list).orderByDescending(tens).toList();
+    for (int[] offsetFetch
+        : new int[][] {{0, 1}, {0, 100}, {10, 50}, {1990, 20}, {0, 5000}}) {
+      final int offset = offsetFetch[0];
+      final int fetch = offsetFetch[1];
+      assertEquals(
+          sorted.subList(offset, Math.min(offset + fetch, sorted.size())),
+          Linq4j.asEnumerable(list)
+              .orderByDescending(tens)
+              .skip(offset)
+              .take(fetch)
+              .toList());
+    }
+    assertEquals(sorted.subList(1500, 2000),
+        Linq4j.asEnumerable(list).orderByDescending(tens).skip(1500)
+            .toList());
+  }
+
+  /** Tests a sort that writes runs to temporary files. */
+  @Test public void testOrderBySpill() throws IOException {
+    final File dir = createTempDir();
+    try {
+      final Random random = new Random(2);
+      final List<Integer> list = new ArrayList<Integer>();
+      for (int i = 0; i < 1000; i++) {
+        list.add(random.nextInt(100));
+      }
+      final Function1<Integer, Integer> tens =
+          new Function1<Integer, Integer>() {
+            public Integer apply(Integer v) {
+              return v / 10;
+            }
+          };
+      final RowSerializer<Integer> serializer = new RowSerializer<Integer>() {
+        public void write(ObjectOutput out, Integer row) throws IOException {
+          out.writeInt(row);
+        }
+
+        public Integer read(ObjectInput in) throws IOException {
+          return in.readInt();
+        }
+      };
+      final Spiller<Integer> spiller =
+          new Spiller<Integer>(64, serializer, dir);
+      final List<Integer> expected =
+          Linq4j.asEnumerable(list)
+              .orderByDescending(tens)
+              .thenBy(Functions.<Integer>identitySelector())
+              .toList();
+      final OrderedEnumerable<Integer> sorted =
+          EnumerableDefaults.orderByDescending(Linq4j.asEnumerable(list),
+              tens, null, spiller)
+              .thenBy(Functions.<Integer>identitySelector());
+      assertEquals(expected, sorted.toList());
+      assertEquals(0, dir.list().length);
+
+      // Runs are written on the first call to moveNext, and deleted on
+      // close, even if the consumer stops early.
+      final Enumerator<Integer> enumerator = sorted.enumerator();
+      assertEquals(0, dir.list().length);
+      assertTrue(enumerator.moveNext());
+      assertEquals(expected.get(0), enumerator.current());
+      assertEquals(15, dir.list().length);
+      enumerator.reset();
+      int n = 0;
+      while (enumerator.moveNext()) {
+        assertEquals(expected.get(n++), enumerator.current());
+      }
+      assertEquals(1000, n);
+      enumerator.close();
+      assertEquals(0, dir.list().length);
+
+      assertEquals(expected.subList(100, 300),
+          sorted.skip(100).take(200).toList());
+      assertEquals(expected.subList(10, 20),
+          sorted.skip(10).take(10).toList());
+
+      // Java serialization
+      assertEquals(expected,
+          EnumerableDefaults.orderByDescending(Linq4j.asEnumerable(list),
+              tens, null, Spiller.<Integer>of(100))
+              .thenBy(Functions.<Integer>identitySelector())
+              .toList());
+    } finally {
+      deleteDir(dir);
+    }
+  }
+
+  /** Tests a sort that writes more runs than it may merge at a time, so
+   * merges runs in several passes. */
+  @Test public void testOrderBySpillFanIn() throws IOException {
+    final File dir = createTempDir();
+    try {
+      final Random random = new Random(3);
+      final List<Integer> list = new ArrayList<Integer>();
+      for (int i = 0; i < 1000; i++) {
+        list.add(random.nextInt(1000));
+      }
+      final Function1<Integer, Integer> tens =
+          new Function1<Integer, Integer>() {
+            public Integer apply(Integer v) {
+              return v / 10;
+            }
+          };
+      // The sort is stable, so elements with equal keys stay in source
+      // order, even though they were merged in different passes.
+      final List<Integer> expected =
+          Linq4j.asEnumerable(list).orderBy(tens).toList();
+      for (int fanIn : new int[] {2, 3, 7, 100}) {
+        final Spiller<Integer> spiller =
+            new Spiller<Integer>(10, Spiller.<Integer>javaSerializer(), dir,
+                fanIn);
+        final Enumerator<Integer> enumerator =
+            EnumerableDefaults.orderBy(Linq4j.asEnumerable(list), tens, null,
+                spiller).enumerator();
+        final List<Integer> actual = new ArrayList<Integer>();
+        while (enumerator.moveNext()) {
+          actual.add(enumerator.current());
+          // 100 runs are reduced to at most fanIn; one of them may be in
+          // memory.
+          assertTrue(dir.list().length <= Math.min(fanIn, 99));
+        }
+        enumerator.close();
+        assertEquals(expected, actual);
+        assertEquals(0, dir.list().length);
+      }
+    } finally {
+      deleteDir(dir);
+    }
+  }
+
+  /** Tests a hash aggregation whose groups do not fit in memory. */
+  @Test public void testGroupBySpill() throws IOException {
+    final File dir = createTempDir();
+    try {
+      final Random random = new Random(5);
+      final List<Integer> list = new ArrayList<Integer>();
+      for (int i = 0; i < 5000; i++) {
+        list.add(i % 1000);
+      }
+      Collections.shuffle(list, random);
+      final Function0<Integer> zero =
+          new Function0<Integer>() {
+            public Integer apply() {
+              return 0;
+            }
+          };
+      final Function2<Integer, Integer, Integer> count =
+          new Function2<Integer, Integer, Integer>() {
+            public Integer apply(Integer v0, Integer v1) {
+              return v0 + 1;
+            }
+          };
+      final Function2<Integer, Integer, Integer> plus =
+          new Function2<Integer, Integer, Integer>() {
+            public Integer apply(Integer v0, Integer v1) {
+              return v0 + v1;
+            }
+          };
+      final Function2<Integer, Integer, String> format =
+          new Function2<Integer, Integer, String>() {
+            public String apply(Integer v0, Integer v1) {
+              return v0 + ":" + v1;
+            }
+          };
+      final Function1<Integer, Integer> identity =
+          Functions.identitySelector();
+      final List<String> expected =
+          Linq4j.asEnumerable(list)
+              .groupBy(identity, zero, count, format)
+              .toList();
+      Collections.sort(expected);
+      assertEquals(1000, expected.size());
+
+      // 1,000 keys do not fit in 16 partitions of 20, so partitions are
+      // divided again.
+      final Enumerable<String> groupBy =
+          EnumerableDefaults.groupBy(Linq4j.asEnumerable(list), identity,
+              zero, count, plus, format, null,
+              new Spiller<Map.Entry<Integer, Integer>>(20,
+                  Spiller.<Map.Entry<Integer, Integer>>javaSerializer(),
+                  dir));
+      final List<String> actual = groupBy.toList();
+      Collections.sort(actual);
+      assertEquals(expected, actual);
+      assertEquals(0, dir.list().length);
+
+      // Files are deleted if the consumer stops early.
+      final Enumerator<String> enumerator = groupBy.enumerator();
+      assertTrue(enumerator.moveNext());
+      assertTrue(dir.list().length > 0);
+      enumerator.close();
+      assertEquals(0, dir.list().length);
+
+      // Groups fit in memory.
+      final List<String> actual2 =
+          EnumerableDefaults.groupBy(Linq4j.asEnumerable(list), identity,
+              zero, count, plus, format, null,
+              Spiller.<Map.Entry<Integer, Integer>>of(1000))
+              .toList();
+      Collections.sort(actual2);
+      assertEquals(expected, actual2);
+    } finally {
+      deleteDir(dir);
+    }
+  }
+
+  @Test public void testJoinSpill() throws IOException {
+    final File dir = createTempDir();
+    try {
+      // Key 7 has 300 inner rows, so its partition cannot be divided.
+      final Random random = new Random(3);
+      final List<Integer> inner = new ArrayList<Integer>();
+      for (int i = 0; i < 600; i++) {
+        inner.add(i < 300 ? 7 : random.nextInt(400));
+      }
+      Collections.shuffle(inner, random);
+      final List<Integer> outer = new ArrayList<Integer>();
+      for (int i = 0; i < 1000; i++) {
+        outer.add(random.nextInt(200));
+      }
+      final Function1<Integer, Integer> tens =
+          new Function1<Integer, Integer>() {
+            public Integer apply(Integer v) {
+              return v / 10;
+            }
+          };
+      final Function2<Integer, Integer, String> concat =
+          new Function2<Integer, Integer, String>() {
+            public String apply(Integer v0, Integer v1) {
+              return v0 + ":" + v1;
+            }
+          };
+      final List<String> expected =
+          Linq4j.asEnumerable(outer)
+              .join(Linq4j.asEnumerable(inner), tens, tens, concat)
+              .toList();
+      Collections.sort(expected);
+      final Enumerable<String> join =
+          EnumerableDefaults.join(Linq4j.asEnumerable(outer),
+              Linq4j.asEnumerable(inner), tens, tens, concat, null,
+              new Spiller<Integer>(1, Spiller.<Integer>javaSerializer(), dir),
+              new Spiller<Integer>(50, Spiller.<Integer>javaSerializer(),
+                  dir));
+      final List<String> actual = join.toList();
+      Collections.sort(actual);
+      assertEquals(expected.size(), actual.size());
+      assertEquals(expected, actual);
+      assertEquals(0, dir.list().length);
+
+      // Files are deleted if the consumer stops early.
+      final Enumerator<String> enumerator = join.enumerator();
+      assertTrue(enumerator.moveNext());
+      assertTrue(dir.list().length > 0);
+      enumerator.close();
+      assertEquals(0, dir.list().length);
+
+      // Inner input fits in memory.
+      final List<String> actual2 =
+          EnumerableDefaults.join(Linq4j.asEnumerable(outer),
+              Linq4j.asEnumerable(inner), tens, tens, concat, null,
+              Spiller.<Integer>of(1), Spiller.<Integer>of(1000))
+              .toList();
+      Collections.sort(actual2);
+      assertEquals(expected, actual2);
+    } finally {
+      deleteDir(dir);
+    }
+  }
+
+  /** Tests that a sort that spills holds at most its budget of rows in
+   * memory, and writes each row independently, so that neither the stream
+   * that writes a run nor the stream that reads it keeps earlier rows. */
+  @Test public void testOrderBySpillReleasesRows() {
+    final CountingSerializer<List<Object>> serializer =
+        new CountingSerializer<List<Object>>();
+    final SpillRows source = new SpillRows(5000, serializer);
+    final List<List<Object>> rows =
+        EnumerableDefaults.orderBy(source, SpillRows.NAME, null,
+            new Spiller<List<Object>>(100, serializer, null))
+            .toList();
+    assertEquals(5000, rows.size());
+    // Every full batch of 100 rows has been written when the source ends.
+    assertEquals(5000, source.writtenAtEnd);
+    assertEquals(5000, source.copyCount(rows));
+  }
+
+  /** Tests that a hash join that spills holds at most its budget of inner
+   * rows in memory, and writes each row independently. */
+  @Test public void testJoinSpillReleasesRows() {
+    final CountingSerializer<List<Object>> serializer =
+        new CountingSerializer<List<Object>>();
+    final SpillRows inner = new SpillRows(5000, serializer, true);
+    final List<List<Object>> outer = new SpillRows(5000, null).toList();
+    final List<List<Object>> rows =
+        EnumerableDefaults.join(Linq4j.asEnumerable(outer), inner,
+            SpillRows.NAME, SpillRows.NAME,
+            new Function2<List<Object>, List<Object>, List<Object>>() {
+              public List<Object> apply(List<Object> v0, List<Object> v1) {
+                return v1;
+              }
+            },
+            null, Spiller.<List<Object>>of(100),
+            new Spiller<List<Object>>(100, serializer, null))
+            .toList();
+    assertEquals(5000, rows.size());
+    // At most 100 inner rows are in memory when the inner input ends.
+    assertTrue("written " + inner.writtenAtEnd,
+        inner.writtenAtEnd >= 4900);
+    // Rows that have been spilled are no longer reachable. Allow a few for
+    // references that the JVM has not cleared yet.
+    assertTrue("live " + inner.liveAtEnd, inner.liveAtEnd <= 100);
+    assertTrue("live " + inner.liveAtEnd + ", written " + inner.writtenAtEnd,
+        inner.liveAtEnd <= 5000 - inner.writtenAtEnd + 5);
+    assertTrue(inner.copyCount(rows) >= 4900);
+  }
+
+  /** Tests that a hash aggregation that spills holds at most its budget of
+   * groups in memory, and writes each entry independently. */
+  @Test public void testGroupBySpillReleasesRows() {
+    final CountingSerializer<Map.Entry<Object, List<Object>>> serializer =
+        new CountingSerializer<Map.Entry<Object, List<Object>>>();
+    final SpillRows source = new SpillRows(5000, serializer);
+    // Each group's accumulator is its first row.
+    final List<List<Object>> rows =
+        EnumerableDefaults.groupBy(source, SpillRows.NAME,
+            new Function0<List<Object>>() {
+              public List<Object> apply() {
+                return null;
+              }
+            },
+            new Function2<List<Object>, List<Object>, List<Object>>() {
+              public List<Object> apply(List<Object> v0, List<Object> v1) {
+                return v0 == null ? v1 : v0;
+              }
+            },
+            new Function2<List<Object>, List<Object>, List<Object>>() {
+              public List<Object> apply(List<Object> v0, List<Object> v1) {
+                return v0;
+              }
+            },
+            new Function2<Object, List<Object>, List<Object>>() {
+              public List<Object> apply(Object v0, List<Object> v1) {
+                return v1;
+              }
+            },
+            null, new Spiller<Map.Entry<Object, List<Object>>>(100,
+                serializer, null))
+            .toList();
+    assertEquals(5000, rows.size());
+    // At most 100 groups are in memory when the source ends.
+    assertTrue("written " + source.writtenAtEnd,
+        source.writtenAtEnd >= 4900);
+    assertEquals(5000, source.copyCount(rows));
+  }
+
+  /** Serializer that uses Java serialization, and counts the rows that it
+   * has written. */
+  private static class CountingSerializer<T> implements RowSerializer<T> {
+    int writeCount;
+
+    public void write(ObjectOutput out, T row) throws IOException {
+      ++writeCount;
+      Spiller.<T>javaSerializer().write(out, row);
+    }
+
+    public T read(ObjectInput in) throws IOException {
+      return Spiller.<T>javaSerializer().read(in);
+    }
+  }
+
+  /** Enumerable of rows for spill tests. Each row is a list of a distinct
+   * name and of an object that all rows share.
+   *
+   * <p>Until a stream is reset, Java serialization writes an object once,
+   * and the streams that write and read it keep a reference to it. So a row
+   * read back from a temporary file has its own copy of the shared object
+   * only if its stream was reset after each row.</p> */
+  private static class SpillRows extends AbstractEnumerable<List<Object>> {
+    static final Function1<List<Object>, Object> NAME =
+        new Function1<List<Object>, Object>() {
+          public Object apply(List<Object> row) {
+            return row.get(0);
+          }
+        };
+
+    private final int count;
+    private final CountingSerializer<?> serializer;
+    private final ArrayList<Object> shared = new ArrayList<Object>();
+    /** Weak references to the rows produced, or null if not tracking. */
+    private final List<WeakReference<Object>> references;
+    /** Number of rows the serializer had written when the consumer reached
+     * the end, or -1. */
+    int writtenAtEnd = -1;
+    /** Number of rows still reachable when the consumer reached the end, or
+     * -1. */
+    int liveAtEnd = -1;
+
+    SpillRows(int count, CountingSerializer<?> serializer) {
+      this(count, serializer, false);
+    }
+
+    SpillRows(int count, CountingSerializer<?> serializer, boolean track) {
+      this.count = count;
+      this.serializer = serializer;
+      this.references = track ? new ArrayList<WeakReference<Object>>() : null;
+    }
+
+    public Enumerator<List<Object>> enumerator() {
+      return new Enumerator<List<Object>>() {
+        int i = -1;
+        List<Object> current;
+
+        public List<Object> current() {
+          return current;
+        }
+
+        public boolean moveNext() {
+          if (++i < count) {
+            current = Arrays.<Object>asList("row " + i, shared);
+            if (references != null) {
+              references.add(new WeakReference<Object>(current));
+            }
+            return true;
+          }
+          current = null;
+          if (serializer != null && writtenAtEnd < 0) {
+            writtenAtEnd = serializer.writeCount;
+          }
+          if (references != null && liveAtEnd < 0) {
+            liveAtEnd = liveCount();
+          }
+          return false;
+        }
+
+        public void reset() {
+          i = -1;
+          current = null;
+        }
+
+        public void close() {
+        }
+      };
+    }
+
+    /** Returns the number of rows that are still reachable. Collects
+     * garbage until an object that became unreachable after the rows were
+     * produced has been cleared, which a single {@link System#gc()} does
+     * not guarantee. */
+    private int liveCount() {
+      for (int attempt = 0; attempt < 10; attempt++) {
+        final WeakReference<Object> sentinel =
+            new WeakReference<Object>(new Object());
+        System.gc();
+        if (sentinel.get() == null) {
+          System.gc();
+          break;
+        }
+      }
+      int n = 0;
+      for (WeakReference<Object> reference : references) {
+        if (reference.get() != null) {
+          ++n;
+        }
+      }
+      return n;
+    }
+
+    /** Returns the number of rows that have their own copy of the shared
+     * object, and checks that no two rows share a copy. */
+    int copyCount(List<List<Object>> rows) {
+      final Map<Object, Object> copies = new IdentityHashMap<Object, Object>();
+      int n = 0;
+      for (List<Object> row : rows) {
+        if (row.get(1) != shared) {
+          ++n;
+          copies.put(row.get(1), row);
+        }
+      }
+      assertEquals(n, copies.size());
+      return n;
+    }
+  }
+
+  private static File createTempDir() throws IOException {
+    final File dir = File.createTempFile("linq4j", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+    return dir;
+  }
+
+  private static void deleteDir(File dir) {
+    for (File file : dir.listFiles()) {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+    //noinspection ResultOfMethodCallIgnored
+    dir.delete();
+  }
+
   @Test public void testReverse() {
     assertEquals(
         "[Employee(name: Janet, deptno:10),"